@@ -1,5 +1,15 @@
 package codehint;
 
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * This class is used in the implementation of the CodeHint
  * plugin and should not be used by clients.
@@ -23,6 +33,9 @@ public final class CodeHintImpl {
 	public static int fullCount;
 	
 	public static Object[] methodResults;
+	
+	public static String[] exceptions;
+	public static Object[] handles;
 
 	private static SynthesisSecurityManager newSecurityManager;
 	
@@ -45,10 +58,306 @@ public final class CodeHintImpl {
 		valid = null;
 		toStrings = null;
 		methodResults = null;
+		exceptions = null;
+		handles = null;
 		if (newSecurityManager != null) {  // For some reason, this seems to become null when we fail to set a new SecurityManager.
 			newSecurityManager.disable();
 			newSecurityManager = null;
 		}
 	}
+	
+	/**
+	 * Gets a reflective handle to the method, constructor, or
+	 * field of the given class with the given name and signature.
+	 * @param c The class that declares the member.
+	 * @param name The name of the method or field, or <init>
+	 * for a constructor.
+	 * @param signature The JNI signature of the member.
+	 * @return A reflective handle to the given member, or
+	 * null if there is none or we cannot make it accessible,
+	 * in which case the plugin calls the member directly.
+	 */
+	public static AccessibleObject getMember(Class<?> c, String name, String signature) {
+		AccessibleObject member = null;
+		try {
+			if (!signature.startsWith("(")) {  // Fields have the signature of their type.
+				for (Field field: c.getDeclaredFields())
+					if (name.equals(field.getName()) && signature.equals(getSignature(field.getType())))
+						member = field;
+			} else if ("<init>".equals(name)) {
+				for (Constructor<?> cons: c.getDeclaredConstructors())
+					if (signature.equals(getSignature(cons.getParameterTypes(), Void.TYPE)))
+						member = cons;
+			} else {
+				for (Method method: c.getDeclaredMethods())
+					if (name.equals(method.getName()) && signature.equals(getSignature(method.getParameterTypes(), method.getReturnType())))
+						member = method;
+			}
+			if (member != null)
+				member.setAccessible(true);
+		} catch (RuntimeException e) {  // A SecurityException, or an InaccessibleObjectException on newer VMs.
+			return null;
+		}
+		return member;
+	}
+	
+	private static String getSignature(Class<?>[] paramTypes, Class<?> returnType) {
+		StringBuilder sb = new StringBuilder("(");
+		for (Class<?> paramType: paramTypes)
+			sb.append(getSignature(paramType));
+		sb.append(")").append(getSignature(returnType));
+		return sb.toString();
+	}
+	
+	private static String getSignature(Class<?> type) {
+		if (type.isArray())
+			return type.getName().replace('.', '/');
+		if (type == Void.TYPE)
+			return "V";
+		if (type == Integer.TYPE)
+			return "I";
+		if (type == Boolean.TYPE)
+			return "Z";
+		if (type == Long.TYPE)
+			return "J";
+		if (type == Byte.TYPE)
+			return "B";
+		if (type == Character.TYPE)
+			return "C";
+		if (type == Short.TYPE)
+			return "S";
+		if (type == Float.TYPE)
+			return "F";
+		if (type == Double.TYPE)
+			return "D";
+		return "L" + type.getName().replace('.', '/') + ";";
+	}
+	
+	/**
+	 * Calls the given method or constructor.  If it throws
+	 * an exception, we record its name in the given slot of
+	 * the exceptions array and return null rather than
+	 * letting it stop the whole evaluation.
+	 * @param slot The index of the call in the current batch.
+	 * @param member The method or constructor to call.
+	 * @param receiver The receiver of the call, or null for
+	 * static methods and constructors.
+	 * @param args The arguments to the call.
+	 * @return The result of the call, or null if it threw
+	 * an exception.
+	 */
+	public static Object call(int slot, Object member, Object receiver, Object[] args) {
+		try {
+			if (member instanceof Constructor)
+				return ((Constructor<?>)member).newInstance(args);
+			else
+				return ((Method)member).invoke(receiver, args);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ThreadDeath)  // Timeouts and native calls must still stop the evaluation.
+				throw (ThreadDeath)cause;
+			exceptions[slot] = cause.getClass().getName();
+		} catch (Exception e) {
+			exceptions[slot] = e.getClass().getName();
+		}
+		return null;
+	}
+	
+	/**
+	 * Evaluates the given serialized expressions and stores
+	 * their values into the given values array, which we
+	 * allocate.  See Interpreter for the encoding.
+	 * @param code The serialized expressions.
+	 * @param constants The constants the expressions use.
+	 * @param count The number of expressions.
+	 * @param maxStack The maximum stack depth the expressions need.
+	 * @param valuesArrayName The name of the array in which to
+	 * store the values.
+	 */
+	public static void interpret(int[] code, Object[] constants, int count, int maxStack, String valuesArrayName) {
+		Object values = startInterpreting(count, valuesArrayName);
+		new Interpreter(code, constants, maxStack).run(values);
+	}
+	
+	/**
+	 * Interprets the given serialized expressions like interpret,
+	 * but splits them among several threads.  The plugin only
+	 * calls this for expressions that it knows are pure.  We
+	 * use as many threads as there are processors as long as
+	 * each has enough work.
+	 * @param code The serialized expressions.
+	 * @param constants The constants the expressions use.
+	 * @param count The number of expressions.
+	 * @param maxStack The maximum stack depth the expressions need.
+	 * @param valuesArrayName The name of the array in which to
+	 * store the values.
+	 */
+	public static void interpretInParallel(int[] code, Object[] constants, int count, int maxStack, String valuesArrayName) {
+		int numThreads = ParallelInterpreter.getNumThreads(count);
+		if (numThreads == 1) {
+			interpret(code, constants, count, maxStack, valuesArrayName);
+			return;
+		}
+		Object values = startInterpreting(count, valuesArrayName);
+		new ParallelInterpreter(code, constants, count, maxStack, values, numThreads).run();
+	}
+	
+	/**
+	 * Allocates the arrays that store the results of
+	 * interpreting the given number of expressions and
+	 * resets the counts.
+	 * @param count The number of expressions.
+	 * @param valuesArrayName The name of the array in which to
+	 * store the values.
+	 * @return The array in which to store the values.
+	 */
+	private static Object startInterpreting(int count, String valuesArrayName) {
+		Object values;
+		if ("objects".equals(valuesArrayName))
+			values = objects = new Object[count];
+		else if ("ints".equals(valuesArrayName))
+			values = ints = new int[count];
+		else if ("booleans".equals(valuesArrayName))
+			values = booleans = new boolean[count];
+		else if ("longs".equals(valuesArrayName))
+			values = longs = new long[count];
+		else if ("bytes".equals(valuesArrayName))
+			values = bytes = new byte[count];
+		else if ("chars".equals(valuesArrayName))
+			values = chars = new char[count];
+		else if ("shorts".equals(valuesArrayName))
+			values = shorts = new short[count];
+		else if ("floats".equals(valuesArrayName))
+			values = floats = new float[count];
+		else
+			values = doubles = new double[count];
+		exceptions = new String[count];
+		valid = null;  // We do not check validity, so do not let a previous batch's results hide ours.
+		valueCount = 0;
+		fullCount = 0;
+		return values;
+	}
+	
+	/**
+	 * Packs the values of the given array and the status of
+	 * each evaluation into one array so that the plugin can
+	 * read them with one request.  The first count elements
+	 * are the bits of the values if they are primitives and
+	 * the next count elements are flags saying whether each
+	 * value is valid (1), whether its evaluation threw an
+	 * exception (2), and whether it is an object whose hash
+	 * code and equality class we computed (4).
+	 * @param valuesArrayName The name of the array that stores
+	 * the values, or null if there are none.
+	 * @param count The number of values.
+	 * @return The packed values and statuses.
+	 */
+	public static long[] packResults(String valuesArrayName, int count) {
+		long[] packed = new long[2 * count];
+		if ("ints".equals(valuesArrayName) && ints != null)
+			for (int i = 0; i < count && i < ints.length; i++)
+				packed[i] = ints[i];
+		else if ("booleans".equals(valuesArrayName) && booleans != null)
+			for (int i = 0; i < count && i < booleans.length; i++)
+				packed[i] = booleans[i] ? 1 : 0;
+		else if ("longs".equals(valuesArrayName) && longs != null)
+			for (int i = 0; i < count && i < longs.length; i++)
+				packed[i] = longs[i];
+		else if ("bytes".equals(valuesArrayName) && bytes != null)
+			for (int i = 0; i < count && i < bytes.length; i++)
+				packed[i] = bytes[i];
+		else if ("chars".equals(valuesArrayName) && chars != null)
+			for (int i = 0; i < count && i < chars.length; i++)
+				packed[i] = chars[i];
+		else if ("shorts".equals(valuesArrayName) && shorts != null)
+			for (int i = 0; i < count && i < shorts.length; i++)
+				packed[i] = shorts[i];
+		else if ("floats".equals(valuesArrayName) && floats != null)
+			for (int i = 0; i < count && i < floats.length; i++)
+				packed[i] = Float.floatToRawIntBits(floats[i]);
+		else if ("doubles".equals(valuesArrayName) && doubles != null)
+			for (int i = 0; i < count && i < doubles.length; i++)
+				packed[i] = Double.doubleToRawLongBits(doubles[i]);
+		else if ("objects".equals(valuesArrayName) && objects != null)
+			hashObjects(packed, count);
+		for (int i = 0; i < count; i++) {
+			if (valid != null && i < valid.length && valid[i])
+				packed[count + i] |= 1;
+			if (exceptions != null && i < exceptions.length && exceptions[i] != null)
+				packed[count + i] |= 2;
+		}
+		return packed;
+	}
+	
+	/**
+	 * Computes the hash codes of the objects so that the
+	 * plugin does not have to ask for them one by one.
+	 * The low 32 bits of the packed value are the hash code and
+	 * the high 32 bits are one more than the index of the first
+	 * object that equals it.  We skip Strings, arrays, and class
+	 * objects, which the plugin hashes itself, results that
+	 * crashed or are not valid, and objects whose hashCode or
+	 * equals crashes.  Like the plugin, we call equals on
+	 * objects of any class, since equal objects can have
+	 * different classes.
+	 * @param packed The packed results.
+	 * @param count The number of values.
+	 */
+	private static void hashObjects(long[] packed, int count) {
+		Map<Integer, List<Integer>> classesByHash = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < count && i < objects.length; i++) {
+			Object obj = objects[i];
+			if (obj == null || obj instanceof String || obj instanceof Class || obj.getClass().isArray())
+				continue;
+			if ((exceptions != null && i < exceptions.length && exceptions[i] != null) || (valid != null && (i >= valid.length || !valid[i])))
+				continue;
+			try {
+				int hashCode = obj.hashCode();
+				List<Integer> classes = classesByHash.get(hashCode);
+				if (classes == null) {
+					classes = new ArrayList<Integer>(1);
+					classesByHash.put(hashCode, classes);
+				}
+				int equalityClass = i;
+				for (int other: classes) {
+					if (obj.equals(objects[other])) {
+						equalityClass = other;
+						break;
+					}
+				}
+				if (equalityClass == i)
+					classes.add(i);
+				packed[i] = ((long)(equalityClass + 1) << 32) | (hashCode & 0xFFFFFFFFL);
+				packed[count + i] |= 4;
+			} catch (ThreadDeath e) {
+				throw e;
+			} catch (Throwable e) {
+				// The plugin will hash this object itself.
+			}
+		}
+	}
+	
+	/**
+	 * Joins the Strings in the given array into one String
+	 * so that the plugin can read them with one request.
+	 * Each String is prefixed with its length and a colon,
+	 * and elements that are not Strings are written as !.
+	 * @param arrayName The name of the array, one of objects,
+	 * toStrings, or exceptions.
+	 * @param count The number of elements to join.
+	 * @return The joined Strings.
+	 */
+	public static String joinStrings(String arrayName, int count) {
+		Object[] values = "toStrings".equals(arrayName) ? toStrings : "exceptions".equals(arrayName) ? exceptions : objects;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (values != null && i < values.length && values[i] instanceof String) {
+				String str = (String)values[i];
+				sb.append(str.length()).append(':').append(str);
+			} else
+				sb.append('!');
+		}
+		return sb.toString();
+	}
 
 }
@@ -0,0 +1,501 @@
+package codehint;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Evaluates serialized expressions so that the plugin can
+ * evaluate many of them with one call instead of compiling
+ * an evaluation string.
+ * The code is a sequence of expressions in postfix order,
+ * each of which starts with a BEGIN instruction containing
+ * the index of the next expression's BEGIN and ends with a
+ * STORE instruction.  Methods, constructors, and fields are
+ * indices into CodeHintImpl.handles.
+ * This must be kept in sync with codehint.expreval.ExpressionEncoder.
+ */
+final class Interpreter {
+
+	static final int BEGIN = 0;
+	static final int STORE = 1;
+	static final int CONST = 2;
+	static final int NULL = 3;
+	static final int INT = 4;
+	static final int LONG = 5;
+	static final int FLOAT = 6;
+	static final int DOUBLE = 7;
+	static final int BOOLEAN = 8;
+	static final int CHAR = 9;
+	static final int BYTE = 10;
+	static final int SHORT = 11;
+	static final int METHOD_RESULT = 12;
+	static final int CALL = 13;
+	static final int NEW = 14;
+	static final int GET_FIELD = 15;
+	static final int ARRAY_LENGTH = 16;
+	static final int ARRAY_GET = 17;
+	static final int CONVERT = 18;
+	static final int CHECKCAST = 19;
+	static final int INSTANCEOF = 20;
+	static final int BINARY = 21;
+	static final int UNARY = 22;
+	static final int JUMP_IF_FALSE = 23;
+	static final int JUMP_IF_TRUE = 24;
+
+	static final int PLUS = 0;
+	static final int MINUS = 1;
+	static final int TIMES = 2;
+	static final int DIVIDE = 3;
+	static final int REMAINDER = 4;
+	static final int LEFT_SHIFT = 5;
+	static final int RIGHT_SHIFT_SIGNED = 6;
+	static final int RIGHT_SHIFT_UNSIGNED = 7;
+	static final int LESS = 8;
+	static final int GREATER = 9;
+	static final int LESS_EQUALS = 10;
+	static final int GREATER_EQUALS = 11;
+	static final int EQUALS = 12;
+	static final int NOT_EQUALS = 13;
+	static final int XOR = 14;
+	static final int OR = 15;
+	static final int AND = 16;
+	static final int NOT = 17;
+	static final int COMPLEMENT = 18;
+
+	private final int[] code;
+	private final Object[] constants;
+	private final Object[] stack;
+	// We keep our own reference so that a worker we stopped waiting for cannot write into a later evaluation's array.
+	private final String[] exceptions;
+	private int sp;
+
+	Interpreter(int[] code, Object[] constants, int maxStack) {
+		this.code = code;
+		this.constants = constants;
+		this.stack = new Object[maxStack];
+		this.exceptions = CodeHintImpl.exceptions;
+		this.sp = 0;
+	}
+
+	/**
+	 * Evaluates all of the expressions and stores their results
+	 * into the given array.  Exceptions thrown by an expression
+	 * are recorded in CodeHintImpl.exceptions and do not stop
+	 * the evaluation of the following expressions.
+	 * @param values The array into which to store the results.
+	 */
+	void run(Object values) {
+		int slot = 0;
+		int pc = 0;
+		while (pc < code.length) {
+			if (run(values, pc, slot))
+				CodeHintImpl.valueCount = slot + 1;
+			slot++;
+			CodeHintImpl.fullCount = slot;
+			pc = code[pc + 1];
+		}
+	}
+
+	/**
+	 * Evaluates the expression that starts at the given index
+	 * and stores its result into the given array.  An exception
+	 * thrown by the expression is recorded in
+	 * CodeHintImpl.exceptions.
+	 * @param values The array into which to store the result.
+	 * @param pc The index of the expression's BEGIN instruction.
+	 * @param slot The index of the expression.
+	 * @return Whether the expression completed normally.
+	 */
+	boolean run(Object values, int pc, int slot) {
+		try {
+			evaluate(pc + 2, values, slot);
+			return true;
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ThreadDeath)  // Timeouts and native calls must still stop the evaluation.
+				throw (ThreadDeath)cause;
+			exceptions[slot] = cause.getClass().getName();
+			return false;
+		} catch (Exception e) {
+			exceptions[slot] = e.getClass().getName();
+			return false;
+		} finally {
+			sp = 0;
+		}
+	}
+
+	private void evaluate(int pc, Object values, int slot) throws Exception {
+		while (true) {
+			switch (code[pc]) {
+			case STORE:
+				store(values, slot, pop());
+				return;
+			case CONST:
+				push(constants[code[pc + 1]]);
+				pc += 2;
+				break;
+			case NULL:
+				push(null);
+				pc++;
+				break;
+			case INT:
+				push(Integer.valueOf(code[pc + 1]));
+				pc += 2;
+				break;
+			case LONG:
+				push(Long.valueOf(getLong(pc + 1)));
+				pc += 3;
+				break;
+			case FLOAT:
+				push(Float.valueOf(Float.intBitsToFloat(code[pc + 1])));
+				pc += 2;
+				break;
+			case DOUBLE:
+				push(Double.valueOf(Double.longBitsToDouble(getLong(pc + 1))));
+				pc += 3;
+				break;
+			case BOOLEAN:
+				push(Boolean.valueOf(code[pc + 1] != 0));
+				pc += 2;
+				break;
+			case CHAR:
+				push(Character.valueOf((char)code[pc + 1]));
+				pc += 2;
+				break;
+			case BYTE:
+				push(Byte.valueOf((byte)code[pc + 1]));
+				pc += 2;
+				break;
+			case SHORT:
+				push(Short.valueOf((short)code[pc + 1]));
+				pc += 2;
+				break;
+			case METHOD_RESULT:
+				push(CodeHintImpl.methodResults[code[pc + 1]]);
+				pc += 2;
+				break;
+			case CALL: {
+				Object[] args = popArgs(code[pc + 2]);
+				Object receiver = pop();
+				push(((Method)CodeHintImpl.handles[code[pc + 1]]).invoke(receiver, args));
+				pc += 3;
+				break;
+			}
+			case NEW: {
+				Object[] args = popArgs(code[pc + 2]);
+				push(((Constructor<?>)CodeHintImpl.handles[code[pc + 1]]).newInstance(args));
+				pc += 3;
+				break;
+			}
+			case GET_FIELD: {
+				Object receiver = pop();
+				push(((Field)CodeHintImpl.handles[code[pc + 1]]).get(receiver));
+				pc += 2;
+				break;
+			}
+			case ARRAY_LENGTH:
+				push(Integer.valueOf(Array.getLength(pop())));
+				pc++;
+				break;
+			case ARRAY_GET: {
+				int index = ((Number)pop()).intValue();
+				push(Array.get(pop(), index));
+				pc++;
+				break;
+			}
+			case CONVERT:
+				push(convert(pop(), (char)code[pc + 1]));
+				pc += 2;
+				break;
+			case CHECKCAST:
+				push(((Class<?>)constants[code[pc + 1]]).cast(pop()));
+				pc += 2;
+				break;
+			case INSTANCEOF:
+				push(Boolean.valueOf(((Class<?>)constants[code[pc + 1]]).isInstance(pop())));
+				pc += 2;
+				break;
+			case BINARY: {
+				Object right = pop();
+				push(binary(code[pc + 1], (char)code[pc + 2], pop(), right));
+				pc += 3;
+				break;
+			}
+			case UNARY:
+				push(unary(code[pc + 1], (char)code[pc + 2], pop()));
+				pc += 3;
+				break;
+			case JUMP_IF_FALSE:  // Short-circuiting && leaves the false left operand as the result.
+				if (!((Boolean)stack[sp - 1]).booleanValue())
+					pc = code[pc + 1];
+				else {
+					sp--;
+					pc += 2;
+				}
+				break;
+			case JUMP_IF_TRUE:  // Short-circuiting || leaves the true left operand as the result.
+				if (((Boolean)stack[sp - 1]).booleanValue())
+					pc = code[pc + 1];
+				else {
+					sp--;
+					pc += 2;
+				}
+				break;
+			default:
+				throw new IllegalStateException("Unknown instruction " + code[pc]);
+			}
+		}
+	}
+
+	private void push(Object value) {
+		stack[sp++] = value;
+	}
+
+	private Object pop() {
+		return stack[--sp];
+	}
+
+	private Object[] popArgs(int numArgs) {
+		Object[] args = new Object[numArgs];
+		for (int i = numArgs - 1; i >= 0; i--)
+			args[i] = pop();
+		return args;
+	}
+
+	private long getLong(int pc) {
+		return ((long)code[pc] << 32) | (code[pc + 1] & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Stores the given value into the given array, unboxing
+	 * it if the array stores primitives.
+	 */
+	private static void store(Object values, int slot, Object value) {
+		if (values instanceof Object[])
+			((Object[])values)[slot] = value;
+		else
+			Array.set(values, slot, convert(value, getSignature(values.getClass().getComponentType())));
+	}
+
+	private static char getSignature(Class<?> type) {
+		if (type == Integer.TYPE)
+			return 'I';
+		if (type == Boolean.TYPE)
+			return 'Z';
+		if (type == Long.TYPE)
+			return 'J';
+		if (type == Byte.TYPE)
+			return 'B';
+		if (type == Character.TYPE)
+			return 'C';
+		if (type == Short.TYPE)
+			return 'S';
+		if (type == Float.TYPE)
+			return 'F';
+		return 'D';
+	}
+
+	/**
+	 * Converts the given boxed primitive to the primitive type
+	 * with the given signature, as a Java cast would.
+	 */
+	private static Object convert(Object value, char sig) {
+		if (sig == 'Z')
+			return (Boolean)value;
+		if (value instanceof Character) {
+			char c = ((Character)value).charValue();
+			switch (sig) {
+			case 'C': return Character.valueOf(c);
+			case 'I': return Integer.valueOf(c);
+			case 'J': return Long.valueOf(c);
+			case 'B': return Byte.valueOf((byte)c);
+			case 'S': return Short.valueOf((short)c);
+			case 'F': return Float.valueOf(c);
+			default: return Double.valueOf(c);
+			}
+		}
+		Number n = (Number)value;
+		switch (sig) {
+		case 'C':
+			if (n instanceof Long)
+				return Character.valueOf((char)n.longValue());
+			if (n instanceof Float || n instanceof Double)
+				return Character.valueOf((char)(int)n.doubleValue());
+			return Character.valueOf((char)n.intValue());
+		case 'I': return Integer.valueOf(n.intValue());
+		case 'J': return Long.valueOf(n.longValue());
+		case 'B': return Byte.valueOf(n.byteValue());
+		case 'S': return Short.valueOf(n.shortValue());
+		case 'F': return Float.valueOf(n.floatValue());
+		default: return Double.valueOf(n.doubleValue());
+		}
+	}
+
+	private static int toInt(Object value) {
+		return value instanceof Character ? ((Character)value).charValue() : ((Number)value).intValue();
+	}
+
+	private static long toLong(Object value) {
+		return value instanceof Character ? ((Character)value).charValue() : ((Number)value).longValue();
+	}
+
+	private static float toFloat(Object value) {
+		return value instanceof Character ? ((Character)value).charValue() : ((Number)value).floatValue();
+	}
+
+	private static double toDouble(Object value) {
+		return value instanceof Character ? ((Character)value).charValue() : ((Number)value).doubleValue();
+	}
+
+	/**
+	 * Evaluates a binary operator.
+	 * @param op The operator.
+	 * @param type The signature of the type of the operation:
+	 * the promoted numeric type, Z for booleans, L for references,
+	 * or T for String concatenation.
+	 * @param left The left operand.
+	 * @param right The right operand.
+	 * @return The result of the operation.
+	 */
+	private static Object binary(int op, char type, Object left, Object right) {
+		switch (type) {
+		case 'T':
+			return String.valueOf(left) + String.valueOf(right);
+		case 'L':
+			return Boolean.valueOf(op == EQUALS ? left == right : left != right);
+		case 'Z': {
+			boolean l = ((Boolean)left).booleanValue();
+			boolean r = ((Boolean)right).booleanValue();
+			switch (op) {
+			case EQUALS: return Boolean.valueOf(l == r);
+			case NOT_EQUALS: return Boolean.valueOf(l != r);
+			case XOR: return Boolean.valueOf(l ^ r);
+			case OR: return Boolean.valueOf(l | r);
+			case AND: return Boolean.valueOf(l & r);
+			}
+			break;
+		}
+		case 'I': {
+			int l = toInt(left);
+			switch (op) {  // Shifts use the right operand's value even when it is a long.
+			case LEFT_SHIFT: return Integer.valueOf(l << toLong(right));
+			case RIGHT_SHIFT_SIGNED: return Integer.valueOf(l >> toLong(right));
+			case RIGHT_SHIFT_UNSIGNED: return Integer.valueOf(l >>> toLong(right));
+			}
+			int r = toInt(right);
+			switch (op) {
+			case PLUS: return Integer.valueOf(l + r);
+			case MINUS: return Integer.valueOf(l - r);
+			case TIMES: return Integer.valueOf(l * r);
+			case DIVIDE: return Integer.valueOf(l / r);
+			case REMAINDER: return Integer.valueOf(l % r);
+			case LESS: return Boolean.valueOf(l < r);
+			case GREATER: return Boolean.valueOf(l > r);
+			case LESS_EQUALS: return Boolean.valueOf(l <= r);
+			case GREATER_EQUALS: return Boolean.valueOf(l >= r);
+			case EQUALS: return Boolean.valueOf(l == r);
+			case NOT_EQUALS: return Boolean.valueOf(l != r);
+			case XOR: return Integer.valueOf(l ^ r);
+			case OR: return Integer.valueOf(l | r);
+			case AND: return Integer.valueOf(l & r);
+			}
+			break;
+		}
+		case 'J': {
+			long l = toLong(left);
+			long r = toLong(right);
+			switch (op) {
+			case LEFT_SHIFT: return Long.valueOf(l << r);
+			case RIGHT_SHIFT_SIGNED: return Long.valueOf(l >> r);
+			case RIGHT_SHIFT_UNSIGNED: return Long.valueOf(l >>> r);
+			case PLUS: return Long.valueOf(l + r);
+			case MINUS: return Long.valueOf(l - r);
+			case TIMES: return Long.valueOf(l * r);
+			case DIVIDE: return Long.valueOf(l / r);
+			case REMAINDER: return Long.valueOf(l % r);
+			case LESS: return Boolean.valueOf(l < r);
+			case GREATER: return Boolean.valueOf(l > r);
+			case LESS_EQUALS: return Boolean.valueOf(l <= r);
+			case GREATER_EQUALS: return Boolean.valueOf(l >= r);
+			case EQUALS: return Boolean.valueOf(l == r);
+			case NOT_EQUALS: return Boolean.valueOf(l != r);
+			case XOR: return Long.valueOf(l ^ r);
+			case OR: return Long.valueOf(l | r);
+			case AND: return Long.valueOf(l & r);
+			}
+			break;
+		}
+		case 'F': {
+			float l = toFloat(left);
+			float r = toFloat(right);
+			switch (op) {
+			case PLUS: return Float.valueOf(l + r);
+			case MINUS: return Float.valueOf(l - r);
+			case TIMES: return Float.valueOf(l * r);
+			case DIVIDE: return Float.valueOf(l / r);
+			case REMAINDER: return Float.valueOf(l % r);
+			case LESS: return Boolean.valueOf(l < r);
+			case GREATER: return Boolean.valueOf(l > r);
+			case LESS_EQUALS: return Boolean.valueOf(l <= r);
+			case GREATER_EQUALS: return Boolean.valueOf(l >= r);
+			case EQUALS: return Boolean.valueOf(l == r);
+			case NOT_EQUALS: return Boolean.valueOf(l != r);
+			}
+			break;
+		}
+		case 'D': {
+			double l = toDouble(left);
+			double r = toDouble(right);
+			switch (op) {
+			case PLUS: return Double.valueOf(l + r);
+			case MINUS: return Double.valueOf(l - r);
+			case TIMES: return Double.valueOf(l * r);
+			case DIVIDE: return Double.valueOf(l / r);
+			case REMAINDER: return Double.valueOf(l % r);
+			case LESS: return Boolean.valueOf(l < r);
+			case GREATER: return Boolean.valueOf(l > r);
+			case LESS_EQUALS: return Boolean.valueOf(l <= r);
+			case GREATER_EQUALS: return Boolean.valueOf(l >= r);
+			case EQUALS: return Boolean.valueOf(l == r);
+			case NOT_EQUALS: return Boolean.valueOf(l != r);
+			}
+			break;
+		}
+		}
+		throw new IllegalStateException("Unknown operator " + op + " for " + type);
+	}
+
+	/**
+	 * Evaluates a unary operator.
+	 * @param op The operator.
+	 * @param type The signature of the promoted type of the operand.
+	 * @param operand The operand.
+	 * @return The result of the operation.
+	 */
+	private static Object unary(int op, char type, Object operand) {
+		if (op == NOT)
+			return Boolean.valueOf(!((Boolean)operand).booleanValue());
+		switch (type) {
+		case 'I':
+			if (op == MINUS)
+				return Integer.valueOf(-toInt(operand));
+			if (op == COMPLEMENT)
+				return Integer.valueOf(~toInt(operand));
+			return Integer.valueOf(toInt(operand));
+		case 'J':
+			if (op == MINUS)
+				return Long.valueOf(-toLong(operand));
+			if (op == COMPLEMENT)
+				return Long.valueOf(~toLong(operand));
+			return Long.valueOf(toLong(operand));
+		case 'F':
+			return Float.valueOf(op == MINUS ? -toFloat(operand) : toFloat(operand));
+		default:
+			return Double.valueOf(op == MINUS ? -toDouble(operand) : toDouble(operand));
+		}
+	}
+
+}
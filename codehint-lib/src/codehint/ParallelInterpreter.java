@@ -0,0 +1,307 @@
+package codehint;
+
+/**
+ * Interprets expressions that the plugin knows are pure on
+ * several threads.  The calling thread evaluates expressions
+ * as well, so the evaluation finishes even if the debugger
+ * suspends the worker threads.
+ * On success, the counts in CodeHintImpl are set as if we
+ * had evaluated the expressions in order.  If a thread is
+ * stopped (e.g., by a timeout or a native call), we blame
+ * the expression that thread was evaluating, give the
+ * expressions before it until they have run for a grace
+ * period to finish, and set fullCount to the index of the
+ * blamed expression, which is the one the plugin will blame.
+ */
+final class ParallelInterpreter {
+
+	// We only use another thread if it has this many expressions to evaluate.
+	private static final int MIN_EXPRESSIONS_PER_THREAD = 32;
+	// How long we let the expressions before a blamed one run before we blame them too, which matches the plugin's timeout.
+	private static final long GRACE_PERIOD_MS = 1000;
+	// How long we wait without any expression finishing before we give up, in case the plugin cannot stop us (e.g., because a worker is suspended).
+	private static final long MAX_STALL_MS = 5000;
+	// The index of the calling thread in the per-thread arrays.
+	private static final int CALLER = 0;
+
+	private final int[] code;
+	private final Object[] constants;
+	private final int maxStack;
+	private final Object values;
+	private final int[] starts;
+	private final boolean[] finished;
+	private final int[] running;
+	private final long[] runningSince;
+	private final boolean[] abandoned;
+	private final Thread[] workers;
+	private int nextSlot;
+	private int numDone;
+	private long lastProgressTime;
+	private int firstBlamed;
+	private ThreadDeath death;
+	private volatile boolean stopped;
+
+	/**
+	 * Creates a new parallel interpreter.
+	 * @param code The serialized expressions.
+	 * @param constants The constants the expressions use.
+	 * @param count The number of expressions.
+	 * @param maxStack The maximum stack depth the expressions need.
+	 * @param values The array into which to store the results.
+	 * @param numThreads The number of threads to use, including
+	 * the calling thread.
+	 */
+	ParallelInterpreter(int[] code, Object[] constants, int count, int maxStack, Object values, int numThreads) {
+		this.code = code;
+		this.constants = constants;
+		this.maxStack = maxStack;
+		this.values = values;
+		this.starts = new int[count];
+		for (int slot = 0, pc = 0; slot < count; slot++) {
+			starts[slot] = pc;
+			pc = code[pc + 1];
+		}
+		this.finished = new boolean[count];
+		this.running = new int[numThreads];
+		for (int i = 0; i < numThreads; i++)
+			running[i] = -1;
+		this.runningSince = new long[numThreads];
+		this.abandoned = new boolean[numThreads];
+		this.workers = new Thread[numThreads];
+		this.nextSlot = 0;
+		this.numDone = 0;
+		this.lastProgressTime = System.currentTimeMillis();
+		this.firstBlamed = count;
+		this.death = null;
+		this.stopped = false;
+	}
+
+	/**
+	 * Gets the number of threads to use to evaluate the given
+	 * number of expressions.
+	 * @param count The number of expressions.
+	 * @return The number of threads to use, including the
+	 * calling thread.
+	 */
+	static int getNumThreads(int count) {
+		return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), count / MIN_EXPRESSIONS_PER_THREAD));
+	}
+
+	/**
+	 * Evaluates all of the expressions and waits for the
+	 * threads to finish.
+	 * @throws ThreadDeath if some thread was stopped while
+	 * evaluating an expression.
+	 */
+	void run() {
+		synchronized (this) {
+			for (int i = 1; i < workers.length; i++) {
+				final int index = i;
+				workers[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							work(index);
+						} catch (ThreadDeath e) {
+							died(index, e);
+						}
+					}
+				}, "CodeHint worker " + i);
+				workers[i].setDaemon(true);
+				workers[i].start();
+			}
+		}
+		try {
+			try {
+				work(CALLER);
+			} catch (ThreadDeath e) {
+				died(CALLER, e);
+			}
+			while (true) {
+				try {
+					if (awaitWorkers())
+						break;
+				} catch (ThreadDeath e) {
+					died(CALLER, e);
+				} catch (InterruptedException e) {
+					died(CALLER, new ThreadDeath());
+				}
+			}
+		} finally {
+			stopWorkers();
+		}
+		synchronized (this) {
+			int firstUnfinished = 0;
+			while (firstUnfinished < finished.length && finished[firstUnfinished])
+				firstUnfinished++;
+			CodeHintImpl.valueCount = firstUnfinished;
+			CodeHintImpl.fullCount = firstUnfinished;
+			if (firstUnfinished < finished.length)
+				throw death != null ? death : new Timeout();
+		}
+	}
+
+	/**
+	 * Evaluates expressions until there are none left or
+	 * some thread was stopped.
+	 * @param index The index of this thread.
+	 */
+	private void work(int index) {
+		Interpreter interpreter = new Interpreter(code, constants, maxStack);
+		while (true) {
+			int slot = claim(index);
+			if (slot == -1)
+				return;
+			interpreter.run(values, starts[slot], slot);
+			finish(index, slot);
+		}
+	}
+
+	/**
+	 * Gets the next expression for the given thread to evaluate.
+	 * @param index The index of the thread.
+	 * @return The index of the expression, or -1 if there is
+	 * none left or some thread was stopped.
+	 */
+	private synchronized int claim(int index) {
+		if (stopped || abandoned[index] || nextSlot >= starts.length)
+			return -1;
+		int slot = nextSlot++;
+		running[index] = slot;
+		runningSince[index] = System.currentTimeMillis();
+		return slot;
+	}
+
+	/**
+	 * Records that the given thread finished evaluating
+	 * the given expression.
+	 * @param index The index of the thread.
+	 * @param slot The index of the expression.
+	 */
+	private synchronized void finish(int index, int slot) {
+		if (abandoned[index])  // We stopped waiting for this thread, so its result no longer matters.
+			return;
+		finished[slot] = true;
+		numDone++;
+		lastProgressTime = System.currentTimeMillis();
+		CodeHintImpl.fullCount = numDone;  // Let the plugin's timeout checker see our progress.
+		running[index] = -1;
+		notifyAll();
+	}
+
+	/**
+	 * Records that the given thread was stopped and blames the
+	 * expression it was evaluating.  If it was not evaluating
+	 * one, as when the calling thread times out while waiting
+	 * for the workers, we blame the expression that has been
+	 * running the longest, since no expression finished during
+	 * the timeout.
+	 * @param index The index of the thread.
+	 * @param e The exception that stopped the thread.
+	 */
+	private synchronized void died(int index, ThreadDeath e) {
+		if (abandoned[index])  // We stopped this thread ourselves.
+			return;
+		if (death == null)
+			death = e;
+		int slot = running[index];
+		running[index] = -1;
+		if (slot == -1)
+			slot = getOldestRunningSlot();
+		if (slot != -1)
+			firstBlamed = Math.min(firstBlamed, slot);
+		stopped = true;
+		notifyAll();
+	}
+
+	/**
+	 * Waits a bounded time for the workers to make progress.
+	 * Once some thread was stopped, we only wait for the
+	 * expressions before the first blamed one and stop the
+	 * workers evaluating later expressions.  We measure the
+	 * grace period from when each of those expressions
+	 * started, so if the plugin timed out because no
+	 * expression finished (e.g., because the workers are
+	 * suspended at a breakpoint), they have already used it
+	 * up and we blame the first of them immediately.
+	 * @return Whether we are done waiting.
+	 * @throws InterruptedException if we are interrupted
+	 * while waiting.
+	 */
+	private synchronized boolean awaitWorkers() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		if (!stopped) {
+			if (getOldestRunningSlot() == -1)
+				return true;
+			long stallTime = now - lastProgressTime;
+			if (stallTime < MAX_STALL_MS) {
+				wait(MAX_STALL_MS - stallTime);
+				return false;
+			}
+			// No expression finished for too long, so blame the one that has been running the longest.
+			firstBlamed = getOldestRunningSlot();
+			stopped = true;
+		}
+		int firstBlocking = starts.length;
+		long firstDeadline = Long.MAX_VALUE;
+		for (int i = 1; i < workers.length; i++) {
+			if (running[i] >= firstBlamed)
+				abandon(i);
+			else if (running[i] != -1) {
+				firstBlocking = Math.min(firstBlocking, running[i]);
+				firstDeadline = Math.min(firstDeadline, runningSince[i] + GRACE_PERIOD_MS);
+			}
+		}
+		if (firstBlocking == starts.length)
+			return true;
+		if (now < firstDeadline) {
+			wait(firstDeadline - now);
+			return false;
+		}
+		// Some expression before the blamed one is stuck too, so blame the first of them instead.
+		firstBlamed = firstBlocking;
+		return false;
+	}
+
+	/**
+	 * Stops the given worker, whose result we no longer need.
+	 * @param index The index of the worker.
+	 */
+	@SuppressWarnings("deprecation")
+	private void abandon(int index) {
+		abandoned[index] = true;
+		running[index] = -1;
+		try {
+			workers[index].stop();
+		} catch (UnsupportedOperationException e) {
+			// Newer VMs cannot stop threads, so the worker will stop once it finishes its expression.
+		}
+	}
+
+	/**
+	 * Stops the workers that are still evaluating expressions.
+	 * We do not wait for them to exit, since a worker that is
+	 * suspended cannot exit, and once we abandon a worker it
+	 * can no longer affect our results.
+	 */
+	private synchronized void stopWorkers() {
+		stopped = true;
+		for (int i = 1; i < workers.length; i++)
+			if (running[i] != -1)
+				abandon(i);
+	}
+
+	/**
+	 * Gets the expression that has been running the longest.
+	 * @return The index of the expression that has been
+	 * running the longest, or -1 if none is running.
+	 */
+	private int getOldestRunningSlot() {
+		int oldest = -1;
+		for (int i = 0; i < running.length; i++)
+			if (running[i] != -1 && (oldest == -1 || runningSince[i] < runningSince[oldest]))
+				oldest = i;
+		return oldest == -1 ? -1 : running[oldest];
+	}
+
+}
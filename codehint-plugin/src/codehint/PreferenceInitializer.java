@@ -9,6 +9,12 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 	public void initializeDefaultPreferences() {
 	    IPreferenceStore store = Activator.getDefault().getPreferenceStore();
 	    store.setDefault(PreferencePage.DATA_REPORT_PREFNAME, true);
+	    store.setDefault(PreferencePage.PIPELINE_EVALUATION_PREFNAME, false);
+	    store.setDefault(PreferencePage.INTERPRET_EVALUATION_PREFNAME, true);
+	    store.setDefault(PreferencePage.PARALLEL_EVALUATION_PREFNAME, false);
+	    store.setDefault(PreferencePage.STREAM_GENERATION_PREFNAME, true);
+	    store.setDefault(PreferencePage.BEAM_ARGUMENTS_PREFNAME, false);
+	    store.setDefault(PreferencePage.BEST_FIRST_SEARCH_PREFNAME, false);
 	}
 
 }
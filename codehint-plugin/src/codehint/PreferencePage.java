@@ -8,10 +8,22 @@ import org.eclipse.ui.IWorkbenchPreferencePage;
 public class PreferencePage extends FieldEditorPreferencePage implements IWorkbenchPreferencePage {
 
 	public static final String DATA_REPORT_PREFNAME = "codehint.reportData";
+	public static final String PIPELINE_EVALUATION_PREFNAME = "codehint.pipelineEvaluation";
+	public static final String INTERPRET_EVALUATION_PREFNAME = "codehint.interpretEvaluation";
+	public static final String PARALLEL_EVALUATION_PREFNAME = "codehint.parallelEvaluation";
+	public static final String STREAM_GENERATION_PREFNAME = "codehint.streamGeneration";
+	public static final String BEAM_ARGUMENTS_PREFNAME = "codehint.beamArguments";
+	public static final String BEST_FIRST_SEARCH_PREFNAME = "codehint.bestFirstSearch";
 
 	@Override
 	protected void createFieldEditors() {
 	    addField(new BooleanFieldEditor(DATA_REPORT_PREFNAME,  "&Report anonymous usage information", getFieldEditorParent()));
+	    addField(new BooleanFieldEditor(PIPELINE_EVALUATION_PREFNAME,  "&Compile the next batch of expressions while evaluating the current one (experimental)", getFieldEditorParent()));
+	    addField(new BooleanFieldEditor(INTERPRET_EVALUATION_PREFNAME,  "&Interpret expressions in the debugged program instead of compiling them when possible", getFieldEditorParent()));
+	    addField(new BooleanFieldEditor(PARALLEL_EVALUATION_PREFNAME,  "Interpret expressions we know are pure on &multiple threads (experimental)", getFieldEditorParent()));
+	    addField(new BooleanFieldEditor(STREAM_GENERATION_PREFNAME,  "&Evaluate the expressions of the last depth while generating them", getFieldEditorParent()));
+	    addField(new BooleanFieldEditor(BEAM_ARGUMENTS_PREFNAME,  "Only call methods with too many argument combinations with the most &likely ones (experimental)", getFieldEditorParent()));
+	    addField(new BooleanFieldEditor(BEST_FIRST_SEARCH_PREFNAME,  "Search the most &probable expressions first instead of searching by depth (experimental)", getFieldEditorParent()));
 	}
 
 	@Override
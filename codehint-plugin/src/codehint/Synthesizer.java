@@ -401,6 +401,7 @@ public class Synthesizer {
 						timeoutChecker.stop();
 						synthesisDialog.setInitialRefinementStatements(stmts);
 						tryToResetEvalManager(synthesisDialog, evalManager);
+						evalManager.releaseHandles();
 					}
 				}
 			};
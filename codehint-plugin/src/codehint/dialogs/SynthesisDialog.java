@@ -102,6 +102,7 @@ import org.eclipse.ui.texteditor.ITextEditor;
 import org.eclipse.ui.texteditor.ITextEditorActionDefinitionIds;
 
 import codehint.Activator;
+import codehint.PreferencePage;
 import codehint.Synthesizer;
 import codehint.Synthesizer.SynthesisWorker;
 import codehint.ast.ASTNode;
@@ -115,6 +116,7 @@ import codehint.expreval.EvaluationManager;
 import codehint.expreval.NativeHandler;
 import codehint.expreval.StaticEvaluator;
 import codehint.expreval.TimeoutChecker;
+import codehint.exprgen.BestFirstExpressionGenerator;
 import codehint.exprgen.DeterministicExpressionGenerator;
 import codehint.exprgen.ExpressionEvaluator;
 import codehint.exprgen.ExpressionGenerator;
@@ -276,7 +278,10 @@ public abstract class SynthesisDialog extends ModelessDialog {
 		this.evalManager = new EvaluationManager(varType == null, true, stack, expressionEvaluator, subtypeChecker, typeCache, valueCache, timeoutChecker, sideEffectHandler);
 		this.staticEvaluator = new StaticEvaluator(stack, expressionEvaluator, typeCache, valueCache);
 		Weights weights = new Weights();
-		this.expressionGenerator = new DeterministicExpressionGenerator(target, stack, sideEffectHandler, expressionMaker, expressionEvaluator, subtypeChecker, typeCache, evalManager, staticEvaluator, weights);
+		if (Activator.getDefault().getPreferenceStore().getBoolean(PreferencePage.BEST_FIRST_SEARCH_PREFNAME))
+			this.expressionGenerator = new BestFirstExpressionGenerator(target, stack, sideEffectHandler, expressionMaker, expressionEvaluator, subtypeChecker, typeCache, evalManager, staticEvaluator, weights);
+		else
+			this.expressionGenerator = new DeterministicExpressionGenerator(target, stack, sideEffectHandler, expressionMaker, expressionEvaluator, subtypeChecker, typeCache, evalManager, staticEvaluator, weights);
 		//this.expressionGenerator = new codehint.exprgen.StochasticExpressionGenerator(target, stack, sideEffectHandler, expressionMaker, expressionEvaluator, subtypeChecker, typeCache, evalManager, staticEvaluator, weights);
 		this.skeleton = null;
 		this.expressionSorter = new ExpressionSorter(expressionEvaluator, weights);
@@ -1574,6 +1579,7 @@ public abstract class SynthesisDialog extends ModelessDialog {
 		if (sideEffectHandler.isEnabled())
 			sideEffectHandler.emptyDisabledCollections();
 		valueCache.allowCollectionOfDisabledObjects();  // Allow collection of objects from the last search.
+		evalManager.releaseHandles();
 		table.dispose();
 		if (monitor != null)
 			monitor.dispose();
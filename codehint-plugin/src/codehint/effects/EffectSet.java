@@ -0,0 +1,70 @@
+package codehint.effects;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * An immutable, canonical set of effects created by an
+ * EffectSetInterner.
+ * Two sets from the same interner are equal exactly when
+ * they are the same object, so comparing them does not look
+ * at their effects, and we compute their hash code once.
+ * Comparisons with other sets still compare their contents.
+ */
+final class EffectSet extends AbstractSet<Effect> {
+
+	private final Set<Effect> effects;
+	private final int id;
+	private final EffectSetInterner interner;
+	private final int hashCode;
+
+	EffectSet(Set<Effect> effects, int id, EffectSetInterner interner) {
+		this.effects = Collections.unmodifiableSet(effects);
+		this.id = id;
+		this.interner = interner;
+		this.hashCode = effects.hashCode();
+	}
+
+	int getId() {
+		return id;
+	}
+
+	EffectSetInterner getInterner() {
+		return interner;
+	}
+
+	@Override
+	public Iterator<Effect> iterator() {
+		return effects.iterator();
+	}
+
+	@Override
+	public int size() {
+		return effects.size();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return effects.contains(o);
+	}
+
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj instanceof EffectSet) {
+			EffectSet other = (EffectSet)obj;
+			if (interner == other.interner || hashCode != other.hashCode)
+				return false;
+		}
+		return super.equals(obj);
+	}
+
+}
@@ -0,0 +1,66 @@
+package codehint.effects;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Gives each distinct set of effects a canonical instance
+ * and a small integer id, so that Result can compare effects
+ * by id.  The empty set is always Collections.emptySet() with
+ * id 0, and ids are unique across interners.
+ * We store effect sets in many maps and results, and
+ * hashing and comparing them otherwise hashes every effect,
+ * including the contents of arrays.
+ */
+public final class EffectSetInterner {
+
+	private static final AtomicInteger nextId = new AtomicInteger(1);
+
+	private final Map<Set<Effect>, EffectSet> sets;
+
+	public EffectSetInterner() {
+		this.sets = new HashMap<Set<Effect>, EffectSet>();
+	}
+
+	/**
+	 * Gets the canonical instance of the given set of effects.
+	 * @param effects The effects.
+	 * @return An immutable set equal to the given one that is
+	 * the same object for all equal sets we intern.
+	 */
+	public Set<Effect> intern(Set<Effect> effects) {
+		if (effects.isEmpty())
+			return Collections.<Effect>emptySet();
+		if (effects instanceof EffectSet && ((EffectSet)effects).getInterner() == this)
+			return effects;
+		EffectSet set = sets.get(effects);
+		if (set == null) {
+			set = new EffectSet(new HashSet<Effect>(effects), nextId.getAndIncrement(), this);
+			sets.put(set, set);
+		}
+		return set;
+	}
+
+	/**
+	 * Gets the id of the given set of effects if it is
+	 * canonical.  Two canonical sets are equal exactly when
+	 * their ids are, unless they come from different
+	 * interners.
+	 * @param effects The effects, or null.
+	 * @return The id of the given set of effects, which is 0
+	 * for the empty set, or -1 if the set is null or is not
+	 * one we interned.
+	 */
+	public static int getId(Set<Effect> effects) {
+		if (effects == null)
+			return -1;
+		if (effects.isEmpty())
+			return 0;
+		return effects instanceof EffectSet ? ((EffectSet)effects).getId() : -1;
+	}
+
+}
@@ -1,7 +1,5 @@
 package codehint.effects;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -10,7 +8,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IWorkspaceRunnable;
@@ -49,6 +46,7 @@ import org.eclipse.jdt.internal.debug.core.model.JDIValue;
 import org.eclipse.jdt.internal.debug.ui.BreakpointUtils;
 
 import codehint.utils.EclipseUtils;
+import codehint.utils.KnowledgeBase;
 import codehint.utils.MutablePair;
 import codehint.utils.Pair;
 import codehint.utils.Utils;
@@ -78,21 +76,14 @@ public class SideEffectHandler {
 	private final IJavaStackFrame stack;
 	private final IJavaProject project;
 	private long maxID;
-	private final Set<String> neverModifiedFields;
+	private final KnowledgeBase knowledgeBase;
+	private final EffectSetInterner effectSetInterner;
 	
-	@SuppressWarnings("unchecked")
 	public SideEffectHandler(IJavaStackFrame stack, IJavaProject project) {
 		this.stack = stack;
 		this.project = project;
-		try {
-			ObjectInputStream is = new ObjectInputStream(new GZIPInputStream(EclipseUtils.getFileFromBundle("data" + System.getProperty("file.separator") + "notmod.gz")));
-			neverModifiedFields = (Set<String>)is.readObject();
-			is.close();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(e);
-		}
+		this.effectSetInterner = new EffectSetInterner();
+		this.knowledgeBase = KnowledgeBase.getDefault();
 	}
 	
 	// TODO: I could easily remove the requirement that we can get instance info.
@@ -153,7 +144,7 @@ public class SideEffectHandler {
 	}
 	
 	private boolean isUsefulField(String typeName, String fieldName, String objTypeName) {
-		if (neverModifiedFields.contains(typeName.replace("$", ".") + "." + fieldName))
+		if (knowledgeBase.isNeverModified(typeName.replace("$", ".") + "." + fieldName))
 			return false;
 		if ((typeName.equals("javax.swing.UIDefaults") && fieldName.equals("PENDING"))
 				|| (typeName.equals("javax.swing.UIManager") && fieldName.equals("classLock"))
@@ -178,6 +169,22 @@ public class SideEffectHandler {
 		return true;
 	}
 	
+	/**
+	 * Checks whether writing to the given field could be a
+	 * side effect we track.  This uses the same rules (and
+	 * knowledge of which fields are never modified) that
+	 * decide which fields we watch.
+	 * @param field The field.
+	 * @return Whether writing to the given field could be a
+	 * side effect we track.
+	 */
+	public boolean isTrackedField(Field field) {
+		if (field.isFinal())
+			return false;
+		String typeName = field.declaringType().name();
+		return isUsefulType(typeName) && isUsefulField(typeName, field.name(), typeName);
+	}
+	
 	private static boolean canBeArray(IField field) throws JavaModelException {
 		String typeSig = field.getTypeSignature();
 		return typeSig.contains("[") || typeSig.equals("Ljava.lang.Object;") || typeSig.equals("QObject;");
@@ -721,11 +728,17 @@ public class SideEffectHandler {
 	public Set<Effect> getSideEffects() {
 		if (!enabled)
 			return Collections.emptySet();
-		Set<Effect> effects = getEffects();
-		if (effects.isEmpty())
-			return Collections.emptySet();
-		else
-			return effects;
+		return effectSetInterner.intern(getEffects());
+	}
+	
+	/**
+	 * Gets the canonical instance of the given set of effects,
+	 * which is faster to hash and compare.
+	 * @param effects The effects.
+	 * @return The canonical instance of the given effects.
+	 */
+	public Set<Effect> intern(Set<Effect> effects) {
+		return effectSetInterner.intern(effects);
 	}
 	
 	public synchronized Set<Effect> stopHandlingSideEffects() {
@@ -0,0 +1,177 @@
+package codehint.expreval;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses how many statements of each type we evaluate
+ * in a single batch.
+ * Large batches amortize the cost of compiling the evaluation
+ * string, but when a statement in a batch crashes, we must
+ * rebuild and recompile a new batch for the statements after it.
+ * We thus grow the batch size for a type while its batches do
+ * not crash (faster when compilation dominates the cost) and
+ * shrink it towards the expected number of statements between
+ * crashes when they do.
+ */
+final class BatchSizer {
+
+	private final static int INITIAL_BATCH_SIZE = 100;
+	private final static int MIN_BATCH_SIZE = 10;
+	private final static int MAX_BATCH_SIZE = 1000;
+	// The weight of the newest observation in our moving average of the crash rate.
+	private final static double CRASH_RATE_WEIGHT = 0.25;
+
+	private final Map<String, TypeBatchStats> stats;
+
+	public BatchSizer() {
+		stats = new TreeMap<String, TypeBatchStats>();
+	}
+
+	/**
+	 * Gets the maximum number of statements of the given
+	 * type to evaluate in the next batch.
+	 * @param type The type of the statements.
+	 * @return The number of statements of the given type
+	 * to evaluate in the next batch.
+	 */
+	public int getBatchSize(String type) {
+		TypeBatchStats typeStats = stats.get(type);
+		return typeStats == null ? INITIAL_BATCH_SIZE : typeStats.batchSize;
+	}
+
+	/**
+	 * Gets an upper bound on the batch size for the given type
+	 * after we record one more batch, which lets us build the
+	 * next batch before we know how the current one went.
+	 * This must match how recordBatch grows the batch size.
+	 * @param type The type of the statements.
+	 * @return The largest batch size of the given type we might
+	 * choose after recording one more batch.
+	 */
+	public int getMaxNextBatchSize(String type) {
+		TypeBatchStats typeStats = stats.get(type);
+		return Math.min(typeStats == null ? MAX_BATCH_SIZE : typeStats.maxCompilingSize, getBatchSize(type) * 2);
+	}
+
+	/**
+	 * Records that a batch failed to compile even though each
+	 * of its statements compiles on its own, which happens when
+	 * its evaluation string is too large to compile into one
+	 * method.  We shrink the batch size below that of the batch
+	 * and never grow it back to that size.
+	 * @param type The type of the statements in the batch.
+	 * @param numEvaluated The number of statements the
+	 * batch contained.
+	 * @return Whether we shrank the batch size, which is false
+	 * if the batch contained only one statement and so retrying
+	 * with a smaller batch cannot help.
+	 */
+	public boolean recordTooLargeBatch(String type, int numEvaluated) {
+		if (numEvaluated <= 1)
+			return false;
+		TypeBatchStats typeStats = getStats(type);
+		typeStats.maxCompilingSize = Math.min(typeStats.maxCompilingSize, numEvaluated / 2);
+		typeStats.batchSize = Math.min(typeStats.batchSize, typeStats.maxCompilingSize);
+		return true;
+	}
+
+	/**
+	 * Records the result of evaluating a batch and updates
+	 * the batch size for its type.
+	 * @param type The type of the statements in the batch.
+	 * @param numEvaluated The number of statements the
+	 * batch contained.
+	 * @param numCompleted The number of statements that
+	 * finished executing.  This is less than numEvaluated
+	 * if one of them crashed.
+	 * @param compileTime The time in nanoseconds we took to
+	 * compile the batch.
+	 * @param evalTime The time in nanoseconds we took to
+	 * execute the batch in the child.
+	 */
+	public void recordBatch(String type, int numEvaluated, int numCompleted, long compileTime, long evalTime) {
+		TypeBatchStats typeStats = getStats(type);
+		boolean crashed = numCompleted < numEvaluated;
+		typeStats.numBatches++;
+		typeStats.numStatements += numCompleted;
+		typeStats.compileTime += compileTime;
+		typeStats.evalTime += evalTime;
+		if (crashed)
+			typeStats.numCrashes++;
+		// Estimate the fraction of statements that crash.  We count the crasher as an attempted statement.
+		double curCrashRate = crashed ? 1.0 / (numCompleted + 1) : 0.0;
+		typeStats.crashRate = typeStats.numBatches == 1 ? curCrashRate : CRASH_RATE_WEIGHT * curCrashRate + (1 - CRASH_RATE_WEIGHT) * typeStats.crashRate;
+		int newSize;
+		if (crashed)
+			newSize = typeStats.batchSize / 2;
+		else if (numEvaluated < typeStats.batchSize)  // We did not fill the batch (e.g., we ran out of statements), so we learned nothing about larger batches.
+			newSize = typeStats.batchSize;
+		else if (compileTime > evalTime)  // Compilation dominates, so grow quickly to amortize it.
+			newSize = typeStats.batchSize * 2;
+		else
+			newSize = typeStats.batchSize + typeStats.batchSize / 4;
+		// Do not let batches get much longer than the expected run of non-crashing statements.
+		int maxSize = typeStats.crashRate > 0 ? (int)Math.min(MAX_BATCH_SIZE, Math.max(MIN_BATCH_SIZE, 2 / typeStats.crashRate)) : MAX_BATCH_SIZE;
+		// Do not grow back to a size that was too large to compile, even if that is below our usual minimum.
+		typeStats.batchSize = Math.min(typeStats.maxCompilingSize, Math.max(MIN_BATCH_SIZE, Math.min(maxSize, newSize)));
+	}
+
+	/**
+	 * Gets the statistics for the given type, creating
+	 * them if we have none.
+	 * @param type The type of the statements.
+	 * @return The statistics for the given type.
+	 */
+	private TypeBatchStats getStats(String type) {
+		TypeBatchStats typeStats = stats.get(type);
+		if (typeStats == null) {
+			typeStats = new TypeBatchStats();
+			stats.put(type, typeStats);
+		}
+		return typeStats;
+	}
+
+	/**
+	 * Gets a human-readable summary of the batch sizes
+	 * we chose and the throughput we achieved for each type.
+	 * @return A summary of the batch sizes and throughput.
+	 */
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, TypeBatchStats> entry: stats.entrySet()) {
+			TypeBatchStats typeStats = entry.getValue();
+			if (sb.length() > 0)
+				sb.append(", ");
+			long totalTime = typeStats.compileTime + typeStats.evalTime;
+			sb.append(entry.getKey()).append(": ").append(typeStats.numStatements).append(" statements in ").append(typeStats.numBatches).append(" batches");
+			sb.append(" (").append(typeStats.numCrashes).append(" crashed, compile ").append(typeStats.compileTime / 1000000).append("ms, eval ").append(typeStats.evalTime / 1000000).append("ms");
+			if (totalTime > 0)
+				sb.append(", ").append(typeStats.numStatements * 1000000000l / totalTime).append(" statements/s");
+			sb.append(", batch size ").append(typeStats.batchSize).append(")");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The statistics and current batch size for one type.
+	 */
+	private static class TypeBatchStats {
+
+		private int batchSize;
+		private int numBatches;
+		private int numStatements;
+		private int numCrashes;
+		private long compileTime;
+		private long evalTime;
+		private double crashRate;
+		private int maxCompilingSize;
+
+		public TypeBatchStats() {
+			batchSize = INITIAL_BATCH_SIZE;
+			maxCompilingSize = MAX_BATCH_SIZE;
+		}
+
+	}
+
+}
@@ -0,0 +1,145 @@
+package codehint.expreval;
+
+import java.util.List;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.jdt.debug.core.IJavaArray;
+import org.eclipse.jdt.debug.core.IJavaClassType;
+import org.eclipse.jdt.debug.core.IJavaDebugTarget;
+import org.eclipse.jdt.debug.core.IJavaPrimitiveValue;
+import org.eclipse.jdt.debug.core.IJavaThread;
+import org.eclipse.jdt.debug.core.IJavaValue;
+import org.eclipse.jdt.internal.debug.core.model.JDIDebugTarget;
+import org.eclipse.jdt.internal.debug.core.model.JDIObjectValue;
+import org.eclipse.jdt.internal.debug.core.model.JDIValue;
+
+import com.sun.jdi.ArrayReference;
+import com.sun.jdi.Value;
+
+/**
+ * Transfers the results of evaluations from the child VM
+ * with a constant number of requests per batch rather than
+ * one request per value.
+ * CodeHintImpl packs primitive results and the status of
+ * each evaluation into one long[] and Strings into one
+ * length-prefixed String.
+ */
+final class BulkTransfer {
+
+	/**
+	 * The flag in a packed status that says the value satisfied
+	 * the pdspec.
+	 */
+	public static final int VALID = 1;
+	/**
+	 * The flag in a packed status that says the evaluation
+	 * threw an exception.
+	 */
+	public static final int THREW = 2;
+	/**
+	 * The flag in a packed status that says the value is an
+	 * object whose hash code and equality class are packed
+	 * into its value bits.
+	 */
+	public static final int HASHED = 4;
+
+	private BulkTransfer() {
+	}
+
+	/**
+	 * Reads the given range of the given array with one request.
+	 * @param array The array.
+	 * @param offset The index of the first element to read.
+	 * @param length The number of elements to read.
+	 * @return The elements in the given range.
+	 */
+	public static IJavaValue[] getValues(IJavaArray array, int offset, int length) {
+		JDIDebugTarget target = (JDIDebugTarget)array.getDebugTarget();
+		List<Value> values = ((ArrayReference)((JDIObjectValue)array).getUnderlyingObject()).getValues(offset, length);
+		IJavaValue[] result = new IJavaValue[values.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = JDIValue.createValue(target, values.get(i));
+		return result;
+	}
+
+	/**
+	 * Gets the packed results of the current batch.
+	 * The first count elements are the bits of the values if
+	 * they are primitives or their hash codes and equality
+	 * classes if they are objects, and the next count elements
+	 * are their statuses.
+	 * @param implType The CodeHintImpl type.
+	 * @param valuesArrayName The name of the array that stores
+	 * the values, or null if there are none.
+	 * @param count The number of values.
+	 * @param thread The current thread.
+	 * @return The packed results.
+	 * @throws DebugException
+	 */
+	public static long[] getPackedResults(IJavaClassType implType, String valuesArrayName, int count, IJavaThread thread) throws DebugException {
+		IJavaDebugTarget target = (IJavaDebugTarget)implType.getDebugTarget();
+		IJavaValue packedValue = implType.sendMessage("packResults", "(Ljava/lang/String;I)[J", new IJavaValue[] { valuesArrayName == null ? target.nullValue() : target.newValue(valuesArrayName), target.newValue(count) }, thread);
+		IJavaValue[] packedValues = ((IJavaArray)packedValue).getValues();
+		long[] packed = new long[packedValues.length];
+		for (int i = 0; i < packed.length; i++)
+			packed[i] = ((IJavaPrimitiveValue)packedValues[i]).getLongValue();
+		return packed;
+	}
+
+	/**
+	 * Gets the Strings in the given array in CodeHintImpl.
+	 * @param implType The CodeHintImpl type.
+	 * @param arrayName The name of the array.
+	 * @param count The number of elements to get.
+	 * @param thread The current thread.
+	 * @return The Strings in the given array, with null for
+	 * elements that are not Strings.
+	 * @throws DebugException
+	 */
+	public static String[] getStrings(IJavaClassType implType, String arrayName, int count, IJavaThread thread) throws DebugException {
+		IJavaDebugTarget target = (IJavaDebugTarget)implType.getDebugTarget();
+		String joined = implType.sendMessage("joinStrings", "(Ljava/lang/String;I)Ljava/lang/String;", new IJavaValue[] { target.newValue(arrayName), target.newValue(count) }, thread).getValueString();
+		String[] strings = new String[count];
+		int pos = 0;
+		for (int i = 0; i < count; i++) {
+			if (joined.charAt(pos) == '!') {
+				pos++;
+				continue;
+			}
+			int colon = joined.indexOf(':', pos);
+			int length = Integer.parseInt(joined.substring(pos, colon));
+			strings[i] = joined.substring(colon + 1, colon + 1 + length);
+			pos = colon + 1 + length;
+		}
+		return strings;
+	}
+
+	/**
+	 * Unpacks the given primitive value.
+	 * @param bits The packed bits of the value.
+	 * @param typeName The name of the value's primitive type.
+	 * @param target The debug target.
+	 * @return The given value.
+	 */
+	public static IJavaValue unpack(long bits, String typeName, IJavaDebugTarget target) {
+		if ("int".equals(typeName))
+			return target.newValue((int)bits);
+		else if ("boolean".equals(typeName))
+			return target.newValue(bits != 0);
+		else if ("long".equals(typeName))
+			return target.newValue(bits);
+		else if ("byte".equals(typeName))
+			return target.newValue((byte)bits);
+		else if ("char".equals(typeName))
+			return target.newValue((char)bits);
+		else if ("short".equals(typeName))
+			return target.newValue((short)bits);
+		else if ("float".equals(typeName))
+			return target.newValue(Float.intBitsToFloat((int)bits));
+		else if ("double".equals(typeName))
+			return target.newValue(Double.longBitsToDouble(bits));
+		else
+			throw new IllegalArgumentException(typeName);
+	}
+
+}
@@ -0,0 +1,182 @@
+package codehint.expreval;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.jdt.debug.core.IJavaObject;
+import org.eclipse.jdt.debug.core.IJavaValue;
+
+import codehint.ast.ClassInstanceCreation;
+import codehint.ast.Expression;
+import codehint.ast.MethodInvocation;
+import codehint.effects.Effect;
+import codehint.exprgen.ExpressionEvaluator;
+import codehint.exprgen.Result;
+
+import com.sun.jdi.Method;
+
+/**
+ * An index of the calls that crashed keyed by the method
+ * and the values of the receiver and arguments.
+ * Many structurally different expressions evaluate to the
+ * same call (e.g., list.get(x.size()) and list.get(y.length)
+ * when both indices are the same), so this lets us avoid
+ * evaluating calls that we know will crash.
+ */
+final class CrashIndex {
+
+	private static final Object THIS_RECEIVER = "this";
+	private static final Object NO_RECEIVER = "static";
+	private static final Object NULL_VALUE = "null";
+
+	private final ExpressionEvaluator expressionEvaluator;
+	private final Map<CallSignature, String> crashes;
+	// The methods that have crashed, which lets us reject most calls without computing their signatures.
+	private final Set<Method> crashedMethods;
+
+	public CrashIndex(ExpressionEvaluator expressionEvaluator) {
+		this.expressionEvaluator = expressionEvaluator;
+		this.crashes = new HashMap<CallSignature, String>();
+		this.crashedMethods = new HashSet<Method>();
+	}
+
+	/**
+	 * Records that the given expression crashed.
+	 * @param expr The expression that crashed.
+	 * @param exceptionName The name of the exception it threw,
+	 * or null if we do not know it.
+	 * @throws DebugException
+	 */
+	public void addCrash(Expression expr, String exceptionName) throws DebugException {
+		Method method = expressionEvaluator.getMethod(expr);
+		if (method == null)
+			return;
+		CallSignature signature = getSignature(expr, method);
+		if (signature != null) {
+			crashes.put(signature, exceptionName == null ? "java.lang.Throwable" : exceptionName);
+			crashedMethods.add(method);
+		}
+	}
+
+	/**
+	 * Gets the name of the exception we know the given
+	 * expression will throw.
+	 * @param expr The expression.
+	 * @return The name of the exception the given expression
+	 * will throw, or null if we do not know that it will crash.
+	 * @throws DebugException
+	 */
+	public String getCrash(Expression expr) throws DebugException {
+		if (crashes.isEmpty())
+			return null;
+		Method method = expressionEvaluator.getMethod(expr);
+		if (method == null || !crashedMethods.contains(method))
+			return null;
+		CallSignature signature = getSignature(expr, method);
+		return signature == null ? null : crashes.get(signature);
+	}
+
+	public int size() {
+		return crashes.size();
+	}
+
+	/**
+	 * Gets the signature of the given call, which consists of
+	 * the method and the values of its receiver and arguments.
+	 * @param expr The expression.
+	 * @param method The method the given expression calls.
+	 * @return The signature of the given call, or null if it
+	 * is not a call, we do not know the values of its receiver
+	 * and arguments, or they have side effects.
+	 * @throws DebugException
+	 */
+	private CallSignature getSignature(Expression expr, Method method) throws DebugException {
+		Expression[] args;
+		Object[] ids;
+		int argStart;
+		if (expr instanceof MethodInvocation) {
+			MethodInvocation call = (MethodInvocation)expr;
+			args = call.arguments();
+			ids = new Object[args.length + 1];
+			if (method.isStatic())
+				ids[0] = NO_RECEIVER;
+			else if (call.getExpression() == null)
+				ids[0] = THIS_RECEIVER;
+			else if ((ids[0] = getValueId(call.getExpression())) == null)
+				return null;
+			argStart = 1;
+		} else if (expr instanceof ClassInstanceCreation) {
+			args = ((ClassInstanceCreation)expr).arguments();
+			ids = new Object[args.length];
+			argStart = 0;
+		} else
+			return null;
+		for (int i = 0; i < args.length; i++)
+			if ((ids[argStart + i] = getValueId(args[i])) == null)
+				return null;
+		return new CallSignature(method, ids);
+	}
+
+	/**
+	 * Gets an identifier for the value of the given expression.
+	 * Objects are identified by their unique id in the child
+	 * VM and primitives by their type and value.
+	 * @param expr The expression.
+	 * @return An identifier for the value of the given expression,
+	 * or null if we do not know its value or it has side effects.
+	 * @throws DebugException
+	 */
+	private Object getValueId(Expression expr) throws DebugException {
+		Result result = expressionEvaluator.getResult(expr, Collections.<Effect>emptySet());
+		if (result == null)
+			return null;
+		Set<Effect> effects = result.getEffects();
+		if (!effects.isEmpty())
+			return null;
+		IJavaValue value = result.getValue().getValue();
+		if (value.isNull())
+			return NULL_VALUE;
+		if (value instanceof IJavaObject)
+			return Long.valueOf(((IJavaObject)value).getUniqueId());
+		return value.getSignature() + value.getValueString();
+	}
+
+	/**
+	 * A method together with identifiers of the values of its
+	 * receiver and arguments.
+	 */
+	private static class CallSignature {
+
+		private final Method method;
+		private final Object[] ids;
+		private final int hashCode;
+
+		public CallSignature(Method method, Object[] ids) {
+			this.method = method;
+			this.ids = ids;
+			this.hashCode = 31 * method.hashCode() + Arrays.hashCode(ids);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof CallSignature))
+				return false;
+			CallSignature other = (CallSignature)obj;
+			return method.equals(other.method) && Arrays.equals(ids, other.ids);
+		}
+
+	}
+
+}
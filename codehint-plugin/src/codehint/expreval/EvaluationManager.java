@@ -2,13 +2,23 @@ package codehint.expreval;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.OperationCanceledException;
@@ -17,6 +27,7 @@ import org.eclipse.debug.core.DebugEvent;
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.debug.core.IEvaluationRunnable;
 import org.eclipse.jdt.debug.core.IJavaArray;
 import org.eclipse.jdt.debug.core.IJavaArrayType;
 import org.eclipse.jdt.debug.core.IJavaClassType;
@@ -32,7 +43,10 @@ import org.eclipse.jdt.debug.eval.IAstEvaluationEngine;
 import org.eclipse.jdt.debug.eval.ICompiledExpression;
 import org.eclipse.jdt.debug.eval.IEvaluationListener;
 import org.eclipse.jdt.debug.eval.IEvaluationResult;
+import org.eclipse.jdt.internal.debug.core.model.JDIType;
 
+import codehint.Activator;
+import codehint.PreferencePage;
 import codehint.ast.ASTConverter;
 import codehint.ast.ASTNode;
 import codehint.ast.ASTVisitor;
@@ -52,6 +66,7 @@ import codehint.exprgen.ExpressionEvaluator;
 import codehint.exprgen.Result;
 import codehint.exprgen.SubtypeChecker;
 import codehint.exprgen.TypeCache;
+import codehint.exprgen.Value;
 import codehint.exprgen.ValueCache;
 import codehint.property.ObjectValueProperty;
 import codehint.property.PrimitiveValueProperty;
@@ -64,18 +79,27 @@ import codehint.utils.Pair;
 import codehint.utils.Utils;
 
 import com.sun.jdi.Method;
+import com.sun.jdi.ReferenceType;
 
 /**
  * Class for evaluating expressions.
  */
 public final class EvaluationManager {
 	
-	private final static int BATCH_SIZE = 100;
-
 	private final static String IMPL_NAME = "codehint.CodeHintImpl";
 	private final static String IMPL_QUALIFIER = IMPL_NAME + ".";
 	
     private final static ASTParser parser = ASTParser.newParser(AST.JLS4);
+    
+    // Builds and compiles the next batch while the current one is evaluating.
+    private final static ExecutorService batchBuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "CodeHint batch builder");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
 	public static class EvaluationError extends RuntimeException {
 		
@@ -91,6 +115,8 @@ public final class EvaluationManager {
 	private final boolean disableBreakpoints;
 	private final IJavaStackFrame stack;
 	private final IAstEvaluationEngine engine;
+	// What the frame told the engine when we compiled on the suspended thread, so we can compile the next batch while the thread evaluates the current one.
+	private final FrameSnapshot frameSnapshot;
     private final ValueCache valueCache;
     private final TimeoutChecker timeoutChecker;
     private final SideEffectHandler sideEffectHandler;
@@ -104,16 +130,38 @@ public final class EvaluationManager {
 	private final IJavaFieldVariable valueCountField;
 	private final IJavaFieldVariable fullCountField;
 	private final IJavaFieldVariable methodResultsField;
-	// As an optimization, we cache expressions that crash and do not evaluate them again.
-	private final Set<String> crashingStatements;
+	private final IJavaFieldVariable exceptionsField;
+	// Handles to the methods we call through CodeHintImpl so that it can catch their exceptions, or null if we cannot do so.
+	private final ReflectionHandleCache handleCache;
+	// Whether we can interpret expressions in the child VM rather than compiling them.
+	private final boolean canInterpret;
+	// Whether we can interpret batches of pure expressions on multiple threads in the child VM.
+	// We use threads in this VM rather than sharding batches across replica VMs because most results are references that only exist in the VM that computed them and that later batches reuse through methodResults, so we could not merge a replica's results into this one.
+	private final boolean canInterpretInParallel;
+	private final IJavaArrayType intArrayType;
+	private final IJavaArrayType objectArrayType;
+	// Whether the library can pack the results of a batch so we can read them in bulk.
+	private final boolean canPackResults;
+	// As an optimization, we cache expressions that crash and do not evaluate them again.  ExpressionMaker shares structurally-equal expressions within a search, so we key these by node.
+	private final Set<Statement> crashingStatements;
+	// Calls that crashed keyed by their method, receiver, and arguments, so we can skip structurally different calls that make the same call.
+	private final CrashIndex crashIndex;
 	private final boolean canUseJar;
+	private final boolean pipelineEvaluation;
+	private final BatchSizer batchSizer;
+	// Compiled evaluation strings we expect to reuse (the pdspec and batch templates), keyed by their source.
+	private final Map<String, ICompiledExpression> compiledTemplates;
 	
 	private SynthesisDialog synthesisDialog;
 	private IProgressMonitor monitor;
 	private String validVal;
 	private String preVarsString;
 	private String propertyPreconditions;
-	private Map<String, Integer> methodResultsMap;
+	// The indices of the cached method results keyed by their call nodes, which ExpressionMaker shares within a search.
+	private Map<Expression, Integer> methodResultIndices;
+	// The values we cached and the child's array that holds them, which may have room for more.
+	private ArrayList<IJavaValue> methodResultValues;
+	private IJavaArray methodResultsArray;
 	private int skipped;
 	
 	public EvaluationManager(boolean isFreeSearch, boolean disableBreakpoints, IJavaStackFrame stack, ExpressionEvaluator expressionEvaluator, SubtypeChecker subtypeChecker, TypeCache typeCache, ValueCache valueCache, TimeoutChecker timeoutChecker, SideEffectHandler sideEffectHandler) {
@@ -121,6 +169,7 @@ public final class EvaluationManager {
 		this.disableBreakpoints = disableBreakpoints;
 		this.stack = stack;
 		this.engine = EclipseUtils.getASTEvaluationEngine(stack);
+		this.frameSnapshot = new FrameSnapshot(stack);
 		this.valueCache = valueCache;
 		this.timeoutChecker = timeoutChecker;
 		this.sideEffectHandler = sideEffectHandler;
@@ -136,13 +185,40 @@ public final class EvaluationManager {
 			this.fullCountField = implType.getField("fullCount");
 			this.methodResultsField = implType.getField("methodResults");
 			this.canUseJar = !engine.getCompiledExpression(IMPL_QUALIFIER + "valid", stack).hasErrors();  // If the jar is not on the classpath, strings using its type will not compile, so we must do something different.
+			// Older versions of the library cannot catch exceptions for us.
+			this.exceptionsField = implType.getField("exceptions");
+			IJavaFieldVariable handlesField = implType.getField("handles");
+			this.handleCache = canUseJar && exceptionsField != null && handlesField != null ? new ReflectionHandleCache(implType, handlesField, target, thread) : null;
+			this.canInterpret = handleCache != null && Activator.getDefault().getPreferenceStore().getBoolean(PreferencePage.INTERPRET_EVALUATION_PREFNAME) && implHasMethod("interpret");
+			this.canInterpretInParallel = canInterpret && Activator.getDefault().getPreferenceStore().getBoolean(PreferencePage.PARALLEL_EVALUATION_PREFNAME) && implHasMethod("interpretInParallel");
+			this.canPackResults = canUseJar && implHasMethod("packResults");
+			this.intArrayType = (IJavaArrayType)implType.getField("ints").getJavaType();
+			this.objectArrayType = (IJavaArrayType)implType.getField("objects").getJavaType();
 		} catch (DebugException e) {
 			throw new RuntimeException(e);
 		}
-		this.crashingStatements = new HashSet<String>();
+		this.crashingStatements = Collections.newSetFromMap(new IdentityHashMap<Statement, Boolean>());
+		this.crashIndex = new CrashIndex(expressionEvaluator);
+		this.pipelineEvaluation = Activator.getDefault().getPreferenceStore().getBoolean(PreferencePage.PIPELINE_EVALUATION_PREFNAME);
+		this.batchSizer = new BatchSizer();
+		this.compiledTemplates = new HashMap<String, ICompiledExpression>();
+		this.methodResultIndices = new IdentityHashMap<Expression, Integer>();
+		this.methodResultValues = new ArrayList<IJavaValue>();
+		this.methodResultsArray = null;
 		this.skipped = 0;
 	}
 
+	/**
+	 * Checks whether the loaded version of CodeHintImpl has
+	 * a method with the given name.
+	 * @param name The name of the method.
+	 * @return Whether CodeHintImpl has a method with the
+	 * given name.
+	 */
+	private boolean implHasMethod(String name) {
+		return !((ReferenceType)((JDIType)implType).getUnderlyingType()).methodsByName(name).isEmpty();
+	}
+
 	/**
 	 * Evaluates the given statements and returns a list
 	 * of non-crashing statements that satisfy the given
@@ -180,18 +256,14 @@ public final class EvaluationManager {
 				IJavaFieldVariable valuesField = implType.getField(valuesArrayName);
 				if (property != null && varType != null && "Object".equals(type))  // The pdspec might call methods on the objects, so we need their actual types.
 					type = EclipseUtils.sanitizeTypename(varType.getName());
-				if (sideEffectHandler.isHandlingSideEffects() && !validateStatically) {
-					// Evaluate statements without effects separately from those with effects, since we can only batch things with the same effects.
-					ArrayList<T> noEffects = new ArrayList<T>();
-					ArrayList<T> haveEffects = new ArrayList<T>();
-					for (T stmt: statementsOfType.getValue()) {
-						if (expressionEvaluator.getEffects(stmt, Collections.<Effect>emptySet()).isEmpty())
-							noEffects.add(stmt);
-						else
-							haveEffects.add(stmt);
-					}
-					evaluateStatements(noEffects, validStmts, type, arePrimitives, property, validateStatically, valuesField);
-					evaluateStatements(haveEffects, validStmts, type, arePrimitives, property, validateStatically, valuesField);
+				if (sideEffectHandler.isHandlingSideEffects()) {
+					// Evaluate statements with different effects separately, since we can only batch things with the same effects and must redo and undo the effects of each batch.
+					Map<Set<Effect>, ArrayList<T>> statementsByEffects = getStatementsByEffects(statementsOfType.getValue());
+					int firstResultIndex = validStmts.size();
+					for (ArrayList<T> statementsWithEffects: statementsByEffects.values())
+						evaluateStatements(statementsWithEffects, validStmts, type, arePrimitives, property, validateStatically, valuesField);
+					if (statementsByEffects.size() > 1)
+						restoreOrder(validStmts.subList(firstResultIndex, validStmts.size()), statementsOfType.getValue());
 				} else
 					evaluateStatements(statementsOfType.getValue(), validStmts, type, arePrimitives, property, validateStatically, valuesField);
 			}
@@ -220,7 +292,11 @@ public final class EvaluationManager {
 				Utils.addToListMap(statementsByType, "void", stmt);
 			else  {
 				Expression expr = (Expression)stmt;
-				if (!crashingStatements.contains(expr.toString())) {
+				if (crashingStatements.contains(expr))
+					continue;
+				if (crashIndex.getCrash(expr) != null)
+					crashingStatements.add(expr);
+				else {
 					IJavaType type = expr.getStaticType();
 					String typeName = type == null ? null : EclipseUtils.isPrimitive(type) ? type.getName() : "Object";
 					Utils.addToListMap(statementsByType, typeName, stmt);
@@ -237,6 +313,43 @@ public final class EvaluationManager {
 		return statementsByType;
 	}
 
+	/**
+	 * Groups the given statements by the effects of their
+	 * results so that each group can be evaluated in as few
+	 * batches as possible.  Statements whose results we do
+	 * not know are grouped together.
+	 * @param stmts The statements.
+	 * @return The given statements grouped by the effects of
+	 * their results, in the order in which each set of effects
+	 * first appears.
+	 */
+	private <T extends Statement> Map<Set<Effect>, ArrayList<T>> getStatementsByEffects(ArrayList<T> stmts) {
+		Map<Set<Effect>, ArrayList<T>> statementsByEffects = new LinkedHashMap<Set<Effect>, ArrayList<T>>();
+		for (T stmt: stmts) {
+			Result result = expressionEvaluator.getResult(stmt, Collections.<Effect>emptySet());
+			Utils.addToListMap(statementsByEffects, result == null ? null : result.getEffects(), stmt);
+		}
+		return statementsByEffects;
+	}
+
+	/**
+	 * Sorts the given results so that they are in the same
+	 * relative order as the statements from which they came.
+	 * @param results The results to sort.
+	 * @param stmts The statements in their original order.
+	 */
+	private static <T extends Statement> void restoreOrder(List<T> results, ArrayList<T> stmts) {
+		final Map<T, Integer> originalIndices = new IdentityHashMap<T, Integer>(stmts.size());
+		for (int i = 0; i < stmts.size(); i++)
+			originalIndices.put(stmts.get(i), i);
+		Collections.sort(results, new Comparator<T>() {
+			@Override
+			public int compare(T x, T y) {
+				return originalIndices.get(x).compareTo(originalIndices.get(y));
+			}
+		});
+	}
+
 	/**
 	 * Gets a string whose evaluation will cache the results of
 	 * pre-state variables used in the given pdspec.
@@ -288,92 +401,114 @@ public final class EvaluationManager {
 			boolean hasPropertyPrecondition = propertyPreconditions.length() > 0;
 			boolean propertyUsesLHS = property == null ? true : property.usesLHS();
 			String valuesArrayName = valuesField == null ? null : valuesField.getName();
+			BatchSource speculativeSource = null;
+			Future<Batch> speculativeBatch = null;
+			int numKnownCrashes = crashIndex.size();
+			// The sizes of the parts of crashed batches we have not yet evaluated, which we bisect.
+			LinkedList<Integer> suspectSizes = new LinkedList<Integer>();
 			for (int startIndex = 0; startIndex < stmts.size(); ) {
 				if (monitor.isCanceled())
 					throw new OperationCanceledException();
-				ArrayList<Integer> evalStmtIndices = new ArrayList<Integer>();
-				int numEvaluated = 0;
-				Map<String, Integer> temporaries = new HashMap<String, Integer>();
-				StringBuilder statementsStr = new StringBuilder();
-				
-				// Build and evaluate the evaluation string.
-				// TODO: If the user has variables with the same names as the ones I introduce, this will crash....
-				statementsStr.append(preVarsString);
-				boolean allAlreadyEvaluated = true;
-				Set<Effect> effects = null;
-				int i;
-		    	for (i = startIndex; i < stmts.size() && numEvaluated < BATCH_SIZE; i++) {
-		    		Statement curStmt = stmts.get(i);
-		    		Set<Effect> curEffects = null;
-	    			Result result = expressionEvaluator.getResult(curStmt, Collections.<Effect>emptySet());
-		    		if (sideEffectHandler.isHandlingSideEffects() && result != null)
-	    				curEffects = result.getEffects();
-		    		if (result == null)
-		    			allAlreadyEvaluated = false;
-		    		if (effects != null && !effects.equals(curEffects))
-		    			break;
-					numEvaluated = buildStringForStatement(curStmt, i, statementsStr, arePrimitives, validateStatically, hasPropertyPrecondition, propertyUsesLHS, evalStmtIndices, numEvaluated, temporaries, valuesArrayName);
-					if (numEvaluated == 1)
-		    			effects = curEffects;
-		    	}
-		    	boolean isSimple = false;
+				int batchSize = batchSizer.getBatchSize(type);
+				if (!suspectSizes.isEmpty())
+					batchSize = Math.min(batchSize, suspectSizes.getFirst());
+				// Use the batch we built during the last evaluation if it starts where we expect (i.e., the last batch did not crash).
+				Batch batch;
+				if (speculativeSource == null || speculativeSource.startIndex != startIndex)
+					batch = buildBatch(stmts, startIndex, batchSize, type, arePrimitives, validateStatically, hasPropertyPrecondition, propertyUsesLHS, valuesField);
+				else {
+					batch = finishCompilingBatch(speculativeBatch);
+					// We compiled it before we knew how the last batch went, so it may be smaller than the size we now want.  If it is larger or we could not compile it, cut the string to the size we want and compile it here.
+					if (batch == null || batch.evalStmtIndices.size() > batchSize)
+						batch = finishBatch(stmts, speculativeSource, batchSize, type, arePrimitives, validateStatically, hasPropertyPrecondition, propertyUsesLHS, valuesArrayName);
+				}
+				speculativeSource = null;
+				speculativeBatch = null;
+				int i = batch.endIndex;
+				int numEvaluated = batch.evalStmtIndices.size();
+				ArrayList<Integer> evalStmtIndices = batch.evalStmtIndices;
+				Set<Effect> effects = batch.effects;
+				boolean isSimple = batch.isSimple;
 		    	IJavaValue value = null;
 		    	DebugException error = null;
+		    	long evalTime = 0;
 		    	if (numEvaluated > 0) {
-		    		String finalStr = null;
-		    		if (numEvaluated == 1) {  // Try to optimize the evaluation string if it is only evaluating one statement.
-		    			Statement stmt = stmts.get(evalStmtIndices.get(0));
-		    			Result result = expressionEvaluator.getResult(stmt, Collections.<Effect>emptySet());
-		    			if (result != null && (!(stmt instanceof Expression) || !propertyUsesLHS)) {  // We can optimize things whose result we know and whose value doesn't matter.
-		    				finalStr = validVal;  // In these cases our evaluation string is simply the pdspec string.
-		    				isSimple = true;
-		    			}
-		    		}
-		    		if (finalStr == null) {
-		    			finishBuildingString(statementsStr, numEvaluated, allAlreadyEvaluated, type, arePrimitives, validateStatically, propertyUsesLHS, valuesArrayName);
-		    			finalStr = statementsStr.toString();
-		    		}
-		    		//System.out.println(finalStr);
-			    	ICompiledExpression compiled = engine.getCompiledExpression(finalStr, stack);
-			    	if (compiled.hasErrors()) {
-			    		handleCompileFailure(stmts, startIndex, i, compiled, type);
+			    	if (batch.compiled != null && batch.compiled.hasErrors()) {
+			    		handleCompileFailure(stmts, startIndex, i, numEvaluated, batch.compiled, type);
 			    		continue;
 			    	}
+			    	if (batch.isTemplate)
+			    		setTemplateValues(stmts, evalStmtIndices, valuesField);
+			    	if (batch.catchesExceptions)
+			    		handleCache.flush();
 			    	boolean isHandlingSideEffects = sideEffectHandler.isHandlingSideEffects();
+			    	Future<BatchSource> nextSource = null;
 			    	try {
 			    		sideEffectHandler.startHandlingSideEffects();
 			    		if (effects != null)
 			    			SideEffectHandler.redoEffects(effects);
+			    		if (pipelineEvaluation && i < stmts.size() && !canEncode(validateStatically, valuesArrayName)) {  // Build and compile the next batch while the child evaluates this one.  Batches we interpret have nothing to compile.
+			    			nextSource = startBuildingBatchSource(stmts, i, batchSizer.getMaxNextBatchSize(type), type, arePrimitives, validateStatically, hasPropertyPrecondition, propertyUsesLHS, valuesArrayName, isHandlingSideEffects);
+			    			speculativeBatch = startCompilingBatch(nextSource, batchSize, type, arePrimitives, validateStatically, propertyUsesLHS, valuesArrayName);
+			    		}
 			    		timeoutChecker.startEvaluating(fullCountField);
-			    		IEvaluationResult result = Evaluator.evaluateExpression(compiled, engine, stack, disableBreakpoints);
-			    		if (isSimple)
-			    			value = result.getValue();
-				    	error = result.getException();
+			    		long evalStartTime = System.nanoTime();
+			    		if (batch.program != null)
+			    			error = interpret(batch.program, valuesField.getName());
+			    		else {
+				    		IEvaluationResult result = Evaluator.evaluateExpression(batch.compiled, engine, stack, disableBreakpoints);
+				    		if (isSimple)
+				    			value = result.getValue();
+					    	error = result.getException();
+			    		}
+			    		evalTime = System.nanoTime() - evalStartTime;
 			    	} finally {
 			    		timeoutChecker.stopEvaluating();
 			    		if (isHandlingSideEffects && effects != null)  // This should only be true during refinement with effects, in which case there are no existing effects so this should correctly restore us.
 			    			SideEffectHandler.undoEffects(effects);
 			    		else if (!isHandlingSideEffects)
 			    			sideEffectHandler.stopHandlingSideEffects();
+			    		// Wait for the string of the next batch so that it does not read the statements or their results while we modify them.  The background thread compiles it while we get the results of this batch.
+			    		speculativeSource = finishBuildingBatchSource(nextSource);
 			    	}
 		    	}
 	
 		    	// Get the results of the evaluation.
 		    	int work = i - startIndex;
 		    	int numToSkip = 0;
+		    	int numCompleted = numEvaluated;
 		    	if (error != null) {
 					int fullCount = isSimple ? 0 : ((IJavaPrimitiveValue)fullCountField.getValue()).getIntValue();
+					numCompleted = fullCount;
 					int valueCount = isSimple ? 1 : ((IJavaPrimitiveValue)valueCountField.getValue()).getIntValue();
 		    		int crashingIndex = evalStmtIndices.get(fullCount);
 		    		Statement crasher = stmts.get(crashingIndex);
-					if (valueCount == fullCount || validateStatically)  // Ensure we crashed on the statement and not the pdspec.
-						crashingStatements.add(crasher.toString());
+					if (valueCount == fullCount || validateStatically) {  // Ensure we crashed on the statement and not the pdspec.
+						crashingStatements.add(crasher);
+						if (crasher instanceof Expression)
+							crashIndex.addCrash((Expression)crasher, EclipseUtils.getExceptionName(error));
+					}
 		    		work = crashingIndex - startIndex;
 		    		numToSkip = skipLikelyCrashes(stmts, error, crashingIndex, crasher);
 			    	monitor.worked(numToSkip);
 		    	}
+		    	if (numEvaluated > 0 && !isSimple)
+		    		batchSizer.recordBatch(type, numEvaluated, numCompleted, batch.compileTime, evalTime);
+		    	if (!suspectSizes.isEmpty()) {
+		    		int numLeft = suspectSizes.removeFirst() - numEvaluated;
+		    		if (numLeft > 0)
+		    			suspectSizes.addFirst(numLeft);
+		    	}
+		    	if (error != null) {
+		    		// Crashes cluster, so rather than rerunning the rest of this batch as one batch that may crash again, we bisect it.
+		    		int numRest = numEvaluated - numCompleted - 1;
+		    		if (numRest > 1) {
+		    			suspectSizes.addFirst(numRest - numRest / 2);
+		    			suspectSizes.addFirst(numRest / 2);
+		    		}
+		    	}
 		    	if (work > 0) {
-		    		ArrayList<T> newResults = getResultsFromArray(stmts, property, value, valuesField, startIndex, work, numEvaluated, validateStatically);
+		    		ArrayList<T> newResults = getResultsFromArray(stmts, property, value, valuesField, startIndex, work, numEvaluated, validateStatically, batch.catchesExceptions);
 			    	reportResults(newResults);
 			    	validStmts.addAll(newResults);
 		    	}
@@ -381,12 +516,344 @@ public final class EvaluationManager {
 		    	if (hasError)
 		    		System.out.println("Crashed on " + stmts.get(startIndex + count));*/
 		    	startIndex += work + numToSkip;
+		    	if (crashIndex.size() > numKnownCrashes) {  // We learned of new crashes, so remove later statements that make the same calls.
+		    		numKnownCrashes = crashIndex.size();
+		    		int numRemoved = removeKnownCrashes(stmts, startIndex);
+		    		if (numRemoved > 0) {
+		    			monitor.worked(numRemoved);
+		    			speculativeSource = null;
+		    		}
+		    	}
 			}
 		} catch (DebugException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Builds and compiles the next batch of statements to evaluate.
+	 * @param stmts The statements to evaluate.
+	 * @param startIndex The index of the first statement in the batch.
+	 * @param batchSize The maximum number of statements to evaluate.
+	 * @param type The static type of the desired statement.
+	 * @param arePrimitives Whether the statements are primitives.
+	 * @param validateStatically Whether we can evaluate the pdspec
+	 * ourselves or must have the child evaluation do it.
+	 * @param hasPropertyPrecondition Whether the current pdspec has a
+	 * precondition.
+	 * @param propertyUsesLHS Whether the current property uses the LHS.
+	 * @param valuesField The field of the proper type to store the
+	 * results of the given statements, or null if there are no output
+	 * values (i.e., for non-expressions).
+	 * @return The next batch of statements to evaluate.
+	 * @throws DebugException
+	 */
+	private Batch buildBatch(ArrayList<? extends Statement> stmts, int startIndex, int batchSize, String type, boolean arePrimitives, boolean validateStatically, boolean hasPropertyPrecondition, boolean propertyUsesLHS, IJavaFieldVariable valuesField) throws DebugException {
+		String valuesArrayName = valuesField == null ? null : valuesField.getName();
+		boolean isHandlingSideEffects = sideEffectHandler.isHandlingSideEffects();
+		if (canEncode(validateStatically, valuesArrayName)) {
+			Batch batch = encodeBatch(stmts, startIndex, batchSize, isHandlingSideEffects);
+			if (batch != null)
+				return batch;
+		}
+		BatchSource source = buildBatchSource(stmts, startIndex, batchSize, type, arePrimitives, validateStatically, hasPropertyPrecondition, propertyUsesLHS, valuesArrayName, isHandlingSideEffects, true);
+		return finishBatch(stmts, source, batchSize, type, arePrimitives, validateStatically, hasPropertyPrecondition, propertyUsesLHS, valuesArrayName);
+	}
+	
+	/**
+	 * Checks whether we can interpret the statements of a batch
+	 * rather than compiling them.  We can do so for statements
+	 * whose pdspec we check ourselves.
+	 * @param validateStatically Whether we can evaluate the pdspec
+	 * ourselves or must have the child evaluation do it.
+	 * @param valuesArrayName The name of the field that will store
+	 * the output values, or null if there are no output values.
+	 * @return Whether we can try to interpret the statements.
+	 */
+	private boolean canEncode(boolean validateStatically, String valuesArrayName) {
+		return canInterpret && validateStatically && valuesArrayName != null;
+	}
+	
+	/**
+	 * Encodes the next batch of statements so the child can
+	 * interpret them.
+	 * @param stmts The statements to evaluate.
+	 * @param startIndex The index of the first statement in the batch.
+	 * @param batchSize The maximum number of statements to evaluate.
+	 * @param isHandlingSideEffects Whether we are handling side effects.
+	 * @return The next batch of statements to evaluate, or null
+	 * if we cannot interpret its first statement and so must
+	 * compile the batch.
+	 * @throws DebugException
+	 */
+	private Batch encodeBatch(ArrayList<? extends Statement> stmts, int startIndex, int batchSize, boolean isHandlingSideEffects) throws DebugException {
+		long encodeStartTime = System.nanoTime();
+		ExpressionEncoder encoder = new ExpressionEncoder(stack, expressionEvaluator, handleCache, methodResultIndices, true);
+		ArrayList<Integer> evalStmtIndices = new ArrayList<Integer>();
+		Set<Effect> effects = null;
+		int i;
+    	for (i = startIndex; i < stmts.size() && evalStmtIndices.size() < batchSize; i++) {
+    		Statement curStmt = stmts.get(i);
+    		Set<Effect> curEffects = null;
+			Result result = expressionEvaluator.getResult(curStmt, Collections.<Effect>emptySet());
+    		if (isHandlingSideEffects && result != null)
+				curEffects = result.getEffects();
+    		if (effects != null && !effects.equals(curEffects))
+    			break;
+    		if (result == null) {  // As when building strings, we do not evaluate statements whose results we know.
+    			if (!encoder.addExpression((Expression)curStmt)) {
+    				if (evalStmtIndices.isEmpty())
+    					return null;
+    				break;  // End the batch here and compile the next one if we cannot interpret it either.
+    			}
+    			evalStmtIndices.add(i);
+    		}
+			if (evalStmtIndices.size() == 1)
+    			effects = curEffects;
+    	}
+    	if (evalStmtIndices.isEmpty())
+    		return new Batch(startIndex, i, evalStmtIndices, effects, false, false, false, null, 0, null);
+		return new Batch(startIndex, i, evalStmtIndices, effects, false, false, true, null, System.nanoTime() - encodeStartTime, encoder);
+	}
+	
+	/**
+	 * Builds the strings that evaluate the statements of the
+	 * batch starting at the given index.
+	 * If we cannot load handles, this only reads the statements,
+	 * the results we already know, and JDI mirrors the plugin
+	 * already has, and so it never talks to the child VM and can
+	 * run on a background thread while the child evaluates.
+	 * @param stmts The statements to evaluate.
+	 * @param startIndex The index of the first statement in the batch.
+	 * @param maxSize The maximum number of statements to evaluate.
+	 * @param type The static type of the desired statement.
+	 * @param arePrimitives Whether the statements are primitives.
+	 * @param validateStatically Whether we can evaluate the pdspec
+	 * ourselves or must have the child evaluation do it.
+	 * @param hasPropertyPrecondition Whether the current pdspec has a
+	 * precondition.
+	 * @param propertyUsesLHS Whether the current property uses the LHS.
+	 * @param valuesArrayName The name of the field that will store
+	 * the output values, or null if there are no output values.
+	 * @param isHandlingSideEffects Whether we are handling side effects.
+	 * @param canLoadHandles Whether we can get new reflective handles
+	 * from the child VM, which requires the thread to be suspended.
+	 * @return The strings of the statements of the batch.
+	 * @throws DebugException
+	 */
+	private BatchSource buildBatchSource(ArrayList<? extends Statement> stmts, int startIndex, int maxSize, String type, boolean arePrimitives, boolean validateStatically, boolean hasPropertyPrecondition, boolean propertyUsesLHS, String valuesArrayName, boolean isHandlingSideEffects, boolean canLoadHandles) throws DebugException {
+		boolean catchesExceptions = handleCache != null && valuesArrayName != null;
+		BatchSource source = new BatchSource(startIndex, catchesExceptions);
+		Map<Expression, Integer> temporaries = new IdentityHashMap<Expression, Integer>();
+		// TODO: If the user has variables with the same names as the ones I introduce, this will crash....
+		source.statementsStr.append(preVarsString);
+		int numEvaluated = 0;
+		int i;
+    	for (i = startIndex; i < stmts.size() && numEvaluated < maxSize; i++) {
+    		Statement curStmt = stmts.get(i);
+    		Set<Effect> curEffects = null;
+			Result result = expressionEvaluator.getResult(curStmt, Collections.<Effect>emptySet());
+    		if (isHandlingSideEffects && result != null)
+				curEffects = result.getEffects();
+    		if (source.effects != null && !source.effects.equals(curEffects))
+    			break;
+    		if (result == null && i < source.firstUnknownIndex)
+    			source.firstUnknownIndex = i;
+    		numEvaluated = buildStringForStatement(curStmt, i, source.statementsStr, type, arePrimitives, validateStatically, hasPropertyPrecondition, propertyUsesLHS, source.evalStmtIndices, numEvaluated, temporaries, valuesArrayName, catchesExceptions, canLoadHandles);
+    		if (numEvaluated > source.stringLengths.size())
+    			source.stringLengths.add(source.statementsStr.length());
+			if (numEvaluated == 1)
+    			source.effects = curEffects;
+    	}
+    	source.endIndex = i;
+    	return source;
+	}
+	
+	/**
+	 * Finishes the evaluation string of a batch and compiles it.
+	 * This reads the results of statements and compiles against
+	 * the suspended stack frame, so it must run on the thread
+	 * that evaluates the batches.
+	 * @param stmts The statements to evaluate.
+	 * @param source The strings of the statements of the batch.
+	 * @param batchSize The maximum number of statements to evaluate,
+	 * which may be fewer than the source contains.
+	 * @param type The static type of the desired statement.
+	 * @param arePrimitives Whether the statements are primitives.
+	 * @param validateStatically Whether we can evaluate the pdspec
+	 * ourselves or must have the child evaluation do it.
+	 * @param hasPropertyPrecondition Whether the current pdspec has a
+	 * precondition.
+	 * @param propertyUsesLHS Whether the current property uses the LHS.
+	 * @param valuesArrayName The name of the field that will store
+	 * the output values, or null if there are no output values.
+	 * @return The batch.
+	 * @throws DebugException
+	 */
+	private Batch finishBatch(ArrayList<? extends Statement> stmts, BatchSource source, int batchSize, String type, boolean arePrimitives, boolean validateStatically, boolean hasPropertyPrecondition, boolean propertyUsesLHS, String valuesArrayName) throws DebugException {
+		ArrayList<Integer> evalStmtIndices = source.evalStmtIndices;
+		int endIndex = source.endIndex;
+		StringBuilder statementsStr = source.statementsStr;
+		if (evalStmtIndices.size() > batchSize) {  // We built more than we need, so cut the batch after the last statement we want.
+			evalStmtIndices = new ArrayList<Integer>(evalStmtIndices.subList(0, batchSize));
+			endIndex = evalStmtIndices.get(batchSize - 1) + 1;
+			statementsStr.setLength(source.stringLengths.get(batchSize - 1));
+		}
+		int numEvaluated = evalStmtIndices.size();
+    	if (numEvaluated == 0)
+    		return new Batch(source.startIndex, endIndex, evalStmtIndices, source.effects, false, false, false, null, 0, null);
+    	boolean allAlreadyEvaluated = source.firstUnknownIndex >= endIndex;
+		String finalStr = null;
+		boolean isSimple = false;
+		boolean isTemplate = false;
+		if (numEvaluated == 1) {  // Try to optimize the evaluation string if it is only evaluating one statement.
+			Statement stmt = stmts.get(evalStmtIndices.get(0));
+			Result result = expressionEvaluator.getResult(stmt, Collections.<Effect>emptySet());
+			if (result != null && (!(stmt instanceof Expression) || !propertyUsesLHS)) {  // We can optimize things whose result we know and whose value doesn't matter.
+				finalStr = validVal;  // In these cases our evaluation string is simply the pdspec string.
+				isSimple = true;
+			}
+		}
+		if (finalStr == null && allAlreadyEvaluated && canUseTemplate(arePrimitives, validateStatically, propertyUsesLHS, valuesArrayName)) {
+			finalStr = getTemplateString(type, valuesArrayName, hasPropertyPrecondition);
+			isTemplate = true;
+		}
+		if (finalStr == null) {
+			finishBuildingString(statementsStr, numEvaluated, allAlreadyEvaluated, type, arePrimitives, validateStatically, propertyUsesLHS, valuesArrayName, source.catchesExceptions);
+			finalStr = statementsStr.toString();
+		}
+		//System.out.println(finalStr);
+    	long compileStartTime = System.nanoTime();
+    	ICompiledExpression compiled = isSimple || isTemplate ? getCompiledTemplate(finalStr) : engine.getCompiledExpression(finalStr, frameSnapshot.getRecordingFrame());
+    	long compileTime = System.nanoTime() - compileStartTime;
+    	return new Batch(source.startIndex, endIndex, evalStmtIndices, source.effects, isSimple, isTemplate, source.catchesExceptions && !isSimple && !isTemplate, compiled, compileTime, null);
+	}
+	
+	/**
+	 * Finishes the evaluation string of a batch and compiles it
+	 * on a background thread while the child evaluates another
+	 * batch, which it can do only with what the frame told us
+	 * when we last compiled on the suspended thread.
+	 * Unlike finishBatch, this does not read the results of
+	 * statements, which the evaluating thread is setting, or
+	 * the compiled templates, so it gives up on batches that
+	 * might use them.  It also gives up if the batch does not
+	 * compile, since the compiler might report a question the
+	 * frame could not answer as an error.
+	 * @param source The strings of the statements of the batch,
+	 * which we do not modify.
+	 * @param batchSize The maximum number of statements to evaluate.
+	 * @param type The static type of the desired statement.
+	 * @param arePrimitives Whether the statements are primitives.
+	 * @param validateStatically Whether we can evaluate the pdspec
+	 * ourselves or must have the child evaluation do it.
+	 * @param propertyUsesLHS Whether the current property uses the LHS.
+	 * @param valuesArrayName The name of the field that will store
+	 * the output values, or null if there are no output values.
+	 * @return The batch, or null if the caller must finish it
+	 * with finishBatch.
+	 */
+	private Batch compileBatchInBackground(BatchSource source, int batchSize, String type, boolean arePrimitives, boolean validateStatically, boolean propertyUsesLHS, String valuesArrayName) {
+		ArrayList<Integer> evalStmtIndices = source.evalStmtIndices;
+		int endIndex = source.endIndex;
+		StringBuilder statementsStr = new StringBuilder(source.statementsStr);
+		if (evalStmtIndices.size() > batchSize) {
+			evalStmtIndices = new ArrayList<Integer>(evalStmtIndices.subList(0, batchSize));
+			endIndex = evalStmtIndices.get(batchSize - 1) + 1;
+			statementsStr.setLength(source.stringLengths.get(batchSize - 1));
+		}
+		int numEvaluated = evalStmtIndices.size();
+		boolean allAlreadyEvaluated = source.firstUnknownIndex >= endIndex;
+		if (numEvaluated <= 1 || (allAlreadyEvaluated && canUseTemplate(arePrimitives, validateStatically, propertyUsesLHS, valuesArrayName)))
+			return null;
+		finishBuildingString(statementsStr, numEvaluated, allAlreadyEvaluated, type, arePrimitives, validateStatically, propertyUsesLHS, valuesArrayName, source.catchesExceptions);
+		try {
+			long compileStartTime = System.nanoTime();
+			ICompiledExpression compiled = engine.getCompiledExpression(statementsStr.toString(), frameSnapshot.getReplayingFrame());
+			long compileTime = System.nanoTime() - compileStartTime;
+			if (compiled.hasErrors())
+				return null;
+			return new Batch(source.startIndex, endIndex, evalStmtIndices, source.effects, false, false, source.catchesExceptions, compiled, compileTime, null);
+		} catch (DebugException e) {
+			return null;
+		} catch (RuntimeException e) {  // The frame fails on questions we have not recorded, which the engine might not expect.
+			return null;
+		}
+	}
+	
+	/**
+	 * Starts compiling the batch whose strings we are building
+	 * on the background thread, which does so after it builds
+	 * them.
+	 * The parameters are the same as those of compileBatchInBackground.
+	 * @param source The future result of building the strings.
+	 * @return The future compiled batch, which is null if we
+	 * could not compile it in the background.
+	 */
+	private Future<Batch> startCompilingBatch(final Future<BatchSource> source, final int batchSize, final String type, final boolean arePrimitives, final boolean validateStatically, final boolean propertyUsesLHS, final String valuesArrayName) {
+		return batchBuilder.submit(new Callable<Batch>() {
+			@Override
+			public Batch call() throws Exception {
+				BatchSource built = finishBuildingBatchSource(source);  // The background thread built it before it started this.
+				return built == null ? null : compileBatchInBackground(built, batchSize, type, arePrimitives, validateStatically, propertyUsesLHS, valuesArrayName);
+			}
+		});
+	}
+	
+	/**
+	 * Waits for the given batch to finish compiling.
+	 * @param batch The future compiled batch, or null if we
+	 * are not compiling one.
+	 * @return The compiled batch, or null if there was none
+	 * or we could not compile it in the background.
+	 */
+	private static Batch finishCompilingBatch(Future<Batch> batch) {
+		if (batch == null)
+			return null;
+		try {
+			return batch.get();
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Starts building the strings of the batch starting at
+	 * the given index on a background thread.
+	 * The parameters are the same as those of buildBatchSource.
+	 * @return The future result of building the strings.
+	 */
+	private Future<BatchSource> startBuildingBatchSource(final ArrayList<? extends Statement> stmts, final int startIndex, final int maxSize, final String type, final boolean arePrimitives, final boolean validateStatically, final boolean hasPropertyPrecondition, final boolean propertyUsesLHS, final String valuesArrayName, final boolean isHandlingSideEffects) {
+		return batchBuilder.submit(new Callable<BatchSource>() {
+			@Override
+			public BatchSource call() throws Exception {
+				return buildBatchSource(stmts, startIndex, maxSize, type, arePrimitives, validateStatically, hasPropertyPrecondition, propertyUsesLHS, valuesArrayName, isHandlingSideEffects, false);
+			}
+		});
+	}
+	
+	/**
+	 * Waits for the given strings to finish building.
+	 * @param source The future result of building the strings
+	 * of a batch, or null if we are not building one.
+	 * @return The built strings, or null if there were none
+	 * or we could not build them in the background.  In the
+	 * latter case the caller should simply rebuild the batch.
+	 */
+	private static BatchSource finishBuildingBatchSource(Future<BatchSource> source) {
+		if (source == null)
+			return null;
+		try {
+			return source.get();
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+
 	/**
 	 * Builds a string that will evaluate the given statement and pdspec
 	 * and stores it in the given StringBuilder.  Returns the numEvaluated
@@ -397,6 +864,7 @@ public final class EvaluationManager {
 	 * statements to be evaluated.
 	 * @param statementsStr The current evaluation string.  The new string
 	 * that evaluates this statement will be appended to this.
+	 * @param type The type of the statements being evaluated.
 	 * @param isPrimitive Whether the statement is a primitive.
 	 * @param validateStatically Whether we can evaluate the pdspec ourselves
 	 * or must have the child evaluation do it.
@@ -411,33 +879,44 @@ public final class EvaluationManager {
 	 * evaluation string.
 	 * @param valuesArrayName The name of the field that will store the output
 	 * values.
+	 * @param catchesExceptions Whether we can call methods through
+	 * CodeHintImpl so that it catches their exceptions.
+	 * @param canLoadHandles Whether we can get new reflective handles
+	 * from the child VM, which requires the thread to be suspended.
 	 * @return The number of statements that the potentially-modified
 	 * statementsStr will evaluate.
 	 * @throws DebugException
 	 */
-	private int buildStringForStatement(Statement curStmt, int i, StringBuilder statementsStr, boolean isPrimitive, boolean validateStatically, boolean hasPropertyPrecondition, boolean propertyUsesLHS, ArrayList<Integer> evalStmtIndices, int numEvaluated, Map<String, Integer> temporaries, String valuesArrayName) throws DebugException {
+	private int buildStringForStatement(Statement curStmt, int i, StringBuilder statementsStr, String type, boolean isPrimitive, boolean validateStatically, boolean hasPropertyPrecondition, boolean propertyUsesLHS, ArrayList<Integer> evalStmtIndices, int numEvaluated, Map<Expression, Integer> temporaries, String valuesArrayName, boolean catchesExceptions, boolean canLoadHandles) throws DebugException {
 		Result curResult = expressionEvaluator.getResult(curStmt, Collections.<Effect>emptySet());
 		if (curResult == null || !validateStatically) {
 			StringBuilder curString = new StringBuilder();
-			ValueFlattener valueFlattener = new ValueFlattener(temporaries, methodResultsMap, expressionEvaluator, valueCache);
-			String curStmtStr = valueFlattener.getResult(curStmt);
+			ValueFlattener valueFlattener = new ValueFlattener(temporaries, methodResultIndices, expressionEvaluator);
+			// If we can, we call the method through CodeHintImpl, which catches any exception it throws so that it does not stop the rest of the batch.
+			int handleIndex = catchesExceptions && curResult == null ? getCatchableCallHandle(curStmt, canLoadHandles) : -1;
+			String curStmtStr = handleIndex == -1 ? valueFlattener.getResult(curStmt) : getCatchingCallString((Expression)curStmt, numEvaluated, handleIndex, valueFlattener);
 			if (propertyUsesLHS)
-				for (Map.Entry<String, Pair<Integer, String>> newTemp: valueFlattener.getNewTemporaries().entrySet()) {
-					curString.append(" ").append(newTemp.getValue().second).append(" _$tmp").append(newTemp.getValue().first).append(" = (").append(newTemp.getValue().second).append(")").append(getQualifier(null)).append("methodResults[").append(methodResultsMap.get(newTemp.getKey())).append("];\n");
-					temporaries.put(newTemp.getKey(), newTemp.getValue().first);
+				for (Pair<MethodInvocation, String> newTemp: valueFlattener.getNewTemporaries()) {
+					int tempIndex = temporaries.size();
+					curString.append(" ").append(newTemp.second).append(" _$tmp").append(tempIndex).append(" = (").append(newTemp.second).append(")").append(getQualifier(null)).append("methodResults[").append(methodResultIndices.get(newTemp.first)).append("];\n");
+					temporaries.put(newTemp.first, tempIndex);
 				}
 			if (isFreeSearch && !isPrimitive)  // Variables now might have different types, so give each evaluation its own scope, but declare temporaries outside that since we reuse them.
 				curString.append("{\n");
 			String curRHSStr = curStmtStr;
+			if (handleIndex != -1) {
+				curString.append(" Object _$callResult").append(numEvaluated).append(" = ").append(curStmtStr).append(";\n");
+				curString.append(" if (").append(IMPL_QUALIFIER).append("exceptions[").append(numEvaluated).append("] == null) {\n");
+				String castType = isFreeSearch && !isPrimitive ? getStaticTypeName((Expression)curStmt) : type;
+				curRHSStr = getUnboxedString("_$callResult" + numEvaluated, castType);
+			}
 			if (isPrimitive && curResult != null && curStmt instanceof Expression)
 				curRHSStr = EclipseUtils.javaStringOfValue(curResult.getValue().getValue(), stack, false);
 			//curString.append(" // ").append(curStmt.toString()).append("\n");
 			String valueStr = "_$curValue";
 			if ((!validateStatically || !isPrimitive) && curStmt instanceof Expression && propertyUsesLHS) {
-				if (isFreeSearch && !isPrimitive) {
-					IJavaType type = ((Expression)curStmt).getStaticType();
-					curString.append(" ").append(type == null ? "Object" : EclipseUtils.sanitizeTypename(type.getName()));
-				}
+				if (isFreeSearch && !isPrimitive)
+					curString.append(" ").append(getStaticTypeName((Expression)curStmt));
 				curString.append(" _$curValue = ").append(curRHSStr).append(";\n");
 			} else
 				valueStr = curRHSStr;
@@ -465,6 +944,8 @@ public final class EvaluationManager {
 			}*/
 			if (hasPropertyPrecondition && !validateStatically)
 				curString.append(" }\n ");
+			if (handleIndex != -1)
+				curString.append(" }\n ");
 			if (canUseJar)
 				curString.append(getQualifier(null)).append("fullCount = ").append(numEvaluated + 1).append(";\n");
 			else
@@ -479,6 +960,118 @@ public final class EvaluationManager {
 		return numEvaluated;
 	}
 
+	/**
+	 * Gets the index of the reflective handle we can use to
+	 * call the given statement through CodeHintImpl, or -1 if
+	 * we cannot do so and must evaluate the statement directly.
+	 * @param stmt The statement.
+	 * @param canLoadHandles Whether we can get new reflective
+	 * handles from the child VM.
+	 * @return The index of the handle to use for calling the
+	 * given statement, or -1 if we should not call it reflectively.
+	 * @throws DebugException
+	 */
+	private int getCatchableCallHandle(Statement stmt, boolean canLoadHandles) throws DebugException {
+		if (!(stmt instanceof MethodInvocation || stmt instanceof ClassInstanceCreation))
+			return -1;
+		Method method = expressionEvaluator.getMethod((Expression)stmt);
+		// Reflection passes varargs as arrays and needs the enclosing instance of inner classes, so we do not handle those cases.
+		if (method == null || method.isVarArgs() || "void".equals(method.returnTypeName()) || (method.isConstructor() && method.declaringType().name().indexOf('$') != -1))
+			return -1;
+		return handleCache.getIndex(method, canLoadHandles);
+	}
+	
+	/**
+	 * Gets a string that calls the given method call or
+	 * constructor through CodeHintImpl.
+	 * @param call The call.
+	 * @param slot The index of the call in the current batch.
+	 * @param handleIndex The index of the handle to the method.
+	 * @param valueFlattener The flattener to use for the receiver
+	 * and arguments.
+	 * @return A string that calls the given call through
+	 * CodeHintImpl.
+	 */
+	private String getCatchingCallString(Expression call, int slot, int handleIndex, ValueFlattener valueFlattener) {
+		Method method = expressionEvaluator.getMethod(call);
+		Expression[] args = getArguments(call);
+		StringBuilder sb = new StringBuilder();
+		sb.append(IMPL_QUALIFIER).append("call(").append(slot).append(", ").append(IMPL_QUALIFIER).append("handles[").append(handleIndex).append("], ");
+		if (method.isStatic() || method.isConstructor())
+			sb.append("null");
+		else if (((MethodInvocation)call).getExpression() == null)
+			sb.append("this");
+		else
+			sb.append(valueFlattener.getResult(((MethodInvocation)call).getExpression()));
+		sb.append(", new Object[] {");
+		for (int i = 0; i < args.length; i++) {
+			if (i > 0)
+				sb.append(",");
+			sb.append(" ").append(getBoxedString(valueFlattener.getResult(args[i]), method.argumentTypeNames().get(i)));
+		}
+		sb.append(" })");
+		return sb.toString();
+	}
+	
+	/**
+	 * Gets a string that boxes the given value if it
+	 * has a primitive type.
+	 * @param str The string of the value.
+	 * @param typeName The name of the value's type.
+	 * @return A string that boxes the given value if
+	 * necessary.
+	 */
+	private static String getBoxedString(String str, String typeName) {
+		String boxType = getBoxType(typeName);
+		if (boxType == null)
+			return str;
+		return boxType + ".valueOf((" + typeName + ")(" + str + "))";
+	}
+	
+	/**
+	 * Gets a string that casts or unboxes the given
+	 * Object to the given type.
+	 * @param str The string of the value.
+	 * @param typeName The name of the desired type.
+	 * @return A string that casts or unboxes the given
+	 * value to the given type.
+	 */
+	private static String getUnboxedString(String str, String typeName) {
+		String boxType = getBoxType(typeName);
+		if (boxType == null)
+			return "(" + typeName + ")" + str;
+		return "((" + boxType + ")" + str + ")." + typeName + "Value()";
+	}
+	
+	/**
+	 * Gets the name of the class that boxes the given
+	 * primitive type.
+	 * @param typeName The name of the type.
+	 * @return The name of the class that boxes the given
+	 * type, or null if it is not a primitive type.
+	 */
+	private static String getBoxType(String typeName) {
+		if ("int".equals(typeName))
+			return "java.lang.Integer";
+		else if ("char".equals(typeName))
+			return "java.lang.Character";
+		else if ("boolean".equals(typeName) || "long".equals(typeName) || "byte".equals(typeName) || "short".equals(typeName) || "float".equals(typeName) || "double".equals(typeName))
+			return "java.lang." + Character.toUpperCase(typeName.charAt(0)) + typeName.substring(1);
+		else
+			return null;
+	}
+	
+	/**
+	 * Gets the name of the static type of the given expression.
+	 * @param expr The expression.
+	 * @return The name of the static type of the given expression.
+	 * @throws DebugException
+	 */
+	private static String getStaticTypeName(Expression expr) throws DebugException {
+		IJavaType type = expr.getStaticType();
+		return type == null ? "Object" : EclipseUtils.sanitizeTypename(type.getName());
+	}
+
 	/**
 	 * Finishes building the evaluation string by prepending
 	 * some initialization information.
@@ -497,8 +1090,10 @@ public final class EvaluationManager {
 	 * @param valuesArrayName The name of the field that will
 	 * store the output values, or null if there are no output
 	 * values (i.e., for non-expressions).
+	 * @param catchesExceptions Whether the statements might call
+	 * methods through CodeHintImpl, which records their exceptions.
 	 */
-	private void finishBuildingString(StringBuilder statementsStr, int numEvaluated, boolean allAlreadyEvaluated, String type, boolean arePrimitives, boolean validateStatically, boolean propertyUsesLHS, String valuesArrayName) {
+	private void finishBuildingString(StringBuilder statementsStr, int numEvaluated, boolean allAlreadyEvaluated, String type, boolean arePrimitives, boolean validateStatically, boolean propertyUsesLHS, String valuesArrayName, boolean catchesExceptions) {
 		String newTypeString = "[" + numEvaluated + "]";
 		if (type.contains("[]")) {  // If this is an array type, we must specify our new size as the first array dimension, not the last one.
 		    int index = type.indexOf("[]");
@@ -517,6 +1112,8 @@ public final class EvaluationManager {
 			prefix.append(getQualifier("String[]")).append("toStrings = new String[").append(numEvaluated).append("];\n");
 		else
 			prefix.append(getQualifier("String[]")).append("toStrings = null;\n");*/
+		if (catchesExceptions)
+			prefix.append(getQualifier("String[]")).append("exceptions = new String[").append(numEvaluated).append("];\n");
 		if (!allAlreadyEvaluated)
 			prefix.append(getQualifier("int")).append("valueCount = 0;\n");
 		prefix.append(getQualifier("int")).append("fullCount = 0;\n");	
@@ -547,6 +1144,96 @@ public final class EvaluationManager {
 		statementsStr.append("}");
 	}
 	
+	/**
+	 * Checks whether we can evaluate a batch of statements whose
+	 * values we already know with a template that reads those
+	 * values from the values array rather than inlining them.
+	 * We only do this for primitives, as we already substitute
+	 * their values rather than re-executing them, and so the
+	 * template evaluates the pdspec exactly as the inlined string.
+	 * @param arePrimitives Whether the statements are primitives.
+	 * @param validateStatically Whether we can evaluate the pdspec
+	 * ourselves or must have the child evaluation do it.
+	 * @param propertyUsesLHS Whether the current property uses the LHS.
+	 * @param valuesArrayName The name of the field that stores the
+	 * values of the statements, or null if there is none.
+	 * @return Whether we can use a template to evaluate the batch.
+	 */
+	private boolean canUseTemplate(boolean arePrimitives, boolean validateStatically, boolean propertyUsesLHS, String valuesArrayName) {
+		return canUseJar && arePrimitives && !validateStatically && propertyUsesLHS && valuesArrayName != null;
+	}
+	
+	/**
+	 * Gets a string that evaluates the pdspec on every value
+	 * in the given values array.  The string depends only on
+	 * the shape of the batch (the type and the pdspec), not on
+	 * the statements in it, so we can compile it once and reuse
+	 * it for every such batch.
+	 * @param type The type of the statements being evaluated.
+	 * @param valuesArrayName The name of the field that stores
+	 * the values of the statements.
+	 * @param hasPropertyPrecondition Whether the current pdspec
+	 * has a precondition.
+	 * @return A string that evaluates the pdspec on every value
+	 * in the given values array.
+	 */
+	private String getTemplateString(String type, String valuesArrayName, boolean hasPropertyPrecondition) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append(preVarsString);
+		sb.append(IMPL_QUALIFIER).append("valid = new boolean[").append(IMPL_QUALIFIER).append(valuesArrayName).append(".length];\n");
+		sb.append(IMPL_QUALIFIER).append("fullCount = 0;\n");
+		sb.append("for (int _$i = 0; _$i < ").append(IMPL_QUALIFIER).append("valid.length; _$i++) {\n");
+		sb.append(" ").append(type).append(" _$curValue = ").append(IMPL_QUALIFIER).append(valuesArrayName).append("[_$i];\n ");
+		if (hasPropertyPrecondition)
+			sb.append("if (" + propertyPreconditions + ") {\n ");
+		sb.append(IMPL_QUALIFIER).append("valid[_$i] = ").append(validVal).append(";\n");
+		if (hasPropertyPrecondition)
+			sb.append(" }\n");
+		sb.append(" ").append(IMPL_QUALIFIER).append("fullCount = _$i + 1;\n");
+		sb.append("}\n");
+		sb.append("}");
+		return sb.toString();
+	}
+	
+	/**
+	 * Stores the known values of the given statements into
+	 * the values array read by a batch template.
+	 * @param stmts The list of all statements being evaluated.
+	 * @param evalStmtIndices The indices of the statements in
+	 * the current batch.
+	 * @param valuesField The field that stores the values of
+	 * the statements.
+	 * @throws DebugException
+	 */
+	private void setTemplateValues(ArrayList<? extends Statement> stmts, ArrayList<Integer> evalStmtIndices, IJavaFieldVariable valuesField) throws DebugException {
+		IJavaValue[] values = new IJavaValue[evalStmtIndices.size()];
+		for (int i = 0; i < values.length; i++)
+			values[i] = expressionEvaluator.getResult(stmts.get(evalStmtIndices.get(i)), Collections.<Effect>emptySet()).getValue().getValue();
+		IJavaArray newValue = ((IJavaArrayType)valuesField.getJavaType()).newInstance(values.length);
+		newValue.setValues(values);
+		valuesField.setValue(newValue);
+	}
+	
+	/**
+	 * Compiles the given string, reusing the previous
+	 * compilation if we have already compiled it.
+	 * We use this for strings that we expect to evaluate
+	 * many times, such as the pdspec and batch templates.
+	 * @param str The string to compile.
+	 * @return The compiled form of the given string.
+	 * @throws DebugException
+	 */
+	private ICompiledExpression getCompiledTemplate(String str) throws DebugException {
+		ICompiledExpression compiled = compiledTemplates.get(str);
+		if (compiled == null) {
+			compiled = engine.getCompiledExpression(str, stack);
+			if (!compiled.hasErrors())  // Do not cache failures, which we handle by splitting the batch.
+				compiledTemplates.put(str, compiled);
+		}
+		return compiled;
+	}
+	
 	/**
 	 * Gets the qualifier to use for accesses to data structures
 	 * used for evaluation.  We need this because if we cannot
@@ -564,8 +1251,8 @@ public final class EvaluationManager {
 
 	/**
 	 * Handles an evaluation string that does not compile
-	 * by testing each string individually and removing
-	 * those that do not compile from the list of statements,
+	 * by finding the strings that do not compile and
+	 * removing them from the list of statements,
 	 * as they are presumably the result of generic methods.
 	 * @param stmts The list of all statements being
 	 * evaluated.  The statements that do not compile in the
@@ -573,11 +1260,13 @@ public final class EvaluationManager {
 	 * @param startIndex The starting index of the statements
 	 * to check.
 	 * @param i The number of statements to check.
+	 * @param numEvaluated The number of statements the
+	 * batch evaluated.
 	 * @param compiled The result of the compilation.
 	 * @param type The type of the statements being evaluated.
 	 * @throws DebugException
 	 */
-	private void handleCompileFailure(ArrayList<? extends Statement> stmts, int startIndex, int i, ICompiledExpression compiled, String type) throws DebugException {
+	private <T extends Statement> void handleCompileFailure(ArrayList<T> stmts, int startIndex, int i, int numEvaluated, ICompiledExpression compiled, String type) throws DebugException {
 		// If we are doing a search with an unconstrained type, the pdspec might crash on certain types, so filter those.
 		if (isFreeSearch) {
 			String initValue;
@@ -589,51 +1278,101 @@ public final class EvaluationManager {
 				initValue = "0";
 			else
 				initValue = "null";
-			if (!"Object".equals(type) && engine.getCompiledExpression(type + " _$curValue = " + initValue + ";  boolean _$curValid = " + validVal + ";", stack).hasErrors()) {
+			if (!"Object".equals(type) && getCompiledTemplate(type + " _$curValue = " + initValue + ";  boolean _$curValid = " + validVal + ";").hasErrors()) {
 				// The pdspec crashed on all things of this type.  But we ignore Objects since it might work for some subtypes but not others.
 				// TODO: I could optimize this by marking this type as illegal when handling side effects and hence batch sizes are 1.
-				for (int j = i - 1; j >= startIndex; j--) {
-					//System.out.println(stmts.get(j) + " does not compile with pdspec " + validVal + " in free search.");
-					stmts.remove(j);
-				}
+				stmts.subList(startIndex, i).clear();
 				monitor.worked(stmts.size());
 				return;
 			}
 		}
-		// Check the statements one-by-one and remove those that crash.
+		// Find and remove the statements that do not compile.
 		// We can crash thanks to generics and erasure (e.g., by passing an Object to List<String>.set).
-		int numDeleted = 0;
-		Map<String, Integer> temporaries = new HashMap<String, Integer>(0);
-		for (int j = i - 1; j >= startIndex; j--) {
-			Statement stmt = stmts.get(j);
-			// We need to get the flattened string not the actual string, since our temporaries can lose type information.  E.g., foo(bar(x),baz) might compile when storing bar(x) in a temporary with an erased type will not.
-			ValueFlattener valueFlattener = new ValueFlattener(temporaries, methodResultsMap, expressionEvaluator, valueCache);
-			String flattenedStmtStr = valueFlattener.getResult(stmts.get(j));
-			StringBuilder curString = new StringBuilder();
-			curString.append("{\n ");
-			for (Map.Entry<String, Pair<Integer, String>> newTemp: valueFlattener.getNewTemporaries().entrySet())
-				curString.append(newTemp.getValue().second).append(" _$tmp").append(newTemp.getValue().first).append(" = (").append(newTemp.getValue().second).append(")").append(getQualifier(null)).append("methodResults[").append(methodResultsMap.get(newTemp.getKey())).append("];\n");
-			if (stmt instanceof Expression) {
-				IJavaType exprType = ((Expression)stmt).getStaticType();
-				String typeName = isFreeSearch && "Object".equals(type) ? (exprType == null ? "Object" : EclipseUtils.sanitizeTypename(exprType.getName())) : type;
-				curString.append(typeName).append(" _$curValue = ").append(flattenedStmtStr).append(";\n ");
-			} else
-				curString.append(flattenedStmtStr);
-			StringBuilder curStringWithSpec = new StringBuilder(curString.toString());
-			curStringWithSpec.append("boolean _$curValid = ").append(validVal).append(";\n}");
-			if (engine.getCompiledExpression(curStringWithSpec.toString(), stack).hasErrors()) {
-				if (engine.getCompiledExpression(curString.toString() + "\n}", stack).hasErrors())  // Do not mark the statement as crashing if we crash on the pdspec.
-					crashingStatements.add(stmts.get(j).toString());
-				stmts.remove(j);
-				numDeleted++;
-				//System.out.println(stmt + " does not compile with pdspec " + validVal + ".");
-			}
+		BitSet nonCompiling = new BitSet();
+		findNonCompilingStatements(stmts, startIndex, startIndex, i, type, nonCompiling);
+		int numDeleted = nonCompiling.cardinality();
+		if (numDeleted > 0) {  // Filter the batch once rather than removing statements one by one.
+			ArrayList<T> compiling = new ArrayList<T>(i - startIndex - numDeleted);
+			for (int j = startIndex; j < i; j++)
+				if (!nonCompiling.get(j - startIndex))
+					compiling.add(stmts.get(j));
+			List<T> batch = stmts.subList(startIndex, i);
+			batch.clear();
+			batch.addAll(compiling);
 		}
+		if (numDeleted == 0 && batchSizer.recordTooLargeBatch(type, numEvaluated))  // Every statement compiles on its own, so the batch was probably too large to compile (e.g., it exceeded the method size limit) and we retry with a smaller one.
+			return;
 		if (numDeleted == 0)  // In this case, the error is probably our fault and not due to erasure.
 			throw new EvaluationError("Evaluation error: " + "The following errors were encountered during evaluation.\n\n" + EclipseUtils.getCompileErrors(compiled));
 		monitor.worked(numDeleted);
 	}
 	
+	/**
+	 * Finds the statements in the given range that do not
+	 * compile.  We bisect the range, since usually only a
+	 * few statements fail to compile and we can then find
+	 * them with a logarithmic number of compilations per
+	 * failure rather than one per statement.
+	 * @param stmts The list of all statements being
+	 * evaluated.
+	 * @param batchStartIndex The index of the first statement
+	 * in the batch.
+	 * @param startIndex The index of the first statement to check.
+	 * @param endIndex The index after the last statement to check.
+	 * @param type The type of the statements being evaluated.
+	 * @param nonCompiling The set into which to put the indices,
+	 * relative to the start of the batch, of the statements that
+	 * do not compile.
+	 * @throws DebugException
+	 */
+	private void findNonCompilingStatements(ArrayList<? extends Statement> stmts, int batchStartIndex, int startIndex, int endIndex, String type, BitSet nonCompiling) throws DebugException {
+		if (endIndex <= startIndex)
+			return;
+		if (endIndex - startIndex == 1) {
+			String checkString = getCompileCheckString(stmts.get(startIndex), type);
+			if (engine.getCompiledExpression("{\n " + checkString + "boolean _$curValid = " + validVal + ";\n}", stack).hasErrors()) {
+				if (engine.getCompiledExpression("{\n " + checkString + "\n}", stack).hasErrors())  // Do not mark the statement as crashing if we crash on the pdspec.
+					crashingStatements.add(stmts.get(startIndex));
+				nonCompiling.set(startIndex - batchStartIndex);
+				//System.out.println(stmt + " does not compile with pdspec " + validVal + ".");
+			}
+			return;
+		}
+		StringBuilder checkString = new StringBuilder();
+		for (int j = startIndex; j < endIndex; j++)
+			checkString.append("{\n ").append(getCompileCheckString(stmts.get(j), type)).append("boolean _$curValid = ").append(validVal).append(";\n}\n");
+		if (!engine.getCompiledExpression(checkString.toString(), stack).hasErrors())
+			return;
+		int midIndex = (startIndex + endIndex) / 2;
+		findNonCompilingStatements(stmts, batchStartIndex, startIndex, midIndex, type, nonCompiling);
+		findNonCompilingStatements(stmts, batchStartIndex, midIndex, endIndex, type, nonCompiling);
+	}
+
+	/**
+	 * Gets a string that stores the given statement into
+	 * _$curValue so that we can check whether it compiles.
+	 * @param stmt The statement.
+	 * @param type The type of the statements being evaluated.
+	 * @return A string that stores the given statement.
+	 * @throws DebugException
+	 */
+	private String getCompileCheckString(Statement stmt, String type) throws DebugException {
+		// We need to get the flattened string not the actual string, since our temporaries can lose type information.  E.g., foo(bar(x),baz) might compile when storing bar(x) in a temporary with an erased type will not.
+		ValueFlattener valueFlattener = new ValueFlattener(Collections.<Expression, Integer>emptyMap(), methodResultIndices, expressionEvaluator);
+		String flattenedStmtStr = valueFlattener.getResult(stmt);
+		StringBuilder curString = new StringBuilder();
+		List<Pair<MethodInvocation, String>> newTemps = valueFlattener.getNewTemporaries();
+		for (int i = 0; i < newTemps.size(); i++)
+			curString.append(newTemps.get(i).second).append(" _$tmp").append(i).append(" = (").append(newTemps.get(i).second).append(")").append(getQualifier(null)).append("methodResults[").append(methodResultIndices.get(newTemps.get(i).first)).append("];\n");
+		if (stmt instanceof Expression) {
+			IJavaType exprType = ((Expression)stmt).getStaticType();
+			String typeName = isFreeSearch && "Object".equals(type) ? (exprType == null ? "Object" : EclipseUtils.sanitizeTypename(exprType.getName())) : type;
+			curString.append(typeName).append(" _$curValue = ").append(flattenedStmtStr).append(";\n ");
+		} else
+			curString.append(flattenedStmtStr);
+		return curString.toString();
+	}
+	
 	/**
 	 * Gets a string whose evaluation will get a String
 	 * representation of the result of the given expression.
@@ -664,61 +1403,148 @@ public final class EvaluationManager {
 	 * results of the given statements.
 	 * @param count The number of statements that were successfully
 	 * evaluated.
+	 * @param catchesExceptions Whether the evaluation recorded the
+	 * exceptions thrown by some statements in the exceptions array.
 	 * @return a list of statements containing those that satisfy the
 	 * given property (or all that do not crash if it is null).
 	 * @throws DebugException
 	 */
-	private <T extends Statement> ArrayList<T> getResultsFromArray(ArrayList<T> stmts, Property property, IJavaValue value, IJavaFieldVariable valuesField, int startIndex, int count, int numEvaluated, boolean validateStatically) throws DebugException {
+	private <T extends Statement> ArrayList<T> getResultsFromArray(ArrayList<T> stmts, Property property, IJavaValue value, IJavaFieldVariable valuesField, int startIndex, int count, int numEvaluated, boolean validateStatically, boolean catchesExceptions) throws DebugException {
 		ArrayList<T> validStmts = new ArrayList<T>();
-		IJavaValue valuesFieldValue = valuesField == null ? null : (IJavaValue)valuesField.getValue();
-		IJavaValue[] values = numEvaluated == 0 || valuesFieldValue == null || valuesFieldValue.isNull() ? null : ((IJavaArray)valuesFieldValue).getValues();
-		IJavaValue validFieldValue = (IJavaValue)validField.getValue();
-		IJavaValue[] valids = numEvaluated == 0 || validFieldValue.isNull() ? null : ((IJavaArray)validFieldValue).getValues();
-		IJavaValue toStringsFieldValue = (IJavaValue)toStringsField.getValue();
-		IJavaValue[] toStrings = numEvaluated == 0 || toStringsFieldValue.isNull() ? null : ((IJavaArray)toStringsFieldValue).getValues();
+		IJavaValue[] values = null;
+		boolean[] valids = null;
+		boolean[] threw = null;
+		String[] exceptionNames = null;  // The names of the exceptions CodeHintImpl caught, if we know them.
+		String[] toStrings = null;
+		String[] strings = null;  // The contents of the values that are Strings, if we know them.
+		boolean[] hashed = null;  // Whether the child computed the hash codes of the values that are objects.
+		int[] hashCodes = null;
+		if (numEvaluated > 0 && value == null && canPackResults) {  // Read everything with a constant number of requests.
+			String valuesArrayName = valuesField == null ? null : valuesField.getName();
+			long[] packed = BulkTransfer.getPackedResults(implType, valuesArrayName, numEvaluated, thread);
+			valids = new boolean[numEvaluated];
+			threw = new boolean[numEvaluated];
+			boolean anyThrew = false;
+			for (int i = 0; i < numEvaluated; i++) {
+				valids[i] = (packed[numEvaluated + i] & BulkTransfer.VALID) != 0;
+				threw[i] = catchesExceptions && (packed[numEvaluated + i] & BulkTransfer.THREW) != 0;
+				anyThrew |= threw[i];
+			}
+			if (anyThrew)
+				exceptionNames = BulkTransfer.getStrings(implType, exceptionsField.getName(), numEvaluated, thread);
+			if ("objects".equals(valuesArrayName)) {
+				IJavaValue valuesFieldValue = (IJavaValue)valuesField.getValue();
+				if (!valuesFieldValue.isNull()) {
+					values = BulkTransfer.getValues((IJavaArray)valuesFieldValue, 0, numEvaluated);
+					strings = BulkTransfer.getStrings(implType, valuesArrayName, numEvaluated, thread);
+					hashed = new boolean[numEvaluated];
+					hashCodes = new int[numEvaluated];
+					int[] equalityClasses = new int[numEvaluated];
+					for (int i = 0; i < numEvaluated; i++) {
+						if ((packed[numEvaluated + i] & BulkTransfer.HASHED) != 0) {
+							hashed[i] = true;
+							hashCodes[i] = (int)packed[i];
+							equalityClasses[i] = (int)(packed[i] >>> 32);
+						}
+					}
+					valueCache.addEqualityClasses(values, hashed, hashCodes, equalityClasses);
+				}
+			} else if (valuesArrayName != null) {
+				String typeName = valuesArrayName.substring(0, valuesArrayName.length() - 1);
+				values = new IJavaValue[numEvaluated];
+				for (int i = 0; i < numEvaluated; i++)
+					values[i] = BulkTransfer.unpack(packed[i], typeName, target);
+			}
+			if (!((IJavaValue)toStringsField.getValue()).isNull())
+				toStrings = BulkTransfer.getStrings(implType, toStringsField.getName(), numEvaluated, thread);
+		} else {
+			IJavaValue valuesFieldValue = valuesField == null ? null : (IJavaValue)valuesField.getValue();
+			values = numEvaluated == 0 || valuesFieldValue == null || valuesFieldValue.isNull() ? null : ((IJavaArray)valuesFieldValue).getValues();
+			IJavaValue validFieldValue = (IJavaValue)validField.getValue();
+			if (numEvaluated > 0 && !validFieldValue.isNull()) {
+				IJavaValue[] validValues = ((IJavaArray)validFieldValue).getValues();
+				valids = new boolean[validValues.length];
+				for (int i = 0; i < validValues.length; i++)
+					valids[i] = "true".equals(validValues[i].toString());
+			}
+			IJavaValue toStringsFieldValue = (IJavaValue)toStringsField.getValue();
+			if (numEvaluated > 0 && !toStringsFieldValue.isNull()) {
+				IJavaValue[] toStringValues = ((IJavaArray)toStringsFieldValue).getValues();
+				toStrings = new String[toStringValues.length];
+				for (int i = 0; i < toStringValues.length; i++)
+					toStrings[i] = toStringValues[i].isNull() ? null : toStringValues[i].getValueString();
+			}
+			IJavaValue exceptionsFieldValue = catchesExceptions ? (IJavaValue)exceptionsField.getValue() : null;
+			if (exceptionsFieldValue != null && !exceptionsFieldValue.isNull()) {
+				IJavaValue[] exceptions = ((IJavaArray)exceptionsFieldValue).getValues();
+				threw = new boolean[exceptions.length];
+				exceptionNames = new String[exceptions.length];
+				for (int i = 0; i < exceptions.length; i++) {
+					threw[i] = !exceptions[i].isNull();
+					exceptionNames[i] = threw[i] ? exceptions[i].getValueString() : null;
+				}
+			}
+		}
 		int evalIndex = 0;
 		for (int i = 0; i < count; i++) {
 			if (monitor.isCanceled())  // We ignore the maximum batch size if everything is already evaluated, so we might have a lot of things here and hence need this check.
 				throw new OperationCanceledException();
 			T typedStmt = stmts.get(startIndex + i);
 			Result initResult = expressionEvaluator.getResult(typedStmt, Collections.<Effect>emptySet());
+			if (initResult == null && threw != null && threw[evalIndex]) {  // The statement threw an exception that CodeHintImpl caught.
+				crashingStatements.add(typedStmt);
+				if (typedStmt instanceof Expression)
+					crashIndex.addCrash((Expression)typedStmt, exceptionNames[evalIndex]);
+				evalIndex++;
+				monitor.worked(1);
+				continue;
+			}
 			IJavaValue curValue = typedStmt instanceof Expression ? (initResult == null ? values[evalIndex] : initResult.getValue().getValue()) : null;
+			String curString = initResult == null && strings != null ? strings[evalIndex] : null;
 			boolean valid = false;
 			String validResultString = null;
 			if (property == null) {
 				valid = true;
 				if (typedStmt instanceof Expression)
-					validResultString = getResultString((Expression)typedStmt, curValue, toStrings, evalIndex);
+					validResultString = getResultString((Expression)typedStmt, curValue, curString, toStrings, evalIndex);
 			} else if (property instanceof PrimitiveValueProperty) {
 				valid = curValue.toString().equals(((PrimitiveValueProperty)property).getValue().toString());
 				if (valid)
-					validResultString = getJavaString((Expression)typedStmt, curValue);
+					validResultString = getJavaString((Expression)typedStmt, curValue, curString);
     		} else if (property instanceof TypeProperty) {
 				valid = !curValue.isNull() && subtypeChecker.isSubtypeOf(curValue.getJavaType(), ((TypeProperty)property).getType());  // null is not instanceof Object
 				if (valid)
-					validResultString = getJavaString((Expression)typedStmt, curValue);
+					validResultString = getJavaString((Expression)typedStmt, curValue, curString);
     		} else if (property instanceof ValueProperty && ((ValueProperty)property).getValue().isNull()) {
     			valid = curValue.isNull();
     			validResultString = "null";
     		} else if (property instanceof ObjectValueProperty && "java.lang.String".equals(((ObjectValueProperty)property).getValue().getJavaType().getName())) {  // The property's value cannot be null because of the previous special case.
-    			valid = ((ObjectValueProperty)property).getValue().toString().equals(curValue.toString());
+    			valid = curString != null ? curString.equals(((ObjectValueProperty)property).getValue().getValueString()) : ((ObjectValueProperty)property).getValue().toString().equals(curValue.toString());
     			if (valid)
-    				validResultString = getJavaString((Expression)typedStmt, curValue);
+    				validResultString = getJavaString((Expression)typedStmt, curValue, curString);
     		} else if (property instanceof StateProperty && "true".equals(((StateProperty)property).getPropertyString())) {
     			valid = true;
     			if (typedStmt instanceof Expression)
-    				validResultString = getResultString((Expression)typedStmt, curValue, toStrings, evalIndex);
+    				validResultString = getResultString((Expression)typedStmt, curValue, curString, toStrings, evalIndex);
     		} else {
     			if (value != null && !"V".equals(value.getSignature()))
     				valid = ((IJavaPrimitiveValue)value).getBooleanValue();
     			else
-    				valid = "true".equals(valids[evalIndex].toString());
+    				valid = valids[evalIndex];
     			if (valid && typedStmt instanceof Expression)
-    				validResultString = getResultString((Expression)typedStmt, curValue, toStrings, evalIndex);
+    				validResultString = getResultString((Expression)typedStmt, curValue, curString, toStrings, evalIndex);
     		}
 			if (valid) {
-				if (initResult == null)
-					expressionEvaluator.setResult(typedStmt, new Result(curValue, Collections.<Effect>emptySet(), valueCache, thread), Collections.<Effect>emptySet());
+				if (initResult == null) {
+					Result result;
+					if (curString != null)
+						result = new Result(valueCache.getStringJavaValue(curString));
+					else if (hashed != null && hashed[evalIndex])
+						result = new Result(Value.makeObjectValue((IJavaObject)curValue, hashCodes[evalIndex], valueCache, thread), Collections.<Effect>emptySet());
+					else
+						result = new Result(curValue, Collections.<Effect>emptySet(), valueCache, thread);
+					expressionEvaluator.setResult(typedStmt, result, Collections.<Effect>emptySet());
+				}
 				if (typedStmt instanceof Expression)
 					expressionEvaluator.setResultString((Expression)typedStmt, Utils.getPrintableString(validResultString));
 				validStmts.add(typedStmt);
@@ -736,6 +1562,8 @@ public final class EvaluationManager {
 	 * and we enclose Strings in quotes when necessary.
 	 * @param expr The expression.
 	 * @param curValue The value whose String representation we want.
+	 * @param curString The contents of the value if it is a String
+	 * we have already read, or null otherwise.
 	 * @param toStrings An array of the computed toStrings of value,
 	 * or null if we did not compute anything.
 	 * @param evalIndex The index of the current value in the toStrings
@@ -743,12 +1571,12 @@ public final class EvaluationManager {
 	 * @return A String representation of the given expression and value.
 	 * @throws DebugException
 	 */
-	private String getResultString(Expression expr, IJavaValue curValue, IJavaValue[] toStrings, int evalIndex) throws DebugException {
+	private String getResultString(Expression expr, IJavaValue curValue, String curString, String[] toStrings, int evalIndex) throws DebugException {
 		if (toStrings == null)
-			return getJavaString(expr, curValue);
+			return getJavaString(expr, curValue, curString);
 		else {
-			String result = toStrings[evalIndex].getValueString();
-			if (!curValue.isNull() && "java.lang.String".equals(curValue.getJavaType().getName()))
+			String result = toStrings[evalIndex];
+			if (curString != null || (!curValue.isNull() && "java.lang.String".equals(curValue.getJavaType().getName())))
 				result = "\"" + result + "\"";
 			return result;
 		}
@@ -758,10 +1586,14 @@ public final class EvaluationManager {
 	 * Gets a String representation of the given expression and value.
 	 * @param expr The expression.
 	 * @param curValue The value of the expression.
+	 * @param curString The contents of the value if it is a String
+	 * we have already read, or null otherwise.
 	 * @return A string representation of the given expression and value.
 	 * @throws DebugException
 	 */
-	private String getJavaString(Expression expr, IJavaValue curValue) throws DebugException {
+	private String getJavaString(Expression expr, IJavaValue curValue, String curString) throws DebugException {
+		if (curString != null)  // Strings do not depend on effects, so we do not need to ask the child.
+			return "\"" + curString + "\"";
 		return expressionEvaluator.getToStringWithEffects(expr, curValue);
 	}
 
@@ -775,6 +1607,32 @@ public final class EvaluationManager {
 			synthesisDialog.addStatements(results);
 	}
 
+	/**
+	 * Removes the statements that we know will crash because
+	 * they make a call that has already crashed with the same
+	 * receiver and arguments.
+	 * @param stmts All of the statements being evaluated.
+	 * @param startIndex The index of the first statement to check.
+	 * @return The number of statements removed.
+	 * @throws DebugException
+	 */
+	private <T extends Statement> int removeKnownCrashes(ArrayList<T> stmts, int startIndex) throws DebugException {
+		ArrayList<T> kept = new ArrayList<T>(stmts.size() - startIndex);
+		for (int i = startIndex; i < stmts.size(); i++) {
+			T stmt = stmts.get(i);
+			if (stmt instanceof Expression && crashIndex.getCrash((Expression)stmt) != null)
+				crashingStatements.add(stmt);
+			else
+				kept.add(stmt);
+		}
+		int numRemoved = stmts.size() - startIndex - kept.size();
+		if (numRemoved > 0) {  // Replace the tail at once rather than removing statements one by one.
+			stmts.subList(startIndex, stmts.size()).clear();
+			stmts.addAll(kept);
+		}
+		return numRemoved;
+	}
+
 	/**
 	 * Heuristically skips expressions that are similar to an
 	 * expression that just crashed and thus are likely to
@@ -947,17 +1805,46 @@ public final class EvaluationManager {
      * @throws DebugException
      */
     public void cacheMethodResults(List<? extends Statement> stmts) throws DebugException {
+		methodResultIndices = new IdentityHashMap<Expression, Integer>();
+		methodResultValues = new ArrayList<IJavaValue>();
+		methodResultsArray = null;
+		addMethodResults(stmts);
+    }
+    
+    /**
+     * Adds the results of method calls in the given list to
+     * the cache without replacing the results we already
+     * cached, which lets searches that evaluate many small
+     * batches avoid sending the same results again.
+     * @param stmts The list of statements, which may contain
+     * non-call statements.
+     * @throws DebugException
+     */
+    public void addMethodResults(List<? extends Statement> stmts) throws DebugException {
     	// Find the non-inlined method calls.
     	ArrayList<Expression> calls = new ArrayList<Expression>();
     	addCalls(stmts, calls);
-		methodResultsMap = new HashMap<String, Integer>();
-    	if (!calls.isEmpty()) {  // Cache the method call results so the runtime can use them.
-    		IJavaArray newValue = ((IJavaArrayType)methodResultsField.getJavaType()).newInstance(calls.size());
-    		for (int i = 0; i < calls.size(); i++) {
-    			newValue.setValue(i, expressionEvaluator.getValue(calls.get(i), Collections.<Effect>emptySet()));
-    			methodResultsMap.put(calls.get(i).toString(), i);
-    		}
+    	int oldCount = methodResultValues.size();
+    	for (Expression call: calls) {
+    		if (methodResultIndices.containsKey(call))
+    			continue;
+    		methodResultIndices.put(call, methodResultValues.size());
+    		methodResultValues.add(expressionEvaluator.getValue(call, Collections.<Effect>emptySet()));
+    	}
+    	int count = methodResultValues.size();
+    	if (count == oldCount)
+    		return;
+    	// Cache the method call results so the runtime can use them.
+    	if (methodResultsArray == null || count > methodResultsArray.getLength()) {
+    		// We double the array when it is full, so on average we send each value a constant number of times.
+    		int capacity = methodResultsArray == null ? count : Math.max(count, 2 * methodResultsArray.getLength());
+    		IJavaArray newValue = ((IJavaArrayType)methodResultsField.getJavaType()).newInstance(capacity);
+    		newValue.setValues(methodResultValues.toArray(new IJavaValue[count]));  // Set all the values with one request.
     		methodResultsField.setValue(newValue);
+    		methodResultsArray = newValue;
+    	} else {
+    		IJavaValue[] newValues = methodResultValues.subList(oldCount, count).toArray(new IJavaValue[count - oldCount]);
+    		methodResultsArray.setValues(oldCount, newValues.length, newValues, 0);
     	}
     }
     
@@ -1016,6 +1903,22 @@ public final class EvaluationManager {
 		}
 	}
 	
+	/**
+	 * Allows the child VM to collect the reflective handles
+	 * we created.  We keep them across searches so that we do
+	 * not need to recreate them, so this must be called once
+	 * we will no longer use this evaluation manager.
+	 */
+	public void releaseHandles() {
+		if (handleCache == null)
+			return;
+		try {
+			handleCache.clear();
+		} catch (DebugException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	/**
 	 * Gets the number of statements whose evaluation crashed.
 	 * @return The number of statements whose evaluation crashed.
@@ -1024,6 +1927,158 @@ public final class EvaluationManager {
 		return crashingStatements.size() + skipped;
 	}
 	
+	/**
+	 * Gets a summary of the batch sizes we used and the
+	 * throughput we achieved for each type of statement.
+	 * @return A summary of our batch evaluation statistics.
+	 */
+	public String getBatchStats() {
+		return batchSizer.getStats();
+	}
+	
+	/**
+	 * Gets a summary of how full the value cache is.
+	 * @return A summary of how full the value cache is.
+	 */
+	public String getValueCacheStats() {
+		return valueCache.getStats();
+	}
+	
+	/**
+	 * Interprets the given statements in the child VM,
+	 * on multiple threads if we know they are pure.
+	 * @param program The encoded statements.
+	 * @param valuesArrayName The name of the field that will
+	 * store the output values.
+	 * @return The exception that stopped the evaluation, or
+	 * null if there was none.
+	 * @throws DebugException
+	 */
+	private DebugException interpret(ExpressionEncoder program, String valuesArrayName) throws DebugException {
+		int[] code = program.getCode();
+		IJavaValue[] codeValues = new IJavaValue[code.length];
+		for (int i = 0; i < code.length; i++)
+			codeValues[i] = target.newValue(code[i]);
+		ArrayList<IJavaValue> constants = program.getConstants();
+		IJavaArray codeArray = intArrayType.newInstance(code.length);
+		IJavaArray constantsArray = objectArrayType.newInstance(constants.size());
+		// Keep the arrays alive until the child uses them.
+		codeArray.disableCollection();
+		constantsArray.disableCollection();
+		try {
+			codeArray.setValues(codeValues);
+			if (!constants.isEmpty())
+				constantsArray.setValues(constants.toArray(new IJavaValue[constants.size()]));
+			final IJavaValue[] args = new IJavaValue[] { codeArray, constantsArray, target.newValue(program.getNumExpressions()), target.newValue(program.getMaxStack()), target.newValue(valuesArrayName) };
+			final String methodName = canInterpretInParallel && program.arePure() ? "interpretInParallel" : "interpret";  // The library decides how many threads to use, if any.
+			// We run the call as an evaluation so that, like the compiled path, it respects the user's choice of whether to hit breakpoints.
+			thread.runEvaluation(new IEvaluationRunnable() {
+				@Override
+				public void run(IJavaThread thread, IProgressMonitor monitor) throws DebugException {
+					implType.sendMessage(methodName, "([I[Ljava/lang/Object;IILjava/lang/String;)V", args, thread);
+				}
+			}, null, DebugEvent.EVALUATION_IMPLICIT, !disableBreakpoints);
+			return null;
+		} catch (DebugException e) {
+			return e;
+		} finally {
+			codeArray.enableCollection();
+			constantsArray.enableCollection();
+		}
+	}
+	
+	/**
+	 * The evaluation string of a batch before we finish and
+	 * compile it.  We record where the string of each evaluated
+	 * statement ends so that we can cut the batch short once we
+	 * know how large we want it to be.
+	 */
+	private static class BatchSource {
+		
+		private final int startIndex;
+		private final boolean catchesExceptions;
+		private final StringBuilder statementsStr;
+		private final ArrayList<Integer> evalStmtIndices;
+		private final ArrayList<Integer> stringLengths;
+		private int endIndex;
+		private int firstUnknownIndex;
+		private Set<Effect> effects;
+		
+		/**
+		 * Creates a new, empty batch source.
+		 * @param startIndex The index of the first statement
+		 * in the batch.
+		 * @param catchesExceptions Whether the batch calls
+		 * methods through CodeHintImpl.
+		 */
+		public BatchSource(int startIndex, boolean catchesExceptions) {
+			this.startIndex = startIndex;
+			this.catchesExceptions = catchesExceptions;
+			this.statementsStr = new StringBuilder();
+			this.evalStmtIndices = new ArrayList<Integer>();
+			this.stringLengths = new ArrayList<Integer>();
+			this.endIndex = startIndex;
+			this.firstUnknownIndex = Integer.MAX_VALUE;
+			this.effects = null;
+		}
+		
+	}
+	
+	/**
+	 * A compiled or encoded batch of statements that we evaluate together.
+	 */
+	private static class Batch {
+		
+		private final int startIndex;
+		private final int endIndex;
+		private final ArrayList<Integer> evalStmtIndices;
+		private final Set<Effect> effects;
+		private final boolean isSimple;
+		private final boolean isTemplate;
+		private final boolean catchesExceptions;
+		private final ICompiledExpression compiled;
+		private final ExpressionEncoder program;
+		private final long compileTime;
+		
+		/**
+		 * Creates a new batch.
+		 * @param startIndex The index of the first statement
+		 * in the batch.
+		 * @param endIndex The index after the last statement
+		 * in the batch.
+		 * @param evalStmtIndices The indices of the statements
+		 * that the batch evaluates.
+		 * @param effects The effects of the statements.
+		 * @param isSimple Whether the evaluation string is
+		 * simply the pdspec.
+		 * @param isTemplate Whether the evaluation string is
+		 * a template that reads its values from the values array.
+		 * @param catchesExceptions Whether the batch calls methods
+		 * through CodeHintImpl, which records their exceptions in
+		 * the exceptions array.
+		 * @param compiled The compiled evaluation string, or
+		 * null if the batch does not evaluate anything or is
+		 * interpreted.
+		 * @param compileTime The time in nanoseconds we took to
+		 * compile or encode the batch.
+		 * @param program The encoded statements for the child
+		 * to interpret, or null if we compiled them.
+		 */
+		public Batch(int startIndex, int endIndex, ArrayList<Integer> evalStmtIndices, Set<Effect> effects, boolean isSimple, boolean isTemplate, boolean catchesExceptions, ICompiledExpression compiled, long compileTime, ExpressionEncoder program) {
+			this.startIndex = startIndex;
+			this.endIndex = endIndex;
+			this.evalStmtIndices = evalStmtIndices;
+			this.effects = effects;
+			this.isSimple = isSimple;
+			this.isTemplate = isTemplate;
+			this.catchesExceptions = catchesExceptions;
+			this.compiled = compiled;
+			this.program = program;
+			this.compileTime = compileTime;
+		}
+		
+	}
+	
 	private static class Evaluator {
 		
 		private static final Semaphore semaphore = new Semaphore(0);
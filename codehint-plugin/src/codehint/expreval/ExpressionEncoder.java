@@ -0,0 +1,604 @@
+package codehint.expreval;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.debug.core.model.IVariable;
+import org.eclipse.jdt.debug.core.IJavaArrayType;
+import org.eclipse.jdt.debug.core.IJavaObject;
+import org.eclipse.jdt.debug.core.IJavaPrimitiveValue;
+import org.eclipse.jdt.debug.core.IJavaReferenceType;
+import org.eclipse.jdt.debug.core.IJavaStackFrame;
+import org.eclipse.jdt.debug.core.IJavaType;
+import org.eclipse.jdt.debug.core.IJavaValue;
+
+import codehint.ast.ArrayAccess;
+import codehint.ast.CastExpression;
+import codehint.ast.ClassInstanceCreation;
+import codehint.ast.Expression;
+import codehint.ast.FieldAccess;
+import codehint.ast.InfixExpression;
+import codehint.ast.InstanceofExpression;
+import codehint.ast.MethodInvocation;
+import codehint.ast.ParenthesizedExpression;
+import codehint.ast.PrefixExpression;
+import codehint.ast.QualifiedName;
+import codehint.ast.SimpleName;
+import codehint.ast.ThisExpression;
+import codehint.effects.Effect;
+import codehint.exprgen.ExpressionEvaluator;
+import codehint.exprgen.Result;
+import codehint.utils.EclipseUtils;
+
+import com.sun.jdi.Field;
+import com.sun.jdi.Method;
+
+/**
+ * Serializes expressions so that CodeHintImpl can interpret
+ * them in the child VM without our compiling them.
+ * Like the ValueFlattener, we substitute the values of
+ * evaluated subexpressions when we can.
+ * The instruction set must be kept in sync with
+ * codehint.Interpreter in the library.
+ */
+final class ExpressionEncoder {
+
+	private static final int BEGIN = 0;
+	private static final int STORE = 1;
+	private static final int CONST = 2;
+	private static final int NULL = 3;
+	private static final int INT = 4;
+	private static final int LONG = 5;
+	private static final int FLOAT = 6;
+	private static final int DOUBLE = 7;
+	private static final int BOOLEAN = 8;
+	private static final int CHAR = 9;
+	private static final int BYTE = 10;
+	private static final int SHORT = 11;
+	private static final int METHOD_RESULT = 12;
+	private static final int CALL = 13;
+	private static final int NEW = 14;
+	private static final int GET_FIELD = 15;
+	private static final int ARRAY_LENGTH = 16;
+	private static final int ARRAY_GET = 17;
+	private static final int CONVERT = 18;
+	private static final int CHECKCAST = 19;
+	private static final int INSTANCEOF = 20;
+	private static final int BINARY = 21;
+	private static final int UNARY = 22;
+	private static final int JUMP_IF_FALSE = 23;
+	private static final int JUMP_IF_TRUE = 24;
+
+	private static final int PLUS = 0;
+	private static final int MINUS = 1;
+	private static final int TIMES = 2;
+	private static final int DIVIDE = 3;
+	private static final int REMAINDER = 4;
+	private static final int LEFT_SHIFT = 5;
+	private static final int RIGHT_SHIFT_SIGNED = 6;
+	private static final int RIGHT_SHIFT_UNSIGNED = 7;
+	private static final int LESS = 8;
+	private static final int GREATER = 9;
+	private static final int LESS_EQUALS = 10;
+	private static final int GREATER_EQUALS = 11;
+	private static final int EQUALS = 12;
+	private static final int NOT_EQUALS = 13;
+	private static final int XOR = 14;
+	private static final int OR = 15;
+	private static final int AND = 16;
+	private static final int NOT = 17;
+	private static final int COMPLEMENT = 18;
+
+	private final IJavaStackFrame stack;
+	private final ExpressionEvaluator expressionEvaluator;
+	private final ReflectionHandleCache handleCache;
+	private final Map<Expression, Integer> methodResultIndices;
+	private final boolean canLoad;
+	private int[] code;
+	private int codeSize;
+	private final ArrayList<IJavaValue> constants;
+	private int numExpressions;
+	private int depth;
+	private int maxDepth;
+	private Set<Effect> curEffects;
+	// Whether all the calls in the expressions are to methods we can prove are pure.
+	private boolean arePure;
+
+	/**
+	 * Creates a new encoder.
+	 * @param stack The current stack frame.
+	 * @param expressionEvaluator The expression evaluator.
+	 * @param handleCache The cache of reflective handles.
+	 * @param methodResultIndices The indices in
+	 * CodeHintImpl.methodResults of the calls whose results are
+	 * stored there, keyed by the call nodes themselves.
+	 * @param canLoad Whether we can get new handles and values
+	 * from the child VM, which requires the thread to be suspended.
+	 */
+	public ExpressionEncoder(IJavaStackFrame stack, ExpressionEvaluator expressionEvaluator, ReflectionHandleCache handleCache, Map<Expression, Integer> methodResultIndices, boolean canLoad) {
+		this.stack = stack;
+		this.expressionEvaluator = expressionEvaluator;
+		this.handleCache = handleCache;
+		this.methodResultIndices = methodResultIndices;
+		this.canLoad = canLoad;
+		this.code = new int[256];
+		this.codeSize = 0;
+		this.constants = new ArrayList<IJavaValue>();
+		this.numExpressions = 0;
+		this.depth = 0;
+		this.maxDepth = 0;
+		this.arePure = true;
+	}
+
+	/**
+	 * Adds the given expression to the ones we will evaluate.
+	 * @param expr The expression to add.
+	 * @return Whether we can interpret the given expression.
+	 * If not, we do not add it.
+	 * @throws DebugException
+	 */
+	public boolean addExpression(Expression expr) throws DebugException {
+		int oldCodeSize = codeSize;
+		int oldNumConstants = constants.size();
+		boolean oldArePure = arePure;
+		curEffects = Collections.<Effect>emptySet();
+		depth = 0;
+		emit(BEGIN, 0);
+		if (!encode(expr)) {
+			codeSize = oldCodeSize;
+			while (constants.size() > oldNumConstants)
+				constants.remove(constants.size() - 1);
+			arePure = oldArePure;
+			return false;
+		}
+		emit(STORE);
+		code[oldCodeSize + 1] = codeSize;
+		numExpressions++;
+		return true;
+	}
+
+	public int[] getCode() {
+		int[] result = new int[codeSize];
+		System.arraycopy(code, 0, result, 0, codeSize);
+		return result;
+	}
+
+	public ArrayList<IJavaValue> getConstants() {
+		return constants;
+	}
+
+	public int getNumExpressions() {
+		return numExpressions;
+	}
+
+	public int getMaxStack() {
+		return maxDepth;
+	}
+
+	/**
+	 * Checks whether the expressions only call methods that
+	 * we can prove are pure, so that we can evaluate them in
+	 * parallel.
+	 * @return Whether the expressions only call methods that
+	 * we can prove are pure.
+	 */
+	public boolean arePure() {
+		return arePure;
+	}
+
+	/**
+	 * Encodes the given expression, using its value if we
+	 * know it and can represent it.
+	 * @param node The expression to encode.
+	 * @return Whether we could encode the given expression.
+	 * @throws DebugException
+	 */
+	private boolean encode(Expression node) throws DebugException {
+		Result result = expressionEvaluator.getResult(node, curEffects);
+		if (result != null) {
+			IJavaValue value = result.getValue().getValue();
+			// As in the ValueFlattener, we only use values that cannot be collected.
+			if (value instanceof IJavaPrimitiveValue)
+				return encodePrimitive((IJavaPrimitiveValue)value);
+			else if (value.isNull()) {
+				emit(NULL);
+				push(1);
+				return true;
+			} else if (value instanceof IJavaObject && "Ljava/lang/String;".equals(value.getSignature())) {
+				encodeConstant(value);
+				return true;
+			}
+		}
+		if (!encodeStructure(node))
+			return false;
+		if (result != null)
+			curEffects = result.getEffects();
+		return true;
+	}
+
+	private boolean encodeStructure(Expression node) throws DebugException {
+		if (node instanceof ParenthesizedExpression)
+			return encode(((ParenthesizedExpression)node).getExpression());
+		else if (node instanceof MethodInvocation)
+			return encodeCall((MethodInvocation)node);
+		else if (node instanceof ClassInstanceCreation)
+			return encodeNew((ClassInstanceCreation)node);
+		else if (node instanceof FieldAccess)
+			return encodeFieldAccess(node, ((FieldAccess)node).getExpression(), ((FieldAccess)node).getName().getIdentifier());
+		else if (node instanceof QualifiedName)
+			return encodeFieldAccess(node, ((QualifiedName)node).getQualifier(), ((QualifiedName)node).getName().getIdentifier());
+		else if (node instanceof SimpleName)
+			return encodeSimpleName((SimpleName)node);
+		else if (node instanceof ThisExpression)
+			return ((ThisExpression)node).getQualifier() == null && encodeThis();
+		else if (node instanceof ArrayAccess) {
+			if (!encode(((ArrayAccess)node).getArray()) || !encode(((ArrayAccess)node).getIndex()))
+				return false;
+			emit(ARRAY_GET);
+			pop(2);
+			push(1);
+			return true;
+		} else if (node instanceof CastExpression)
+			return encodeCast((CastExpression)node);
+		else if (node instanceof InstanceofExpression)
+			return encodeInstanceof((InstanceofExpression)node);
+		else if (node instanceof PrefixExpression)
+			return encodePrefix((PrefixExpression)node);
+		else if (node instanceof InfixExpression)
+			return encodeInfix((InfixExpression)node);
+		else
+			return false;
+	}
+
+	private boolean encodeCall(MethodInvocation call) throws DebugException {
+		Integer methodResultIndex = methodResultIndices == null ? null : methodResultIndices.get(call);
+		if (methodResultIndex != null) {
+			emit(METHOD_RESULT, methodResultIndex);
+			push(1);
+			return true;
+		}
+		Method method = expressionEvaluator.getMethod(call);
+		if (method == null || method.isVarArgs())  // Reflection passes varargs as arrays.
+			return false;
+		int handle = handleCache.getIndex(method, canLoad);
+		if (handle == -1)
+			return false;
+		if (method.isStatic()) {
+			emit(NULL);
+			push(1);
+		} else if (call.getExpression() == null) {
+			if (!encodeThis())
+				return false;
+		} else if (!encode(call.getExpression()))
+			return false;
+		if (!encodeArguments(call.arguments()))
+			return false;
+		arePure &= expressionEvaluator.isProvenPure(method);
+		emit(CALL, handle, call.arguments().length);
+		pop(1 + call.arguments().length);
+		push(1);
+		return true;
+	}
+
+	private boolean encodeNew(ClassInstanceCreation creation) throws DebugException {
+		Method method = expressionEvaluator.getMethod(creation);
+		// Inner classes need their enclosing instance, which we do not handle.
+		if (method == null || method.isVarArgs() || creation.getExpression() != null || creation.getAnonymousClassDeclaration() != null || method.declaringType().name().indexOf('$') != -1)
+			return false;
+		int handle = handleCache.getIndex(method, canLoad);
+		if (handle == -1 || !encodeArguments(creation.arguments()))
+			return false;
+		arePure &= expressionEvaluator.isProvenPure(method);
+		emit(NEW, handle, creation.arguments().length);
+		pop(creation.arguments().length);
+		push(1);
+		return true;
+	}
+
+	private boolean encodeArguments(Expression[] args) throws DebugException {
+		for (Expression arg: args)
+			if (!encode(arg))
+				return false;
+		return true;
+	}
+
+	private boolean encodeFieldAccess(Expression node, Expression receiver, String name) throws DebugException {
+		Field field = expressionEvaluator.getField(node);
+		if (field == null) {
+			if ("length".equals(name) && receiver.getStaticType() instanceof IJavaArrayType) {
+				if (!encode(receiver))
+					return false;
+				emit(ARRAY_LENGTH);
+				pop(1);
+				push(1);
+				return true;
+			}
+			return false;
+		}
+		int handle = handleCache.getIndex(field, canLoad);
+		if (handle == -1)
+			return false;
+		if (field.isStatic()) {
+			emit(NULL);
+			push(1);
+		} else if (!encode(receiver))
+			return false;
+		emit(GET_FIELD, handle);
+		pop(1);
+		push(1);
+		return true;
+	}
+
+	private boolean encodeSimpleName(SimpleName name) throws DebugException {
+		Field field = expressionEvaluator.getField(name);
+		if (field != null) {  // An implicit access of a field of this.
+			int handle = handleCache.getIndex(field, canLoad);
+			if (handle == -1)
+				return false;
+			if (field.isStatic()) {
+				emit(NULL);
+				push(1);
+			} else if (!encodeThis())
+				return false;
+			emit(GET_FIELD, handle);
+			pop(1);
+			push(1);
+			return true;
+		}
+		if (!canLoad || expressionEvaluator.isStatic(name))
+			return false;
+		IVariable var = stack.findVariable(name.getIdentifier());
+		if (var == null)
+			return false;
+		IJavaValue value = (IJavaValue)var.getValue();
+		if (value instanceof IJavaPrimitiveValue)
+			return encodePrimitive((IJavaPrimitiveValue)value);
+		else if (value.isNull()) {
+			emit(NULL);
+			push(1);
+		} else
+			encodeConstant(value);  // Locals are reachable from the stack frame, so they cannot be collected.
+		return true;
+	}
+
+	private boolean encodeThis() throws DebugException {
+		if (!canLoad)
+			return false;
+		IJavaObject thisObj = stack.getThis();
+		if (thisObj == null)
+			return false;
+		encodeConstant(thisObj);
+		return true;
+	}
+
+	private boolean encodeCast(CastExpression cast) throws DebugException {
+		IJavaType type = cast.getStaticType();
+		if (type == null || !encode(cast.getExpression()))
+			return false;
+		if (EclipseUtils.isPrimitive(type))
+			emit(CONVERT, type.getSignature().charAt(0));
+		else {
+			IJavaValue classObject = handleCache.getClassObject((IJavaReferenceType)type, canLoad);
+			if (classObject == null)
+				return false;
+			emit(CHECKCAST, addConstant(classObject));
+		}
+		return true;
+	}
+
+	private boolean encodeInstanceof(InstanceofExpression node) throws DebugException {
+		IJavaType type = node.getRightOperand().getStaticType();
+		if (!(type instanceof IJavaReferenceType))
+			return false;
+		IJavaValue classObject = handleCache.getClassObject((IJavaReferenceType)type, canLoad);
+		if (classObject == null || !encode(node.getLeftOperand()))
+			return false;
+		emit(INSTANCEOF, addConstant(classObject));
+		return true;
+	}
+
+	private boolean encodePrefix(PrefixExpression prefix) throws DebugException {
+		PrefixExpression.Operator op = prefix.getOperator();
+		int opCode;
+		if (op == PrefixExpression.Operator.NOT)
+			opCode = NOT;
+		else if (op == PrefixExpression.Operator.MINUS)
+			opCode = MINUS;
+		else if (op == PrefixExpression.Operator.PLUS)
+			opCode = PLUS;
+		else if (op == PrefixExpression.Operator.COMPLEMENT)
+			opCode = COMPLEMENT;
+		else  // We do not modify variables.
+			return false;
+		char type = getNumericType(prefix.getOperand().getStaticType(), null);
+		if (opCode != NOT && type == 0)
+			return false;
+		if (!encode(prefix.getOperand()))
+			return false;
+		emit(UNARY, opCode, type);
+		return true;
+	}
+
+	private boolean encodeInfix(InfixExpression infix) throws DebugException {
+		InfixExpression.Operator op = infix.getOperator();
+		if (op == InfixExpression.Operator.CONDITIONAL_AND || op == InfixExpression.Operator.CONDITIONAL_OR) {
+			if (!encode(infix.getLeftOperand()))
+				return false;
+			int jump = codeSize;
+			emit(op == InfixExpression.Operator.CONDITIONAL_AND ? JUMP_IF_FALSE : JUMP_IF_TRUE, 0);
+			pop(1);
+			if (!encode(infix.getRightOperand()))
+				return false;
+			code[jump + 1] = codeSize;
+			return true;
+		}
+		int opCode = getOperator(op);
+		IJavaType leftType = infix.getLeftOperand().getStaticType();
+		IJavaType rightType = infix.getRightOperand().getStaticType();
+		boolean leftIsPrimitive = leftType != null && EclipseUtils.isPrimitive(leftType);
+		boolean rightIsPrimitive = rightType != null && EclipseUtils.isPrimitive(rightType);
+		char type;
+		if (opCode == PLUS && (isString(leftType) || isString(rightType)))
+			type = 'T';
+		else if (!leftIsPrimitive && !rightIsPrimitive && (opCode == EQUALS || opCode == NOT_EQUALS))
+			type = 'L';
+		else if (!leftIsPrimitive || !rightIsPrimitive)  // We do not handle unboxing.
+			return false;
+		else if ("Z".equals(leftType.getSignature()) && "Z".equals(rightType.getSignature()))
+			type = 'Z';
+		else if (opCode == LEFT_SHIFT || opCode == RIGHT_SHIFT_SIGNED || opCode == RIGHT_SHIFT_UNSIGNED)  // Shifts only promote their left operand.
+			type = getNumericType(leftType, null);
+		else
+			type = getNumericType(leftType, rightType);
+		if (type == 0 || !encode(infix.getLeftOperand()) || !encode(infix.getRightOperand()))
+			return false;
+		emit(BINARY, opCode, type);
+		pop(2);
+		push(1);
+		return true;
+	}
+
+	private static int getOperator(InfixExpression.Operator op) {
+		if (op == InfixExpression.Operator.PLUS)
+			return PLUS;
+		else if (op == InfixExpression.Operator.MINUS)
+			return MINUS;
+		else if (op == InfixExpression.Operator.TIMES)
+			return TIMES;
+		else if (op == InfixExpression.Operator.DIVIDE)
+			return DIVIDE;
+		else if (op == InfixExpression.Operator.REMAINDER)
+			return REMAINDER;
+		else if (op == InfixExpression.Operator.LEFT_SHIFT)
+			return LEFT_SHIFT;
+		else if (op == InfixExpression.Operator.RIGHT_SHIFT_SIGNED)
+			return RIGHT_SHIFT_SIGNED;
+		else if (op == InfixExpression.Operator.RIGHT_SHIFT_UNSIGNED)
+			return RIGHT_SHIFT_UNSIGNED;
+		else if (op == InfixExpression.Operator.LESS)
+			return LESS;
+		else if (op == InfixExpression.Operator.GREATER)
+			return GREATER;
+		else if (op == InfixExpression.Operator.LESS_EQUALS)
+			return LESS_EQUALS;
+		else if (op == InfixExpression.Operator.GREATER_EQUALS)
+			return GREATER_EQUALS;
+		else if (op == InfixExpression.Operator.EQUALS)
+			return EQUALS;
+		else if (op == InfixExpression.Operator.NOT_EQUALS)
+			return NOT_EQUALS;
+		else if (op == InfixExpression.Operator.XOR)
+			return XOR;
+		else if (op == InfixExpression.Operator.OR)
+			return OR;
+		else if (op == InfixExpression.Operator.AND)
+			return AND;
+		else
+			throw new IllegalArgumentException(op.toString());
+	}
+
+	private static boolean isString(IJavaType type) throws DebugException {
+		return type != null && "java.lang.String".equals(type.getName());
+	}
+
+	/**
+	 * Gets the signature of the type to which Java's
+	 * numeric promotion converts the given types.
+	 * @param first The first type.
+	 * @param second The second type, or null if there
+	 * is only one.
+	 * @return The signature of the promoted type, or 0
+	 * if they are not numeric types.
+	 * @throws DebugException
+	 */
+	private static char getNumericType(IJavaType first, IJavaType second) throws DebugException {
+		char firstSig = getNumericSignature(first);
+		char secondSig = second == null ? 'I' : getNumericSignature(second);
+		if (firstSig == 0 || secondSig == 0)
+			return 0;
+		if (firstSig == 'D' || secondSig == 'D')
+			return 'D';
+		if (firstSig == 'F' || secondSig == 'F')
+			return 'F';
+		if (firstSig == 'J' || secondSig == 'J')
+			return 'J';
+		return 'I';
+	}
+
+	private static char getNumericSignature(IJavaType type) throws DebugException {
+		if (type == null || !EclipseUtils.isPrimitive(type))
+			return 0;
+		char sig = type.getSignature().charAt(0);
+		return sig == 'Z' ? 0 : sig;
+	}
+
+	private boolean encodePrimitive(IJavaPrimitiveValue value) throws DebugException {
+		char sig = value.getSignature().charAt(0);
+		switch (sig) {
+		case 'I':
+			emit(INT, value.getIntValue());
+			break;
+		case 'J':
+			long l = value.getLongValue();
+			emit(LONG, (int)(l >>> 32), (int)l);
+			break;
+		case 'F':
+			emit(FLOAT, Float.floatToRawIntBits(value.getFloatValue()));
+			break;
+		case 'D':
+			long d = Double.doubleToRawLongBits(value.getDoubleValue());
+			emit(DOUBLE, (int)(d >>> 32), (int)d);
+			break;
+		case 'Z':
+			emit(BOOLEAN, value.getBooleanValue() ? 1 : 0);
+			break;
+		case 'C':
+			emit(CHAR, value.getCharValue());
+			break;
+		case 'B':
+			emit(BYTE, value.getByteValue());
+			break;
+		case 'S':
+			emit(SHORT, value.getShortValue());
+			break;
+		default:
+			return false;
+		}
+		push(1);
+		return true;
+	}
+
+	private void encodeConstant(IJavaValue value) {
+		emit(CONST, addConstant(value));
+		push(1);
+	}
+
+	private int addConstant(IJavaValue value) {
+		constants.add(value);
+		return constants.size() - 1;
+	}
+
+	private void emit(int... words) {
+		if (codeSize + words.length > code.length) {
+			int[] newCode = new int[Math.max(code.length * 2, codeSize + words.length)];
+			System.arraycopy(code, 0, newCode, 0, codeSize);
+			code = newCode;
+		}
+		for (int word: words)
+			code[codeSize++] = word;
+	}
+
+	private void push(int n) {
+		depth += n;
+		if (depth > maxDepth)
+			maxDepth = depth;
+	}
+
+	private void pop(int n) {
+		depth -= n;
+	}
+
+}
@@ -0,0 +1,102 @@
+package codehint.expreval;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.jdt.debug.core.IJavaStackFrame;
+
+import codehint.Activator;
+
+/**
+ * Remembers what a stack frame told the evaluation engine
+ * when it compiled an expression, so that we can compile
+ * later expressions against the frame while its thread is
+ * running (e.g., evaluating the previous batch), when JDI
+ * cannot read the frame.
+ * The compiler only asks the frame for things that do not
+ * change while we are stopped at a breakpoint, such as its
+ * type and the names and types of its locals.  We record the
+ * answers to the getters we call through the recording frame
+ * on the suspended thread and give them back through the
+ * replaying frame.  The replaying frame fails on anything we
+ * have not recorded, in which case the caller should compile
+ * on the suspended thread instead.
+ */
+final class FrameSnapshot {
+
+	private static final Object NULL = new Object();
+
+	private final IJavaStackFrame frame;
+	private final Map<Method, Object> answers;
+	private final IJavaStackFrame recordingFrame;
+	private final IJavaStackFrame replayingFrame;
+
+	/**
+	 * Creates a new, empty snapshot of the given frame.
+	 * @param frame The frame.
+	 */
+	public FrameSnapshot(IJavaStackFrame frame) {
+		this.frame = frame;
+		this.answers = new ConcurrentHashMap<Method, Object>();
+		this.recordingFrame = makeFrame(true);
+		this.replayingFrame = makeFrame(false);
+	}
+
+	/**
+	 * Gets a frame that forwards every call to the real frame
+	 * and records the answers of its getters.  Only the thread
+	 * that is stopped at the frame may use it.
+	 * @return A frame that records the answers of the real one.
+	 */
+	public IJavaStackFrame getRecordingFrame() {
+		return recordingFrame;
+	}
+
+	/**
+	 * Gets a frame that answers the getters we have recorded
+	 * and fails on everything else.  Any thread may use it.
+	 * @return A frame that replays the answers of the real one.
+	 */
+	public IJavaStackFrame getReplayingFrame() {
+		return replayingFrame;
+	}
+
+	private IJavaStackFrame makeFrame(final boolean isRecording) {
+		return (IJavaStackFrame)Proxy.newProxyInstance(IJavaStackFrame.class.getClassLoader(), new Class<?>[] { IJavaStackFrame.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {  // Compare the proxies themselves, since the real frame might need its thread.
+					if ("equals".equals(method.getName()))
+						return proxy == args[0];
+					if ("hashCode".equals(method.getName()))
+						return System.identityHashCode(proxy);
+					return isRecording ? "Recording frame" : "Replaying frame";
+				}
+				boolean isGetter = (args == null || args.length == 0) && (method.getName().startsWith("get") || method.getName().startsWith("is"));
+				if (!isRecording) {
+					Object answer = isGetter ? answers.get(method) : null;
+					if (answer == null)
+						throw new DebugException(new Status(IStatus.ERROR, Activator.PLUGIN_ID, "We cannot read the frame while its thread is running: " + method.getName()));
+					return answer == NULL ? null : answer;
+				}
+				Object answer;
+				try {
+					answer = method.invoke(frame, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+				if (isGetter)
+					answers.put(method, answer == null ? NULL : answer);
+				return answer;
+			}
+		});
+	}
+
+}
@@ -0,0 +1,132 @@
+package codehint.expreval;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.jdt.debug.core.IJavaArray;
+import org.eclipse.jdt.debug.core.IJavaArrayType;
+import org.eclipse.jdt.debug.core.IJavaClassType;
+import org.eclipse.jdt.debug.core.IJavaDebugTarget;
+import org.eclipse.jdt.debug.core.IJavaFieldVariable;
+import org.eclipse.jdt.debug.core.IJavaObject;
+import org.eclipse.jdt.debug.core.IJavaReferenceType;
+import org.eclipse.jdt.debug.core.IJavaThread;
+import org.eclipse.jdt.debug.core.IJavaValue;
+import org.eclipse.jdt.internal.debug.core.model.JDIDebugTarget;
+import org.eclipse.jdt.internal.debug.core.model.JDIType;
+
+import com.sun.jdi.TypeComponent;
+
+/**
+ * Caches reflective handles to methods, constructors,
+ * and fields in the child VM so that evaluations can
+ * use them through CodeHintImpl.  The handles are stored in
+ * CodeHintImpl's handles array, and we refer to them
+ * by their index in that array.
+ */
+final class ReflectionHandleCache {
+
+	private final IJavaClassType implType;
+	private final IJavaFieldVariable handlesField;
+	private final IJavaDebugTarget target;
+	private final IJavaThread thread;
+	private final Map<TypeComponent, Integer> indices;
+	private final ArrayList<IJavaValue> handles;
+	private final Map<String, IJavaValue> classObjects;
+	private boolean isDirty;
+
+	public ReflectionHandleCache(IJavaClassType implType, IJavaFieldVariable handlesField, IJavaDebugTarget target, IJavaThread thread) {
+		this.implType = implType;
+		this.handlesField = handlesField;
+		this.target = target;
+		this.thread = thread;
+		this.indices = new HashMap<TypeComponent, Integer>();
+		this.handles = new ArrayList<IJavaValue>();
+		this.classObjects = new HashMap<String, IJavaValue>();
+		this.isDirty = false;
+	}
+
+	/**
+	 * Gets the index of the handle to the given member
+	 * in the handles array.
+	 * @param member The method, constructor, or field.
+	 * @param canLoad Whether we can get a new handle from
+	 * the child VM if we do not already have one.  This
+	 * requires the thread to be suspended.
+	 * @return The index of the handle to the given member,
+	 * or -1 if we do not have one.
+	 * @throws DebugException
+	 */
+	public int getIndex(TypeComponent member, boolean canLoad) throws DebugException {
+		Integer index = indices.get(member);
+		if (index != null)
+			return index;
+		if (!canLoad)
+			return -1;
+		IJavaReferenceType declaringType = (IJavaReferenceType)JDIType.createType((JDIDebugTarget)target, member.declaringType());
+		IJavaValue handle = implType.sendMessage("getMember", "(Ljava/lang/Class;Ljava/lang/String;Ljava/lang/String;)Ljava/lang/reflect/AccessibleObject;", new IJavaValue[] { declaringType.getClassObject(), target.newValue(member.name()), target.newValue(member.signature()) }, thread);
+		if (handle.isNull())
+			index = -1;
+		else {
+			((IJavaObject)handle).disableCollection();  // Keep the handle alive until we store it into the handles array and after CodeHintImpl is reset.
+			index = handles.size();
+			handles.add(handle);
+			isDirty = true;
+		}
+		indices.put(member, index);
+		return index;
+	}
+
+	/**
+	 * Gets the class object of the given type.
+	 * @param type The type.
+	 * @param canLoad Whether we can get the class object from
+	 * the child VM if we do not already have it.
+	 * @return The class object of the given type, or null if
+	 * we do not have it.
+	 * @throws DebugException
+	 */
+	public IJavaValue getClassObject(IJavaReferenceType type, boolean canLoad) throws DebugException {
+		String name = type.getName();
+		IJavaValue classObject = classObjects.get(name);
+		if (classObject == null && canLoad) {
+			classObject = type.getClassObject();
+			classObjects.put(name, classObject);
+		}
+		return classObject;
+	}
+
+	/**
+	 * Ensures that the handles array in the child VM
+	 * contains all the handles we have created.
+	 * @throws DebugException
+	 */
+	public void flush() throws DebugException {
+		if (handles.isEmpty() || (!isDirty && !((IJavaValue)handlesField.getValue()).isNull()))
+			return;
+		IJavaArray newValue = ((IJavaArrayType)handlesField.getJavaType()).newInstance(handles.size());
+		newValue.setValues(handles.toArray(new IJavaValue[handles.size()]));
+		handlesField.setValue(newValue);
+		isDirty = false;
+	}
+
+	/**
+	 * Allows the child VM to collect the handles we have
+	 * created and forgets them.  We must do this once we no
+	 * longer evaluate expressions, since we disabled their
+	 * collection when we created them.
+	 * @throws DebugException
+	 */
+	public void clear() throws DebugException {
+		if (!target.isTerminated() && !target.isDisconnected())  // The handles died with the child VM.
+			for (IJavaValue handle: handles)
+				((IJavaObject)handle).enableCollection();
+		indices.clear();
+		handles.clear();
+		classObjects.clear();
+		isDirty = false;
+	}
+
+}
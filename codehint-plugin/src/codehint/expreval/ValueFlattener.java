@@ -1,12 +1,13 @@
 package codehint.expreval;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.debug.core.DebugException;
-import org.eclipse.jdt.debug.core.IJavaObject;
 import org.eclipse.jdt.debug.core.IJavaPrimitiveValue;
 import org.eclipse.jdt.debug.core.IJavaValue;
 
@@ -18,8 +19,6 @@ import codehint.effects.Effect;
 import codehint.exprgen.ExpressionEvaluator;
 import codehint.exprgen.Result;
 import codehint.exprgen.StringValue;
-import codehint.exprgen.Value;
-import codehint.exprgen.ValueCache;
 import codehint.utils.EclipseUtils;
 import codehint.utils.Pair;
 import codehint.utils.Utils;
@@ -32,19 +31,20 @@ import com.sun.jdi.Method;
  */
 public class ValueFlattener extends ASTFlattener {
 
-	private final Map<String, Integer> temporaries;
-	private final Map<String, Pair<Integer, String>> newTemporaries;
-	private final Map<String, Integer> methodResultsMap;
+	// Temporaries and cached results are keyed by call node, since ExpressionMaker shares structurally-equal calls.
+	private final Map<Expression, Integer> temporaries;
+	private final Map<Expression, Integer> newTemporaryIndices;
+	private final List<Pair<MethodInvocation, String>> newTemporaries;
+	private final Map<Expression, Integer> methodResultIndices;
 	private final ExpressionEvaluator expressionEvaluator;
-	private final ValueCache valueCache;
 	private Set<Effect> curEffects;
 	
-	public ValueFlattener(Map<String, Integer> temporaries, Map<String, Integer> methodResultsMap, ExpressionEvaluator expressionEvaluator, ValueCache valueCache) {
+	public ValueFlattener(Map<Expression, Integer> temporaries, Map<Expression, Integer> methodResultIndices, ExpressionEvaluator expressionEvaluator) {
 		this.temporaries = temporaries;
-		this.newTemporaries = new HashMap<String, Pair<Integer, String>>();
-		this.methodResultsMap = methodResultsMap;
+		this.newTemporaryIndices = new IdentityHashMap<Expression, Integer>();
+		this.newTemporaries = new ArrayList<Pair<MethodInvocation, String>>();
+		this.methodResultIndices = methodResultIndices;
 		this.expressionEvaluator = expressionEvaluator;
-		this.valueCache = valueCache;
 		this.curEffects = Collections.<Effect>emptySet();
 	}
 	
@@ -86,9 +86,8 @@ public class ValueFlattener extends ASTFlattener {
 				} else if (value.isNull()) {
 					handleCast(node, value.toString(), sb);
 					return;
-				} else if (value instanceof IJavaObject && "Ljava/lang/String;".equals(value.getSignature())) {
-					Value wrapper = valueCache.getValue(value);
-					String str = wrapper instanceof StringValue ? "\"" + ((StringValue)wrapper).getStringValue() + "\"" : value.toString();
+				} else if (result.getValue() instanceof StringValue) {  // We wrap every String in a StringValue, which knows its contents, so we do not need to ask the child VM.
+					String str = "\"" + ((StringValue)result.getValue()).getStringValue() + "\"";
 					handleCast(node, Utils.getPrintableString(str), sb);  // Replace newlines.
 					return;
 				}
@@ -125,27 +124,35 @@ public class ValueFlattener extends ASTFlattener {
 
 	@Override
 	protected void flatten(MethodInvocation node, StringBuilder sb) {
-		String toString = node.toString();
-		if (temporaries.containsKey(toString)) {
-			sb.append("_$tmp").append(temporaries.get(toString));
-			return;
-		} else if (newTemporaries.containsKey(toString)) {
-			sb.append("_$tmp").append(newTemporaries.get(toString).first);
+		Integer index = temporaries.get(node);
+		if (index == null)
+			index = newTemporaryIndices.get(node);
+		if (index != null) {
+			sb.append("_$tmp").append(index);
 			return;
 		} else {
 			Method method = expressionEvaluator.getMethod(node);
-			if (method != null && methodResultsMap != null && methodResultsMap.containsKey(toString)) {  // The method should only be null or the call should not be cached in the methodResultsMap during refinement.
+			if (method != null && methodResultIndices != null && methodResultIndices.containsKey(node)) {  // The method should only be null or the call should not be cached in the methodResultIndices during refinement.
 				String typeStr = EclipseUtils.sanitizeTypename(method.returnTypeName());
 				int newIndex = temporaries.size() + newTemporaries.size();
 				sb.append("_$tmp").append(newIndex);
-				newTemporaries.put(toString, new Pair<Integer, String>(newIndex, typeStr));
+				newTemporaryIndices.put(node, newIndex);
+				newTemporaries.add(new Pair<MethodInvocation, String>(node, typeStr));
 				return;
 			}
 		}
 		super.flatten(node, sb);
 	}
 	
-	public Map<String, Pair<Integer, String>> getNewTemporaries() {
+	/**
+	 * Gets the cached calls for which we introduced new
+	 * temporaries and their types, in the order of their
+	 * indices, which start after those of the temporaries
+	 * we were given.
+	 * @return The cached calls for which we introduced new
+	 * temporaries and their types.
+	 */
+	public List<Pair<MethodInvocation, String>> getNewTemporaries() {
 		return newTemporaries;
 	}
 
@@ -0,0 +1,496 @@
+package codehint.exprgen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.jdt.core.Flags;
+import org.eclipse.jdt.core.IImportDeclaration;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.debug.core.IJavaArray;
+import org.eclipse.jdt.debug.core.IJavaDebugTarget;
+import org.eclipse.jdt.debug.core.IJavaReferenceType;
+import org.eclipse.jdt.debug.core.IJavaStackFrame;
+import org.eclipse.jdt.debug.core.IJavaType;
+import org.eclipse.jdt.debug.core.IJavaValue;
+import org.eclipse.jdt.debug.core.IJavaVariable;
+
+import com.sun.jdi.Field;
+import com.sun.jdi.Method;
+
+import codehint.ast.Expression;
+import codehint.ast.InfixExpression;
+import codehint.ast.PlaceholderExpression;
+import codehint.ast.PrefixExpression;
+import codehint.dialogs.SynthesisDialog;
+import codehint.effects.Effect;
+import codehint.effects.SideEffectHandler;
+import codehint.expreval.EvaluationManager;
+import codehint.expreval.StaticEvaluator;
+import codehint.exprgen.typeconstraint.FieldConstraint;
+import codehint.exprgen.typeconstraint.MethodConstraint;
+import codehint.exprgen.typeconstraint.TypeConstraint;
+import codehint.property.Property;
+import codehint.utils.EclipseUtils;
+
+/**
+ * An expression generator that searches expressions in order
+ * of their probability according to ProbabilityComputer.
+ * We keep the expressions we have built but not yet evaluated
+ * in a priority queue, evaluate the most likely ones in batches,
+ * and extend each one whose value we have not yet seen.
+ * We compute the probability of a new expression from those of
+ * its subexpressions, so we only visit the nodes we add.
+ * We stop when we have found enough results, when we run out
+ * of time, or when there is nothing left to evaluate.
+ */
+public class BestFirstExpressionGenerator extends ExpressionGenerator {
+
+	private static final int BATCH_SIZE = 200;
+	private static final int MAX_RESULTS = 100;
+	private static final long TIME_LIMIT_MILLIS = 30000;
+	private static final int MAX_ARGS_PER_PARAMETER = 8;
+	private static final int MAX_CALLS_PER_METHOD = 64;
+	private static final InfixExpression.Operator[] INT_ARITHMETIC_OPS = new InfixExpression.Operator[] { InfixExpression.Operator.PLUS, InfixExpression.Operator.MINUS, InfixExpression.Operator.TIMES, InfixExpression.Operator.DIVIDE };
+
+	private TypeConstraint typeConstraint;
+	private int maxDepth;
+	private boolean searchConstructors;
+	private boolean searchOperators;
+	private boolean isBooleanHelpful;
+	private PriorityQueue<Candidate> frontier;
+	private Map<Expression, Double> probabilities;
+	private ArrayList<Expression> operands;
+	// The number of operands whose call results we have sent to the child.
+	private int numCachedOperands;
+	private long numCandidates;
+
+	public BestFirstExpressionGenerator(IJavaDebugTarget target, IJavaStackFrame stack, SideEffectHandler sideEffectHandler, ExpressionMaker expressionMaker, ExpressionEvaluator expressionEvaluator, SubtypeChecker subtypeChecker, TypeCache typeCache, EvaluationManager evalManager, StaticEvaluator staticEvaluator, Weights weights) {
+		super(target, stack, sideEffectHandler, expressionMaker, expressionEvaluator, subtypeChecker, typeCache, evalManager, staticEvaluator, weights);
+	}
+
+	@Override
+	public ArrayList<Expression> generateStatement(Property property, TypeConstraint typeConstraint, String varName, boolean searchConstructors, boolean searchOperators, boolean searchStatements, SynthesisDialog synthesisDialog, IProgressMonitor monitor, int maxExprDepth) {
+		monitor.beginTask("Expression generation and evaluation", IProgressMonitor.UNKNOWN);
+		try {
+			if (searchStatements)
+				EclipseUtils.showWarning("Cannot search statements", "The best-first search cannot yet search statements.", null);
+			this.typeConstraint = typeConstraint;
+			this.maxDepth = maxExprDepth;
+			this.searchConstructors = searchConstructors;
+			this.searchOperators = searchOperators;
+			this.isBooleanHelpful = typeConstraint.isFulfilledBy(booleanType, subtypeChecker, typeCache, stack, target);
+			this.frontier = new PriorityQueue<Candidate>();
+			this.probabilities = new IdentityHashMap<Expression, Double>();
+			this.operands = new ArrayList<Expression>();
+			this.numCachedOperands = 0;
+			this.numCandidates = 0;
+			initSearch();
+			evalManager.cacheMethodResults(operands);  // Start with an empty cache, which we then extend.
+			this.equivalences.put(Collections.<Effect>emptySet(), new HashMap<Result, ArrayList<Expression>>());
+			ArrayList<Expression> results = genExprs(property, synthesisDialog, monitor);
+			monitor.done();
+			return results;
+		} catch (DebugException e) {
+			throw new RuntimeException(e);
+		} catch (JavaModelException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Searches expressions from the most to the least likely.
+	 * @param property The property entered by the user.
+	 * @param synthesisDialog The synthesis dialog to pass the valid
+	 * expressions.
+	 * @param monitor The progress monitor.
+	 * @return The expressions we evaluated that satisfy the
+	 * given property.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	private ArrayList<Expression> genExprs(Property property, SynthesisDialog synthesisDialog, IProgressMonitor monitor) throws DebugException, JavaModelException {
+		long startTime = System.currentTimeMillis();
+		long deadline = startTime + TIME_LIMIT_MILLIS;
+		int initNumCrashes = getNumCrashes();
+		IJavaType varType = getVarType(typeConstraint);
+		Map<Result, ArrayList<Expression>> curEquivalences = equivalences.get(Collections.<Effect>emptySet());
+		ArrayList<Expression> results = new ArrayList<Expression>();
+		int numEvaluated = 0;
+		addSeeds();
+		while (!frontier.isEmpty() && results.size() < MAX_RESULTS && System.currentTimeMillis() < deadline) {
+			if (monitor.isCanceled())
+				throw new OperationCanceledException();
+			ArrayList<Expression> batch = new ArrayList<Expression>(Math.min(BATCH_SIZE, frontier.size()));
+			while (batch.size() < BATCH_SIZE && !frontier.isEmpty())
+				batch.add(frontier.poll().expr);
+			numEvaluated += batch.size();
+			ArrayList<Expression> evaluated = evaluate(batch, varType, monitor);
+			ArrayList<Expression> typed = new ArrayList<Expression>(evaluated.size());
+			for (Expression e: evaluated)
+				if (typeConstraint.isFulfilledBy(e.getStaticType(), subtypeChecker, typeCache, stack, target))
+					typed.add(e);
+			if (property != null && !EvaluationManager.canEvaluateStatically(property))
+				evalManager.addMethodResults(typed);
+			results.addAll(evalManager.evaluateStatements(typed, property, varType, synthesisDialog, monitor, ""));
+			// Only extend the most likely expression with each value, since the others would lead to the same values.
+			for (Expression e: evaluated) {
+				boolean isNewValue = !curEquivalences.containsKey(expressionEvaluator.getResult(e, Collections.<Effect>emptySet()));
+				addEquivalentExpression(e, Collections.<Effect>emptySet());
+				if (isNewValue) {
+					operands.add(e);
+					if (getDepth(e) < maxDepth)
+						extendExpression(e);
+				}
+			}
+		}
+		long time = System.currentTimeMillis() - startTime;
+		EclipseUtils.log("Best-first search evaluated " + numEvaluated + " of " + numCandidates + " expressions (of which " + (getNumCrashes() - initNumCrashes) + " crashed) at depth " + maxDepth + " and found " + results.size() + " valid expressions and " + curEquivalences.size() + " distinct values and took " + time + " milliseconds.");
+		return results;
+	}
+
+	/**
+	 * Adds locals, this, null, and the names of types whose static
+	 * members we can use to seed the search.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	private void addSeeds() throws DebugException, JavaModelException {
+		for (IJavaVariable l : stack.getLocalVariables())
+			addCandidate(expressionMaker.makeVar(l.getName(), (IJavaValue)l.getValue(), EclipseUtils.getTypeOfVariableAndLoadIfNeeded(l, stack), thread));
+		if (!stack.isStatic())
+			addCandidate(expressionMaker.makeThis(stack.getThis(), thisType, thread));
+		if (!(typeConstraint instanceof MethodConstraint) && !(typeConstraint instanceof FieldConstraint))  // If we have a method or field constraint, we can't have null.
+			addCandidate(expressionMaker.makeNull(thread));
+		// Static names have no value of their own, so we extend them immediately instead of evaluating them.
+		if (stack.isStatic() || stack.isConstructor())
+			addStaticName(expressionMaker.makeStaticName(stack.getReceivingTypeName(), thisType, thread), null);
+		for (IImportDeclaration imp : imports) {
+			if (imp.isOnDemand())  // As in the deterministic search, trying every static member of import *s would be too expensive.
+				continue;
+			String fullName = imp.getElementName();
+			if (Flags.isStatic(imp.getFlags())) {  // Only use the imported member, with the full name of its type.
+				String typeName = fullName.substring(0, fullName.lastIndexOf('.'));
+				IJavaReferenceType importedType = (IJavaReferenceType)EclipseUtils.getTypeAndLoadIfNeeded(typeName, stack, target, typeCache);
+				if (importedType != null)
+					addStaticName(expressionMaker.makeStaticName(typeName, importedType, thread), EclipseUtils.getUnqualifiedName(fullName));
+			} else {
+				IJavaReferenceType importedType = (IJavaReferenceType)EclipseUtils.getTypeAndLoadIfNeeded(fullName, stack, target, typeCache);
+				if (importedType != null && hasPublicStaticFieldOrMethod(importedType))
+					addStaticName(expressionMaker.makeStaticName(EclipseUtils.getUnqualifiedName(fullName), importedType, thread), null);  // Use the unqualified typename for brevity.
+			}
+		}
+	}
+
+	/**
+	 * Scores the given static name and extends it.
+	 * @param name The static name.
+	 * @param targetName The name of the only member to use,
+	 * or null if we can use any member.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	private void addStaticName(Expression name, String targetName) throws DebugException, JavaModelException {
+		probabilities.put(name, ProbabilityComputer.getProbability(name, probabilities, expressionEvaluator, weights));
+		extendObject(name, targetName);
+	}
+
+	/**
+	 * Scores the given expression and adds it to the frontier
+	 * if we have not seen it before and it is not too deep.
+	 * @param e The expression, which may be null if we could
+	 * not build it.
+	 */
+	private void addCandidate(Expression e) {
+		if (e == null || probabilities.containsKey(e) || getDepth(e) > maxDepth)
+			return;
+		double probability = ProbabilityComputer.getProbability(e, probabilities, expressionEvaluator, weights);
+		probabilities.put(e, probability);
+		frontier.add(new Candidate(e, probability, numCandidates++));
+	}
+
+	/**
+	 * Evaluates the given expressions whose values we do not
+	 * already know in one batch.
+	 * @param batch The expressions to evaluate, from the most
+	 * to the least likely.
+	 * @param varType The type of the variable being assigned.
+	 * @param monitor The progress monitor.
+	 * @return The expressions that do not crash, in the
+	 * order in which they were given.
+	 * @throws DebugException
+	 */
+	private ArrayList<Expression> evaluate(ArrayList<Expression> batch, IJavaType varType, IProgressMonitor monitor) throws DebugException {
+		ArrayList<Expression> unevaluated = new ArrayList<Expression>();
+		for (Expression e: batch)
+			if (expressionEvaluator.getResult(e, Collections.<Effect>emptySet()) == null)
+				unevaluated.add(e);
+		if (!unevaluated.isEmpty()) {
+			evalManager.addMethodResults(operands.subList(numCachedOperands, operands.size()));
+			numCachedOperands = operands.size();
+			evalManager.evaluateStatements(unevaluated, null, varType, null, monitor, "");
+		}
+		ArrayList<Expression> evaluated = new ArrayList<Expression>(batch.size());
+		for (Expression e: batch) {
+			Result result = expressionEvaluator.getResult(e, Collections.<Effect>emptySet());
+			if (result != null && !"V".equals(result.getValue().getValue().getSignature()))
+				evaluated.add(e);
+		}
+		return evaluated;
+	}
+
+	/**
+	 * Adds the expressions that extend the given one to the frontier.
+	 * @param e The expression to extend.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	private void extendExpression(Expression e) throws DebugException, JavaModelException {
+		IJavaValue value = expressionEvaluator.getValue(e, Collections.<Effect>emptySet());
+		if (value == null || value.isNull())
+			return;
+		IJavaType type = e.getStaticType();
+		if (EclipseUtils.isObjectOrInterface(type))
+			extendObject(e, null);
+		else if (EclipseUtils.isArray(type))
+			extendArray(e);
+		else if (searchOperators && EclipseUtils.isInt(type))
+			extendNumber(e);
+		else if (searchOperators && isBooleanHelpful && EclipseUtils.isBoolean(type))
+			extendBoolean(e);
+	}
+
+	/**
+	 * Adds the field accesses and calls whose receiver is the
+	 * given expression to the frontier.  The arguments of the
+	 * calls are the most likely expressions with distinct values
+	 * we have already evaluated.
+	 * @param e The receiver, which can be a static name.
+	 * @param targetName The name of the only field or method
+	 * to use, or null if we can use any of them.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	private void extendObject(Expression e, String targetName) throws DebugException, JavaModelException {
+		if (classBlacklist.contains(e.getStaticType().getName()))
+			return;
+		boolean isStatic = expressionEvaluator.isStatic(e);
+		for (Field field: memberIndex.getFields(e.getStaticType())) {
+			if (!isUsefulField(field) || isStatic != field.isStatic() || (targetName != null && !targetName.equals(field.name())))
+				continue;
+			IJavaType fieldType = EclipseUtils.getTypeAndLoadIfNeeded(field.typeName(), stack, target, typeCache);
+			if (fieldType != null)
+				addCandidate(makeFieldAccess(e, field, fieldType));
+		}
+		IJavaType receiverType = getActualTypeForDowncast(e, isStatic);
+		if (receiverType == null)
+			return;
+		boolean isSubtype = !receiverType.equals(e.getStaticType());
+		OverloadChecker overloadChecker = new OverloadChecker(receiverType, stack, target, typeCache, subtypeChecker);
+		Set<String> calledMethods = new HashSet<String>();
+		for (Method method: memberIndex.getMethods(receiverType, sideEffectHandler.isHandlingSideEffects())) {
+			boolean isConstructor = method.isConstructor();
+			if (isConstructor ? !(isStatic && searchConstructors) : isStatic != method.isStatic())
+				continue;
+			if (targetName != null && !targetName.equals(method.name()))
+				continue;
+			if (!isUsefulMethod(method, e, isConstructor))
+				continue;
+			if (!calledMethods.add(method.name() + "~" + method.signature()))
+				continue;  // visibleMethods can return duplicates, so we filter them out.
+			IJavaType returnType = getReturnType(e, method, isConstructor);
+			if (returnType == null)
+				continue;
+			overloadChecker.setMethod(method);
+			List<?> argumentTypeNames = method.argumentTypeNames();
+			IJavaType[] argTypes = new IJavaType[argumentTypeNames.size()];
+			ArrayList<ArrayList<Expression>> possibleActuals = new ArrayList<ArrayList<Expression>>(argTypes.length);
+			for (Object argTypeName: argumentTypeNames) {
+				IJavaType argType = EclipseUtils.getTypeAndLoadIfNeeded((String)argTypeName, stack, target, typeCache);
+				if (argType == null)
+					break;
+				ArrayList<Expression> curPossibleActuals = getMostLikely(getArgs(operands, e, method, overloadChecker, argType, possibleActuals.size(), -1), MAX_ARGS_PER_PARAMETER);
+				if (curPossibleActuals.isEmpty())
+					break;
+				argTypes[possibleActuals.size()] = argType;
+				possibleActuals.add(curPossibleActuals);
+			}
+			if (possibleActuals.size() < argTypes.length)
+				continue;
+			Expression receiver = isConstructor ? new PlaceholderExpression(e.getStaticType()) : getCallReceiver(e, method, isSubtype);
+			String name = getCallName(receiver, method);
+			addCalls(method, name, receiver, returnType, argTypes, possibleActuals, new ArrayList<Expression>(argTypes.length), overloadChecker, new int[] { MAX_CALLS_PER_METHOD });
+		}
+	}
+
+	/**
+	 * Adds calls to the given method with all combinations of
+	 * the given arguments, up to the given budget, to the frontier.
+	 * We do not evaluate the calls unless we can do so statically;
+	 * we instead evaluate them in a batch when they reach the front.
+	 * @param method The method being called.
+	 * @param name The method name.
+	 * @param receiver The receiver, or a placeholder for constructors.
+	 * @param returnType The return type of the method.
+	 * @param argTypes The types of the arguments.
+	 * @param possibleActuals The possible arguments for each argument.
+	 * @param curActuals The current list of actuals, which is built
+	 * up through recursion.
+	 * @param overloadChecker The overload checker, which must have
+	 * been set to the given method.
+	 * @param budget A one-element array holding the number of calls
+	 * we may still create.
+	 */
+	private void addCalls(Method method, String name, Expression receiver, IJavaType returnType, IJavaType[] argTypes, ArrayList<ArrayList<Expression>> possibleActuals, ArrayList<Expression> curActuals, OverloadChecker overloadChecker, int[] budget) {
+		if (budget[0] <= 0)
+			return;
+		int argNum = curActuals.size();
+		if (argNum == argTypes.length) {
+			if (meetsPreconditions(method, receiver, curActuals)) {
+				budget[0]--;
+				Value value = staticEvaluator.evaluateCall(receiver, curActuals, method, target);
+				addCandidate(expressionMaker.makeCall(name, receiver, curActuals, returnType, thisType, method, value == null ? null : new Result(value)));
+			}
+		} else {
+			for (Expression a: possibleActuals.get(argNum)) {
+				curActuals.add(castArgIfNecessary(a, overloadChecker, argTypes[argNum], argNum));
+				addCalls(method, name, receiver, returnType, argTypes, possibleActuals, curActuals, overloadChecker, budget);
+				curActuals.remove(argNum);
+			}
+		}
+	}
+
+	/**
+	 * Adds the length of the given array and accesses of it
+	 * at the int values we have seen that are legal indices
+	 * to the frontier.
+	 * @param arr The array.
+	 * @throws DebugException
+	 */
+	private void extendArray(Expression arr) throws DebugException {
+		addCandidate(expressionMaker.makeFieldAccess(arr, "length", intType, null, thread));
+		for (Expression index: operands)
+			if (EclipseUtils.isInt(index.getStaticType()))
+				addArrayAccess(arr, index);
+	}
+
+	/**
+	 * Adds the given array access if the index is legal.
+	 * @param arr The array.
+	 * @param index The index.
+	 * @throws DebugException
+	 */
+	private void addArrayAccess(Expression arr, Expression index) throws DebugException {
+		int arrLen = ((IJavaArray)expressionEvaluator.getValue(arr, Collections.<Effect>emptySet())).getLength();
+		int indexValue = Integer.parseInt(expressionEvaluator.getValue(index, Collections.<Effect>emptySet()).getValueString());
+		if (indexValue >= 0 && indexValue < arrLen)
+			addCandidate(expressionMaker.makeArrayAccess(arr, index, thread));
+	}
+
+	/**
+	 * Adds the negation of the given number and its arithmetic
+	 * with and comparisons to the int values we have seen to
+	 * the frontier.  We also use it as an index into the arrays
+	 * we have seen, since we extended those before we knew it.
+	 * @param num The number.
+	 * @throws DebugException
+	 */
+	private void extendNumber(Expression num) throws DebugException {
+		if (!(num instanceof PrefixExpression) && !(num instanceof InfixExpression))  // Disallow things like -(-x) and -(x + y).
+			addCandidate(expressionMaker.makePrefix(num, PrefixExpression.Operator.MINUS, thread));
+		for (Expression other: operands) {
+			IJavaType otherType = other.getStaticType();
+			if (EclipseUtils.isInt(otherType)) {
+				addInfixes(num, other, INT_ARITHMETIC_OPS, intType);
+				if (isBooleanHelpful)
+					addInfixes(num, other, INT_COMPARE_OPS, booleanType);
+			} else if (otherType != null && EclipseUtils.isArray(otherType) && !expressionEvaluator.getValue(other, Collections.<Effect>emptySet()).isNull())
+				addArrayAccess(other, num);
+		}
+	}
+
+	/**
+	 * Adds the conjunctions and disjunctions of the given
+	 * boolean with the boolean values we have seen to
+	 * the frontier.
+	 * @param bool The boolean.
+	 * @throws DebugException
+	 */
+	private void extendBoolean(Expression bool) throws DebugException {
+		for (Expression other: operands)
+			if (EclipseUtils.isBoolean(other.getStaticType()))
+				addInfixes(bool, other, BOOLEAN_COMPARE_OPS, booleanType);
+	}
+
+	/**
+	 * Adds the useful infix expressions that combine the
+	 * given operands in either order to the frontier.
+	 * @param e An operand.
+	 * @param other The other operand.
+	 * @param ops The operators to try.
+	 * @param type The type of the infix expressions.
+	 * @throws DebugException
+	 */
+	private void addInfixes(Expression e, Expression other, InfixExpression.Operator[] ops, IJavaType type) throws DebugException {
+		for (InfixExpression.Operator op: ops) {
+			if (isUsefulInfix(e, op, other))
+				addCandidate(expressionMaker.makeInfix(e, op, other, type, thread));
+			if (e != other && isUsefulInfix(other, op, e))
+				addCandidate(expressionMaker.makeInfix(other, op, e, type, thread));
+		}
+	}
+
+	/**
+	 * Gets the most likely of the given expressions.
+	 * @param exprs The expressions, all of which we have scored.
+	 * @param max The maximum number of expressions to return.
+	 * @return The given number of the most likely of the given
+	 * expressions, from the most to the least likely.
+	 */
+	private ArrayList<Expression> getMostLikely(ArrayList<Expression> exprs, int max) {
+		ArrayList<Candidate> scored = new ArrayList<Candidate>(exprs.size());
+		for (int i = 0; i < exprs.size(); i++)
+			scored.add(new Candidate(exprs.get(i), probabilities.get(exprs.get(i)), i));
+		Collections.sort(scored);
+		ArrayList<Expression> result = new ArrayList<Expression>(Math.min(max, scored.size()));
+		for (int i = 0; i < scored.size() && i < max; i++)
+			result.add(scored.get(i).expr);
+		return result;
+	}
+
+	/**
+	 * An expression and its probability.  Candidates are ordered
+	 * from the most to the least likely, and we break ties by the
+	 * order in which we created them so the search is deterministic.
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+
+		private final Expression expr;
+		private final double probability;
+		private final long order;
+
+		public Candidate(Expression expr, double probability, long order) {
+			this.expr = expr;
+			this.probability = probability;
+			this.order = order;
+		}
+
+		@Override
+		public int compareTo(Candidate other) {
+			if (probability != other.probability)
+				return probability > other.probability ? -1 : 1;
+			return order < other.order ? -1 : (order == other.order ? 0 : 1);
+		}
+
+	}
+
+}
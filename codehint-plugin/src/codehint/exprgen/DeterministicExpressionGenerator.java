@@ -5,14 +5,24 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.ProgressMonitorWrapper;
 import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.jdt.core.Flags;
@@ -56,7 +66,9 @@ import org.eclipse.jdt.debug.core.IJavaValue;
 import org.eclipse.jdt.debug.core.IJavaVariable;
 import org.eclipse.jdt.internal.debug.core.model.JDIType;
 
+import codehint.Activator;
 import codehint.DataCollector;
+import codehint.PreferencePage;
 import codehint.dialogs.SynthesisDialog;
 import codehint.effects.Effect;
 import codehint.effects.SideEffectHandler;
@@ -73,6 +85,7 @@ import codehint.property.Property;
 import codehint.property.StateProperty;
 import codehint.property.ValueProperty;
 import codehint.utils.EclipseUtils;
+import codehint.utils.Pair;
 import codehint.utils.Utils;
 
 import com.sun.jdi.Field;
@@ -85,11 +98,23 @@ import com.sun.jdi.ReferenceType;
  */
 public final class DeterministicExpressionGenerator extends ExpressionGenerator {
 	
+	private static final int NUM_PLANNER_THREADS = Runtime.getRuntime().availableProcessors();
+	// We plan the operators of smaller levels on the current thread, as it is not worth the overhead.
+	private static final int MIN_PARALLEL_OPERANDS = 64;
+	// The number of expressions of the last depth we generate before we evaluate them.
+	private static final int STREAM_BUFFER_SIZE = 2000;
+	// The fewest arguments we keep for each position of a call whose arguments we limit.
+	private static final int MIN_BEAM_WIDTH = 2;
+	// The factor by which we penalize arguments that misuse a constant.
+	private static final double BAD_CONSTANT_FACTOR = 0.01;
+	
 	private final IJavaType objectType;
 	private final Expression zero;
 	private final Map<Integer, Integer> realDepths;
 	private final Map<Integer, Boolean> hasBadMethodsFields;
 	private final Map<Integer, Boolean> hasBadConstants;
+	private final Map<Integer, Double> probabilities;
+	private final Map<Pair<TypeConstraint, Boolean>, SearchState> searchStates;  // Maps the constraint and whether we search operators to the state before the last depth of the last such search and the evaluated expressions of that depth.
 	// Cache the generated expressions
 	//private final Map<Pair<TypeConstraint, Integer>, Pair<ArrayList<Expression>, ArrayList<Expression>>> cachedExprs;
 
@@ -103,6 +128,10 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	private Map<String, Integer> helpfulTypes;
 	private Map<String, Integer> uniqueValuesSeenForType;
 	private Set<String> downcastTypes;
+	private ExecutorService planner;  // Plans the members and operators of each depth on several threads during a search, or null if we plan them on the current thread.
+	private ArgumentPlans argumentPlans;  // The arguments we planned for the calls of the current depth, or null if we did not plan them.
+	private final boolean streamLastDepth;
+	private final boolean beamArguments;
 	
 	public DeterministicExpressionGenerator(IJavaDebugTarget target, IJavaStackFrame stack, SideEffectHandler sideEffectHandler, ExpressionMaker expressionMaker, ExpressionEvaluator expressionEvaluator, SubtypeChecker subtypeChecker, TypeCache typeCache, EvaluationManager evalManager, StaticEvaluator staticEvaluator, Weights weights) {
 		super(target, stack, sideEffectHandler, expressionMaker, expressionEvaluator, subtypeChecker, typeCache, evalManager, staticEvaluator, weights);
@@ -111,6 +140,10 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 		this.realDepths = new HashMap<Integer, Integer>();
 		this.hasBadMethodsFields = new HashMap<Integer, Boolean>();
 		this.hasBadConstants = new HashMap<Integer, Boolean>();
+		this.searchStates = new HashMap<Pair<TypeConstraint, Boolean>, SearchState>();
+		this.probabilities = new HashMap<Integer, Double>();
+		this.streamLastDepth = Activator.getDefault().getPreferenceStore().getBoolean(PreferencePage.STREAM_GENERATION_PREFNAME);
+		this.beamArguments = Activator.getDefault().getPreferenceStore().getBoolean(PreferencePage.BEAM_ARGUMENTS_PREFNAME);
 		//this.cachedExprs = new HashMap<Pair<TypeConstraint, Integer>, Pair<ArrayList<Expression>, ArrayList<Expression>>>();
 	}
 	
@@ -146,6 +179,7 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 			//this.helpfulTypes = getHelpfulTypesMap(maxExprDepth, monitor);
 			this.uniqueValuesSeenForType = new HashMap<String, Integer>();
 			this.downcastTypes = new HashSet<String>();
+			this.planner = makePlanner();
 			initSearch();
 			
 			ArrayList<? extends Statement> results = genAllExprs(maxExprDepth, property, searchConstructors, searchOperators, searchStatements, synthesisDialog, monitor);
@@ -163,9 +197,33 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 			throw new RuntimeException(e);
 		} catch (JavaModelException e) {
 			throw new RuntimeException(e);
+		} finally {
+			if (planner != null) {
+				planner.shutdownNow();
+				planner = null;
+			}
 		}
 	}
 
+	/**
+	 * Makes the thread pool on which we plan the members and
+	 * operators of each depth during one search.
+	 * @return The thread pool, or null if we only have one
+	 * processor and so should plan on the current thread.
+	 */
+	private static ExecutorService makePlanner() {
+		if (NUM_PLANNER_THREADS < 2)
+			return null;
+		return Executors.newFixedThreadPool(NUM_PLANNER_THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "CodeHint planner");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
 	/**
 	 * Recursively generates all expressions whose value in the
 	 * current stack frame is that of the demonstration.
@@ -187,19 +245,60 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 		
 		ArrayList<Expression> curLevel = null;
 		ArrayList<Expression> nextLevel = new ArrayList<Expression>(0);
-		for (int depth = 0; depth <= maxDepth; depth++) {
+		ArrayList<Expression> validExprs = null;
+		int firstDepth = 0;
+		// The depths below the maximum do not depend on the maximum or the pdspec, so if we have already searched them (e.g., the user is continuing a search), we start where that search left off.
+		Pair<TypeConstraint, Boolean> searchKey = new Pair<TypeConstraint, Boolean>(typeConstraint, searchOperators);
+		boolean saveState = !sideEffectHandler.isHandlingSideEffects();
+		SearchState searchState = saveState ? searchStates.get(searchKey) : null;
+		if (searchState != null && searchState.depth > maxDepth)  // A shallower search cannot start from a deeper one.
+			searchState = null;
+		SearchState lastState = null;
+		ArrayList<Expression> lastLevel = null;
+		if (searchState != null) {
+			nextLevel = restoreSearchState(searchState);
+			firstDepth = searchState.depth;
+			evalManager.cacheMethodResults(nextLevel);
+		}
+		for (int depth = firstDepth; depth <= maxDepth; depth++) {
 			filterDuplicates(nextLevel);
 			/*System.out.println("Depth " + depth + " has " + nextLevel.size() + " inputs:");
 			for (Expression e: nextLevel)
 				System.out.println(Utils.truncate(e.toString(), 100));
 			printEquivalenceInfo();*/
-			curLevel = genOneLevel(nextLevel, depth, maxDepth, property, searchConstructors, searchOperators, monitor);
+			if (depth == maxDepth && saveState) {
+				lastState = saveSearchState(depth, nextLevel);
+				searchStates.put(searchKey, lastState);
+				lastLevel = new ArrayList<Expression>();
+			}
+			// The search we restored evaluated this depth as its last one, so we reuse its results for the expressions we generate again.
+			Map<Expression, Expression> evaluatedExprs = depth == firstDepth && searchState != null ? searchState.getLastLevel() : null;
+			if (depth == maxDepth && streamLastDepth && !searchStatements) {
+				// We evaluate the last depth as we generate it, so we never store all of it and the user sees results sooner.  Statement search needs all of it, so it cannot do this.
+				evalManager.cacheMethodResults(nextLevel);  // The chunks share this cache rather than each replacing it.
+				LastLevelStream stream = new LastLevelStream(property, synthesisDialog, monitor, maxDepth, lastLevel);
+				genOneLevel(nextLevel, stream, evaluatedExprs, depth, maxDepth, property, searchConstructors, searchOperators, monitor);
+				validExprs = stream.finish();
+				curLevel = null;
+			} else {
+				curLevel = new ArrayList<Expression>();
+				genOneLevel(nextLevel, new ListSink(curLevel), evaluatedExprs, depth, maxDepth, property, searchConstructors, searchOperators, monitor);
+			}
 			if (depth < maxDepth) {
 				evalManager.cacheMethodResults(nextLevel);
 				nextLevel = evaluateExpressions(curLevel, null, null, monitor, depth, maxDepth);
 			}
 		}
-		ArrayList<Expression> validExprs = evaluateExpressions(curLevel, property, synthesisDialog, monitor, maxDepth, maxDepth);
+		if (validExprs == null) {
+			if (lastLevel != null) {  // Evaluate the whole depth and not just its valid expressions so that a later search can reuse it.
+				evalManager.cacheMethodResults(nextLevel);
+				lastLevel = evaluateExpressions(curLevel, null, null, monitor, maxDepth, maxDepth);
+				curLevel = lastLevel;
+			}
+			validExprs = evaluateExpressions(curLevel, property, synthesisDialog, monitor, maxDepth, maxDepth);
+		}
+		if (lastState != null)
+			lastState.setLastLevel(lastLevel);
 		int numEvaled = getNumExprsSearched() - initNumCrashes;
 		
 		//printEquivalenceInfo();
@@ -223,6 +322,8 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 		long time = System.currentTimeMillis() - startTime; 
 		int numSearched = getNumExprsSearched() - initNumCrashes;
 		EclipseUtils.log("Generated " + numSearched + " statements (of which " + numEvaled + " were evaluated) at depth " + maxDepth + " and found " + validExprs.size() + " valid statements and took " + time + " milliseconds.");
+		EclipseUtils.log("Batch evaluation: " + evalManager.getBatchStats() + ".");
+		EclipseUtils.log("Value cache: " + evalManager.getValueCacheStats() + ".");
 		DataCollector.log("gen", "spec=" + (property == null ? "" : property.toString()), "depth=" + maxDepth, "evaled=" + numEvaled, "gen=" + numSearched, "valid=" + validExprs.size(), "time=" + time);
 		
 		if (validStmts.isEmpty())
@@ -248,6 +349,34 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * @throws DebugException
 	 */
 	private <T extends Statement> ArrayList<T> evaluateExpressions(ArrayList<T> stmts, Property property, SynthesisDialog synthesisDialog, IProgressMonitor monitor, int depth, int maxDepth) throws DebugException {
+		ArrayList<Expression> newlyEvaluated = new ArrayList<Expression>();
+		ArrayList<T> results = evaluateExpressions(stmts, property, synthesisDialog, monitor, depth, maxDepth, true, newlyEvaluated);
+		addEquivalentExpressions(newlyEvaluated);
+		return results;
+	}
+
+	/**
+	 * Evaluates the given expressions and returns those that
+	 * do not crash and satisfy the given pdspec if it is non-null.
+	 * The caller must add the expressions whose results we did
+	 * not previously know to the equivalences.
+	 * @param stmts The statements to evaluate.
+	 * @param property The property entered by the user.
+	 * @param synthesisDialog The synthesis dialog to pass the valid
+	 * expressions, or null if we should not pass anything.
+	 * @param monitor Progress monitor.
+	 * @param depth The current depth.
+	 * @param maxDepth The maximum depth to search (inclusive).
+	 * @param cacheResults Whether we may replace the cached
+	 * method results with those of the given statements when
+	 * we already know all their results.
+	 * @param newlyEvaluated The list to which to add the
+	 * expressions whose results we did not previously know.
+	 * @return The expressions that do not crash and satisfy the
+	 * given pdspec if it is non-null.
+	 * @throws DebugException
+	 */
+	private <T extends Statement> ArrayList<T> evaluateExpressions(ArrayList<T> stmts, Property property, SynthesisDialog synthesisDialog, IProgressMonitor monitor, int depth, int maxDepth, boolean cacheResults, ArrayList<Expression> newlyEvaluated) throws DebugException {
 		String taskNameSuffix = " " + (depth + 1) + "/" + (maxDepth + 1);
 		ArrayList<T> evaluatedExprs = new ArrayList<T>();
 		ArrayList<T> unevaluatedExprs = new ArrayList<T>();
@@ -265,7 +394,7 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 		/*for (Expression e: evaluatedExprs)
 			System.out.println(Utils.truncate(e.toString(), 100));*/
     	
-    	if (property != null && unevaluatedExprs.isEmpty() && !EvaluationManager.canEvaluateStatically(property))
+    	if (cacheResults && property != null && unevaluatedExprs.isEmpty() && !EvaluationManager.canEvaluateStatically(property))
 			evalManager.cacheMethodResults(evaluatedExprs);
 		ArrayList<T> results = evalManager.evaluateStatements(evaluatedExprs, property, getVarType(typeConstraint), synthesisDialog, monitor, taskNameSuffix);
     	if (unevaluatedExprs.size() > 0) {
@@ -301,12 +430,317 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
     		ArrayList<T> result = evalManager.evaluateStatements(unevaluatedExprs, property, getVarType(typeConstraint), synthesisDialog, monitor, taskNameSuffix);
     		for (Statement e: result)
     			if (e instanceof Expression)
-    				addEquivalentExpression((Expression)e, Collections.<Effect>emptySet());
+    				newlyEvaluated.add((Expression)e);
     		results.addAll(result);
     	}
     	return results;
 	}
 	
+	/**
+	 * Adds the given newly-evaluated expressions to the
+	 * equivalences.
+	 * @param exprs The expressions.
+	 */
+	private void addEquivalentExpressions(ArrayList<Expression> exprs) {
+		for (Expression e: exprs)
+			addEquivalentExpression(e, Collections.<Effect>emptySet());
+	}
+	
+	/**
+	 * Records the state of the search before we generate
+	 * the given depth.
+	 * We copy everything the search modifies, so the
+	 * saved state stays valid however the rest of this
+	 * search ends.  Once we have evaluated the depth, we
+	 * add its expressions to the state.
+	 * @param depth The depth we are about to generate.
+	 * @param nextLevel The expressions of the previous depths.
+	 * @return The current state of the search.
+	 */
+	private SearchState saveSearchState(int depth, ArrayList<Expression> nextLevel) {
+		return new SearchState(depth, new ArrayList<Expression>(nextLevel), copyEquivalences(equivalences), new HashMap<Method, Integer>(prunedDepths), new HashSet<Method>(newlyUnpruneds), numFailedDowncasts, new HashMap<String, Integer>(uniqueValuesSeenForType), new HashSet<String>(downcastTypes));
+	}
+	
+	/**
+	 * Restores the given state of a previous search.
+	 * We restore copies, so we can restore the same state
+	 * again if this search does not finish.
+	 * @param state The state to restore.
+	 * @return The expressions of the depths before the
+	 * one at which the given state was saved.
+	 */
+	private ArrayList<Expression> restoreSearchState(SearchState state) {
+		this.equivalences = copyEquivalences(state.equivalences);
+		this.prunedDepths = new HashMap<Method, Integer>(state.prunedDepths);
+		this.newlyUnpruneds = new HashSet<Method>(state.newlyUnpruneds);
+		this.numFailedDowncasts = state.numFailedDowncasts;
+		this.uniqueValuesSeenForType = new HashMap<String, Integer>(state.uniqueValuesSeenForType);
+		this.downcastTypes = new HashSet<String>(state.downcastTypes);
+		return new ArrayList<Expression>(state.nextLevel);
+	}
+	
+	private static Map<Set<Effect>, Map<Result, ArrayList<Expression>>> copyEquivalences(Map<Set<Effect>, Map<Result, ArrayList<Expression>>> equivalences) {
+		Map<Set<Effect>, Map<Result, ArrayList<Expression>>> copy = new HashMap<Set<Effect>, Map<Result, ArrayList<Expression>>>(equivalences.size() * 2);
+		for (Map.Entry<Set<Effect>, Map<Result, ArrayList<Expression>>> effectsEquivs: equivalences.entrySet()) {
+			Map<Result, ArrayList<Expression>> curCopy = new HashMap<Result, ArrayList<Expression>>(effectsEquivs.getValue().size() * 2);
+			for (Map.Entry<Result, ArrayList<Expression>> equivs: effectsEquivs.getValue().entrySet())
+				curCopy.put(equivs.getKey(), new ArrayList<Expression>(equivs.getValue()));
+			copy.put(effectsEquivs.getKey(), curCopy);
+		}
+		return copy;
+	}
+	
+	/**
+	 * The state of a search before it generates a depth:
+	 * the evaluated expressions of the previous depths and
+	 * everything else the search has learned about them.
+	 * The previous depths do not depend on the maximum
+	 * depth or the pdspec, so a later search with the same
+	 * type constraint can start from this depth.
+	 * Once the search evaluates the depth, we also store
+	 * its expressions.  What we generate at the last depth
+	 * depends on the maximum depth, so a later search must
+	 * generate it again, but it can reuse the results of
+	 * the expressions we already evaluated.
+	 */
+	private static class SearchState {
+		
+		private final int depth;
+		private final ArrayList<Expression> nextLevel;
+		private final Map<Set<Effect>, Map<Result, ArrayList<Expression>>> equivalences;
+		private final Map<Method, Integer> prunedDepths;
+		private final Set<Method> newlyUnpruneds;
+		private final int numFailedDowncasts;
+		private final Map<String, Integer> uniqueValuesSeenForType;
+		private final Set<String> downcastTypes;
+		private Map<Expression, Expression> lastLevel;  // Maps each evaluated expression of the depth to itself, or null if the search did not finish evaluating the depth.
+		
+		public SearchState(int depth, ArrayList<Expression> nextLevel, Map<Set<Effect>, Map<Result, ArrayList<Expression>>> equivalences, Map<Method, Integer> prunedDepths, Set<Method> newlyUnpruneds, int numFailedDowncasts, Map<String, Integer> uniqueValuesSeenForType, Set<String> downcastTypes) {
+			this.depth = depth;
+			this.nextLevel = nextLevel;
+			this.equivalences = equivalences;
+			this.prunedDepths = prunedDepths;
+			this.newlyUnpruneds = newlyUnpruneds;
+			this.numFailedDowncasts = numFailedDowncasts;
+			this.uniqueValuesSeenForType = uniqueValuesSeenForType;
+			this.downcastTypes = downcastTypes;
+			this.lastLevel = null;
+		}
+		
+		/**
+		 * Stores the expressions of the depth that did not
+		 * crash, all of which have results.
+		 * @param exprs The evaluated expressions of the depth.
+		 */
+		public void setLastLevel(ArrayList<Expression> exprs) {
+			lastLevel = new HashMap<Expression, Expression>(exprs.size() * 2);
+			for (Expression e: exprs)
+				lastLevel.put(e, e);
+		}
+		
+		/**
+		 * Gets the evaluated expressions of the depth.
+		 * @return A map from each evaluated expression of
+		 * the depth to itself, so we can find the one that
+		 * is structurally equal to a new expression, or
+		 * null if the search did not finish evaluating it.
+		 */
+		public Map<Expression, Expression> getLastLevel() {
+			return lastLevel;
+		}
+		
+	}
+	
+	/**
+	 * Replaces the expressions we generate with the
+	 * structurally-equal ones a previous search evaluated,
+	 * so we do not evaluate them again.
+	 * Like evaluating them, this adds them to the
+	 * equivalences only once the depth is finished.
+	 */
+	private class ReusingSink implements LevelSink {
+		
+		private final LevelSink sink;
+		private final Map<Expression, Expression> evaluatedExprs;
+		private final ArrayList<Expression> reused;
+		
+		/**
+		 * Creates a new sink.
+		 * @param sink The sink to which to pass the expressions.
+		 * @param evaluatedExprs A map from each expression the
+		 * previous search evaluated to itself.
+		 */
+		public ReusingSink(LevelSink sink, Map<Expression, Expression> evaluatedExprs) {
+			this.sink = sink;
+			this.evaluatedExprs = evaluatedExprs;
+			this.reused = new ArrayList<Expression>();
+		}
+
+		@Override
+		public void add(Expression e) throws DebugException {
+			Expression evaluated = evaluatedExprs.get(e);
+			if (evaluated != null) {
+				reused.add(evaluated);
+				e = evaluated;
+			}
+			sink.add(e);
+		}
+		
+		/**
+		 * Adds the expressions we reused to the equivalences,
+		 * since we restored the equivalences from before the
+		 * previous search evaluated them.
+		 */
+		public void finish() {
+			addEquivalentExpressions(reused);
+		}
+		
+	}
+	
+	/**
+	 * Receives the expressions of a depth as we generate them.
+	 */
+	private interface LevelSink {
+		
+		/**
+		 * Adds an expression of the current depth.
+		 * @param e The expression.
+		 * @throws DebugException
+		 */
+		public void add(Expression e) throws DebugException;
+		
+	}
+	
+	/**
+	 * Stores the expressions of a depth in a list.
+	 */
+	private static class ListSink implements LevelSink {
+		
+		private final ArrayList<Expression> exprs;
+		
+		public ListSink(ArrayList<Expression> exprs) {
+			this.exprs = exprs;
+		}
+
+		@Override
+		public void add(Expression e) {
+			exprs.add(e);
+		}
+		
+	}
+	
+	/**
+	 * The expressions of the last depth, which we evaluate in
+	 * chunks as we generate them instead of storing them all.
+	 * We do not add the expressions we evaluate to the
+	 * equivalences until the depth is finished, so that the
+	 * rest of the depth is generated as if we had not yet
+	 * evaluated anything, as when we do not stream it.
+	 */
+	private class LastLevelStream implements LevelSink {
+		
+		private final Property property;
+		private final SynthesisDialog synthesisDialog;
+		private final IProgressMonitor evalMonitor;
+		private final int maxDepth;
+		private final ArrayList<Expression> buffer;
+		private final ArrayList<Expression> validExprs;
+		private final ArrayList<Expression> newlyEvaluated;
+		private final ArrayList<Expression> evaluatedExprs;
+		
+		/**
+		 * Creates a new stream.
+		 * @param property The property entered by the user.
+		 * @param synthesisDialog The synthesis dialog to pass
+		 * the valid expressions, or null if we should not pass
+		 * anything.
+		 * @param monitor Progress monitor.
+		 * @param maxDepth The maximum depth to search (inclusive).
+		 * @param evaluatedExprs The list to which to add all the
+		 * expressions that do not crash, or null if we only
+		 * need the valid ones.
+		 */
+		public LastLevelStream(Property property, SynthesisDialog synthesisDialog, IProgressMonitor monitor, int maxDepth, ArrayList<Expression> evaluatedExprs) {
+			this.property = property;
+			this.synthesisDialog = synthesisDialog;
+			this.evalMonitor = new CancelOnlyMonitor(monitor);
+			this.maxDepth = maxDepth;
+			this.buffer = new ArrayList<Expression>(STREAM_BUFFER_SIZE);
+			this.validExprs = new ArrayList<Expression>();
+			this.newlyEvaluated = new ArrayList<Expression>();
+			this.evaluatedExprs = evaluatedExprs;
+		}
+
+		@Override
+		public void add(Expression e) throws DebugException {
+			buffer.add(e);
+			if (buffer.size() >= STREAM_BUFFER_SIZE)
+				flush();
+		}
+		
+		/**
+		 * Evaluates the expressions we have not yet evaluated
+		 * and adds the evaluated ones to the equivalences.
+		 * @return The valid expressions of this level.
+		 * @throws DebugException
+		 */
+		public ArrayList<Expression> finish() throws DebugException {
+			flush();
+			addEquivalentExpressions(newlyEvaluated);
+			return validExprs;
+		}
+		
+		private void flush() throws DebugException {
+			if (buffer.isEmpty())
+				return;
+			ArrayList<Expression> exprs = buffer;
+			if (evaluatedExprs != null) {  // Evaluate the whole chunk and not just its valid expressions so that a later search can reuse it.
+				exprs = evaluateExpressions(buffer, null, null, evalMonitor, maxDepth, maxDepth, false, newlyEvaluated);
+				evaluatedExprs.addAll(exprs);
+			}
+			validExprs.addAll(evaluateExpressions(exprs, property, synthesisDialog, evalMonitor, maxDepth, maxDepth, false, newlyEvaluated));
+			buffer.clear();
+		}
+		
+	}
+	
+	/**
+	 * A progress monitor that only forwards cancellation, which
+	 * we use when evaluating in the middle of generation so that
+	 * evaluation does not reset the progress of generation.
+	 */
+	private static class CancelOnlyMonitor extends ProgressMonitorWrapper {
+		
+		public CancelOnlyMonitor(IProgressMonitor monitor) {
+			super(monitor);
+		}
+
+		@Override
+		public void beginTask(String name, int totalWork) {
+		}
+
+		@Override
+		public void done() {
+		}
+
+		@Override
+		public void internalWorked(double work) {
+		}
+
+		@Override
+		public void setTaskName(String name) {
+		}
+
+		@Override
+		public void subTask(String name) {
+		}
+
+		@Override
+		public void worked(int work) {
+		}
+		
+	}
+	
 	/**
 	 * Returns the number of expressions that have currently
 	 * been searched.  Note that this does not contain things
@@ -339,9 +773,39 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 		}
 	}
 
+	/**
+	 * Generates one level of expressions at the given depth,
+	 * reusing the expressions of it that a previous search
+	 * evaluated.
+	 * @param nextLevel The expressions of the previous depth.
+	 * @param curLevel Where to add the expressions of the
+	 * given depth.
+	 * @param evaluatedExprs A map from each expression of the
+	 * given depth that a previous search evaluated to itself,
+	 * or null if there are none.
+	 * @param depth The current depth we are generating.
+	 * @param maxDepth The maximum depth we are generating.
+	 * @param property The property entered by the user.
+	 * @param searchConstructors Whether or not to search constructors.
+	 * @param searchOperators Whether or not to search operator expressions.
+	 * @param monitor The progress monitor.  The caller should
+	 * not allocate a new progress monitor; this method will.
+	 */
+	private void genOneLevel(List<Expression> nextLevel, LevelSink curLevel, Map<Expression, Expression> evaluatedExprs, int depth, int maxDepth, Property property, boolean searchConstructors, boolean searchOperators, IProgressMonitor monitor) {
+		if (evaluatedExprs == null) {
+			genOneLevel(nextLevel, curLevel, depth, maxDepth, property, searchConstructors, searchOperators, monitor);
+			return;
+		}
+		ReusingSink sink = new ReusingSink(curLevel, evaluatedExprs);
+		genOneLevel(nextLevel, sink, depth, maxDepth, property, searchConstructors, searchOperators, monitor);
+		sink.finish();
+	}
+
 	/**
 	 * Generates one level of expressions at the given depth.
 	 * @param nextLevel The expressions of the previous depth.
+	 * @param curLevel Where to add the expressions of the
+	 * given depth.
 	 * @param depth The current depth we are generating.
 	 * @param maxDepth The maximum depth we are generating.
 	 * @param property The property entered by the user.
@@ -349,11 +813,9 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * @param searchOperators Whether or not to search operator expressions.
 	 * @param monitor The progress monitor.  The caller should
 	 * not allocate a new progress monitor; this method will.
-	 * @return The expressions of the given depth.
 	 */
-	private ArrayList<Expression> genOneLevel(List<Expression> nextLevel, int depth, int maxDepth, Property property, boolean searchConstructors, boolean searchOperators, IProgressMonitor monitor) {
+	private void genOneLevel(List<Expression> nextLevel, LevelSink curLevel, int depth, int maxDepth, Property property, boolean searchConstructors, boolean searchOperators, IProgressMonitor monitor) {
 		try {
-			ArrayList<Expression> curLevel = new ArrayList<Expression>();
 			IJavaType[] constraintTypes = typeConstraint.getTypes(stack, target, typeCache);
 			String taskName = "Expression generation " + (depth + 1) + "/" + (maxDepth + 1);
     		
@@ -413,82 +875,18 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
     			curMonitor = SubMonitor.convert(monitor, taskName, nextLevel.size() * 2 + imports.length);
     			addLocals(depth, maxDepth, curLevel);
     			// Get binary ops.
-    			// We use string comparisons to avoid duplicates, e.g., x+y and y+x.
-    			for (Expression l : nextLevel) {
-    				Result lResult = expressionEvaluator.getResult(l, Collections.<Effect>emptySet());
-    				Value lWrapperValue = lResult.getValue();
-    				if (isConstantField(l, expressionEvaluator))
-    					l = getRepresentative(l, equivalences.get(Collections.<Effect>emptySet()).get(lResult), depth);
-    				for (Expression r: getUniqueExpressions(l, lResult.getEffects(), intType, depth, nextLevel)) {
-    					Value rWrapperValue = expressionEvaluator.getResult(r, Collections.<Effect>emptySet()).getValue();
-    					IJavaValue rValue = rWrapperValue.getValue();
-        				if (curMonitor.isCanceled())
-        					throw new OperationCanceledException();
-    					if (lWrapperValue.equals(rWrapperValue) && l.toString().compareTo(r.toString()) > 0) {
-    						Expression tmp = l;  // Swap l and r if they have the same value (if not, we will consider both orderings) so that l's toString lexographically precedes r's so that we always consider e.g., l*r. 
-    						l = r;
-    						r = tmp;
-    					}
-    					// Arithmetic operations, e.g., +,*.
-    					if (searchOperators && EclipseUtils.isInt(l.getStaticType()) && EclipseUtils.isInt(r.getStaticType()) && isHelpfulType(intType, depth, maxDepth)
-    							&& !isConstant(l) && !isConstant(r)) {
-    						if (mightNotCommute(l, r) || l.toString().compareTo(r.toString()) < 0)
-    							addUniqueExpressionToList(curLevel, expressionMaker.makeInfix(l, InfixExpression.Operator.PLUS, r, intType, thread), depth, maxDepth);
-    						if (mightNotCommute(l, r) || l.toString().compareTo(r.toString()) <= 0)
-    							addUniqueExpressionToList(curLevel, expressionMaker.makeInfix(l, InfixExpression.Operator.TIMES, r, intType, thread), depth, maxDepth);
-    						if ((mightNotCommute(l, r) || l.toString().compareTo(r.toString()) != 0)
-    								&& !(r instanceof PrefixExpression && ((PrefixExpression)r).getOperator() == PrefixExpression.Operator.MINUS))
-    							addUniqueExpressionToList(curLevel, expressionMaker.makeInfix(l, InfixExpression.Operator.MINUS, r, intType, thread), depth, maxDepth);
-    						if ((mightNotCommute(l, r) || l.toString().compareTo(r.toString()) != 0)
-    								&& (rValue == null || sideEffectHandler.isHandlingSideEffects() || !rValue.getValueString().equals("0")))  // Don't divide by things we know are 0.
-    							addUniqueExpressionToList(curLevel, expressionMaker.makeInfix(l, InfixExpression.Operator.DIVIDE, r, intType, thread), depth, maxDepth);
-    					}
-    					// Integer comparisons, e.g., ==,<.
-    					if (searchOperators && isHelpfulType(booleanType, depth, maxDepth) && EclipseUtils.isInt(l.getStaticType()) && EclipseUtils.isInt(r.getStaticType()))
-    						if ((mightNotCommute(l, r) || l.toString().compareTo(r.toString()) < 0)
-    								&& (!(l instanceof PrefixExpression) || !(r instanceof PrefixExpression)))
-    							for (InfixExpression.Operator op : INT_COMPARE_OPS)
-    								addUniqueExpressionToList(curLevel, expressionMaker.makeInfix(l, op, r, booleanType, thread), depth, maxDepth);
-    					// Array access, a[i].
-    					if (l.getStaticType() instanceof IJavaArrayType && EclipseUtils.isInt(r.getStaticType())) {
-    						IJavaType elemType = ExpressionMaker.getArrayElementType(l);
-    						if (elemType != null && (isHelpfulType(elemType, depth, maxDepth) || mightBeHelpfulWithDowncast(elemType, typeConstraint))) {
-    							// Get the value if we can and skip things with null arrays or out-of-bounds indices.
-    							Expression accessExpr = expressionMaker.makeArrayAccess(l, r, thread);
-    							if (accessExpr != null)
-    								addUniqueExpressionToList(curLevel, accessExpr, depth, maxDepth);
-    						}
-    					}
-    				}
-					// Boolean connectives, &&,||.
-    				if (searchOperators && isHelpfulType(booleanType, depth, maxDepth) && EclipseUtils.isBoolean(l.getStaticType()))
-    					for (Expression r: getUniqueExpressions(l, lResult.getEffects(), booleanType, depth, nextLevel)) {
-        					if (lWrapperValue.equals(expressionEvaluator.getResult(r, Collections.<Effect>emptySet()).getValue()) && l.toString().compareTo(r.toString()) > 0) {
-        						Expression tmp = l;
-        						l = r;
-        						r = tmp;
-        					}
-    						if (EclipseUtils.isBoolean(r.getStaticType()))
-    							if (mightNotCommute(l, r) || l.toString().compareTo(r.toString()) < 0)
-    								for (InfixExpression.Operator op : BOOLEAN_COMPARE_OPS)
-    									addUniqueExpressionToList(curLevel, expressionMaker.makeInfix(l, op, r, booleanType, thread), depth, maxDepth);
-    					}
-					// Object/array comparisons
-    				if (searchOperators && isHelpfulType(booleanType, depth, maxDepth) && l.getStaticType() instanceof IJavaReferenceType)
-    					for (Expression r: getUniqueExpressions(l, lResult.getEffects(), objectType, depth, nextLevel)) {
-        					if (lWrapperValue.equals(expressionEvaluator.getResult(r, Collections.<Effect>emptySet()).getValue()) && l.toString().compareTo(r.toString()) > 0) {
-        						Expression tmp = l;
-        						l = r;
-        						r = tmp;
-        					}
-    						if (r.getStaticType() instanceof IJavaReferenceType
-    								&& (subtypeChecker.isSubtypeOf(l.getStaticType(), r.getStaticType()) || subtypeChecker.isSubtypeOf(r.getStaticType(), l.getStaticType())))
-    							if (mightNotCommute(l, r) || l.toString().compareTo(r.toString()) < 0)
-    								for (InfixExpression.Operator op : REF_COMPARE_OPS)
-    									addUniqueExpressionToList(curLevel, expressionMaker.makeInfix(l, op, r, booleanType, thread), depth, maxDepth);
-    					}
+    			// We first plan which operators to build with each left operand, which only reads the expressions of previous depths and so can run on several threads, and then build them here in the original order so the results do not depend on the threads.
+    			boolean isIntHelpful = isHelpfulType(intType, depth, maxDepth);
+    			boolean isBooleanHelpful = isHelpfulType(booleanType, depth, maxDepth);
+    			List<OperatorPlan> plans = planOperatorsInParallel(nextLevel, depth, searchOperators, isIntHelpful, isBooleanHelpful);
+    			Map<Expression, String> strings = new IdentityHashMap<Expression, String>();
+    			for (int i = 0; i < nextLevel.size(); i++) {
+    				OperatorPlan plan = plans == null ? planOperators(nextLevel.get(i), nextLevel, depth, searchOperators, isIntHelpful, isBooleanHelpful, strings) : plans.get(i);
+    				buildOperators(plan, curLevel, depth, maxDepth);
     				curMonitor.worked(1);
     			}
+    			// Likewise plan the field accesses and the arguments of method calls.
+    			argumentPlans = planMembersInParallel(nextLevel, depth, maxDepth);
     			// Get unary ops
     			for (Expression e : nextLevel) {
     				if (curMonitor.isCanceled())
@@ -592,7 +990,6 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
     		/*System.out.println("Exploring " + result.size() + " possible expressions.");
     		for (Expression e : result)
     			System.out.println(e.toString());*/
-    		return curLevel;
 		} catch (DebugException e) {
 			e.printStackTrace();
         	EclipseUtils.showError("Error", "An error occurred during expression generation.", e);
@@ -601,7 +998,434 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 			e.printStackTrace();
         	EclipseUtils.showError("Error", "An error occurred during expression generation.", e);
 			throw new RuntimeException("I cannot compute all valid expressions.");
+		} finally {
+			argumentPlans = null;
+		}
+	}
+
+	/**
+	 * Plans the binary operators to build with each of the given
+	 * expressions as the left operand.
+	 * We split the expressions into contiguous chunks and plan
+	 * each chunk on a separate thread.  Planning only reads the
+	 * results, depths, and equivalences of expressions from
+	 * previous depths, none of which change until we start
+	 * building the planned expressions.
+	 * @param nextLevel The expressions of the previous depth.
+	 * @param depth The current search depth.
+	 * @param searchOperators Whether to search operator expressions.
+	 * @param isIntHelpful Whether expressions of type int are
+	 * helpful at this depth.
+	 * @param isBooleanHelpful Whether expressions of type boolean
+	 * are helpful at this depth.
+	 * @return The plan for each of the given expressions in order,
+	 * or null if we should instead plan each one right before
+	 * building it.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	private List<OperatorPlan> planOperatorsInParallel(final List<Expression> nextLevel, final int depth, final boolean searchOperators, final boolean isIntHelpful, final boolean isBooleanHelpful) throws DebugException, JavaModelException {
+		// When we handle side effects, getting the arguments can evaluate expressions, so we must interleave planning and building.
+		if (planner == null || nextLevel.size() < MIN_PARALLEL_OPERANDS || sideEffectHandler.isHandlingSideEffects())
+			return null;
+		// Compute any depths getRepresentative might need now, since computing them on the planning threads would modify the evaluator.
+		Map<Result, ArrayList<Expression>> curEquivalences = equivalences.get(Collections.<Effect>emptySet());
+		if (curEquivalences != null)
+			for (ArrayList<Expression> equivs: curEquivalences.values())
+				for (Expression equiv: equivs)
+					getDepth(equiv);
+		// Likewise load the supertypes of the operands, so that the planning threads' subtype checks only read the checker's caches.
+		Set<IJavaType> operandTypes = new HashSet<IJavaType>();
+		for (Expression e: nextLevel)
+			operandTypes.add(e.getStaticType());
+		subtypeChecker.addTypes(operandTypes);
+		int numChunks = Math.min(nextLevel.size(), NUM_PLANNER_THREADS * 4);
+		ArrayList<Future<ArrayList<OperatorPlan>>> chunks = new ArrayList<Future<ArrayList<OperatorPlan>>>(numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			final int start = (int)((long)nextLevel.size() * i / numChunks);
+			final int end = (int)((long)nextLevel.size() * (i + 1) / numChunks);
+			chunks.add(planner.submit(new Callable<ArrayList<OperatorPlan>>() {
+				@Override
+				public ArrayList<OperatorPlan> call() throws Exception {
+					Map<Expression, String> strings = new IdentityHashMap<Expression, String>();
+					ArrayList<OperatorPlan> plans = new ArrayList<OperatorPlan>(end - start);
+					for (int j = start; j < end; j++)
+						plans.add(planOperators(nextLevel.get(j), nextLevel, depth, searchOperators, isIntHelpful, isBooleanHelpful, strings));
+					return plans;
+				}
+			}));
+		}
+		return getPlans(chunks);
+	}
+
+	/**
+	 * Waits for the given planning tasks and concatenates
+	 * their results in order.
+	 * @param chunks The planning tasks.
+	 * @return The results of the given tasks in order.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	private static <T> ArrayList<T> getPlans(List<Future<ArrayList<T>>> chunks) throws DebugException, JavaModelException {
+		ArrayList<T> plans = new ArrayList<T>();
+		try {
+			for (Future<ArrayList<T>> chunk: chunks)
+				plans.addAll(chunk.get());
+			return plans;
+		} catch (InterruptedException e) {
+			throw new OperationCanceledException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof DebugException)
+				throw (DebugException)cause;
+			if (cause instanceof JavaModelException)
+				throw (JavaModelException)cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if (cause instanceof Error)
+				throw (Error)cause;
+			throw new RuntimeException(cause);
+		} finally {
+			for (Future<ArrayList<T>> chunk: chunks)
+				chunk.cancel(true);
+		}
+	}
+
+	/**
+	 * Plans the binary operators to build with the given
+	 * expression as the left operand.
+	 * This does not create or evaluate any expressions, so it
+	 * can run on a planning thread.
+	 * @param l The left operand.
+	 * @param nextLevel The expressions of the previous depth.
+	 * @param depth The current search depth.
+	 * @param searchOperators Whether to search operator expressions.
+	 * @param isIntHelpful Whether expressions of type int are
+	 * helpful at this depth.
+	 * @param isBooleanHelpful Whether expressions of type boolean
+	 * are helpful at this depth.
+	 * @param strings A cache of the toStrings of expressions,
+	 * which we use to avoid generating both x+y and y+x.
+	 * @return The plan for the given left operand.
+	 * @throws DebugException
+	 */
+	private OperatorPlan planOperators(Expression l, List<Expression> nextLevel, int depth, boolean searchOperators, boolean isIntHelpful, boolean isBooleanHelpful, Map<Expression, String> strings) throws DebugException {
+		Result lResult = expressionEvaluator.getResult(l, Collections.<Effect>emptySet());
+		Value lWrapperValue = lResult.getValue();
+		OperatorPlan plan = new OperatorPlan(lWrapperValue);
+		if (isConstantField(l, expressionEvaluator))
+			l = getRepresentative(l, equivalences.get(Collections.<Effect>emptySet()).get(lResult), depth);
+		for (Expression r: getUniqueExpressions(l, lResult.getEffects(), intType, depth, nextLevel)) {
+			Value rWrapperValue = expressionEvaluator.getResult(r, Collections.<Effect>emptySet()).getValue();
+			IJavaValue rValue = rWrapperValue.getValue();
+			if (curMonitor.isCanceled())
+				throw new OperationCanceledException();
+			if (lWrapperValue.equals(rWrapperValue) && compareStrings(l, r, strings) > 0) {
+				Expression tmp = l;  // Swap l and r if they have the same value (if not, we will consider both orderings) so that l's toString lexographically precedes r's so that we always consider e.g., l*r. 
+				l = r;
+				r = tmp;
+			}
+			// Arithmetic operations, e.g., +,*.
+			if (searchOperators && EclipseUtils.isInt(l.getStaticType()) && EclipseUtils.isInt(r.getStaticType()) && isIntHelpful
+					&& !isConstant(l) && !isConstant(r)) {
+				if (mightNotCommute(l, r) || compareStrings(l, r, strings) < 0)
+					plan.addInfix(l, InfixExpression.Operator.PLUS, r, intType);
+				if (mightNotCommute(l, r) || compareStrings(l, r, strings) <= 0)
+					plan.addInfix(l, InfixExpression.Operator.TIMES, r, intType);
+				if ((mightNotCommute(l, r) || compareStrings(l, r, strings) != 0)
+						&& !(r instanceof PrefixExpression && ((PrefixExpression)r).getOperator() == PrefixExpression.Operator.MINUS))
+					plan.addInfix(l, InfixExpression.Operator.MINUS, r, intType);
+				if ((mightNotCommute(l, r) || compareStrings(l, r, strings) != 0)
+						&& (rValue == null || sideEffectHandler.isHandlingSideEffects() || !rValue.getValueString().equals("0")))  // Don't divide by things we know are 0.
+					plan.addInfix(l, InfixExpression.Operator.DIVIDE, r, intType);
+			}
+			// Integer comparisons, e.g., ==,<.
+			if (searchOperators && isBooleanHelpful && EclipseUtils.isInt(l.getStaticType()) && EclipseUtils.isInt(r.getStaticType()))
+				if ((mightNotCommute(l, r) || compareStrings(l, r, strings) < 0)
+						&& (!(l instanceof PrefixExpression) || !(r instanceof PrefixExpression)))
+					for (InfixExpression.Operator op : INT_COMPARE_OPS)
+						plan.addInfix(l, op, r, booleanType);
+			// Array access, a[i].  We check whether the element type is helpful when we build it.
+			if (l.getStaticType() instanceof IJavaArrayType && EclipseUtils.isInt(r.getStaticType()))
+				plan.addArrayAccess(l, r);
+		}
+		// Boolean connectives, &&,||.
+		if (searchOperators && isBooleanHelpful && EclipseUtils.isBoolean(l.getStaticType()))
+			for (Expression r: getUniqueExpressions(l, lResult.getEffects(), booleanType, depth, nextLevel)) {
+				if (lWrapperValue.equals(expressionEvaluator.getResult(r, Collections.<Effect>emptySet()).getValue()) && compareStrings(l, r, strings) > 0) {
+					Expression tmp = l;
+					l = r;
+					r = tmp;
+				}
+				if (EclipseUtils.isBoolean(r.getStaticType()))
+					if (mightNotCommute(l, r) || compareStrings(l, r, strings) < 0)
+						for (InfixExpression.Operator op : BOOLEAN_COMPARE_OPS)
+							plan.addInfix(l, op, r, booleanType);
+			}
+		// Object/array comparisons.  Comparing objects for equality might call equals in the child VM, so we only find the candidates here.
+		if (searchOperators && isBooleanHelpful && l.getStaticType() instanceof IJavaReferenceType)
+			plan.setObjectComparisons(l, getUniqueExpressions(l, lResult.getEffects(), objectType, depth, nextLevel));
+		return plan;
+	}
+
+	/**
+	 * Builds the binary operators in the given plan and adds
+	 * the unique ones to the current level.
+	 * @param plan The plan.
+	 * @param curLevel The current list of expressions being generated.
+	 * @param depth The current search depth.
+	 * @param maxDepth The maximum search depth.
+	 * @throws DebugException
+	 */
+	private void buildOperators(OperatorPlan plan, LevelSink curLevel, int depth, int maxDepth) throws DebugException {
+		for (int i = 0; i < plan.lefts.size(); i++) {
+			if (curMonitor.isCanceled())
+				throw new OperationCanceledException();
+			Expression l = plan.lefts.get(i);
+			Expression r = plan.rights.get(i);
+			InfixExpression.Operator op = plan.ops.get(i);
+			if (op != null)
+				addUniqueExpressionToList(curLevel, expressionMaker.makeInfix(l, op, r, plan.types.get(i), thread), depth, maxDepth);
+			else {
+				IJavaType elemType = ExpressionMaker.getArrayElementType(l);
+				if (elemType != null && (isHelpfulType(elemType, depth, maxDepth) || mightBeHelpfulWithDowncast(elemType, typeConstraint))) {
+					// Get the value if we can and skip things with null arrays or out-of-bounds indices.
+					Expression accessExpr = expressionMaker.makeArrayAccess(l, r, thread);
+					if (accessExpr != null)
+						addUniqueExpressionToList(curLevel, accessExpr, depth, maxDepth);
+				}
+			}
+		}
+		if (plan.objectRights != null) {
+			Expression l = plan.objectLeft;
+			for (Expression r: plan.objectRights) {
+				if (plan.leftValue.equals(expressionEvaluator.getResult(r, Collections.<Effect>emptySet()).getValue()) && l.toString().compareTo(r.toString()) > 0) {
+					Expression tmp = l;
+					l = r;
+					r = tmp;
+				}
+				if (r.getStaticType() instanceof IJavaReferenceType
+						&& (subtypeChecker.isSubtypeOf(l.getStaticType(), r.getStaticType()) || subtypeChecker.isSubtypeOf(r.getStaticType(), l.getStaticType())))
+					if (mightNotCommute(l, r) || l.toString().compareTo(r.toString()) < 0)
+						for (InfixExpression.Operator op : REF_COMPARE_OPS)
+							addUniqueExpressionToList(curLevel, expressionMaker.makeInfix(l, op, r, booleanType, thread), depth, maxDepth);
+			}
+		}
+	}
+
+	/**
+	 * Compares the toStrings of the given expressions,
+	 * caching them in the given map.
+	 * @param l The first expression.
+	 * @param r The second expression.
+	 * @param strings The cache of toStrings.
+	 * @return The comparison of the toStrings of the
+	 * given expressions.
+	 */
+	private static int compareStrings(Expression l, Expression r, Map<Expression, String> strings) {
+		return getString(l, strings).compareTo(getString(r, strings));
+	}
+
+	private static String getString(Expression e, Map<Expression, String> strings) {
+		String str = strings.get(e);
+		if (str == null) {
+			str = e.toString();
+			strings.put(e, str);
+		}
+		return str;
+	}
+
+	/**
+	 * The binary operators to build with one left operand,
+	 * in the order in which we should build them.
+	 * A null operator means an array access.
+	 */
+	private static class OperatorPlan {
+
+		private final Value leftValue;
+		private final ArrayList<Expression> lefts;
+		private final ArrayList<InfixExpression.Operator> ops;
+		private final ArrayList<Expression> rights;
+		private final ArrayList<IJavaType> types;
+		private Expression objectLeft;
+		private ArrayList<Expression> objectRights;
+
+		public OperatorPlan(Value leftValue) {
+			this.leftValue = leftValue;
+			this.lefts = new ArrayList<Expression>();
+			this.ops = new ArrayList<InfixExpression.Operator>();
+			this.rights = new ArrayList<Expression>();
+			this.types = new ArrayList<IJavaType>();
+		}
+
+		public void addInfix(Expression l, InfixExpression.Operator op, Expression r, IJavaType type) {
+			lefts.add(l);
+			ops.add(op);
+			rights.add(r);
+			types.add(type);
+		}
+
+		public void addArrayAccess(Expression array, Expression index) {
+			addInfix(array, null, index, null);
+		}
+
+		public void setObjectComparisons(Expression l, ArrayList<Expression> rights) {
+			this.objectLeft = l;
+			this.objectRights = rights;
+		}
+
+	}
+
+	/**
+	 * Plans the member accesses of the given expressions.
+	 * We first look up the fields and methods of the types of the
+	 * receivers, which checks the source of each member and so is
+	 * slow, on several threads.  Then we find the arguments we
+	 * might pass to each method we might call, which does not
+	 * depend on the receiver except for equals, on several threads.
+	 * We build the accesses and calls in order on the current
+	 * thread, since that evaluates them.
+	 * Like the operator planning, this only reads the results and
+	 * types of expressions from previous depths.
+	 * @param nextLevel The expressions of the previous depth.
+	 * @param depth The current search depth.
+	 * @param maxDepth The maximum search depth.
+	 * @return The arguments we planned, or null if we should
+	 * instead find the arguments of each call when we build it.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	private ArgumentPlans planMembersInParallel(final List<Expression> nextLevel, int depth, int maxDepth) throws DebugException, JavaModelException {
+		if (planner == null || nextLevel.size() < MIN_PARALLEL_OPERANDS || sideEffectHandler.isHandlingSideEffects())
+			return null;
+		// Find the types whose members we might access, including those to which we might downcast receivers.
+		Set<IJavaType> fieldTypes = new LinkedHashSet<IJavaType>();
+		Set<IJavaType> methodTypes = new LinkedHashSet<IJavaType>();
+		Set<IJavaType> operandTypes = new HashSet<IJavaType>();
+		for (Expression e: nextLevel) {
+			IJavaType staticType = e.getStaticType();
+			operandTypes.add(staticType);
+			IJavaValue eValue = expressionEvaluator.getValue(e, Collections.<Effect>emptySet());
+			if (eValue != null && eValue.isNull())
+				continue;
+			if (staticType instanceof IJavaClassType)
+				fieldTypes.add(staticType);
+			if (EclipseUtils.isObjectOrInterface(staticType) && !classBlacklist.contains(staticType.getName())) {
+				methodTypes.add(staticType);
+				IJavaType curType = getActualTypeForDowncast(e, expressionEvaluator.isStatic(e));
+				while (curType instanceof IJavaClassType && !curType.equals(staticType) && methodTypes.add(curType))
+					curType = ((IJavaClassType)curType).getSuperclass();
+			}
 		}
+		subtypeChecker.addTypes(operandTypes);
+		ArrayList<Future<ArrayList<Method>>> memberChunks = new ArrayList<Future<ArrayList<Method>>>(fieldTypes.size() + methodTypes.size());
+		for (final IJavaType type: fieldTypes) {
+			memberChunks.add(planner.submit(new Callable<ArrayList<Method>>() {
+				@Override
+				public ArrayList<Method> call() throws Exception {
+					for (Field field: memberIndex.getFields(type))
+						memberIndex.isUsefulField(field);
+					return new ArrayList<Method>(0);
+				}
+			}));
+		}
+		for (final IJavaType type: methodTypes) {
+			memberChunks.add(planner.submit(new Callable<ArrayList<Method>>() {
+				@Override
+				public ArrayList<Method> call() throws Exception {
+					ArrayList<Method> usefulMethods = new ArrayList<Method>();
+					for (Method method: memberIndex.getMethods(type, false))
+						if (!method.isStatic() && memberIndex.isUsefulMethod(method, false))
+							usefulMethods.add(method);
+					return usefulMethods;
+				}
+			}));
+		}
+		// Choose the methods we might call whose argument types are already loaded.  We find the arguments of the others when we build their calls, since loading types evaluates code.
+		final ArgumentPlans plans = new ArgumentPlans(nextLevel);
+		final ArrayList<Method> methods = new ArrayList<Method>();
+		for (Method method: new LinkedHashSet<Method>(getPlans(memberChunks))) {
+			List<String> argumentTypeNames = method.argumentTypeNames();
+			if (argumentTypeNames.isEmpty() || isEqualsMethod(method))
+				continue;
+			IJavaType returnType = EclipseUtils.getFullyQualifiedTypeIfExists(method.returnTypeName(), stack, target, typeCache);
+			if (returnType != null && stringIsSubtypeOf(method.returnTypeName()) != StringSubtype.SUBTYPE && !isHelpfulType(returnType, depth, maxDepth) && !mightBeHelpfulWithDowncast(returnType, typeConstraint))
+				continue;  // We will not call this method.
+			IJavaType[] argTypes = new IJavaType[argumentTypeNames.size()];
+			boolean allLoaded = true;
+			for (int i = 0; i < argTypes.length && allLoaded; i++) {
+				argTypes[i] = EclipseUtils.getFullyQualifiedTypeIfExists(argumentTypeNames.get(i), stack, target, typeCache);
+				allLoaded = argTypes[i] != null;
+			}
+			if (allLoaded) {
+				plans.argTypes.put(method, argTypes);
+				methods.add(method);
+			}
+		}
+		int numChunks = Math.min(methods.size(), NUM_PLANNER_THREADS * 4);
+		ArrayList<Future<ArrayList<List<ArrayList<Expression>>>>> argChunks = new ArrayList<Future<ArrayList<List<ArrayList<Expression>>>>>(numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			final int start = (int)((long)methods.size() * i / numChunks);
+			final int end = (int)((long)methods.size() * (i + 1) / numChunks);
+			argChunks.add(planner.submit(new Callable<ArrayList<List<ArrayList<Expression>>>>() {
+				@Override
+				public ArrayList<List<ArrayList<Expression>>> call() throws Exception {
+					ArrayList<List<ArrayList<Expression>>> candidates = new ArrayList<List<ArrayList<Expression>>>(end - start);
+					for (int j = start; j < end; j++) {
+						if (curMonitor.isCanceled())
+							throw new OperationCanceledException();
+						Method method = methods.get(j);
+						IJavaType[] argTypes = plans.argTypes.get(method);
+						List<ArrayList<Expression>> methodCandidates = new ArrayList<ArrayList<Expression>>(argTypes.length);
+						for (int k = 0; k < argTypes.length; k++)
+							methodCandidates.add(getArgCandidates(nextLevel, null, method, argTypes[k], k));
+						candidates.add(methodCandidates);
+					}
+					return candidates;
+				}
+			}));
+		}
+		ArrayList<List<ArrayList<Expression>>> candidates = getPlans(argChunks);
+		for (int i = 0; i < methods.size(); i++)
+			plans.candidates.put(methods.get(i), candidates.get(i));
+		return plans;
+	}
+
+	/**
+	 * The arguments we might pass to the calls of one depth,
+	 * which we find before we build the calls.
+	 */
+	private static class ArgumentPlans {
+
+		private final List<Expression> possibleArgs;
+		private final Map<Method, IJavaType[]> argTypes;
+		private final Map<Method, List<ArrayList<Expression>>> candidates;
+
+		public ArgumentPlans(List<Expression> possibleArgs) {
+			this.possibleArgs = possibleArgs;
+			this.argTypes = new HashMap<Method, IJavaType[]>();
+			this.candidates = new HashMap<Method, List<ArrayList<Expression>>>();
+		}
+
+		/**
+		 * Gets the planned candidates for the given argument.
+		 * @param possibleArgs The possible arguments.
+		 * @param method The method being called.
+		 * @param argType The type of the argument.
+		 * @param argIndex The index of the argument.
+		 * @return The candidates for the given argument that
+		 * getArgCandidates would return, or null if we did not
+		 * plan them.
+		 */
+		public ArrayList<Expression> getCandidates(List<Expression> possibleArgs, Method method, IJavaType argType, int argIndex) {
+			if (possibleArgs != this.possibleArgs)
+				return null;
+			List<ArrayList<Expression>> methodCandidates = candidates.get(method);
+			if (methodCandidates == null || !argType.equals(argTypes.get(method)[argIndex]))
+				return null;
+			return methodCandidates.get(argIndex);
+		}
+
 	}
 
 	/**
@@ -613,7 +1437,7 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * @param curLevel The current list of expressions being generated.
 	 * @throws DebugException
 	 */
-	private void addLocals(int depth, int maxDepth, ArrayList<Expression> curLevel) throws DebugException {
+	private void addLocals(int depth, int maxDepth, LevelSink curLevel) throws DebugException {
 		for (IJavaVariable l : stack.getLocalVariables()) {
 			IJavaType lType = EclipseUtils.getTypeOfVariableAndLoadIfNeeded(l, stack);
 			if (isHelpfulType(lType, depth, maxDepth) || mightBeHelpfulWithDowncast(lType, typeConstraint))
@@ -636,14 +1460,14 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * @throws DebugException
 	 * @throws JavaModelException 
 	 */
-	private void addFieldAccesses(Expression e, List<Expression> ops, int depth, int maxDepth, String targetName) throws DebugException, JavaModelException {
+	private void addFieldAccesses(Expression e, LevelSink ops, int depth, int maxDepth, String targetName) throws DebugException, JavaModelException {
 		// We could use the public Eclipse API here, but it isn't as clean and works on objects not types, so wouldn't work with our static accesses, which we give a null value.  Note that as below with methods, we must now be careful converting between jdi types and Eclipse types. 
 		//IJavaObject obj = e.getValue() != null ? (IJavaObject)e.getValue() : null;
 		//Type objTypeImpl = ((JDIType)e.getType()).getUnderlyingType();
 		//Type thisTypeImpl = ((JDIType)thisType).getUnderlyingType();
 		boolean isStatic = expressionEvaluator.isStatic(e);
 		//String objTypeName = isStatic ? e.toString() : objTypeImpl.name();
-		for (Field field: getFields(e.getStaticType())) {
+		for (Field field: memberIndex.getFields(e.getStaticType())) {
 			if (!isUsefulField(field))
 				continue;
 			if (isStatic != field.isStatic())
@@ -678,7 +1502,7 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * @throws DebugException
 	 * @throws JavaModelException 
 	 */
-	private void addMethodCalls(Expression e, List<Expression> nextLevel, List<Expression> ops, int depth, int maxDepth, String targetName) throws DebugException, JavaModelException {
+	private void addMethodCalls(Expression e, List<Expression> nextLevel, LevelSink ops, int depth, int maxDepth, String targetName) throws DebugException, JavaModelException {
 		// The public API doesn't tell us the methods of a class, so we need to use the jdi.  Note that we must now be careful converting between jdi types and Eclipse types.
 		//Type objTypeImpl = ((JDIType)e.getType()).getUnderlyingType();
 		if (classBlacklist.contains(e.getStaticType().getName()))
@@ -699,7 +1523,7 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 				downcastTypes.add(supertype.getName());
 		}
 		//String objTypeName = isStatic ? e.toString() : objTypeImpl.name();
-		List<Method> legalMethods = getMethods(curType, sideEffectHandler);
+		List<Method> legalMethods = memberIndex.getMethods(curType, sideEffectHandler.isHandlingSideEffects());
 		Set<String> calledMethods = new HashSet<String>();
 		OverloadChecker overloadChecker = new OverloadChecker(curType, stack, target, typeCache, subtypeChecker);
 		for (Method method : legalMethods) {
@@ -733,16 +1557,21 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 						//System.err.println("I cannot get the class of the arguments to " + objTypeImpl.name() + "." + method.name() + "()");
 						break;
 					}
-					ArrayList<Expression> curPossibleActuals = getArgs(nextLevel, e, method, overloadChecker, argType, allPossibleActuals.size(), depth);
+					ArrayList<Expression> candidates = argumentPlans == null ? null : argumentPlans.getCandidates(nextLevel, method, argType, allPossibleActuals.size());
+					ArrayList<Expression> curPossibleActuals = candidates == null ? getArgs(nextLevel, e, method, overloadChecker, argType, allPossibleActuals.size(), depth) : getArgExpressions(candidates, overloadChecker, argType, allPossibleActuals.size(), depth);
 					argTypes[allPossibleActuals.size()] = argType;
 					allPossibleActuals.add(curPossibleActuals);
 				}
 				if (allPossibleActuals.size() == argumentTypeNames.size()) {
 					Expression receiver = getCallReceiver(e, method, isSubtype);
 					String name = getCallName(receiver, method);
-					int maxArgDepth = pruneManyArgCalls(method, allPossibleActuals, depth, depth - 1);
-					Set<Effect> receiverEffects = isConstructor ? Collections.<Effect>emptySet() : expressionEvaluator.getEffects(e, Collections.<Effect>emptySet());
-					makeAllCalls(method, name, receiver, returnType, ops, receiverEffects, argTypes, allPossibleActuals, new ArrayList<Expression>(allPossibleActuals.size()), depth, maxDepth, maxArgDepth, overloadChecker);
+					if (beamArguments && !sideEffectHandler.isHandlingSideEffects() && !allPossibleActuals.isEmpty() && Utils.getNumCalls(allPossibleActuals) > getPruneThreshold(depth, method))
+						makeBeamCalls(method, name, receiver, returnType, ops, argTypes, allPossibleActuals, depth, maxDepth);
+					else {
+						int maxArgDepth = pruneManyArgCalls(method, allPossibleActuals, depth, depth - 1);
+						Set<Effect> receiverEffects = isConstructor ? Collections.<Effect>emptySet() : expressionEvaluator.getEffects(e, Collections.<Effect>emptySet());
+						makeAllCalls(method, name, receiver, returnType, ops, receiverEffects, argTypes, allPossibleActuals, new ArrayList<Expression>(allPossibleActuals.size()), depth, maxDepth, maxArgDepth, overloadChecker);
+					}
                     if (method.isStatic())
                         staticAccesses.add(method.declaringType().name() + " " + method.name() + " " + method.signature());
                     calledMethods.add(method.name() + "~" + method.signature());
@@ -846,7 +1675,7 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 */
 	private int getPruneThreshold(int curDepth, Method method) {
 		int depthFactor = curDepth - 1;
-		if (weights.isUncommon(method.declaringType().name(), Weights.getMethodKey(method)))
+		if (weights.isUncommon(method))
 			depthFactor--;
 		return (int)(50 * Math.pow(10, Math.max(0, depthFactor)));  // 50 at depth 1, 500 at depth 2, 5000 at depth 3, etc.
 	}
@@ -1171,8 +2000,8 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * with the given name.
 	 */
 	/*private void addTypesFromCalls(Map<String, Set<String>> typeGen, String typeName, IJavaType type, boolean isStatic, String targetName) {
-		for (Method method: getMethods(type, sideEffectHandler)) {
-			if (!isLegalMethod(method, thisType, false) || method.returnTypeName().equals("void") || (targetName != null && !targetName.equals(method.name())))
+		for (Method method: memberIndex.getMethods(type, sideEffectHandler.isHandlingSideEffects())) {
+			if (!memberIndex.isLegalMethod(method, false) || method.returnTypeName().equals("void") || (targetName != null && !targetName.equals(method.name())))
 				continue;
 			for (String argTypeName: method.argumentTypeNames())
 				Utils.addToSetMap(typeGen, method.returnTypeName(), argTypeName);
@@ -1192,7 +2021,7 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * with the given name.
 	 */
 	/*private void addTypesFromFields(Map<String, Set<String>> typeGen, String typeName, IJavaType type, boolean isStatic, String targetName) {
-		for (Field field: getFields(type)) {
+		for (Field field: memberIndex.getFields(type)) {
 			if (!isLegalField(field, thisType) || (targetName != null && !targetName.equals(field.name())))
 				continue;
 			if (!isStatic || field.isStatic())  // Only access static fields if it's an import.
@@ -1249,8 +2078,8 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * @param isImport If the receiver type comes from an import.
 	 */
 	/*private void checkMethods(IJavaType receiverType, Set<String> typeNames, boolean isImport) {
-		for (Method method : getMethods(receiverType, sideEffectHandler)) {
-			if (isLegalMethod(method, thisType, false) && !method.returnTypeName().equals("void") && (!isImport || method.isStatic())) {
+		for (Method method : memberIndex.getMethods(receiverType, sideEffectHandler.isHandlingSideEffects())) {
+			if (memberIndex.isLegalMethod(method, false) && !method.returnTypeName().equals("void") && (!isImport || method.isStatic())) {
 				addTypeName(method.returnTypeName(), typeNames);
 				if (method.isStatic())
 					addTypeName(method.declaringType().name(), typeNames);
@@ -1272,7 +2101,7 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * @param isImport If the receiver type comes from an import.
 	 */
 	/*private void checkFields(IJavaType receiverType, Set<String> typeNames, boolean isImport) {
-		for (Field field: getFields(receiverType)) {
+		for (Field field: memberIndex.getFields(receiverType)) {
 			if (isLegalField(field, thisType) && (!isImport || field.isStatic())) {
 				addTypeName(field.typeName(), typeNames);
 				if (field.isStatic())
@@ -1332,22 +2161,25 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * @param e Expression to add if it is unique.
 	 * @param depth The current search depth.
 	 * @param maxDepth The maximum search depth.
+	 * @return Whether we kept the given expression, either by
+	 * adding it to the list or by making it equivalent to an
+	 * expression with the same value.
 	 * @throws DebugException 
 	 */
-	private void addUniqueExpressionToList(List<Expression> list, Expression e, int depth, int maxDepth) throws DebugException {
+	private boolean addUniqueExpressionToList(LevelSink list, Expression e, int depth, int maxDepth) throws DebugException {
 		// We only add constructors at max depth, but they might actually be lower depth.
 		if (e != null && isCorrectDepth(e, depth)) {
 			Result result = expressionEvaluator.getResult(e, Collections.<Effect>emptySet());
 			IJavaValue value = result.getValue().getValue();
 			if (value != null && "V".equals(value.getSignature()))
-				return;
+				return false;
 			if (depth == maxDepth && !typeConstraint.isFulfilledBy(e.getStaticType(), subtypeChecker, typeCache, stack, target)) {
 				// The current type does not fulfill the constraint and we're at the maximum depth, so only add it if we can downcast it.
 				if (isHelpfulWithDowncast(value))
 					e = downcast(e);
 				else {
 					numFailedDowncasts++;
-					return;
+					return false;
 				}
 			}
 			Set<Effect> curEffects = Collections.emptySet();
@@ -1362,7 +2194,9 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 				}
 				list.add(e);
 			}
+			return true;
 		}
+		return false;
 	}
 
 	/**
@@ -1466,7 +2300,7 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 	 * @param overloadChecker The overload checker.
 	 * @throws DebugException 
 	 */
-	private void makeAllCalls(Method method, String name, Expression receiver, IJavaType returnType, List<Expression> ops, Set<Effect> curEffects, IJavaType[] actualTypes, ArrayList<ArrayList<Expression>> defaultPossibleActuals, ArrayList<Expression> curActuals, int depth, int maxDepth, int maxArgDepth, OverloadChecker overloadChecker) throws DebugException {
+	private void makeAllCalls(Method method, String name, Expression receiver, IJavaType returnType, LevelSink ops, Set<Effect> curEffects, IJavaType[] actualTypes, ArrayList<ArrayList<Expression>> defaultPossibleActuals, ArrayList<Expression> curActuals, int depth, int maxDepth, int maxArgDepth, OverloadChecker overloadChecker) throws DebugException {
 		if (curMonitor.isCanceled())
 			throw new OperationCanceledException();
 		if (curActuals.size() == actualTypes.length) {
@@ -1487,6 +2321,230 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 		}
 	}
 	
+	/**
+	 * Makes the calls to the given method with the most likely
+	 * combinations of the given arguments.  We use this instead
+	 * of pruning arguments by depth when there are too many
+	 * combinations and we are not handling side effects.
+	 * We keep only the best few arguments for each position and
+	 * enumerate their combinations from the most to the least
+	 * likely until we have made as many calls as the threshold
+	 * at which we would otherwise prune.  We choose the number
+	 * of arguments to keep so that there are at least that many
+	 * combinations.
+	 * A call is only at the current depth if its receiver or
+	 * one of its arguments is from the previous depth.  When the
+	 * receiver is older, we keep separate beams of the newer and
+	 * older arguments and split the combinations by the first
+	 * position with a newer argument, so we only rank
+	 * combinations we might keep.
+	 * @param method The method being called.
+	 * @param name The method name.
+	 * @param receiver The receiver.
+	 * @param returnType The return type of the method.
+	 * @param ops The list into which we will insert the calls.
+	 * @param argTypes The types of the arguments.
+	 * @param allPossibleActuals A list of all the possible
+	 * actuals for each argument.
+	 * @param depth The current search depth.
+	 * @param maxDepth The maximum search depth.
+	 * @throws DebugException
+	 */
+	private void makeBeamCalls(Method method, String name, Expression receiver, IJavaType returnType, LevelSink ops, IJavaType[] argTypes, ArrayList<ArrayList<Expression>> allPossibleActuals, int depth, int maxDepth) throws DebugException {
+		int budget = getPruneThreshold(depth, method);
+		// We skip some calls, so as when we prune arguments by depth, we record this so that deeper searches can revisit them once we no longer need to cut the calls.
+		if (!prunedDepths.containsKey(method))
+			prunedDepths.put(method, depth);
+		int numArgs = argTypes.length;
+		int beamWidth = Math.max(MIN_BEAM_WIDTH, (int)Math.ceil(Math.pow(budget, 1d / numArgs)));
+		boolean needsNewArgument = !method.isConstructor() && super.getDepth(receiver) < depth - 1;
+		Expression[][] beams = new Expression[numArgs][];
+		double[][] beamScores = new double[numArgs][];
+		Expression[][] newBeams = new Expression[numArgs][];
+		double[][] newBeamScores = new double[numArgs][];
+		Expression[][] oldBeams = new Expression[numArgs][];
+		double[][] oldBeamScores = new double[numArgs][];
+		for (int i = 0; i < numArgs; i++) {
+			ArrayList<Expression> candidates = getUniqueExpressions(null, Collections.<Effect>emptySet(), argTypes[i], depth, allPossibleActuals.get(i));
+			if (candidates.isEmpty())
+				return;
+			selectBeam(method, i, candidates, beamWidth, beams, beamScores);
+			if (needsNewArgument) {
+				ArrayList<Expression> newCandidates = new ArrayList<Expression>();
+				ArrayList<Expression> oldCandidates = new ArrayList<Expression>();
+				for (Expression candidate: candidates) {
+					if (super.getDepth(candidate) >= depth - 1)
+						newCandidates.add(candidate);
+					else
+						oldCandidates.add(candidate);
+				}
+				selectBeam(method, i, newCandidates, beamWidth, newBeams, newBeamScores);
+				selectBeam(method, i, oldCandidates, beamWidth, oldBeams, oldBeamScores);
+			}
+		}
+		// Each combination's successors increment one index at or after the last one incremented to reach it, so we reach each combination once.
+		PriorityQueue<ArgumentCombination> combinations = new PriorityQueue<ArgumentCombination>();
+		if (!needsNewArgument)
+			addFirstCombination(combinations, beams, beamScores);
+		else {
+			// Split the combinations by the first argument from the previous depth: the arguments before it are older, and those after it can be from any depth.
+			for (int first = 0; first < numArgs; first++) {
+				Expression[][] partBeams = new Expression[numArgs][];
+				double[][] partBeamScores = new double[numArgs][];
+				for (int i = 0; i < numArgs; i++) {
+					partBeams[i] = i < first ? oldBeams[i] : i == first ? newBeams[i] : beams[i];
+					partBeamScores[i] = i < first ? oldBeamScores[i] : i == first ? newBeamScores[i] : beamScores[i];
+				}
+				addFirstCombination(combinations, partBeams, partBeamScores);
+			}
+		}
+		ArrayList<Expression> curActuals = new ArrayList<Expression>(numArgs);
+		int numCalls = 0;
+		while (!combinations.isEmpty() && numCalls < budget) {
+			if (curMonitor.isCanceled())
+				throw new OperationCanceledException();
+			ArgumentCombination cur = combinations.poll();
+			curActuals.clear();
+			for (int i = 0; i < numArgs; i++)
+				curActuals.add(cur.beams[i][cur.indices[i]]);
+			if (meetsPreconditions(method, receiver, curActuals) && (method.isConstructor() || getDepthOfCall(receiver, curActuals, method) == depth))
+				if (addUniqueExpressionToList(ops, expressionMaker.makeCall(name, receiver, curActuals, returnType, thisType, method, thread, staticEvaluator), depth, maxDepth))
+					numCalls++;
+			for (int i = cur.firstMovable; i < numArgs; i++) {
+				if (cur.indices[i] + 1 < cur.beams[i].length) {
+					int[] next = cur.indices.clone();
+					next[i]++;
+					combinations.add(new ArgumentCombination(next, i, cur.beams, cur.beamScores));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds the most likely combination of the given arguments
+	 * to the queue, unless some position has no arguments.
+	 * @param combinations The queue of combinations.
+	 * @param beams The arguments to use for each position.
+	 * @param beamScores The scores of those arguments.
+	 */
+	private static void addFirstCombination(PriorityQueue<ArgumentCombination> combinations, Expression[][] beams, double[][] beamScores) {
+		for (Expression[] beam: beams)
+			if (beam.length == 0)
+				return;
+		combinations.add(new ArgumentCombination(new int[beams.length], 0, beams, beamScores));
+	}
+	
+	/**
+	 * Chooses the arguments to keep for one position of a call.
+	 * We score each argument by its probability and penalize
+	 * arguments that misuse a constant.  We then greedily pick
+	 * the best argument, dividing the score of the others by one
+	 * more than the number of arguments we have already picked
+	 * with the same type and depth, which favors diverse values.
+	 * The scores of the picked arguments never increase.
+	 * @param method The method being called.
+	 * @param argIndex The index of the argument.
+	 * @param candidates The possible arguments.
+	 * @param beamWidth The maximum number of arguments to keep.
+	 * @param beams The arrays of arguments to keep for each position,
+	 * into which we store the arguments for this position.
+	 * @param beamScores The arrays of the scores of the arguments
+	 * we keep, into which we store the scores for this position.
+	 * @throws DebugException
+	 */
+	private void selectBeam(Method method, int argIndex, ArrayList<Expression> candidates, int beamWidth, Expression[][] beams, double[][] beamScores) throws DebugException {
+		int numCandidates = candidates.size();
+		double[] scores = new double[numCandidates];
+		String[] groups = new String[numCandidates];
+		for (int j = 0; j < numCandidates; j++) {
+			Expression candidate = candidates.get(j);
+			scores[j] = getProbability(candidate);
+			Field field = BadConstantChecker.getField(candidate, expressionEvaluator);
+			if (BadConstantChecker.isConstantField(field) && weights.isBadConstant(method, argIndex, field))
+				scores[j] *= BAD_CONSTANT_FACTOR;
+			IJavaValue value = expressionEvaluator.getValue(candidate, Collections.<Effect>emptySet());
+			groups[j] = (value == null || value.isNull() ? "null" : value.getJavaType().getName()) + " " + getDepth(candidate);
+		}
+		int width = Math.min(beamWidth, numCandidates);
+		Expression[] beam = new Expression[width];
+		double[] beamScore = new double[width];
+		boolean[] picked = new boolean[numCandidates];
+		Map<String, Integer> numPickedInGroup = new HashMap<String, Integer>();
+		for (int k = 0; k < width; k++) {
+			int best = -1;
+			double bestScore = -1d;
+			for (int j = 0; j < numCandidates; j++) {
+				if (picked[j])
+					continue;
+				Integer numPicked = numPickedInGroup.get(groups[j]);
+				double score = scores[j] / (numPicked == null ? 1 : numPicked + 1);
+				if (score > bestScore) {
+					best = j;
+					bestScore = score;
+				}
+			}
+			picked[best] = true;
+			Utils.incrementMap(numPickedInGroup, groups[best]);
+			beam[k] = candidates.get(best);
+			beamScore[k] = bestScore;
+		}
+		beams[argIndex] = beam;
+		beamScores[argIndex] = beamScore;
+	}
+	
+	/**
+	 * Gets the probability of the given expression.
+	 * @param e The expression.
+	 * @return The probability of the given expression.
+	 */
+	private double getProbability(Expression e) {
+		Double probability = probabilities.get(e.getID());
+		if (probability == null) {
+			probability = ProbabilityComputer.getProbability(e, expressionEvaluator, weights);
+			probabilities.put(e.getID(), probability);
+		}
+		return probability;
+	}
+	
+	/**
+	 * A combination of arguments to a call, represented by their
+	 * indices into the arguments we keep for each position,
+	 * which it shares with the combinations it leads to.
+	 * Combinations are ordered from the most to the least likely,
+	 * and we break ties by their indices so the order is
+	 * deterministic.
+	 */
+	private static class ArgumentCombination implements Comparable<ArgumentCombination> {
+		
+		private final int[] indices;
+		private final int firstMovable;
+		private final Expression[][] beams;
+		private final double[][] beamScores;
+		private final double score;
+		
+		public ArgumentCombination(int[] indices, int firstMovable, Expression[][] beams, double[][] beamScores) {
+			this.indices = indices;
+			this.firstMovable = firstMovable;
+			this.beams = beams;
+			this.beamScores = beamScores;
+			double score = 1d;
+			for (int i = 0; i < indices.length; i++)
+				score *= beamScores[i][indices[i]];
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(ArgumentCombination other) {
+			if (score != other.score)
+				return score > other.score ? -1 : 1;
+			for (int i = 0; i < indices.length; i++)
+				if (indices[i] != other.indices[i])
+					return indices[i] - other.indices[i];
+			return 0;
+		}
+		
+	}
+	
 	/**
 	 * Creates all possible calls/creations using the given actuals.
 	 * @param method The method being called.
@@ -2011,13 +3069,13 @@ public final class DeterministicExpressionGenerator extends ExpressionGenerator
 		@Override
 		public boolean visit(FieldAccess node) {
 			Field field = expressionEvaluator.getField(node);
-			if (field != null && weights.isRare(field.declaringType().name(), field.name()))
+			if (field != null && weights.isRare(field))
 				hasBad = true;
 			return !hasBad;
 		}
 		
 		public static boolean isBadMethod(Method method, Expression receiver, Weights weights) {
-			return isNamedMethod(method.name(), receiver) || weights.isRare(method.declaringType().name(), Weights.getMethodKey(method));
+			return isNamedMethod(method.name(), receiver) || weights.isRare(method);
 		}
 		
 		private static boolean isNamedMethod(String name, Expression receiver) {
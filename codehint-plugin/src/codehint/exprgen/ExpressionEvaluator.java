@@ -63,13 +63,17 @@ import codehint.expreval.NativeHandler;
 import codehint.expreval.StaticEvaluator;
 import codehint.expreval.TimeoutChecker;
 import codehint.utils.EclipseUtils;
-import codehint.utils.Utils;
+import codehint.utils.IdMap;
 
 import com.sun.jdi.ArrayReference;
 import com.sun.jdi.ClassNotLoadedException;
+import com.sun.jdi.ClassType;
 import com.sun.jdi.Field;
 import com.sun.jdi.Method;
 import com.sun.jdi.ObjectReference;
+import com.sun.jdi.PrimitiveType;
+import com.sun.jdi.ReferenceType;
+import com.sun.jdi.Type;
 import com.sun.jdi.VirtualMachine;
 
 public class ExpressionEvaluator {
@@ -77,12 +81,13 @@ public class ExpressionEvaluator {
 	private final IJavaStackFrame stack;
 	private final IJavaDebugTarget target;
 	private final IJavaThread thread;
-	private final Map<Set<Effect>, Map<Integer, Result>> results;
-	private final Map<Integer, String> resultStrings;
-	private final Map<Integer, Method> methods;
-	private final Map<Integer, Field> fields;
-	private final Map<Integer, IJavaReferenceType> statics;
-	private final Map<Integer, Integer> depths;
+	// Properties of expressions indexed by their ids.
+	private final Map<Set<Effect>, IdMap<Result>> results;
+	private final IdMap<String> resultStrings;
+	private final IdMap<Method> methods;
+	private final IdMap<Field> fields;
+	private final IdMap<IJavaReferenceType> statics;
+	private final IdMap<Integer> depths;
 	private final ValueCache valueCache;
 	private final TypeCache typeCache;
 	private final SubtypeChecker subtypeChecker;
@@ -90,21 +95,25 @@ public class ExpressionEvaluator {
 	private final TimeoutChecker timeoutChecker;
 	private final NativeHandler nativeHandler;
 	private final SideEffectHandler sideEffectHandler;
+	// Whether each method we called while handling side effects ever had side effects.
+	private final Map<Method, Boolean> observedEffects;
+	// Whether each method we have not called while handling side effects is pure based on the fields it could modify.
+	private final Map<Method, Boolean> derivedPurities;
 	
 	public ExpressionEvaluator(IJavaStackFrame stack, ValueCache valueCache, TypeCache typeCache, SubtypeChecker subtypeChecker, TimeoutChecker timeoutChecker, NativeHandler nativeHandler, SideEffectHandler sideEffectHandler, Metadata metadata) {
 		this(stack, valueCache, typeCache, subtypeChecker, timeoutChecker, nativeHandler, sideEffectHandler, metadata.subsetMethods, metadata.subsetFields);
 	}
 	
-	private ExpressionEvaluator(IJavaStackFrame stack, ValueCache valueCache, TypeCache typeCache, SubtypeChecker subtypeChecker, TimeoutChecker timeoutChecker, NativeHandler nativeHandler, SideEffectHandler sideEffectHandler, Map<Integer, Method> methods, Map<Integer, Field> fields) {
+	private ExpressionEvaluator(IJavaStackFrame stack, ValueCache valueCache, TypeCache typeCache, SubtypeChecker subtypeChecker, TimeoutChecker timeoutChecker, NativeHandler nativeHandler, SideEffectHandler sideEffectHandler, IdMap<Method> methods, IdMap<Field> fields) {
 		this.stack = stack;
 		this.target = (IJavaDebugTarget)stack.getDebugTarget();
 		this.thread = (IJavaThread)stack.getThread();
-		results = new HashMap<Set<Effect>, Map<Integer, Result>>();
-		this.resultStrings = new HashMap<Integer, String>();
-		this.methods = new HashMap<Integer, Method>(methods);  // Make copies so that changes we make here don't affect the metadata's maps.
-		this.fields = new HashMap<Integer, Field>(fields);
-		statics = new HashMap<Integer, IJavaReferenceType>();
-		depths = new HashMap<Integer, Integer>();
+		results = new HashMap<Set<Effect>, IdMap<Result>>();
+		this.resultStrings = new IdMap<String>();
+		this.methods = new IdMap<Method>(methods);  // Make copies so that changes we make here don't affect the metadata's maps.
+		this.fields = new IdMap<Field>(fields);
+		statics = new IdMap<IJavaReferenceType>();
+		depths = new IdMap<Integer>();
 		this.valueCache = valueCache;
 		this.typeCache = typeCache;
 		this.subtypeChecker = subtypeChecker;
@@ -112,6 +121,8 @@ public class ExpressionEvaluator {
 		this.timeoutChecker = timeoutChecker;
 		this.nativeHandler = nativeHandler;
 		this.sideEffectHandler = sideEffectHandler;
+		this.observedEffects = new HashMap<Method, Boolean>();
+		this.derivedPurities = new HashMap<Method, Boolean>();
 	}
 	
 	// Evaluation methods.
@@ -311,6 +322,7 @@ public class ExpressionEvaluator {
 	private Result computeCall(Method method, IJavaType receiverStaticType, IJavaValue receiverValue, IJavaValue[] argValues, Set<Effect> effects, boolean isOutermost) {
 		IJavaValue value = null;
 		Set<Effect> resultEffects = null;
+		boolean returned = false;
 		//long startTime = System.currentTimeMillis();
 		try {
 			//System.out.println("Calling " + (receiverValue != null ? receiverValue : receiverStaticType).toString().replace("\n", "\\n") + "." + method.name() + " with args " + java.util.Arrays.toString(argValues) + " with effects " + effects);
@@ -325,13 +337,17 @@ public class ExpressionEvaluator {
 				value = ((IJavaClassType)((IJavaClassObject)receiverValue).getInstanceType()).sendMessage(method.name(), method.signature(), argValues, thread);
 			else
 				value = ((IJavaObject)receiverValue).sendMessage(method.name(), method.signature(), argValues, thread, null);
+			returned = true;
 			//System.out.println("Got " + value);
 		} catch (DebugException e) {
 			//System.out.println("Crashed on " + (receiverValue != null ? receiverValue : receiverStaticType).toString().replace("\n", "\\n") + "." + method.name() + " with args " + java.util.Arrays.toString(argValues).replace("\n", "\\n") + " got " + EclipseUtils.getExceptionMessage(e));
 			numCrashes++;
 			value = target.voidValue();
 		} finally {
+			boolean isHandlingSideEffects = sideEffectHandler.isHandlingSideEffects();
 			resultEffects = isOutermost ? sideEffectHandler.stopHandlingSideEffects() : sideEffectHandler.getSideEffects();
+			if (isHandlingSideEffects)
+				recordEffects(method, !effects.containsAll(resultEffects), returned);
 			nativeHandler.allowNativeCalls();
 			timeoutChecker.stopEvaluating();
 			//System.out.println("Calling " + (receiverValue != null ? receiverValue : receiverStaticType).toString().replace("\n", "\\n") + "." + method.name() + " with args " + java.util.Arrays.toString(argValues) + " got " + value + " with effects " + resultEffects + " and took " + (System.currentTimeMillis() - startTime) + "ms.");
@@ -629,7 +645,7 @@ public class ExpressionEvaluator {
 		} finally {
 			SideEffectHandler.undoEffects(rhsResult.getEffects());
 		}
-		return new Result(rhsResult.getValue(), assignEffects);
+		return new Result(rhsResult.getValue(), sideEffectHandler.intern(assignEffects));
 	}
 	
 	private com.sun.jdi.Value getJDIValue(IJavaValue javaValue) throws DebugException {
@@ -719,7 +735,7 @@ public class ExpressionEvaluator {
 	// Get/set properties of expressions.
 
 	void setValue(Expression e, IJavaValue v, Set<Effect> effects, IJavaThread thread) {
-		Utils.addToMapMap(results, effects, e.getID(), new Result(v, valueCache, thread));
+		getEffectResults(effects).put(e.getID(), new Result(v, valueCache, thread));
 	}
 
 	public IJavaValue getValue(Expression e, Set<Effect> effects) {
@@ -730,13 +746,22 @@ public class ExpressionEvaluator {
 	}
 
 	public void setResult(Statement s, Result r, Set<Effect> effects) {
-		Utils.addToMapMap(results, effects, s.getID(), r);
+		getEffectResults(effects).put(s.getID(), r);
+	}
+
+	private IdMap<Result> getEffectResults(Set<Effect> effects) {
+		IdMap<Result> effectResults = results.get(effects);
+		if (effectResults == null) {
+			effectResults = new IdMap<Result>();
+			results.put(effects, effectResults);
+		}
+		return effectResults;
 	}
 
 	public void copyResults(Expression oldExpr, Expression newExpr) {
 		int oldID = oldExpr.getID();
 		int newID = newExpr.getID();
-		for (Map<Integer, Result> effectResults: results.values()) {
+		for (IdMap<Result> effectResults: results.values()) {
 			Result result = effectResults.get(oldID);
 			if (result != null)
 				effectResults.put(newID, result);
@@ -748,7 +773,7 @@ public class ExpressionEvaluator {
 	}
 
 	private Result getResult(int id, Set<Effect> effects) {
-		Map<Integer, Result> effectResults = results.get(effects);
+		IdMap<Result> effectResults = results.get(effects);
 		if (effectResults == null)
 			return null;
 		return effectResults.get(id);
@@ -831,18 +856,98 @@ public class ExpressionEvaluator {
 		return numCrashes;
 	}
 	
+	/**
+	 * Records whether a call to the given method had side
+	 * effects beyond the ones we replayed before it.
+	 * @param method The method we called.
+	 * @param hadEffects Whether the call had new side effects.
+	 * @param returned Whether the call returned normally, so
+	 * that not having effects tells us something.
+	 */
+	private synchronized void recordEffects(Method method, boolean hadEffects, boolean returned) {
+		if (hadEffects)
+			observedEffects.put(method, true);
+		else if (returned && !observedEffects.containsKey(method))
+			observedEffects.put(method, false);
+	}
+	
+	/**
+	 * Checks whether we know that the given method is pure,
+	 * so that we can evaluate calls to it on several threads.
+	 * If we have called the method while handling side
+	 * effects, it is pure if it never had any.  Otherwise we
+	 * derive its purity from the fields it could modify: it
+	 * must not be native, it and its arguments must not be
+	 * arrays or types with fields whose writes the side effect
+	 * handler would track (which includes our knowledge of
+	 * fields that are never modified), and we must know which
+	 * code it runs.
+	 * @param method The method.
+	 * @return Whether we know that the given method is pure.
+	 */
+	public synchronized boolean isProvenPure(Method method) {
+		Boolean hadEffects = observedEffects.get(method);
+		if (hadEffects != null)
+			return !hadEffects;
+		Boolean isPure = derivedPurities.get(method);
+		if (isPure == null) {
+			isPure = derivePurity(method);
+			derivedPurities.put(method, isPure);
+		}
+		return isPure;
+	}
+	
+	/**
+	 * Derives whether the given method is pure from the fields
+	 * it could modify.
+	 * @param method The method.
+	 * @return Whether the given method is pure.
+	 */
+	private boolean derivePurity(Method method) {
+		if (sideEffectHandler == null || method.isNative())
+			return false;
+		ReferenceType declaringType = method.declaringType();
+		// Calls to instance methods of a type that can be subclassed might run other code.
+		if (!method.isStatic() && !method.isConstructor() && !method.isFinal() && !declaringType.isFinal())
+			return false;
+		if (!isImmutable(declaringType))
+			return false;
+		try {
+			for (Type argType: method.argumentTypes())
+				if (!(argType instanceof PrimitiveType) && !(argType instanceof ClassType && ((ClassType)argType).isFinal() && isImmutable((ClassType)argType)))
+					return false;
+		} catch (ClassNotLoadedException e) {
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks whether the side effect handler would track
+	 * writes to any of the fields of the given type.
+	 * @param type The type.
+	 * @return Whether writes to the fields of the given type
+	 * cannot be side effects.
+	 */
+	private boolean isImmutable(ReferenceType type) {
+		for (Field field: type.allFields())
+			if (sideEffectHandler.isTrackedField(field))
+				return false;
+		return true;
+	}
+	
 	public static class Metadata {
 		
-		private final Map<Integer, Method> subsetMethods;
-		private final Map<Integer, Field> subsetFields;
+		private final IdMap<Method> subsetMethods;
+		private final IdMap<Field> subsetFields;
 		
-		private Metadata(Map<Integer, Method> subsetMethods, Map<Integer, Field> subsetFields) {
+		private Metadata(IdMap<Method> subsetMethods, IdMap<Field> subsetFields) {
 			this.subsetMethods = subsetMethods;
 			this.subsetFields = subsetFields;
 		}
 		
 		public static Metadata emptyMetadata() {
-			return new Metadata(new HashMap<Integer, Method>(), new HashMap<Integer, Field>());
+			return new Metadata(new IdMap<Method>(), new IdMap<Field>());
 		}
 		
 		public void addMetadataFor(List<Statement> stmts, final ExpressionEvaluator expressionEvaluator) {
@@ -12,12 +12,9 @@ import java.util.Set;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.debug.core.DebugException;
-import org.eclipse.jdt.core.Flags;
 import org.eclipse.jdt.core.ICompilationUnit;
-import org.eclipse.jdt.core.IField;
 import org.eclipse.jdt.core.IImportDeclaration;
 import org.eclipse.jdt.core.IJavaProject;
-import org.eclipse.jdt.core.IMethod;
 import org.eclipse.jdt.core.IType;
 import org.eclipse.jdt.core.JavaModelException;
 
@@ -242,7 +239,7 @@ public abstract class ExpressionGenerator {
 	protected final IJavaType booleanType;
 	protected final IJavaValue oneValue;
 	protected final Expression one;
-	private final Map<Method, IMethod> imethodCache;
+	protected final MemberIndex memberIndex;
 	
 	protected Map<Set<Effect>, Map<Result, ArrayList<Expression>>> equivalences;
 	protected IImportDeclaration[] imports;
@@ -270,7 +267,7 @@ public abstract class ExpressionGenerator {
 		this.booleanType = EclipseUtils.getFullyQualifiedType("boolean", stack, target, typeCache);
 		this.oneValue = target.newValue(1);
 		this.one = expressionMaker.makeInt(1, oneValue, intType, thread);
-		this.imethodCache = new HashMap<Method, IMethod>();
+		this.memberIndex = new MemberIndex(thisType, ((JDIStackFrame)stack).getUnderlyingMethod(), project);
 	}
 	
 	/**
@@ -294,6 +291,7 @@ public abstract class ExpressionGenerator {
 	public abstract ArrayList<? extends Statement> generateStatement(Property property, TypeConstraint typeConstraint, String varName, boolean searchConstructors, boolean searchOperators, boolean searchStatements, SynthesisDialog synthesisDialog, IProgressMonitor monitor, int maxExprDepth);
 	
 	protected void initSearch() throws JavaModelException, DebugException {
+		expressionMaker.clearSharedExpressions();
 		this.equivalences = new HashMap<Set<Effect>, Map<Result, ArrayList<Expression>>>();
 		this.imports = ((ICompilationUnit)project.findElement(new Path(stack.getSourcePath()))).getImports();
 		this.importsSet = new HashSet<String>(imports.length);
@@ -301,6 +299,14 @@ public abstract class ExpressionGenerator {
 			this.importsSet.add(imp.getElementName());
 	}
 	
+	/**
+	 * Gets the index of the members of the types we expand.
+	 * @return The index of the members of the types we expand.
+	 */
+	MemberIndex getMemberIndex() {
+		return memberIndex;
+	}
+	
 	/**
 	 * Returns the number of expressions that have crashed.
 	 * @return The number of expressions that have crashed.
@@ -323,6 +329,21 @@ public abstract class ExpressionGenerator {
 			return null;
 	}
 	
+	/**
+	 * Checks whether the given type has a public static field or method.
+	 * @param type The type to check.
+	 * @return Whether the given type has a public static field or method.
+	 */
+	protected boolean hasPublicStaticFieldOrMethod(IJavaType type) {
+		for (Method method: memberIndex.getMethods(type, sideEffectHandler.isHandlingSideEffects()))
+			if (method.isStatic() && method.isPublic())
+				return true;
+		for (Field field: memberIndex.getFields(type))
+			if (field.isStatic() && field.isPublic())
+				return true;
+		return false;
+	}
+	
 	// TODO: Convert field/method code to use the public API?  I can use IType to get fields/methods (but they only get declared ones, so I'd have to walk the supertype chain), IType to get their signature, Signature.getSignature{Qualifier,SimpleName} to get type names, and then EclipseUtils.getType-like code to get the IType back.
 	// TODO: Downcast expressions to get extra fields and array accesses.
 	
@@ -412,14 +433,7 @@ public abstract class ExpressionGenerator {
 	 * @throws JavaModelException
 	 */
 	protected boolean isUsefulField(Field field) throws JavaModelException {
-		if (!isLegalField(field, thisType) || field.isSynthetic())
-			return false;
-        IField ifield = EclipseUtils.getIField(field, project);
-        try {
-        	if (ifield != null && Flags.isDeprecated(ifield.getFlags()))
-        		return false;
-        } catch (JavaModelException ex) { }  // We need this for Android for some reason.
-        return true;
+		return memberIndex.isUsefulField(field);
 	}
 
 	/**
@@ -485,26 +499,13 @@ public abstract class ExpressionGenerator {
 	protected boolean isUsefulMethod(Method method, Expression receiver, boolean isConstructor) throws DebugException, JavaModelException {
 		// Filter out java.lang.Object methods and fake methods like "<init>".  Note that if we don't filter out Object's methods we do getClass() and then call reflective methods, which is bad times.
 		// TODO: Allow calling protected and package-private things when it's legal.
-		if (!isConstructor && method.returnTypeName().equals("void"))
-			return false;
-		if (!isLegalMethod(method, thisType, isConstructor) || method.equals(((JDIStackFrame)stack).getUnderlyingMethod()))  // Disable explicit recursion (that is, calling the current method), since it is definitely not yet complete.
+		if (!memberIndex.isUsefulMethod(method, isConstructor))  // This also disables explicit recursion (that is, calling the current method), since it is definitely not yet complete.
 			return false;
 		if (receiver.getStaticType().getName().equals("java.lang.String") && (method.name().equals("toString") || method.name().equals("subSequence")))
 			return false;  // Don't call toString on Strings.  Also don't call subSequence because it's the same as substring.
-        if (!(receiver.getStaticType() instanceof IJavaInterfaceType)) {  // Skip interface methods called on non-interface objects, as the object method will also be in the list.  Without this, we duplicate calls to interface methods when the static type is a non-interface.
-			IJavaType declaringType = EclipseUtils.getTypeAndLoadIfNeeded(method.declaringType().name(), stack, target, typeCache);
-			if (declaringType instanceof IJavaInterfaceType)
-				return false;
-        }
-        IMethod imethod = imethodCache.get(method);
-        if (imethod == null) {
-        	imethod = EclipseUtils.getIMethod(method, project);
-        	if (imethod != null)
-        		imethodCache.put(method, imethod);
-        }
-        if (imethod != null && Flags.isDeprecated(imethod.getFlags()))
-        	return false;
-        return true;
+		if (!(receiver.getStaticType() instanceof IJavaInterfaceType) && memberIndex.isInterfaceMethod(method))
+			return false;  // Skip interface methods called on non-interface objects, as the object method will also be in the list.  Without this, we duplicate calls to interface methods when the static type is a non-interface.
+		return true;
 	}
 
 	/**
@@ -574,29 +575,75 @@ public abstract class ExpressionGenerator {
 	 * @throws DebugException 
 	 */
 	protected ArrayList<Expression> getArgs(List<Expression> possibleArgs, Expression receiver, Method method, OverloadChecker overloadChecker, IJavaType argType, int curArgIndex, int maxArgDepth) throws DebugException {
+		return getArgExpressions(getArgCandidates(possibleArgs, receiver, method, argType, curArgIndex), overloadChecker, argType, curArgIndex, maxArgDepth);
+	}
+
+	/**
+	 * Filters the given possible arguments of the given call.
+	 * This does not create any expressions, and it only uses
+	 * the receiver when the method is equals, so we can share
+	 * its result between the receivers of other methods.
+	 * @param possibleArgs The possible arguments.
+	 * @param receiver The receiver of the call.
+	 * @param method The method being called.
+	 * @param argType The type of the argument.
+	 * @param curArgIndex The index of the current argument.
+	 * @return The possible arguments that we can pass as the
+	 * given argument.
+	 * @throws DebugException
+	 */
+	protected ArrayList<Expression> getArgCandidates(List<Expression> possibleArgs, Expression receiver, Method method, IJavaType argType, int curArgIndex) throws DebugException {
 		SupertypeBound argBound = new SupertypeBound(argType);
 		int numArgs = method.argumentTypeNames().size();
-		ArrayList<Expression> curPossibleActuals = new ArrayList<Expression>();
+		ArrayList<Expression> candidates = new ArrayList<Expression>();
 		// TODO (low priority): This can get called multiple times if there are multiple args with the same type (or even different methods with args of the same type), but this has a tiny effect compared to the general state space explosion problem.
 		// TODO: Allow downcasting args (i.e., a's static type does not meet argBound but its dynamic type does).  This should be easy to do with isHelpfulWithDowncast() and downcast(). 
 		for (Expression a : possibleArgs)
 			if (argBound.isFulfilledBy(a.getStaticType(), subtypeChecker, typeCache, stack, target)  // TODO: This doesn't work for generic methods.
 					&& meetsNonNullPreconditions(method, curArgIndex + 1, a)
 					// Avoid calling equals with things the same element, things of incomparable type, or null.
-					&& !("equals".equals(method.name()) && "(Ljava/lang/Object;)Z".equals(method.signature()) && (a == receiver || isConstant(a) || (!subtypeChecker.isSubtypeOf(a.getStaticType(), receiver.getStaticType()) && !subtypeChecker.isSubtypeOf(receiver.getStaticType(), a.getStaticType()))))) {
+					&& !(isEqualsMethod(method) && (a == receiver || isConstant(a) || (!subtypeChecker.isSubtypeOf(a.getStaticType(), receiver.getStaticType()) && !subtypeChecker.isSubtypeOf(receiver.getStaticType(), a.getStaticType()))))) {
 				if (method.name().equals("valueOf") && method.declaringType().name().equals("java.lang.String") && a.getStaticType() != null && a.getStaticType().getName().equals("java.lang.String"))
 					continue;  // Don't call valueOf on a String.
 				// Cast the null literal when passed as a vararg to the component type.
 				// TODO: Bug: Eclipse's sendMessage interface takes in a value and so ignores this cast and calls the wrong one.  I thus do not generate such expressions.
 				if (a instanceof NullLiteral && method.isVarArgs() && curArgIndex == numArgs - 1)
 					continue;//a = (Expression)expressionMaker.makeCast(a, ((IJavaArrayType)argType).getComponentType(), a.getValue(), valueCache, thread);
-				a = getArgExpression(a, overloadChecker, argType, curArgIndex, maxArgDepth);
-				if (a != null)
-					curPossibleActuals.add(a);
+				candidates.add(a);
 			}
+		return candidates;
+	}
+
+	/**
+	 * Gets the expressions to pass for the given candidate
+	 * arguments, casting them if necessary.
+	 * @param candidates The candidate arguments.
+	 * @param overloadChecker The overload checker.
+	 * @param argType The type of the argument.
+	 * @param curArgIndex The index of the current argument.
+	 * @param maxArgDepth The maximum depth of the arguments.
+	 * @return The expressions to use for the given argument.
+	 */
+	protected ArrayList<Expression> getArgExpressions(List<Expression> candidates, OverloadChecker overloadChecker, IJavaType argType, int curArgIndex, int maxArgDepth) {
+		ArrayList<Expression> curPossibleActuals = new ArrayList<Expression>(candidates.size());
+		for (Expression a: candidates) {
+			a = getArgExpression(a, overloadChecker, argType, curArgIndex, maxArgDepth);
+			if (a != null)
+				curPossibleActuals.add(a);
+		}
 		return curPossibleActuals;
 	}
 
+	/**
+	 * Checks whether the given method is Object.equals or an
+	 * override of it.
+	 * @param method The method.
+	 * @return Whether the given method is equals.
+	 */
+	protected static boolean isEqualsMethod(Method method) {
+		return "equals".equals(method.name()) && "(Ljava/lang/Object;)Z".equals(method.signature());
+	}
+
 	@SuppressWarnings("unused")
 	protected Expression getArgExpression(Expression a, OverloadChecker overloadChecker, IJavaType argType, int curArgIndex, int maxArgDepth) {
 		return a;
@@ -751,12 +798,10 @@ public abstract class ExpressionGenerator {
 	 * that it must be.
 	 */
 	protected boolean meetsNonNullPreconditions(Method method, int argIndex, Expression arg) {
-		String methodId = method.declaringType().name() + " " + method.name() + " " + method.signature();
-		if (methodPreconditions.containsKey(methodId))
-			for (Predicate precondition: methodPreconditions.get(methodId))
-				if (precondition instanceof NonNull)
-					if (((NonNull)precondition).getArgIndex() == argIndex && expressionEvaluator.getValue(arg, Collections.<Effect>emptySet()).isNull())
-						return false;
+		for (Predicate precondition: memberIndex.getPreconditions(method))
+			if (precondition instanceof NonNull)
+				if (((NonNull)precondition).getArgIndex() == argIndex && expressionEvaluator.getValue(arg, Collections.<Effect>emptySet()).isNull())
+					return false;
 		return true;
 	}
 	
@@ -768,14 +813,22 @@ public abstract class ExpressionGenerator {
 	 * @return Whether or not the given call meets its known preconditions.
 	 */
 	protected boolean meetsPreconditions(Method method, Expression receiver, ArrayList<Expression> actuals) {
-		String methodId = method.declaringType().name() + " " + method.name() + " " + method.signature();
-		if (methodPreconditions.containsKey(methodId))
-			for (Predicate precondition: methodPreconditions.get(methodId))
-				if (!precondition.satisfies(receiver, actuals, expressionEvaluator))
-					return false;
+		for (Predicate precondition: memberIndex.getPreconditions(method))
+			if (!precondition.satisfies(receiver, actuals, expressionEvaluator))
+				return false;
 		return true;
 	}
 
+	/**
+	 * Gets the known preconditions of the given method.
+	 * @param method The method.
+	 * @return The known preconditions of the given method,
+	 * or null if we do not know any.
+	 */
+	static Predicate[] lookupPreconditions(Method method) {
+		return methodPreconditions.get(method.declaringType().name() + " " + method.name() + " " + method.signature());
+	}
+
 	/**
 	 * Creates a call (method or constructor) during equivalence expansion.
 	 * @param method The method being called.
@@ -2,6 +2,8 @@ package codehint.exprgen;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.eclipse.debug.core.DebugException;
@@ -64,6 +66,8 @@ public class ExpressionMaker {
 	private final ValueCache valueCache;
 	private final IJavaStackFrame stack;
 	private final TypeCache typeCache;
+	// The expressions we have made with their results during the current search, so we can share structurally-equal ones.
+	private final Map<NodeKey, Expression> sharedExpressions;
 	
 	public ExpressionMaker(IJavaStackFrame stack, ExpressionEvaluator expressionEvaluator, ValueCache valueCache, TypeCache typeCache) {
 		this.target = (IJavaDebugTarget)stack.getDebugTarget();
@@ -71,6 +75,7 @@ public class ExpressionMaker {
 		this.valueCache = valueCache;
 		this.stack = stack;
 		this.typeCache = typeCache;
+		this.sharedExpressions = new HashMap<NodeKey, Expression>();
 	}
 	
 	/*
@@ -134,20 +139,44 @@ public class ExpressionMaker {
 	}
 
 	public SimpleName makeVar(String name, IJavaValue value, IJavaType type, IJavaThread thread) {
-		return initSimple(new SimpleName(type, name), value, thread);
+		return makeVar(name, null, value, type, thread);
 	}
 
 	public SimpleName makeFieldVar(String name, IJavaType type, Expression thisExpr, Field field, IJavaThread thread) {
 		try{
-			SimpleName e = makeVar(name, expressionEvaluator.computeFieldAccess(expressionEvaluator.getValue(thisExpr, Collections.<Effect>emptySet()), thisExpr.getStaticType(), field), type, thread);
-			expressionEvaluator.setDepth(e, 1);
-			expressionEvaluator.setField(e, field);
-			return e;
+			return makeVar(name, field, expressionEvaluator.computeFieldAccess(expressionEvaluator.getValue(thisExpr, Collections.<Effect>emptySet()), thisExpr.getStaticType(), field), type, thread);
 		} catch (DebugException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Makes a variable, which is a field of the this object
+	 * if the given field is non-null and a local otherwise.
+	 * @param name The name of the variable.
+	 * @param field The field the variable accesses, or null
+	 * if it is a local.
+	 * @param value The value of the variable.
+	 * @param type The type of the variable.
+	 * @param thread The thread.
+	 * @return The variable.
+	 */
+	private SimpleName makeVar(String name, Field field, IJavaValue value, IJavaType type, IJavaThread thread) {
+		Result result = new Result(value, valueCache, thread);
+		NodeKey key = new NodeKey(SimpleName.class, name, field, type, null, NO_EXPRESSIONS, Collections.<Effect>emptySet(), result);
+		SimpleName e = (SimpleName)getShared(key);
+		if (e == null) {
+			e = new SimpleName(type, name);
+			expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+			if (field != null) {
+				expressionEvaluator.setDepth(e, 1);
+				expressionEvaluator.setField(e, field);
+			}
+			share(key, e);
+		}
+		return e;
+	}
+
 	private Name newStaticName(String name, IJavaValue value, IJavaReferenceType type, IJavaThread thread) {
 		Name e = makeName(type, name);
 		expressionEvaluator.setStatic(e, type);
@@ -159,8 +188,13 @@ public class ExpressionMaker {
 		try {
 			IJavaValue value = type.getClassObject();
 			Result result = new Result(value, valueCache, thread);
-			Name expr = newStaticName(name, value, type, thread);
-			expressionEvaluator.setResult(expr, result, Collections.<Effect>emptySet());
+			NodeKey key = new NodeKey(Name.class, name, null, type, null, NO_EXPRESSIONS, Collections.<Effect>emptySet(), result);
+			Name expr = (Name)getShared(key);
+			if (expr == null) {
+				expr = newStaticName(name, value, type, thread);
+				expressionEvaluator.setResult(expr, result, Collections.<Effect>emptySet());
+				share(key, expr);
+			}
 			return expr;
 		} catch (DebugException e) {
 			throw new RuntimeException(e);
@@ -168,11 +202,18 @@ public class ExpressionMaker {
 	}
 
 	public ThisExpression makeThis(IJavaValue value, IJavaType type, IJavaThread thread) {
-		return initSimple(new ThisExpression(type), value, thread);
+		Result result = new Result(value, valueCache, thread);
+		NodeKey key = new NodeKey(ThisExpression.class, null, null, type, null, NO_EXPRESSIONS, Collections.<Effect>emptySet(), result);
+		ThisExpression e = (ThisExpression)getShared(key);
+		if (e == null) {
+			e = new ThisExpression(type);
+			expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+			share(key, e);
+		}
+		return e;
 	}
 
 	public InfixExpression makeInfix(Expression left, InfixExpression.Operator op, Expression right, IJavaType type, IJavaThread thread) throws NumberFormatException, DebugException {
-		InfixExpression e = makeInfix(left, op, right, type);
 		Result operandResults = expressionEvaluator.computeResultForBinaryOp(left, right);
 		if (operandResults == null)
 			return null;
@@ -180,7 +221,13 @@ public class ExpressionMaker {
 		if (value == null)
 			return null;
 		Result result = new Result(value, operandResults.getEffects());
-		expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+		NodeKey key = new NodeKey(InfixExpression.class, null, op, type, left, new Expression[] { right }, Collections.<Effect>emptySet(), result);
+		InfixExpression e = (InfixExpression)getShared(key);
+		if (e == null) {
+			e = makeInfix(left, op, right, type);
+			expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+			share(key, e);
+		}
 		return e;
 	}
 
@@ -200,9 +247,14 @@ public class ExpressionMaker {
 				return null;
 		}
 		IJavaType type = getArrayElementType(array);
-		ArrayAccess e = makeArrayAccess(type, array, index);
 		Result result = new Result(value, operandResults.getEffects(), valueCache, thread);
-		expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+		NodeKey key = new NodeKey(ArrayAccess.class, null, null, type, array, new Expression[] { index }, Collections.<Effect>emptySet(), result);
+		ArrayAccess e = (ArrayAccess)getShared(key);
+		if (e == null) {
+			e = makeArrayAccess(type, array, index);
+			expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+			share(key, e);
+		}
 		return e;
 	}
 
@@ -212,11 +264,16 @@ public class ExpressionMaker {
 
 	public FieldAccess makeFieldAccess(Expression obj, String name, IJavaType fieldType, Field field, IJavaThread thread) {
 		try {
-			FieldAccess e = makeFieldAccess(obj, name, fieldType, field);
 			Result objResult = expressionEvaluator.getResult(obj, Collections.<Effect>emptySet());
 			IJavaValue value = expressionEvaluator.computeFieldAccess(objResult.getValue().getValue(), obj.getStaticType(), field);
 			Result result = new Result(value, objResult.getEffects(), valueCache, thread);
-			expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+			NodeKey key = new NodeKey(FieldAccess.class, name, field, fieldType, obj, NO_EXPRESSIONS, Collections.<Effect>emptySet(), result);
+			FieldAccess e = (FieldAccess)getShared(key);
+			if (e == null) {
+				e = makeFieldAccess(obj, name, fieldType, field);
+				expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+				share(key, e);
+			}
 			return e;
 		} catch (DebugException ex) {
 			throw new RuntimeException(ex);
@@ -231,11 +288,16 @@ public class ExpressionMaker {
 
 	public PrefixExpression makePrefix(Expression operand, PrefixExpression.Operator op, IJavaThread thread) {
 		try {
-			PrefixExpression e = makePrefix(operand, op);
 			Result operandResult = expressionEvaluator.getResult(operand, Collections.<Effect>emptySet());
 			Value value = expressionEvaluator.computePrefixOp(operandResult.getValue().getValue(), op);
 			Result result = new Result(value, operandResult.getEffects());
-			expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+			NodeKey key = new NodeKey(PrefixExpression.class, null, op, null, operand, NO_EXPRESSIONS, Collections.<Effect>emptySet(), result);
+			PrefixExpression e = (PrefixExpression)getShared(key);
+			if (e == null) {
+				e = makePrefix(operand, op);
+				expressionEvaluator.setResult(e, result, Collections.<Effect>emptySet());
+				share(key, e);
+			}
 			return e;
 		} catch (DebugException ex) {
 			throw new RuntimeException(ex);
@@ -277,9 +339,14 @@ public class ExpressionMaker {
 	public MethodInvocation makeCall(String name, Expression receiver, ArrayList<Expression> args, Method method, IJavaType returnType, Set<Effect> effects, Result result) {
 		Expression[] newArgs = new Expression[args.size()];
 		args.toArray(newArgs);
-		MethodInvocation e = new MethodInvocation(returnType, receiver, makeSimpleName(null, name), newArgs);
-		expressionEvaluator.setMethod(e, method);
-		expressionEvaluator.setResult(e, result, effects);
+		NodeKey key = new NodeKey(MethodInvocation.class, name, method, returnType, receiver, newArgs, effects, result);
+		MethodInvocation e = (MethodInvocation)getShared(key);
+		if (e == null) {
+			e = new MethodInvocation(returnType, receiver, makeSimpleName(null, name), newArgs);
+			expressionEvaluator.setMethod(e, method);
+			expressionEvaluator.setResult(e, result, effects);
+			share(key, e);
+		}
     	return e;
     }
 
@@ -320,9 +387,14 @@ public class ExpressionMaker {
 	public ClassInstanceCreation makeClassInstanceCreation(Type type, ArrayList<Expression> args, Method method, Set<Effect> effects, Result result) {
 		Expression[] newArgs = new Expression[args.size()];
 		args.toArray(newArgs);
-		ClassInstanceCreation e = new ClassInstanceCreation(type, newArgs);
-		expressionEvaluator.setMethod(e, method);
-		expressionEvaluator.setResult(e, result, effects);
+		NodeKey key = new NodeKey(ClassInstanceCreation.class, type.toString(), method, type.getStaticType(), null, newArgs, effects, result);
+		ClassInstanceCreation e = (ClassInstanceCreation)getShared(key);
+		if (e == null) {
+			e = new ClassInstanceCreation(type, newArgs);
+			expressionEvaluator.setMethod(e, method);
+			expressionEvaluator.setResult(e, result, effects);
+			share(key, e);
+		}
     	return e;
 	}
 
@@ -459,4 +531,117 @@ public class ExpressionMaker {
 		return block;
 	}
 
+	private static final Expression[] NO_EXPRESSIONS = new Expression[0];
+	
+	/**
+	 * Forgets the expressions we have shared.  We call this
+	 * at the start of each search, so the table only holds
+	 * the expressions of one search, within which each
+	 * structure and result has exactly one node.
+	 */
+	public void clearSharedExpressions() {
+		sharedExpressions.clear();
+	}
+	
+	/**
+	 * Gets the expression we made with the given structure
+	 * and result during the current search.
+	 * @param key The structure and result of the expression.
+	 * @return The expression with the given structure and
+	 * result, or null if we have not made one.
+	 */
+	private Expression getShared(NodeKey key) {
+		return sharedExpressions.get(key);
+	}
+	
+	/**
+	 * Records the expression with the given structure and
+	 * result so that we can share it.
+	 * @param key The structure and result of the expression.
+	 * @param e The expression.
+	 */
+	private void share(NodeKey key, Expression e) {
+		sharedExpressions.put(key, e);
+	}
+	
+	/**
+	 * The structure of an expression together with its
+	 * result, which we use to share structurally-equal expressions.
+	 * The subexpressions are compared by identity, since they are
+	 * themselves shared, so the hash of a key only depends on their
+	 * ids and the key describes one node of the expression DAG.
+	 */
+	private static final class NodeKey {
+		
+		private final Class<? extends Expression> kind;
+		private final String name;
+		private final Object label;
+		private final IJavaType type;
+		private final Expression first;
+		private final Expression[] others;
+		private final Set<Effect> effects;
+		private final Result result;
+		private final int hashCode;
+		
+		/**
+		 * Creates a new key.
+		 * @param kind The class of the expression.
+		 * @param name The name in the expression, if any.
+		 * @param label The operator, method, or field of the
+		 * expression, if any.
+		 * @param type The static type of the expression.
+		 * @param first The first subexpression (e.g., the
+		 * receiver), which may be null.
+		 * @param others The other subexpressions.
+		 * @param effects The effects under which the expression
+		 * has the given result.
+		 * @param result The result of the expression.
+		 */
+		public NodeKey(Class<? extends Expression> kind, String name, Object label, IJavaType type, Expression first, Expression[] others, Set<Effect> effects, Result result) {
+			this.kind = kind;
+			this.name = name;
+			this.label = label;
+			this.type = type;
+			this.first = first;
+			this.others = others;
+			this.effects = effects;
+			this.result = result;
+			int hash = kind.hashCode();
+			hash = 31 * hash + (name == null ? 0 : name.hashCode());
+			hash = 31 * hash + (label == null ? 0 : label.hashCode());
+			hash = 31 * hash + (type == null ? 0 : type.hashCode());
+			hash = 31 * hash + (first == null ? -1 : first.getID());
+			for (Expression other: others)
+				hash = 31 * hash + other.getID();
+			hash = 31 * hash + effects.hashCode();
+			hash = 31 * hash + (result == null ? 0 : result.hashCode());
+			this.hashCode = hash;
+		}
+		
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof NodeKey))
+				return false;
+			NodeKey other = (NodeKey)obj;
+			if (hashCode != other.hashCode || kind != other.kind || first != other.first || others.length != other.others.length)
+				return false;
+			for (int i = 0; i < others.length; i++)
+				if (others[i] != other.others[i])
+					return false;
+			return equals(name, other.name) && equals(label, other.label) && equals(type, other.type) && effects.equals(other.effects) && equals(result, other.result);
+		}
+		
+		private static boolean equals(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+		
+	}
+
 }
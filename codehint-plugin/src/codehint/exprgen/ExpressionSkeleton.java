@@ -1563,7 +1563,7 @@ public final class ExpressionSkeleton {
 			try {
 				Map<String, ArrayList<Method>> methodsByType = new HashMap<String, ArrayList<Method>>(1);
 				String typeName = type.getName();
-	    		for (Method method: ExpressionGenerator.getMethods(type, sideEffectHandler))
+	    		for (Method method: expressionGenerator.getMemberIndex().getMethods(type, sideEffectHandler.isHandlingSideEffects()))
 					if (ExpressionGenerator.isLegalMethod(method, stack.getReferenceType(), true) && MethodNameConstraint.fulfillsArgConstraints(method, argConstraints, stack, target, subtypeChecker, typeCache))
 						Utils.addToListMap(methodsByType, typeName, method);
 	    		return methodsByType;
@@ -0,0 +1,216 @@
+package codehint.exprgen;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.debug.core.DebugException;
+import org.eclipse.jdt.core.Flags;
+import org.eclipse.jdt.core.IField;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IMethod;
+import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.debug.core.IJavaReferenceType;
+import org.eclipse.jdt.debug.core.IJavaType;
+
+import codehint.exprgen.precondition.Predicate;
+import codehint.utils.EclipseUtils;
+
+import com.sun.jdi.Field;
+import com.sun.jdi.InterfaceType;
+import com.sun.jdi.Method;
+
+/**
+ * An index of the methods and fields of the types we expand
+ * during one synthesis session.
+ * We get the visible members of each type from JDI once and
+ * compute the parts of the legality and usefulness checks
+ * that depend only on the member (and not on the receiver
+ * expression) once, so later expansions of the same type
+ * are a scan of a cached list with flag tests.
+ * Several threads can use the index at once.  Two of them
+ * might compute the same entry, but they compute the same
+ * value, so it does not matter which one we keep.
+ */
+final class MemberIndex {
+
+	private static final int LEGAL_METHOD = 1;
+	private static final int LEGAL_CONSTRUCTOR = 2;
+	private static final int RETURNS_VOID = 4;
+	private static final int CURRENT_METHOD = 8;
+	private static final int INTERFACE_METHOD = 16;
+	private static final int DEPRECATED = 32;
+
+	private static final Predicate[] NO_PRECONDITIONS = new Predicate[0];
+
+	private final IJavaReferenceType thisType;
+	private final Method currentMethod;
+	private final IJavaProject project;
+	private final Map<IJavaType, List<Method>> methods;
+	private final Map<IJavaType, List<Method>> nonBlacklistedMethods;
+	private final Map<IJavaType, List<Field>> fields;
+	private final Map<Method, Integer> methodFlags;
+	private final Map<Field, Boolean> usefulFields;
+	private final Map<Method, Predicate[]> preconditions;
+
+	/**
+	 * Creates a new, empty index.
+	 * @param thisType The type of the this object.
+	 * @param currentMethod The method we are currently in.
+	 * @param project The project.
+	 */
+	public MemberIndex(IJavaReferenceType thisType, Method currentMethod, IJavaProject project) {
+		this.thisType = thisType;
+		this.currentMethod = currentMethod;
+		this.project = project;
+		this.methods = new ConcurrentHashMap<IJavaType, List<Method>>();
+		this.nonBlacklistedMethods = new ConcurrentHashMap<IJavaType, List<Method>>();
+		this.fields = new ConcurrentHashMap<IJavaType, List<Field>>();
+		this.methodFlags = new ConcurrentHashMap<Method, Integer>();
+		this.usefulFields = new ConcurrentHashMap<Field, Boolean>();
+		this.preconditions = new ConcurrentHashMap<Method, Predicate[]>();
+	}
+
+	/**
+	 * Gets all the visible methods of the given type.
+	 * @param type The type whose methods we want to get.
+	 * @param ignoreMethodBlacklist Whether we should ignore
+	 * blacklisted methods.
+	 * @return All of the visible methods of the given type,
+	 * which the caller must not modify.
+	 */
+	public List<Method> getMethods(IJavaType type, boolean ignoreMethodBlacklist) {
+		Map<IJavaType, List<Method>> cache = ignoreMethodBlacklist ? methods : nonBlacklistedMethods;
+		List<Method> result = cache.get(type);
+		if (result == null) {
+			result = ExpressionGenerator.getMethods(type, ignoreMethodBlacklist);
+			cache.put(type, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Gets all the visible fields of the given type.
+	 * @param type The type whose fields we want to get.
+	 * @return All of the visible fields of the given type,
+	 * which the caller must not modify.
+	 */
+	public List<Field> getFields(IJavaType type) {
+		List<Field> result = fields.get(type);
+		if (result == null) {
+			result = ExpressionGenerator.getFields(type);
+			fields.put(type, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Checks the parts of whether the given method is useful to
+	 * search that do not depend on the receiver.
+	 * @param method The method to check.
+	 * @param isConstructor Whether or not we are searching for
+	 * constructors.
+	 * @return Whether we might want to search the given method.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	public boolean isUsefulMethod(Method method, boolean isConstructor) throws DebugException, JavaModelException {
+		int flags = getFlags(method);
+		if ((flags & (isConstructor ? LEGAL_CONSTRUCTOR : LEGAL_METHOD)) == 0)
+			return false;
+		if (!isConstructor && (flags & RETURNS_VOID) != 0)
+			return false;
+		return (flags & (CURRENT_METHOD | DEPRECATED)) == 0;
+	}
+
+	/**
+	 * Checks whether the given method can legally be called.
+	 * @param method The method to check.
+	 * @param isConstructor Whether we are expecting a constructor.
+	 * @return Whether the given method is legal to call.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	public boolean isLegalMethod(Method method, boolean isConstructor) throws DebugException, JavaModelException {
+		return (getFlags(method) & (isConstructor ? LEGAL_CONSTRUCTOR : LEGAL_METHOD)) != 0;
+	}
+
+	/**
+	 * Checks whether the given method is declared in an interface.
+	 * @param method The method to check.
+	 * @return Whether the given method is declared in an interface.
+	 * @throws DebugException
+	 * @throws JavaModelException
+	 */
+	public boolean isInterfaceMethod(Method method) throws DebugException, JavaModelException {
+		return (getFlags(method) & INTERFACE_METHOD) != 0;
+	}
+
+	private int getFlags(Method method) throws DebugException, JavaModelException {
+		Integer cached = methodFlags.get(method);
+		if (cached != null)
+			return cached;
+		int flags = 0;
+		if (ExpressionGenerator.isLegalMethod(method, thisType, false))
+			flags |= LEGAL_METHOD;
+		if (ExpressionGenerator.isLegalMethod(method, thisType, true))
+			flags |= LEGAL_CONSTRUCTOR;
+		if (method.returnTypeName().equals("void"))
+			flags |= RETURNS_VOID;
+		if (method.equals(currentMethod))  // Disable explicit recursion (that is, calling the current method), since it is definitely not yet complete.
+			flags |= CURRENT_METHOD;
+		if (method.declaringType() instanceof InterfaceType)
+			flags |= INTERFACE_METHOD;
+		boolean mightSearch = (flags & LEGAL_CONSTRUCTOR) != 0 || ((flags & LEGAL_METHOD) != 0 && (flags & RETURNS_VOID) == 0);
+		if (mightSearch && (flags & CURRENT_METHOD) == 0) {  // Only look up the source of methods we might search.
+			IMethod imethod = EclipseUtils.getIMethod(method, project);
+			if (imethod != null && Flags.isDeprecated(imethod.getFlags()))
+				flags |= DEPRECATED;
+		}
+		methodFlags.put(method, flags);
+		return flags;
+	}
+
+	/**
+	 * Checks whether the given field is a useful field to
+	 * search or if we should ignore it.
+	 * @param field The field to check.
+	 * @return Whether the given field is useful to search.
+	 * @throws JavaModelException
+	 */
+	public boolean isUsefulField(Field field) throws JavaModelException {
+		Boolean cached = usefulFields.get(field);
+		if (cached != null)
+			return cached;
+		boolean isUseful = true;
+		if (!ExpressionGenerator.isLegalField(field, thisType) || field.isSynthetic())
+			isUseful = false;
+		else {
+			IField ifield = EclipseUtils.getIField(field, project);
+			try {
+				if (ifield != null && Flags.isDeprecated(ifield.getFlags()))
+					isUseful = false;
+			} catch (JavaModelException ex) { }  // We need this for Android for some reason.
+		}
+		usefulFields.put(field, isUseful);
+		return isUseful;
+	}
+
+	/**
+	 * Gets the known preconditions of the given method.
+	 * @param method The method.
+	 * @return The known preconditions of the given method,
+	 * which are empty if we do not know any.
+	 */
+	public Predicate[] getPreconditions(Method method) {
+		Predicate[] result = preconditions.get(method);
+		if (result == null) {
+			result = ExpressionGenerator.lookupPreconditions(method);
+			if (result == null)
+				result = NO_PRECONDITIONS;
+			preconditions.put(method, result);
+		}
+		return result;
+	}
+
+}
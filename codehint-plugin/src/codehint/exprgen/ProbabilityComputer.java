@@ -1,5 +1,8 @@
 package codehint.exprgen;
 
+import java.util.Map;
+
+import codehint.ast.ASTNode;
 import codehint.ast.ASTVisitor;
 import codehint.ast.ArrayAccess;
 import codehint.ast.ClassInstanceCreation;
@@ -20,24 +23,45 @@ public class ProbabilityComputer extends ASTVisitor {
 	
 	private final ExpressionEvaluator expressionEvaluator;
 	private final Weights weights;
+	private final Map<Expression, Double> knownProbabilities;
 	private double prob;
 	private double probSum;
 	private int count;
 	
-	private ProbabilityComputer(ExpressionEvaluator expressionEvaluator, Weights weights) {
+	private ProbabilityComputer(ExpressionEvaluator expressionEvaluator, Weights weights, Map<Expression, Double> knownProbabilities) {
 		this.expressionEvaluator = expressionEvaluator;
 		this.weights = weights;
+		this.knownProbabilities = knownProbabilities;
 		this.prob = 1d;
 		this.probSum = 0d;
 		this.count = 0;
 	}
 	
 	public static double getProbability(Statement stmt, ExpressionEvaluator expressionEvaluator, Weights weights) {
-		return visit(stmt, expressionEvaluator, weights).prob;
+		return visit(stmt, expressionEvaluator, weights, null).prob;
+	}
+	
+	/**
+	 * Gets the probability of the given expression, using the
+	 * given probabilities for any of its subexpressions that
+	 * have them instead of visiting them again.  Since the
+	 * probability of an expression is the product of those of
+	 * its nodes, this is the same as getProbability, but
+	 * scoring an expression built from scored subexpressions
+	 * only visits the new nodes.
+	 * @param expr The expression.
+	 * @param knownProbabilities The probabilities of
+	 * subexpressions we have already computed.
+	 * @param expressionEvaluator The expression evaluator.
+	 * @param weights The weights.
+	 * @return The probability of the given expression.
+	 */
+	public static double getProbability(Expression expr, Map<Expression, Double> knownProbabilities, ExpressionEvaluator expressionEvaluator, Weights weights) {
+		return visit(expr, expressionEvaluator, weights, knownProbabilities).prob;
 	}
 	
 	public static double getNormalizedProbability(Expression expr, ExpressionEvaluator expressionEvaluator, Weights weights) {
-		ProbabilityComputer visitor = visit(expr, expressionEvaluator, weights);
+		ProbabilityComputer visitor = visit(expr, expressionEvaluator, weights, null);
 		if (visitor.probSum == 0) {  // Avoid zero and infinite probabilities.
 			visitor.count = 1;
 			visitor.probSum = weights.getAverageWeight();
@@ -46,11 +70,23 @@ public class ProbabilityComputer extends ASTVisitor {
 		return ret;
 	}
 	
-	private static ProbabilityComputer visit(Statement stmt, ExpressionEvaluator expressionEvaluator, Weights weights) {
-		ProbabilityComputer visitor = new ProbabilityComputer(expressionEvaluator, weights);
+	private static ProbabilityComputer visit(Statement stmt, ExpressionEvaluator expressionEvaluator, Weights weights, Map<Expression, Double> knownProbabilities) {
+		ProbabilityComputer visitor = new ProbabilityComputer(expressionEvaluator, weights, knownProbabilities);
 		stmt.accept(visitor);
 		return visitor;
 	}
+	
+	@Override
+	public boolean preVisit(ASTNode node) {
+		if (knownProbabilities != null) {
+			Double known = knownProbabilities.get(node);
+			if (known != null) {
+				prob *= known;
+				return false;
+			}
+		}
+		return true;
+	}
 
 	@Override
 	public boolean visit(MethodInvocation node) {
@@ -74,7 +110,7 @@ public class ProbabilityComputer extends ASTVisitor {
 		if (method == null)  // During refinement, we might not have an id.
 			return weights.getAverageWeight();
 		else
-			return weights.getWeight(method.declaringType().name(), Weights.getMethodKey(method));
+			return weights.getWeight(method);
 	}
 	
 	@Override
@@ -105,7 +141,7 @@ public class ProbabilityComputer extends ASTVisitor {
 		if (field == null)
 			return weights.getAverageWeight();
 		else
-			return weights.getWeight(field.declaringType().name(), field.name()) * weights.getFieldWeight();  // We bias fields by how often they occur compared to methods: P(field) / P(method).
+			return weights.getWeight(field) * weights.getFieldWeight();  // We bias fields by how often they occur compared to methods: P(field) / P(method).
 	}
 	
 	@Override
@@ -7,16 +7,19 @@ import org.eclipse.jdt.debug.core.IJavaThread;
 import org.eclipse.jdt.debug.core.IJavaValue;
 
 import codehint.effects.Effect;
+import codehint.effects.EffectSetInterner;
 import codehint.utils.Utils;
 
 public class Result {
 	
 	private final Value value;
 	private final Set<Effect> effects;
+	private final int effectsId;
 	
 	public Result(Value value, Set<Effect> effects) {
 		this.value = value;
 		this.effects = effects;
+		this.effectsId = EffectSetInterner.getId(effects);
 	}
 	
 	public Result(Value value) {
@@ -75,6 +78,8 @@ public class Result {
 				return false;
 		} else if (!value.equals(other.value))
 			return false;
+		if (effectsId >= 0 && other.effectsId >= 0)  // Compare canonical effect sets by id rather than by their effects.
+			return effectsId == other.effectsId;
 		if (effects == null) {
 			if (other.effects != null)
 				return false;
@@ -87,18 +87,28 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 	private Map<String, Integer> uniqueValuesSeenForType;
 	
 	public StochasticExpressionGenerator(IJavaDebugTarget target, IJavaStackFrame stack, SideEffectHandler sideEffectHandler, ExpressionMaker expressionMaker, ExpressionEvaluator expressionEvaluator, SubtypeChecker subtypeChecker, TypeCache typeCache, EvaluationManager evalManager, StaticEvaluator staticEvaluator, Weights weights) {
+		this(target, stack, sideEffectHandler, expressionMaker, expressionEvaluator, subtypeChecker, typeCache, evalManager, staticEvaluator, weights, new Random());
+	}
+	
+	/**
+	 * Creates a generator whose choices all come from the given
+	 * random number generator, so that a search with a seeded
+	 * generator can be reproduced.
+	 * @param random The random number generator.
+	 */
+	public StochasticExpressionGenerator(IJavaDebugTarget target, IJavaStackFrame stack, SideEffectHandler sideEffectHandler, ExpressionMaker expressionMaker, ExpressionEvaluator expressionEvaluator, SubtypeChecker subtypeChecker, TypeCache typeCache, EvaluationManager evalManager, StaticEvaluator staticEvaluator, Weights weights, Random random) {
 		super(target, stack, sideEffectHandler, expressionMaker, expressionEvaluator, subtypeChecker, typeCache, evalManager, staticEvaluator, weights);
-		this.random = new Random();
-		this.infixOperators = new WeightedList<InfixExpression.Operator>(new InfixExpression.Operator[] { InfixExpression.Operator.PLUS, InfixExpression.Operator.MINUS, InfixExpression.Operator.TIMES, InfixExpression.Operator.DIVIDE }, new double[] { ExprStats.INFIX_PLUS_PROB, ExprStats.INFIX_MINUS_PROB, ExprStats.INFIX_TIMES_PROB, ExprStats.INFIX_DIV_PROB });
+		this.random = random;
+		this.infixOperators = new WeightedList<InfixExpression.Operator>(new InfixExpression.Operator[] { InfixExpression.Operator.PLUS, InfixExpression.Operator.MINUS, InfixExpression.Operator.TIMES, InfixExpression.Operator.DIVIDE }, new double[] { ExprStats.INFIX_PLUS_PROB, ExprStats.INFIX_MINUS_PROB, ExprStats.INFIX_TIMES_PROB, ExprStats.INFIX_DIV_PROB }, random);
 	}
 
 	@Override
 	public ArrayList<Expression> generateStatement(Property property, TypeConstraint typeConstraint, String varName, boolean searchConstructors, boolean searchOperators, boolean searchStatements, SynthesisDialog synthesisDialog, IProgressMonitor monitor, int maxExprDepth) {
-		this.names = new StaticNameWeightedList(expressionEvaluator, weights);
-		this.primitives = new ExpressionWeightedList(expressionEvaluator, weights);
-		this.objects = new ExpressionWeightedList(expressionEvaluator, weights);
-		this.arrs = new ExpressionWeightedList(expressionEvaluator, weights);
-		this.nulls = new ExpressionWeightedList(expressionEvaluator, weights);
+		this.names = new StaticNameWeightedList(expressionEvaluator, weights, random);
+		this.primitives = new ExpressionWeightedList(expressionEvaluator, weights, random);
+		this.objects = new ExpressionWeightedList(expressionEvaluator, weights, random);
+		this.arrs = new ExpressionWeightedList(expressionEvaluator, weights, random);
+		this.nulls = new ExpressionWeightedList(expressionEvaluator, weights, random);
 		this.candidates = makeCandidateWeightedList(searchOperators);
 		this.candidatesList = new CandidateLists();
 		try {
@@ -227,21 +237,6 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 		}
 	}
 	
-	/**
-	 * Checks whether the given type has a public static field or method.
-	 * @param type The type to check.
-	 * @return Whether the given type has a public static field or method.
-	 */
-	private boolean hasPublicStaticFieldOrMethod(IJavaType type) {
-		for (Method method: getMethods(type, sideEffectHandler))
-			if (method.isStatic() && method.isPublic())
-				return true;
-		for (Field field: getFields(type))
-			if (field.isStatic() && field.isPublic())
-				return true;
-		return false;
-	}
-	
 	/**
 	 * Checks whether the given expression satisfies the given specification.
 	 * @param expr The expression.
@@ -318,11 +313,11 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 		boolean isStatic = expressionEvaluator.isStatic(receiver);
 		IJavaType receiverType = getActualTypeForDowncast(receiver, isStatic);
 		// Get possible fields and methods.
-		MethodFieldWeightedList comps = new TargetedMethodFieldWeightedList(typeConstraint, receiver, weights);
-		for (Method method: getMethods(receiverType, sideEffectHandler))
+		MethodFieldWeightedList comps = new TargetedMethodFieldWeightedList(typeConstraint, receiver, weights, random);
+		for (Method method: memberIndex.getMethods(receiverType, sideEffectHandler.isHandlingSideEffects()))
 			if (isUsefulMethod(method, receiver, searchConstructors && method.isConstructor()) && (!isStatic || method.isStatic()))
 				comps.addWeighted(method);
-		for (Field field: getFields(receiver.getStaticType()))  // TODO: Allow downcasting for field accesses here and in deterministic.
+		for (Field field: memberIndex.getFields(receiver.getStaticType()))  // TODO: Allow downcasting for field accesses here and in deterministic.
 			if (isUsefulField(field) && (!isStatic || field.isStatic()))
 				comps.addWeighted(field);
 		// Access component.
@@ -343,7 +338,7 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 					//System.err.println("I cannot get the class of the arguments to " + objTypeImpl.name() + "." + method.name() + "()");
 					break;
 				}
-				ExpressionWeightedList argChoices = new ExpressionWeightedList(expressionEvaluator, weights);
+				ExpressionWeightedList argChoices = new ExpressionWeightedList(expressionEvaluator, weights, random);
 				argChoices.addAllWeighted(getArgs(candidatesList, receiver, method, overloadChecker, argType, args.size(), -1));
 				Expression arg = argChoices.getWeighted();
 				if (arg == null) {
@@ -384,7 +379,7 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 	 * @throws DebugException
 	 */
 	private Expression extendNumber(Expression num) throws DebugException {
-		ExpressionWeightedList rightChoices = new ExpressionWeightedList(expressionEvaluator, weights);
+		ExpressionWeightedList rightChoices = new ExpressionWeightedList(expressionEvaluator, weights, random);
 		for (Expression expr: primitives)
 			if (EclipseUtils.isInt(expr.getStaticType()))
 				rightChoices.addWeighted(expr);
@@ -420,7 +415,7 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 		Result arrResult = expressionEvaluator.getResult(arr, Collections.<Effect>emptySet());
 		int arrLen = ((IJavaArray)arrResult.getValue().getValue()).getLength();
 		Set<Effect> arrEffects = arrResult.getEffects();
-		ExpressionWeightedList indexChoices = new ExpressionWeightedList(expressionEvaluator, weights);
+		ExpressionWeightedList indexChoices = new ExpressionWeightedList(expressionEvaluator, weights, random);
 		for (Expression expr: primitives)
 			if (EclipseUtils.isInt(expr.getStaticType())) {
 				int index = Integer.parseInt(expressionEvaluator.getValue(expr, arrEffects).getValueString());
@@ -442,8 +437,8 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 		private final TypeConstraint typeConstraint;
 		private final Expression receiver;
 
-		public TargetedMethodFieldWeightedList(TypeConstraint typeConstraint, Expression receiver, Weights weights) {
-			super(weights);
+		public TargetedMethodFieldWeightedList(TypeConstraint typeConstraint, Expression receiver, Weights weights, Random random) {
+			super(weights, random);
 			this.typeConstraint = typeConstraint;
 			this.receiver = receiver;
 		}
@@ -491,7 +486,7 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 	private class ExpressionCombinationWeightedList extends WeightedCombinationWeightedList<Expression> {
 
 		public ExpressionCombinationWeightedList(ArrayList<IWeightedList<Expression>> weightedLists, double[] weights) {
-			super(weightedLists, weights);
+			super(weightedLists, weights, StochasticExpressionGenerator.this.random);
 		}
 
 		public void addWeighted(Expression expr) {
@@ -516,8 +511,8 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 	 */
 	private class StaticNameWeightedList extends ExpressionWeightedList {
 
-		public StaticNameWeightedList(ExpressionEvaluator expressionEvaluator, Weights weights) {
-			super(expressionEvaluator, weights);
+		public StaticNameWeightedList(ExpressionEvaluator expressionEvaluator, Weights weights, Random random) {
+			super(expressionEvaluator, weights, random);
 		}
 		
 		/*
@@ -533,7 +528,7 @@ public class StochasticExpressionGenerator extends ExpressionGenerator {
 				if (!weights.seenType(type.getName()))
 					return weights.getAverageWeight();
 				int methodCount = 0;
-				for (Method method: getMethods(type, sideEffectHandler))
+				for (Method method: memberIndex.getMethods(type, sideEffectHandler.isHandlingSideEffects()))
 					if (method.isStatic() && isUsefulMethod(method, expr, false))
 						methodCount += weights.getMethodCount(method);
 				if (methodCount == 0)
@@ -1,13 +1,14 @@
 package codehint.exprgen;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.jdt.debug.core.IJavaArrayType;
@@ -19,35 +20,39 @@ import org.eclipse.jdt.debug.core.IJavaStackFrame;
 import org.eclipse.jdt.debug.core.IJavaType;
 
 import codehint.utils.EclipseUtils;
+import codehint.utils.KnowledgeBase;
 
 import com.sun.jdi.ClassNotLoadedException;
 
 /**
  * A class that can compute subtype checks and
  * caches the results for efficiency.
+ * We give each reference type we see a dense id and store the
+ * ids of its supertypes in a BitSet, so a subtype check is a
+ * lookup of the two ids and a bit test.
+ * This class is not thread-safe, but once we have added a set
+ * of types on one thread, other threads can check subtypes
+ * among them, since that only reads our caches.
  */
 public class SubtypeChecker {
 	
 	private final Map<IJavaType, Set<IJavaType>> supertypesMap;
+	private final Map<IJavaType, Integer> typeIds;
+	// The ids of the supertypes of each type indexed by its id, or null if we have not computed them.
+	private final List<BitSet> supertypeIds;
 	private final IJavaStackFrame stack;
 	private final IJavaDebugTarget target;
 	private final TypeCache typeCache;
-	private final Map<String, Set<String>> supertypes;
+	private final KnowledgeBase knowledgeBase;
 	
 	public SubtypeChecker(IJavaStackFrame stack, IJavaDebugTarget target, TypeCache typeCache) {
 		this.supertypesMap = new HashMap<IJavaType, Set<IJavaType>>();
+		this.typeIds = new HashMap<IJavaType, Integer>();
+		this.supertypeIds = new ArrayList<BitSet>();
 		this.stack = stack;
 		this.target = target;
 		this.typeCache = typeCache;
-		try {
-			ObjectInputStream is = new ObjectInputStream(new GZIPInputStream(EclipseUtils.getFileFromBundle("data" + System.getProperty("file.separator") + "supertypes.gz")));
-			supertypes = (Map<String, Set<String>>)is.readObject();
-			is.close();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(e);
-		}
+		this.knowledgeBase = KnowledgeBase.getDefault();
 	}
 	
 	/**
@@ -82,7 +87,7 @@ public class SubtypeChecker {
 			if (cur instanceof IJavaReferenceType) {
 				if ("java.lang.Object".equals(expected.getName()))  // Shortcut a common case.  Also, this ensures that interfaces are subtypes of Object.
 					return true;
-				return getSupertypes(cur).contains(expected);
+				return hasSupertype(cur, expected);
 			} else
 				return false;  // We already checked if the two types were .equal.
 		} catch (DebugException e) {
@@ -94,6 +99,69 @@ public class SubtypeChecker {
 		}
 	}
 	
+	/**
+	 * Computes the supertypes of the given types, loading any
+	 * types we need, so that subtype checks whose first type
+	 * is one of them only read our caches.  Since we check
+	 * arrays by their component types, we add those as well.
+	 * @param types The types.
+	 */
+	public void addTypes(Collection<IJavaType> types) {
+		for (IJavaType type: types) {
+			try {
+				while (type instanceof IJavaArrayType)
+					type = ((IJavaArrayType)type).getComponentType();
+			} catch (DebugException e) {
+				if (e.getCause() instanceof ClassNotLoadedException)  // isSubtypeOf does not need the supertypes of component types that are not loaded.
+					continue;
+				throw new RuntimeException(e);
+			}
+			if (type instanceof IJavaReferenceType)
+				getSupertypeIds(type);
+		}
+	}
+	
+	/**
+	 * Checks whether the given reference type has the given
+	 * supertype.
+	 * @param cur The reference type.
+	 * @param expected The possible supertype.
+	 * @return Whether expected is a supertype of cur.
+	 */
+	private boolean hasSupertype(IJavaType cur, IJavaType expected) {
+		BitSet curSupertypes = getSupertypeIds(cur);
+		Integer expectedId = typeIds.get(expected);
+		return expectedId != null && curSupertypes.get(expectedId);  // All of cur's supertypes have ids.
+	}
+	
+	/**
+	 * Gets the ids of the supertypes of the given reference type,
+	 * giving ids to the type and its supertypes if necessary.
+	 * @param type The reference type.
+	 * @return The ids of the supertypes of the given type.
+	 */
+	private BitSet getSupertypeIds(IJavaType type) {
+		int id = getTypeId(type);
+		BitSet ids = supertypeIds.get(id);
+		if (ids == null) {
+			ids = new BitSet();
+			for (IJavaType supertype: getSupertypes(type))
+				ids.set(getTypeId(supertype));
+			supertypeIds.set(id, ids);
+		}
+		return ids;
+	}
+	
+	private int getTypeId(IJavaType type) {
+		Integer id = typeIds.get(type);
+		if (id == null) {
+			id = typeIds.size();
+			typeIds.put(type, id);
+			supertypeIds.add(null);
+		}
+		return id;
+	}
+	
 	/**
 	 * Adds all of the super interfaces of the given interface
 	 * type to the given set.
@@ -110,15 +178,21 @@ public class SubtypeChecker {
 	/**
 	 * Gets the supertypes of the given type.
 	 * @param type The type to check.
-	 * @return The supertypes of the given type.
+	 * @return The supertypes of the given type, which the
+	 * caller must not modify.
 	 */
 	public Set<IJavaType> getSupertypes(IJavaType type) {
 		try {
 			if (type instanceof IJavaArrayType) {
-				Set<IJavaType> result = new HashSet<IJavaType>();
-				for (IJavaType parentElemType: getSupertypes(((IJavaArrayType)type).getComponentType()))
-					result.add(EclipseUtils.getFullyQualifiedType(parentElemType.getName() + "[]", stack, target, typeCache));
-				result.add(EclipseUtils.getFullyQualifiedType("java.lang.Object", stack, target, typeCache));
+				Set<IJavaType> result = supertypesMap.get(type);
+				if (result == null) {
+					result = new HashSet<IJavaType>();
+					for (IJavaType parentElemType: getSupertypes(((IJavaArrayType)type).getComponentType()))
+						result.add(EclipseUtils.getFullyQualifiedType(parentElemType.getName() + "[]", stack, target, typeCache));
+					result.add(EclipseUtils.getFullyQualifiedType("java.lang.Object", stack, target, typeCache));
+					result = Collections.unmodifiableSet(result);
+					supertypesMap.put(type, result);
+				}
 				return result;
 			} else if (type instanceof IJavaReferenceType) {
 				if (!supertypesMap.containsKey(type)) {
@@ -132,7 +206,7 @@ public class SubtypeChecker {
 							supertypes.add(t);
 					} else
 						assert false;
-					supertypesMap.put(type, supertypes);
+					supertypesMap.put(type, Collections.unmodifiableSet(supertypes));
 				}
 				return supertypesMap.get(type);
 			} else {
@@ -163,7 +237,7 @@ public class SubtypeChecker {
 		}
 		if (cur.endsWith("[]"))
 			return StringSubtype.NOT_SUBTYPE;
-		Set<String> curSupertypes = supertypes.get(cur.replace('$', '.'));
+		Set<String> curSupertypes = knowledgeBase.getSupertypes(cur.replace('$', '.'));
 		if (curSupertypes == null)
 			return StringSubtype.UNKNOWN;
 		else if (curSupertypes.contains(expected.replace('$', '.')))
@@ -28,6 +28,13 @@ public class Value {
 		this.valueCache = valueCache;
 	}
 	
+	private Value(IJavaValue value, int hashCode, IJavaThread thread, ValueCache valueCache) {
+		this.value = value;
+		this.thread = thread;
+		this.hashCode = hashCode;
+		this.valueCache = valueCache;
+	}
+	
 	public static Value makeValue(IJavaValue value, ValueCache valueCache, IJavaThread thread) {
 		try {
 			Value wrapper = valueCache.getValue(value);
@@ -44,6 +51,26 @@ public class Value {
 		}
 	}
 	
+	/**
+	 * Makes a Value for the given object whose hash code the
+	 * child VM already computed, which saves us from asking
+	 * for it.
+	 * @param value The object, which must not be a String,
+	 * an array, or a class object.
+	 * @param hashCode The object's hash code.
+	 * @param valueCache The value cache.
+	 * @param thread The current thread.
+	 * @return The Value for the given object.
+	 */
+	public static Value makeObjectValue(IJavaObject value, int hashCode, ValueCache valueCache, IJavaThread thread) {
+		Value wrapper = valueCache.getValue(value);
+		if (wrapper != null)
+			return wrapper;
+		wrapper = new Value(value, hashCode, thread, valueCache);
+		valueCache.addValue(wrapper);
+		return wrapper;
+	}
+	
 	protected int getMyHashCode() {
 		try {
 			return getHashCode(value);
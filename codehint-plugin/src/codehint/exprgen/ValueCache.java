@@ -1,8 +1,15 @@
 package codehint.exprgen;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.eclipse.debug.core.DebugException;
 import org.eclipse.jdt.debug.core.IJavaDebugTarget;
@@ -11,34 +18,81 @@ import org.eclipse.jdt.debug.core.IJavaThread;
 import org.eclipse.jdt.debug.core.IJavaValue;
 
 import codehint.utils.UnorderedPair;
+import codehint.utils.Utils;
 
 /**
  * A class that caches Value wrappers.
+ * We keep the most recently used values in bounded maps.
+ * Values evicted from them are only held weakly, so we keep
+ * using them while some Result refers to them but do not keep
+ * them alive ourselves.  Strings we create in the child VM
+ * must not be collected while we use them, so we unpin each
+ * one once we have evicted it and its Value has been collected.
  */
 public class ValueCache {
 	
+	// The maximum number of values we keep alive ourselves.
+	private static final int MAX_VALUES = 50000;
+	// The maximum number of Strings we keep pinned in the child VM ourselves.
+	private static final int MAX_PINNED_STRINGS = 5000;
+	private static final int MAX_OBJECT_EQUALS = 100000;
+	// The maximum number of objects with the same hash code whose equalities we record.
+	private static final int MAX_COLLISIONS = 16;
+	
 	private final IJavaDebugTarget target;
 	private final IJavaThread thread;
 	private final Map<IJavaValue, Value> valueCache;
+	private final Map<IJavaValue, WeakReference<Value>> evictedValues;
 	private final Map<Integer, Value> intVals;
 	private final Value f;
 	private final Value t;
 	private final Map<String, Value> stringVals;
-	private final ArrayList<IJavaObject> collectionDisableds;
+	private final Map<String, PinnedString> evictedStrings;
+	private final ReferenceQueue<Value> collectedStrings;
+	private final Set<IJavaObject> collectionDisableds;
 	private final Map<UnorderedPair<IJavaObject, IJavaObject>, Boolean> objectEquals;
 	private final Value voidValue;
+	private int numUnpinned;
 	
 	public ValueCache(IJavaDebugTarget target, IJavaThread thread) {
 		this.target = target;
 		this.thread = thread;
-		valueCache = new HashMap<IJavaValue, Value>();
+		evictedValues = new WeakHashMap<IJavaValue, WeakReference<Value>>();
+		valueCache = new LinkedHashMap<IJavaValue, Value>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<IJavaValue, Value> eldest) {
+				if (size() <= MAX_VALUES)
+					return false;
+				evictedValues.put(eldest.getKey(), new WeakReference<Value>(eldest.getValue()));
+				return true;
+			}
+		};
 		intVals = new HashMap<Integer, Value>();
+		evictedStrings = new HashMap<String, PinnedString>();
+		collectedStrings = new ReferenceQueue<Value>();
+		stringVals = new LinkedHashMap<String, Value>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Value> eldest) {
+				if (size() <= MAX_PINNED_STRINGS)
+					return false;
+				evictedStrings.put(eldest.getKey(), new PinnedString(eldest.getKey(), eldest.getValue(), collectedStrings));
+				return true;
+			}
+		};
+		collectionDisableds = new HashSet<IJavaObject>();
+		objectEquals = new LinkedHashMap<UnorderedPair<IJavaObject, IJavaObject>, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<UnorderedPair<IJavaObject, IJavaObject>, Boolean> eldest) {
+				return size() > MAX_OBJECT_EQUALS;
+			}
+		};
 		t = Value.makeValue(target.newValue(true), this, thread);
 		f = Value.makeValue(target.newValue(false), this, thread);
-		stringVals = new HashMap<String, Value>();
-		collectionDisableds = new ArrayList<IJavaObject>();
-		objectEquals = new HashMap<UnorderedPair<IJavaObject, IJavaObject>, Boolean>();
 		this.voidValue = Value.makeValue(target.voidValue(), this, thread);
+		this.numUnpinned = 0;
 	}
 	
 	/**
@@ -49,7 +103,13 @@ public class ValueCache {
 	 * or null if none exists.
 	 */
 	public Value getValue(IJavaValue value) {
-		return valueCache.get(value); 
+		Value result = valueCache.get(value);
+		if (result == null) {
+			WeakReference<Value> ref = evictedValues.remove(value);
+			if (ref != null && (result = ref.get()) != null)
+				valueCache.put(result.getValue(), result);
+		}
+		return result;
 	}
 	
 	/**
@@ -89,10 +149,20 @@ public class ValueCache {
 	 * @return The IJavaValue for the given String.
 	 */
 	public Value getStringJavaValue(String s) {
+		unpinCollectedStrings();
 		Value value = stringVals.get(s);
 		try {
 			if (value == null) {
-				value = new StringValue(disableObjectCollection((IJavaObject)target.newValue(s)), thread, this);
+				PinnedString evicted = evictedStrings.remove(s);
+				if (evicted != null) {
+					value = evicted.get();
+					if (value != null)
+						evicted.clear();  // We use this value again, so we must not unpin it when this reference is collected.
+					else
+						unpin(evicted);
+				}
+				if (value == null)
+					value = new StringValue(disableObjectCollection((IJavaObject)target.newValue(s)), thread, this);
 				stringVals.put(s, value);
 			} else
 				assert value.getValue().isAllocated();  // This check is somewhat slow, so we put it in an assertion.
@@ -116,6 +186,37 @@ public class ValueCache {
 		}
 		collectionDisableds.clear();
 		stringVals.clear();
+		for (PinnedString evicted: evictedStrings.values())
+			evicted.clear();
+		evictedStrings.clear();
+		while (collectedStrings.poll() != null) {
+			// The objects are already collectable.
+		}
+	}
+	
+	/**
+	 * Allows the child VM to collect the Strings we evicted
+	 * whose Values are no longer used.
+	 */
+	private void unpinCollectedStrings() {
+		Reference<? extends Value> ref;
+		while ((ref = collectedStrings.poll()) != null) {
+			PinnedString collected = (PinnedString)ref;
+			if (evictedStrings.get(collected.string) == collected)
+				evictedStrings.remove(collected.string);
+			unpin(collected);
+		}
+	}
+	
+	private void unpin(PinnedString evicted) {
+		if (collectionDisableds.remove(evicted.object)) {
+			try {
+				evicted.object.enableCollection();
+			} catch (DebugException e) {
+				throw new RuntimeException(e);
+			}
+			numUnpinned++;
+		}
 	}
 
 	/**
@@ -147,8 +248,63 @@ public class ValueCache {
 		return result;
 	}
 	
+	/**
+	 * Records which of the given objects are equal so that we
+	 * do not need to ask the child VM when their hash codes
+	 * collide.  The child VM computed the hash codes and gave
+	 * objects that are equal to an earlier one the same class.
+	 * It compared each object against the first object of each
+	 * earlier class in order until it found an equal one, so
+	 * those are the only pairs whose equality we know.
+	 * @param objects The objects.
+	 * @param hashed Whether we know the hash code and equality
+	 * class of each object.
+	 * @param hashCodes The hash codes of the objects.
+	 * @param classes The equality classes of the objects.
+	 */
+	public void addEqualityClasses(IJavaValue[] objects, boolean[] hashed, int[] hashCodes, int[] classes) {
+		Map<Integer, ArrayList<Integer>> objectsByHash = new HashMap<Integer, ArrayList<Integer>>();
+		for (int i = 0; i < objects.length; i++)
+			if (hashed[i])
+				Utils.addToListMap(objectsByHash, hashCodes[i], i);
+		for (ArrayList<Integer> collisions: objectsByHash.values())
+			for (int i = 1; i < collisions.size() && i < MAX_COLLISIONS; i++)
+				for (int j = 0; j < i; j++) {
+					int x = collisions.get(i);
+					int y = collisions.get(j);
+					if (classes[y] != y + 1 || y + 1 > classes[x])
+						continue;  // The child never compared these two objects.
+					objectEquals.put(new UnorderedPair<IJavaObject, IJavaObject>((IJavaObject)objects[x], (IJavaObject)objects[y]), classes[x] == y + 1);
+				}
+	}
+	
 	public Value voidValue() {
 		return voidValue;
 	}
+	
+	/**
+	 * Gets a summary of how full the cache is.
+	 * @return A summary of how full the cache is.
+	 */
+	public String getStats() {
+		return valueCache.size() + " cached values (" + evictedValues.size() + " evicted but alive), " + stringVals.size() + " cached Strings (" + evictedStrings.size() + " evicted but alive), " + collectionDisableds.size() + " pinned objects (" + numUnpinned + " unpinned after eviction), and " + objectEquals.size() + " cached equality checks";
+	}
+	
+	/**
+	 * A weak reference to the Value of a String we evicted
+	 * that remembers the object we pinned for it.
+	 */
+	private static class PinnedString extends WeakReference<Value> {
+		
+		private final String string;
+		private final IJavaObject object;
+		
+		public PinnedString(String string, Value value, ReferenceQueue<Value> queue) {
+			super(value, queue);
+			this.string = string;
+			this.object = (IJavaObject)value.getValue();
+		}
+		
+	}
 
 }
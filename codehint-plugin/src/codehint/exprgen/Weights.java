@@ -1,15 +1,14 @@
 package codehint.exprgen;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 
 import com.sun.jdi.Field;
 import com.sun.jdi.Method;
+import com.sun.jdi.TypeComponent;
 
-import codehint.utils.EclipseUtils;
+import codehint.utils.KnowledgeBase;
 import codehint.utils.Utils;
 
 /**
@@ -20,63 +19,62 @@ import codehint.utils.Utils;
  * method/field was seen.  We also store the average weight of all
  * things in the database and the total number of calls/accesses
  * in the database.
+ * The data itself lives in the KnowledgeBase shared by all dialogs.
+ * We give each method and field we look up a dense id the first
+ * time we see it and store what we know about it in arrays
+ * indexed by that id, so later lookups do not build string keys.
  */
-@SuppressWarnings("unchecked")
 public class Weights {
 
-	private final Map<String, Map<String, Integer>> weights;
-	private final Map<String, Map<String, Integer>> methodsForConstants;
-	private final double averageWeight;
-	private final long total;
-	private final double fieldWeight;
+	private static final byte RARE = 1;
+	private static final byte UNCOMMON = 2;
+
+	private final KnowledgeBase knowledgeBase;
+	private final Map<TypeComponent, Integer> memberIds;
+	private double[] memberWeights;
+	private int[] memberCounts;
+	private byte[] memberFlags;
+	// The prefixes of the keys of the locations where constants are used, which we only compute for methods passed constants.
+	private String[] constantLocationPrefixes;
 
 	public Weights() {
-		try {
-			ObjectInputStream is = new ObjectInputStream(new GZIPInputStream(EclipseUtils.getFileFromBundle("data" + System.getProperty("file.separator") + "weights.gz")));
-			weights = (Map<String, Map<String, Integer>>)is.readObject();
-			methodsForConstants = (Map<String, Map<String, Integer>>)is.readObject();
-			averageWeight = is.readDouble();
-			total = is.readLong();
-			fieldWeight = is.readDouble();
-			is.close();
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(e);
-		}
+		knowledgeBase = KnowledgeBase.getDefault();
+		memberIds = new HashMap<TypeComponent, Integer>();
+		memberWeights = new double[256];
+		memberCounts = new int[256];
+		memberFlags = new byte[256];
+		constantLocationPrefixes = new String[256];
 	}
 	
 	public double getAverageWeight() {
-		return averageWeight;
+		return knowledgeBase.getAverageWeight();
 	}
 	
 	public long getTotal() {
-		return total;
+		return knowledgeBase.getTotal();
 	}
 	
 	public double getFieldWeight() {
-		return fieldWeight;
+		return knowledgeBase.getFieldWeight();
 	}
 	
 	// Note: Type keys do not use $ for nested types but method/field keys do.
 	
 	public double getWeight(String typeName, String key) {
-		Map<String, Integer> calls = weights.get(typeName.replace("$", "."));
+		Map<String, Integer> calls = knowledgeBase.getWeights(typeName.replace("$", "."));
 		if (calls == null)
-			return averageWeight;
+			return getAverageWeight();
 		/*int numCallsOn = Utils.getValueTotal(calls);
 		assert numCallsOn > 0;*/
 		Integer numCallsTo = calls.get(key);
 		if (numCallsTo == null)
-			return 0.1d / total;
+			return 0.1d / getTotal();
 		//return numCallsTo / (double)numCallsOn;
 		return numCallsTo / (double)getTotal();
 	}
 	
 	public boolean isRare(String typeName, String key) {
-		Map<String, Integer> calls = weights.get(typeName.replace("$", "."));
+		Map<String, Integer> calls = knowledgeBase.getWeights(typeName.replace("$", "."));
 		if (calls == null)
 			return false;
 		Integer numCallsTo = calls.get(key);
@@ -88,7 +86,7 @@ public class Weights {
 	}
 	
 	public boolean isUncommon(String typeName, String key) {
-		Map<String, Integer> calls = weights.get(typeName.replace("$", "."));
+		Map<String, Integer> calls = knowledgeBase.getWeights(typeName.replace("$", "."));
 		if (calls == null)
 			return false;
 		Integer numCallsTo = calls.get(key);
@@ -98,27 +96,82 @@ public class Weights {
 		return numCallsTo < ((numCallsOn / (double)calls.size()) / 5);
 	}
 	
-	public int getMethodCount(Method method) {
-		Map<String, Integer> calls = weights.get(method.declaringType().name().replace("$", "."));
-		if (calls == null)
-			return 0;
-		Integer count = calls.get(getMethodKey(method));
-		return count == null ? 0 : count;
+	public synchronized double getWeight(Method method) {
+		return memberWeights[getMemberId(method)];
+	}
+	
+	public synchronized double getWeight(Field field) {
+		return memberWeights[getMemberId(field)];
+	}
+	
+	public synchronized boolean isRare(Method method) {
+		return (memberFlags[getMemberId(method)] & RARE) != 0;
+	}
+	
+	public synchronized boolean isRare(Field field) {
+		return (memberFlags[getMemberId(field)] & RARE) != 0;
+	}
+	
+	public synchronized boolean isUncommon(Method method) {
+		return (memberFlags[getMemberId(method)] & UNCOMMON) != 0;
+	}
+	
+	public synchronized int getMethodCount(Method method) {
+		return memberCounts[getMemberId(method)];
 	}
 	
 	public boolean seenMethod(Method method) {
 		return getMethodCount(method) != 0;
 	}
 	
+	/**
+	 * Gets the id of the given method or field, looking up
+	 * what we know about it if this is the first time we
+	 * have seen it.
+	 * @param member The method or field.
+	 * @return The id of the given method or field.
+	 */
+	private int getMemberId(TypeComponent member) {
+		Integer id = memberIds.get(member);
+		if (id != null)
+			return id;
+		int newId = memberIds.size();
+		if (newId == memberCounts.length) {
+			int newLength = 2 * newId;
+			memberWeights = Arrays.copyOf(memberWeights, newLength);
+			memberCounts = Arrays.copyOf(memberCounts, newLength);
+			memberFlags = Arrays.copyOf(memberFlags, newLength);
+			constantLocationPrefixes = Arrays.copyOf(constantLocationPrefixes, newLength);
+		}
+		String typeName = member.declaringType().name();
+		String key = member instanceof Method ? getMethodKey((Method)member) : member.name();
+		memberWeights[newId] = getWeight(typeName, key);
+		Map<String, Integer> calls = knowledgeBase.getWeights(typeName.replace("$", "."));
+		Integer count = calls == null ? null : calls.get(key);
+		memberCounts[newId] = count == null ? 0 : count;
+		byte flags = 0;
+		if (isRare(typeName, key))
+			flags |= RARE;
+		if (isUncommon(typeName, key))
+			flags |= UNCOMMON;
+		memberFlags[newId] = flags;
+		memberIds.put(member, newId);
+		return newId;
+	}
+	
 	public boolean seenType(String typeName) {
-		return weights.get(typeName.replace("$", ".")) != null;
+		return knowledgeBase.getWeights(typeName.replace("$", ".")) != null;
 	}
 
-	public boolean isBadConstant(Method method, int i, Field field) {
-		Map<String, Integer> locations = methodsForConstants.get(field.declaringType().name().replace("$", ".") + "." + field.name());
+	public synchronized boolean isBadConstant(Method method, int i, Field field) {
+		Map<String, Integer> locations = knowledgeBase.getConstantUses(field.declaringType().name().replace("$", ".") + "." + field.name());
 		if (locations == null)
 			return false;
-		Integer numUsesWith = locations.get(method.declaringType().name() + "~" + getMethodKey(method) + "~" + i);
+		int id = getMemberId(method);
+		String prefix = constantLocationPrefixes[id];
+		if (prefix == null)
+			prefix = constantLocationPrefixes[id] = method.declaringType().name() + "~" + getMethodKey(method) + "~";
+		Integer numUsesWith = locations.get(prefix + i);
 		return numUsesWith == null;
 	}
 	
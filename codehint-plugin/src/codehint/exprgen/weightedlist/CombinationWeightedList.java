@@ -10,7 +10,7 @@ import java.util.Random;
  */
 public abstract class CombinationWeightedList<T> implements IWeightedList<T> {
 	
-	protected static final Random random = new Random();
+	protected final Random random;
 	
 	// I use a List rather than an array here because Java doesn't let you create generic arrays because of covariance, but you can create generic lists.
 	protected final List<IWeightedList<T>> weightedLists;
@@ -20,7 +20,18 @@ public abstract class CombinationWeightedList<T> implements IWeightedList<T> {
 	 * @param weightedLists The component weighted lists.
 	 */
 	public CombinationWeightedList(List<IWeightedList<T>> weightedLists) {
+		this(weightedLists, WeightedList.defaultRandom);
+	}
+
+	/**
+	 * Constructs a new combination weighted list.
+	 * @param weightedLists The component weighted lists.
+	 * @param random The random number generator to use
+	 * when choosing a component list.
+	 */
+	public CombinationWeightedList(List<IWeightedList<T>> weightedLists, Random random) {
 		this.weightedLists = weightedLists;
+		this.random = random;
 	}
 
 	@Override
@@ -1,5 +1,7 @@
 package codehint.exprgen.weightedlist;
 
+import java.util.Random;
+
 import codehint.ast.Expression;
 import codehint.exprgen.ExpressionEvaluator;
 import codehint.exprgen.ProbabilityComputer;
@@ -11,6 +13,11 @@ public class ExpressionWeightedList extends SimpleWeightedList<Expression> {
 	private final Weights weights;
 	
 	public ExpressionWeightedList(ExpressionEvaluator expressionEvaluator, Weights weights) {
+		this(expressionEvaluator, weights, defaultRandom);
+	}
+	
+	public ExpressionWeightedList(ExpressionEvaluator expressionEvaluator, Weights weights, Random random) {
+		super(random);
 		this.expressionEvaluator = expressionEvaluator;
 		this.weights = weights;
 	}
@@ -1,5 +1,7 @@
 package codehint.exprgen.weightedlist;
 
+import java.util.Random;
+
 import com.sun.jdi.Field;
 import com.sun.jdi.Method;
 import com.sun.jdi.TypeComponent;
@@ -12,6 +14,11 @@ public class MethodFieldWeightedList extends SimpleWeightedList<TypeComponent> {
 	private final Weights weights;
 	
 	public MethodFieldWeightedList(Weights weights) {
+		this(weights, defaultRandom);
+	}
+	
+	public MethodFieldWeightedList(Weights weights, Random random) {
+		super(random);
 		this.weights = weights;
 	}
 
@@ -1,6 +1,7 @@
 package codehint.exprgen.weightedlist;
 
 import java.util.List;
+import java.util.Random;
 
 /**
  * A weighted list of elements that knows how to
@@ -10,6 +11,22 @@ import java.util.List;
  */
 public abstract class SimpleWeightedList<T> extends WeightedList<T> {
 
+	/**
+	 * Creates an empty list.
+	 */
+	public SimpleWeightedList() {
+		super();
+	}
+
+	/**
+	 * Creates an empty list.
+	 * @param random The random number generator to use
+	 * when choosing elements.
+	 */
+	public SimpleWeightedList(Random random) {
+		super(random);
+	}
+
 	/**
 	 * Computes the weight of elements in the list.
 	 * @param elem An element.
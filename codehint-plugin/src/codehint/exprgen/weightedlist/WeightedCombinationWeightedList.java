@@ -1,6 +1,7 @@
 package codehint.exprgen.weightedlist;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 /**
  * A weighted list built out of other weighted lists
@@ -11,6 +12,7 @@ import java.util.ArrayList;
 public abstract class WeightedCombinationWeightedList<T> extends CombinationWeightedList<T> {
 	
 	private final double[] weights;
+	private final double totalWeight;
 
 	/**
 	 * Constructs a new combination weighted list.
@@ -18,16 +20,31 @@ public abstract class WeightedCombinationWeightedList<T> extends CombinationWeig
 	 * @param weights The weights of the component lists.
 	 */
 	public WeightedCombinationWeightedList(ArrayList<IWeightedList<T>> weightedLists, double[] weights) {
-		super(weightedLists);
+		this(weightedLists, weights, WeightedList.defaultRandom);
+	}
+
+	/**
+	 * Constructs a new combination weighted list.
+	 * @param weightedLists The component weighted lists.
+	 * @param weights The weights of the component lists.
+	 * @param random The random number generator to use
+	 * when choosing a component list.
+	 */
+	public WeightedCombinationWeightedList(ArrayList<IWeightedList<T>> weightedLists, double[] weights, Random random) {
+		super(weightedLists, random);
 		assert weightedLists.size() == weights.length;
 		this.weights = weights;
+		double totalWeight = 0;
+		for (double weight: weights)
+			totalWeight += weight;
+		this.totalWeight = totalWeight;
 	}
 
 	@Override
 	public T getWeighted() {
 		if (size() == 0)
 			return null;
-		double rand = random.nextDouble() * getTotalWeight();
+		double rand = random.nextDouble() * totalWeight;
 		for (int i = 0; i < weightedLists.size(); i++)
 			if (rand < weights[i])
 				return weightedLists.get(i).getWeighted();
@@ -38,9 +55,6 @@ public abstract class WeightedCombinationWeightedList<T> extends CombinationWeig
 
 	@Override
 	public double getTotalWeight() {
-		double totalWeight = 0;
-		for (double weight: weights)
-			totalWeight += weight;
 		return totalWeight;
 	}
 	
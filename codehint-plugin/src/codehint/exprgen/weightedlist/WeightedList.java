@@ -1,57 +1,95 @@
 package codehint.exprgen.weightedlist;
 
 import java.util.AbstractList;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Random;
 
 /**
  * A class that represents a weighted list of elements.
  * These elements can be extracted with probability
  * proportional to their weights.
+ * We store the elements and the running sums of their
+ * weights in parallel arrays, so adding an element is
+ * amortized constant time and sampling is a binary search
+ * over primitive doubles.
  *
  * @param <T> The type of the elements in the list.
  */
 public class WeightedList<T> extends AbstractList<T> implements IWeightedList<T> {
-	
-	protected final ArrayList<T> elems;
-	protected final ArrayList<Double> cumulativeWeights;
+
+	/**
+	 * The random number generator used by lists that are
+	 * not given one.
+	 */
+	static final Random defaultRandom = new Random();
+
+	private Object[] elems;
+	private double[] cumulativeWeights;
+	private int size;
 	protected double totalWeight;
-	protected static final Random random = new Random();
-	
+	protected final Random random;
+
 	/**
 	 * Creates an empty list.
 	 */
 	public WeightedList() {
-		this.elems = new ArrayList<T>();
-		this.cumulativeWeights = new ArrayList<Double>();
-		totalWeight = 0d;
+		this(defaultRandom);
+	}
+
+	/**
+	 * Creates an empty list.
+	 * @param random The random number generator to use
+	 * when choosing elements.
+	 */
+	public WeightedList(Random random) {
+		this.elems = new Object[8];
+		this.cumulativeWeights = new double[8];
+		this.size = 0;
+		this.totalWeight = 0d;
+		this.random = random;
 	}
-	
+
 	public WeightedList(T[] elems, double[] weights) {
-		this();
+		this(elems, weights, defaultRandom);
+	}
+
+	public WeightedList(T[] elems, double[] weights, Random random) {
+		this(random);
 		for (int i = 0; i < elems.length; i++)
 			addWeighted(elems[i], weights[i]);
 	}
-	
+
 	public void addWeighted(T elem, double weight) {
-		elems.add(elem);
+		if (size == elems.length) {
+			int newLength = size * 2;
+			elems = Arrays.copyOf(elems, newLength);
+			cumulativeWeights = Arrays.copyOf(cumulativeWeights, newLength);
+		}
 		totalWeight += weight;
-		cumulativeWeights.add(totalWeight);
+		elems[size] = elem;
+		cumulativeWeights[size] = totalWeight;
+		size++;
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see codehint.exprgen.weightedlist.WeightedList#getWeighted()
 	 */
 	@Override
 	public T getWeighted() {
-		if (elems.isEmpty())
+		if (size == 0)
 			return null;
 		double rand = random.nextDouble() * totalWeight;
-		int index = Collections.binarySearch(cumulativeWeights, rand);
-		if (index < 0)  // If we happen to pick a number in the list, we use it.
-			index = -index - 1;
-		return elems.get(index);
+		// Find the first element whose cumulative weight is greater than the random number, which skips elements with no weight.
+		int lo = 0;
+		int hi = size - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (cumulativeWeights[mid] > rand)
+				hi = mid;
+			else
+				lo = mid + 1;
+		}
+		return get(lo);
 	}
 
 	/* (non-Javadoc)
@@ -61,15 +99,15 @@ public class WeightedList<T> extends AbstractList<T> implements IWeightedList<T>
 	public double getTotalWeight() {
 		return totalWeight;
 	}
-	
+
 	/* (non-Javadoc)
 	 * @see codehint.exprgen.weightedlist.WeightedList#size()
 	 */
 	@Override
 	public int size() {
-		return elems.size();
+		return size;
 	}
-	
+
 	/**
 	 * Gets the element at the specified index,
 	 * ignoring the weights.
@@ -77,22 +115,24 @@ public class WeightedList<T> extends AbstractList<T> implements IWeightedList<T>
 	 * @return The element stored at the specified
 	 * index, ignoring the weights.
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public T get(int index) {
-		return elems.get(index);
+		if (index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		return (T)elems[index];
 	}
-	
+
 	@Override
 	public String toString() {
-		int numElems = elems.size();
-		if (numElems == 0)
+		if (size == 0)
 			return "";
 		StringBuilder sb = new StringBuilder();
 		double cumulativeWeight = 0d;
 		for (int i = 0; true; i++) {
-			double curCumulativeWeight = cumulativeWeights.get(i);
-			sb.append(elems.get(i)).append("(").append(curCumulativeWeight - cumulativeWeight).append(")");
-			if (i == numElems - 1)
+			double curCumulativeWeight = cumulativeWeights[i];
+			sb.append(elems[i]).append("(").append(curCumulativeWeight - cumulativeWeight).append(")");
+			if (i == size - 1)
 				break;
 			cumulativeWeight = curCumulativeWeight;
 			sb.append(", ");
@@ -1,10 +1,13 @@
 package codehint.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -386,29 +389,58 @@ public final class EclipseUtils {
     /**
      * Extracts the codehint-library.jar file from the plugin's
      * jar file into the plugin's working directory, if it is not
-     * already there.
+     * already there.  We replace a copy extracted from an older
+     * version of the plugin, since it would lack the library
+     * methods the plugin expects.
      * @param stack The stack frame.
      */
     private static File extractLibrary(IJavaStackFrame stack) {
 		IJavaProject project = getProject(stack);
 		String fileSep = System.getProperty("file.separator");
 		File outFile = new File(getPluginWorkingLocation(project) + fileSep + "codehint-lib.jar");
-    	if (!outFile.exists()) {
-        	try {
-	    		InputStream is = getFileFromBundle("lib" + fileSep + "codehint-lib.jar");
-		    	FileOutputStream os = new FileOutputStream(outFile);
-		    	int c;
-		    	while ((c = is.read()) != -1)
-		    		os.write(c);
-		    	is.close();
-		    	os.close();
-    		} catch (IOException e) {
-    			outFile.delete();
-    			throw new RuntimeException(e);
+    	try {
+    		byte[] bundled = readFully(getFileFromBundle("lib" + fileSep + "codehint-lib.jar"));
+    		if (outFile.exists() && outFile.length() == bundled.length && Arrays.equals(readFully(new FileInputStream(outFile)), bundled))
+    			return outFile;
+    		File tmpFile = File.createTempFile("codehint-lib", ".tmp", outFile.getParentFile());
+    		try {
+		    	FileOutputStream os = new FileOutputStream(tmpFile);
+		    	try {
+		    		os.write(bundled);
+		    	} finally {
+		    		os.close();
+		    	}
+		    	if (outFile.exists() && !outFile.delete())  // Another VM might still be using the old copy, so keep it.
+		    		return outFile;
+		    	if (!tmpFile.renameTo(outFile))
+		    		throw new IOException("Could not create " + outFile);
+    		} finally {
+    			tmpFile.delete();
     		}
-    	}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
     	return outFile;
     }
+    
+    /**
+     * Reads the rest of the given stream and closes it.
+     * @param is The stream to read.
+     * @return The bytes left in the given stream.
+     * @throws IOException
+     */
+    private static byte[] readFully(InputStream is) throws IOException {
+    	try {
+	    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	    	byte[] buffer = new byte[8192];
+	    	int n;
+	    	while ((n = is.read(buffer)) != -1)
+	    		bytes.write(buffer, 0, n);
+	    	return bytes.toByteArray();
+    	} finally {
+    		is.close();
+    	}
+    }
 
     /**
      * Gets an input stream to a file stored in the plugin's
@@ -0,0 +1,77 @@
+package codehint.utils;
+
+/**
+ * A map from AST node ids to values.
+ * Ids come from a single increasing counter, so rather than
+ * boxing and hashing them, we store the values in pages of
+ * an array indexed by the id.  Pages are only allocated when
+ * we store a value in them, since a map often contains only
+ * the ids created during one synthesis.
+ */
+public final class IdMap<V> {
+
+	private static final int PAGE_BITS = 10;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private Object[][] pages;
+	private int size;
+
+	public IdMap() {
+		this.pages = new Object[16][];
+		this.size = 0;
+	}
+
+	/**
+	 * Creates a copy of the given map.
+	 * @param other The map to copy.
+	 */
+	public IdMap(IdMap<V> other) {
+		this.pages = new Object[other.pages.length][];
+		for (int i = 0; i < pages.length; i++)
+			if (other.pages[i] != null)
+				pages[i] = other.pages[i].clone();
+		this.size = other.size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int id) {
+		int pageIndex = id >>> PAGE_BITS;
+		if (pageIndex >= pages.length)
+			return null;
+		Object[] page = pages[pageIndex];
+		return page == null ? null : (V)page[id & PAGE_MASK];
+	}
+
+	public void put(int id, V value) {
+		int pageIndex = id >>> PAGE_BITS;
+		if (pageIndex >= pages.length) {
+			if (value == null)
+				return;
+			Object[][] newPages = new Object[Math.max(pages.length * 2, pageIndex + 1)][];
+			System.arraycopy(pages, 0, newPages, 0, pages.length);
+			pages = newPages;
+		}
+		Object[] page = pages[pageIndex];
+		if (page == null) {
+			if (value == null)
+				return;
+			page = pages[pageIndex] = new Object[PAGE_SIZE];
+		}
+		int index = id & PAGE_MASK;
+		if (page[index] == null && value != null)
+			size++;
+		else if (page[index] != null && value == null)
+			size--;
+		page[index] = value;
+	}
+
+	public boolean containsKey(int id) {
+		return get(id) != null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+}
@@ -0,0 +1,290 @@
+package codehint.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.Platform;
+
+import codehint.Activator;
+
+/**
+ * Our database of the methods and fields seen in real code,
+ * the supertypes of library types, and the library fields
+ * that are never modified.
+ * We convert the gz files in the plugin into a compact binary
+ * format (see KnowledgeBaseWriter) in the plugin's state
+ * location the first time we need them and memory-map that
+ * file, so opening a dialog does not need to deserialize
+ * anything.  We decode the data for a type the first time
+ * we ask about it and share it across all dialogs.
+ */
+public final class KnowledgeBase {
+
+	private static KnowledgeBase instance;
+
+	private final ByteBuffer buffer;
+	private final double averageWeight;
+	private final long total;
+	private final double fieldWeight;
+	private final int numStrings;
+	private final int stringOffsetsStart;
+	private final int stringDataStart;
+	private final int weightsStart;
+	private final int constantsStart;
+	private final int supertypesStart;
+	private final int notModStart;
+	private final Map<String, Map<String, Integer>> weightsCache;
+	private final Map<String, Map<String, Integer>> constantsCache;
+	private final Map<String, Set<String>> supertypesCache;
+
+	/**
+	 * Memory-maps the given knowledge base.
+	 * @param file The file written by KnowledgeBaseWriter.
+	 * @throws IOException
+	 */
+	public KnowledgeBase(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		if (buffer.getInt(0) != KnowledgeBaseWriter.MAGIC || buffer.getInt(4) != KnowledgeBaseWriter.VERSION)
+			throw new IOException(file + " is not a knowledge base of version " + KnowledgeBaseWriter.VERSION);
+		averageWeight = buffer.getDouble(8);
+		total = buffer.getLong(16);
+		fieldWeight = buffer.getDouble(24);
+		int stringsStart = buffer.getInt(32);
+		numStrings = buffer.getInt(stringsStart);
+		stringOffsetsStart = stringsStart + 4;
+		stringDataStart = stringOffsetsStart + 4 * (numStrings + 1);
+		weightsStart = buffer.getInt(36);
+		constantsStart = buffer.getInt(40);
+		supertypesStart = buffer.getInt(44);
+		notModStart = buffer.getInt(48);
+		weightsCache = new HashMap<String, Map<String, Integer>>();
+		constantsCache = new HashMap<String, Map<String, Integer>>();
+		supertypesCache = new HashMap<String, Set<String>>();
+	}
+
+	/**
+	 * Gets the knowledge base shared by all dialogs, converting
+	 * the gz files in the plugin if we have not yet done so.
+	 * @return The shared knowledge base.
+	 */
+	public static synchronized KnowledgeBase getDefault() {
+		if (instance == null) {
+			try {
+				instance = new KnowledgeBase(extract());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Converts the gz files in the plugin into a knowledge base
+	 * in the plugin's state location, if it is not already there.
+	 * @return The knowledge base file.
+	 * @throws IOException
+	 */
+	private static File extract() throws IOException {
+		String version = Platform.getBundle(Activator.PLUGIN_ID).getVersion().toString();
+		File file = Activator.getDefault().getStateLocation().append("knowledge-" + version + "-" + KnowledgeBaseWriter.VERSION + ".bin").toFile();
+		if (!file.exists()) {
+			String dataDir = "data" + System.getProperty("file.separator");
+			File tmpFile = File.createTempFile("knowledge", ".tmp", file.getParentFile());
+			try {
+				KnowledgeBaseWriter.convert(EclipseUtils.getFileFromBundle(dataDir + "weights.gz"), EclipseUtils.getFileFromBundle(dataDir + "supertypes.gz"), EclipseUtils.getFileFromBundle(dataDir + "notmod.gz"), tmpFile);
+				if (!tmpFile.renameTo(file) && !file.exists())
+					throw new IOException("Could not create " + file);
+			} finally {
+				tmpFile.delete();
+			}
+		}
+		return file;
+	}
+
+	public double getAverageWeight() {
+		return averageWeight;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public double getFieldWeight() {
+		return fieldWeight;
+	}
+
+	/**
+	 * Gets the number of times each method or field of the given
+	 * type was seen.
+	 * @param typeName The fully-qualified name of the type,
+	 * without $ for nested types.
+	 * @return A map from method and field keys to the number of
+	 * times they were seen, or null if we have not seen the type.
+	 */
+	public synchronized Map<String, Integer> getWeights(String typeName) {
+		return getCounts(typeName, weightsStart, weightsCache);
+	}
+
+	/**
+	 * Gets where the given constant is used as an argument.
+	 * @param fieldName The fully-qualified name of the constant.
+	 * @return A map whose keys are the places the constant is
+	 * used, or null if we have not seen the constant.
+	 */
+	public synchronized Map<String, Integer> getConstantUses(String fieldName) {
+		return getCounts(fieldName, constantsStart, constantsCache);
+	}
+
+	/**
+	 * Gets the supertypes of the given type.
+	 * @param typeName The fully-qualified name of the type,
+	 * without $ for nested types.
+	 * @return The names of the supertypes of the given type, or
+	 * null if we do not know them.
+	 */
+	public synchronized Set<String> getSupertypes(String typeName) {
+		if (supertypesCache.containsKey(typeName))
+			return supertypesCache.get(typeName);
+		Set<String> supertypes = null;
+		int entry = findEntry(supertypesStart, findString(typeName));
+		if (entry != -1) {
+			int payload = buffer.getInt(entry + 4);
+			int count = buffer.getInt(payload);
+			supertypes = new HashSet<String>(count * 2);
+			for (int i = 0; i < count; i++)
+				supertypes.add(getString(buffer.getInt(payload + 4 + 4 * i)));
+			supertypes = Collections.unmodifiableSet(supertypes);
+		}
+		supertypesCache.put(typeName, supertypes);
+		return supertypes;
+	}
+
+	/**
+	 * Checks whether the given library field is never modified.
+	 * @param fieldName The fully-qualified name of the field,
+	 * without $ for nested types.
+	 * @return Whether the given field is never modified.
+	 */
+	public boolean isNeverModified(String fieldName) {
+		int id = findString(fieldName);
+		if (id == -1)
+			return false;
+		int lo = 0;
+		int hi = buffer.getInt(notModStart) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cur = buffer.getInt(notModStart + 4 + 4 * mid);
+			if (cur < id)
+				lo = mid + 1;
+			else if (cur > id)
+				hi = mid - 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	private Map<String, Integer> getCounts(String name, int tableStart, Map<String, Map<String, Integer>> cache) {
+		if (cache.containsKey(name))
+			return cache.get(name);
+		Map<String, Integer> counts = null;
+		int entry = findEntry(tableStart, findString(name));
+		if (entry != -1) {
+			int payload = buffer.getInt(entry + 4);
+			int count = buffer.getInt(payload);
+			counts = new HashMap<String, Integer>(count * 2);
+			for (int i = 0; i < count; i++) {
+				int pos = payload + 4 + 8 * i;
+				int keyId = buffer.getInt(pos);
+				counts.put(keyId == -1 ? null : getString(keyId), buffer.getInt(pos + 4));
+			}
+			counts = Collections.unmodifiableMap(counts);
+		}
+		cache.put(name, counts);
+		return counts;
+	}
+
+	/**
+	 * Finds the entry for the given string in a table of
+	 * (id, payload offset) pairs.
+	 * @param tableStart The offset of the table.
+	 * @param id The id of the string, or -1.
+	 * @return The offset of the entry, or -1 if there is none.
+	 */
+	private int findEntry(int tableStart, int id) {
+		if (id == -1)
+			return -1;
+		int lo = 0;
+		int hi = buffer.getInt(tableStart) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int entry = tableStart + 4 + 8 * mid;
+			int cur = buffer.getInt(entry);
+			if (cur < id)
+				lo = mid + 1;
+			else if (cur > id)
+				hi = mid - 1;
+			else
+				return entry;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the id of the given string in the string table.
+	 * @param s The string.
+	 * @return The id of the given string, or -1 if it is
+	 * not in the table.
+	 */
+	private int findString(String s) {
+		byte[] key = s.getBytes(KnowledgeBaseWriter.UTF8);
+		int lo = 0;
+		int hi = numStrings - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = compareString(mid, key);
+			if (cmp < 0)
+				lo = mid + 1;
+			else if (cmp > 0)
+				hi = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private int compareString(int id, byte[] key) {
+		int start = stringDataStart + buffer.getInt(stringOffsetsStart + 4 * id);
+		int length = stringDataStart + buffer.getInt(stringOffsetsStart + 4 * (id + 1)) - start;
+		int minLength = Math.min(length, key.length);
+		for (int i = 0; i < minLength; i++) {
+			int diff = (buffer.get(start + i) & 0xff) - (key[i] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return length - key.length;
+	}
+
+	private String getString(int id) {
+		int start = stringDataStart + buffer.getInt(stringOffsetsStart + 4 * id);
+		int length = stringDataStart + buffer.getInt(stringOffsetsStart + 4 * (id + 1)) - start;
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = buffer.get(start + i);
+		return new String(bytes, KnowledgeBaseWriter.UTF8);
+	}
+
+}
@@ -0,0 +1,266 @@
+package codehint.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts the serialized maps in weights.gz, supertypes.gz,
+ * and notmod.gz into the binary format that KnowledgeBase
+ * memory-maps.
+ * The plugin runs this the first time it needs the data, and
+ * it can also be run by hand with the data directory and the
+ * output file as arguments.
+ *
+ * The format is big-endian and consists of:
+ * <ul>
+ * <li>a header with the magic number, the format version,
+ * the average weight, the total number of calls, the field
+ * weight, and the offsets of the five sections below;</li>
+ * <li>the string table: the number of strings, the offset of
+ * each string's UTF-8 bytes (plus one for the end of the last
+ * one), and the bytes themselves, sorted by their bytes so we
+ * can binary search them;</li>
+ * <li>the weights and the uses of constants: the number of
+ * entries, (type id, payload offset) pairs sorted by id, and
+ * for each entry a payload of the number of keys followed
+ * by (key id, count) pairs, where a key id of -1 means the
+ * key is null;</li>
+ * <li>the supertypes: the same, but with payloads that are
+ * the number of supertypes followed by their ids;</li>
+ * <li>the fields that are never modified: their number
+ * followed by their sorted ids.</li>
+ * </ul>
+ * Strings are referred to by their index in the string table,
+ * so each type or method key is stored only once.
+ */
+public final class KnowledgeBaseWriter {
+
+	static final int MAGIC = 0x43484B42;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 5 * 4;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private KnowledgeBaseWriter() {
+	}
+
+	/**
+	 * Converts the gz files in a directory into a knowledge base.
+	 * @param args The directory that contains the gz files and
+	 * the file to write.
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: KnowledgeBaseWriter <data directory> <output file>");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		convert(new FileInputStream(new File(dir, "weights.gz")), new FileInputStream(new File(dir, "supertypes.gz")), new FileInputStream(new File(dir, "notmod.gz")), new File(args[1]));
+	}
+
+	/**
+	 * Converts the given gz files into a knowledge base.
+	 * This closes the given streams.
+	 * @param weightsStream The contents of weights.gz.
+	 * @param supertypesStream The contents of supertypes.gz.
+	 * @param notModStream The contents of notmod.gz.
+	 * @param outFile The file to write.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public static void convert(InputStream weightsStream, InputStream supertypesStream, InputStream notModStream, File outFile) throws IOException {
+		try {
+			ObjectInputStream is = new ObjectInputStream(new GZIPInputStream(weightsStream));
+			Map<String, Map<String, Integer>> weights = (Map<String, Map<String, Integer>>)is.readObject();
+			Map<String, Map<String, Integer>> methodsForConstants = (Map<String, Map<String, Integer>>)is.readObject();
+			double averageWeight = is.readDouble();
+			long total = is.readLong();
+			double fieldWeight = is.readDouble();
+			is.close();
+			is = new ObjectInputStream(new GZIPInputStream(supertypesStream));
+			Map<String, Set<String>> supertypes = (Map<String, Set<String>>)is.readObject();
+			is.close();
+			is = new ObjectInputStream(new GZIPInputStream(notModStream));
+			Set<String> neverModifiedFields = (Set<String>)is.readObject();
+			is.close();
+			OutputStream os = new FileOutputStream(outFile);
+			try {
+				os.write(write(weights, methodsForConstants, averageWeight, total, fieldWeight, supertypes, neverModifiedFields));
+			} finally {
+				os.close();
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			weightsStream.close();
+			supertypesStream.close();
+			notModStream.close();
+		}
+	}
+
+	private static byte[] write(Map<String, Map<String, Integer>> weights, Map<String, Map<String, Integer>> methodsForConstants, double averageWeight, long total, double fieldWeight, Map<String, Set<String>> supertypes, Set<String> neverModifiedFields) throws IOException {
+		Set<String> strings = new HashSet<String>();
+		addStrings(weights, strings);
+		addStrings(methodsForConstants, strings);
+		for (Map.Entry<String, Set<String>> entry: supertypes.entrySet()) {
+			strings.add(entry.getKey());
+			strings.addAll(entry.getValue());
+		}
+		strings.addAll(neverModifiedFields);
+		byte[][] encoded = new byte[strings.size()][];
+		int i = 0;
+		for (String s: strings)
+			encoded[i++] = s.getBytes(UTF8);
+		Arrays.sort(encoded, new Comparator<byte[]>() {
+			@Override
+			public int compare(byte[] a, byte[] b) {
+				return compareBytes(a, b);
+			}
+		});
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		for (i = 0; i < encoded.length; i++)
+			ids.put(new String(encoded[i], UTF8), i);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(new byte[HEADER_SIZE]);
+		int[] sectionOffsets = new int[5];
+
+		sectionOffsets[0] = out.size();
+		out.writeInt(encoded.length);
+		int stringOffset = 0;
+		for (byte[] string: encoded) {
+			out.writeInt(stringOffset);
+			stringOffset += string.length;
+		}
+		out.writeInt(stringOffset);
+		for (byte[] string: encoded)
+			out.write(string);
+
+		sectionOffsets[1] = out.size();
+		writeCounts(weights, ids, out);
+		sectionOffsets[2] = out.size();
+		writeCounts(methodsForConstants, ids, out);
+
+		sectionOffsets[3] = out.size();
+		TreeMap<Integer, int[]> sortedSupertypes = new TreeMap<Integer, int[]>();
+		for (Map.Entry<String, Set<String>> entry: supertypes.entrySet())
+			sortedSupertypes.put(ids.get(entry.getKey()), getSortedIds(entry.getValue(), ids));
+		int payloadOffset = out.size() + 4 + 8 * sortedSupertypes.size();
+		out.writeInt(sortedSupertypes.size());
+		for (Map.Entry<Integer, int[]> entry: sortedSupertypes.entrySet()) {
+			out.writeInt(entry.getKey());
+			out.writeInt(payloadOffset);
+			payloadOffset += 4 + 4 * entry.getValue().length;
+		}
+		for (int[] supertypeIds: sortedSupertypes.values()) {
+			out.writeInt(supertypeIds.length);
+			for (int id: supertypeIds)
+				out.writeInt(id);
+		}
+
+		sectionOffsets[4] = out.size();
+		int[] notModIds = getSortedIds(neverModifiedFields, ids);
+		out.writeInt(notModIds.length);
+		for (int id: notModIds)
+			out.writeInt(id);
+		out.close();
+
+		byte[] result = bytes.toByteArray();
+		ByteBuffer header = ByteBuffer.wrap(result);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putDouble(averageWeight);
+		header.putLong(total);
+		header.putDouble(fieldWeight);
+		for (int offset: sectionOffsets)
+			header.putInt(offset);
+		return result;
+	}
+
+	private static void addStrings(Map<String, Map<String, Integer>> counts, Set<String> strings) {
+		for (Map.Entry<String, Map<String, Integer>> entry: counts.entrySet()) {
+			strings.add(entry.getKey());
+			for (String key: entry.getValue().keySet())
+				if (key != null)
+					strings.add(key);
+		}
+	}
+
+	/**
+	 * Writes a map from strings to counts of strings.
+	 * @param counts The map to write.
+	 * @param ids The ids of the strings.
+	 * @param out The stream to which to write.
+	 * @throws IOException
+	 */
+	private static void writeCounts(Map<String, Map<String, Integer>> counts, Map<String, Integer> ids, DataOutputStream out) throws IOException {
+		TreeMap<Integer, TreeMap<Integer, Integer>> sorted = new TreeMap<Integer, TreeMap<Integer, Integer>>();
+		for (Map.Entry<String, Map<String, Integer>> entry: counts.entrySet()) {
+			TreeMap<Integer, Integer> sortedCounts = new TreeMap<Integer, Integer>();
+			for (Map.Entry<String, Integer> count: entry.getValue().entrySet())
+				sortedCounts.put(count.getKey() == null ? -1 : ids.get(count.getKey()), count.getValue());
+			sorted.put(ids.get(entry.getKey()), sortedCounts);
+		}
+		int payloadOffset = out.size() + 4 + 8 * sorted.size();
+		out.writeInt(sorted.size());
+		for (Map.Entry<Integer, TreeMap<Integer, Integer>> entry: sorted.entrySet()) {
+			out.writeInt(entry.getKey());
+			out.writeInt(payloadOffset);
+			payloadOffset += 4 + 8 * entry.getValue().size();
+		}
+		for (TreeMap<Integer, Integer> sortedCounts: sorted.values()) {
+			out.writeInt(sortedCounts.size());
+			for (Map.Entry<Integer, Integer> count: sortedCounts.entrySet()) {
+				out.writeInt(count.getKey());
+				out.writeInt(count.getValue());
+			}
+		}
+	}
+
+	private static int[] getSortedIds(Set<String> strings, Map<String, Integer> ids) {
+		int[] result = new int[strings.size()];
+		int i = 0;
+		for (String s: strings)
+			result[i++] = ids.get(s);
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * Compares two byte strings as unsigned bytes, which for
+	 * UTF-8 is the same as comparing their code points.
+	 * @param a The first string.
+	 * @param b The second string.
+	 * @return A negative number, zero, or a positive number
+	 * if the first string is less than, equal to, or greater
+	 * than the second.
+	 */
+	static int compareBytes(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int diff = (a[i] & 0xff) - (b[i] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return a.length - b.length;
+	}
+
+}